@@ -0,0 +1,90 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Tests streaming verification of single part and multipart eTags.
+ */
+public class VLSyncChecksumTest extends TestCase {
+
+    public void testSinglePartETagIsVerified() throws Exception {
+        byte[] body = body(100 * 1024);
+        String eTag = "\"" + hex(md5(body)) + "\"";
+
+        VLSyncChecksum checksum = VLSyncChecksum.create(eTag, body.length);
+        feed(checksum, body);
+        assertTrue(checksum.matches());
+
+        body[500] ^= 1;
+        checksum = VLSyncChecksum.create(eTag, body.length);
+        feed(checksum, body);
+        assertFalse(checksum.matches());
+    }
+
+    public void testMultipartETagIsVerified() throws Exception {
+        int partSize = 8 * 1024 * 1024;
+        byte[] body = body(2 * partSize + 1234);
+        MessageDigest parts = MessageDigest.getInstance("MD5");
+        for (int offset = 0; offset < body.length; offset += partSize) {
+            MessageDigest part = MessageDigest.getInstance("MD5");
+            part.update(body, offset, Math.min(partSize, body.length - offset));
+            parts.update(part.digest());
+        }
+        String eTag = "\"" + hex(parts.digest()) + "-3\"";
+
+        VLSyncChecksum checksum = VLSyncChecksum.create(eTag, body.length);
+        feed(checksum, body);
+        assertTrue(checksum.matches());
+
+        body[body.length - 1] ^= 1;
+        checksum = VLSyncChecksum.create(eTag, body.length);
+        feed(checksum, body);
+        assertFalse(checksum.matches());
+    }
+
+    public void testOpaqueETagIsNotVerified() {
+        assertNull(VLSyncChecksum.create(null, 10));
+        assertNull(VLSyncChecksum.create("\"x\"", 10));
+        assertNull(VLSyncChecksum.create("W/\"5d41402abc4b2a76b9719d911017c592\"-1x", 10));
+    }
+
+    public void testMd5IsExtractedFromETag() {
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", VLSyncChecksum.md5("\"D41D8CD98F00B204E9800998ECF8427E\""));
+        assertNull(VLSyncChecksum.md5("\"d41d8cd98f00b204e9800998ecf8427e-2\""));
+        assertNull(VLSyncChecksum.md5(null));
+    }
+
+    private static void feed(VLSyncChecksum checksum, byte[] body){
+        ByteBuffer buffer = ByteBuffer.allocateDirect(7000);
+        for (int offset = 0; offset < body.length; offset += buffer.capacity()) {
+            buffer.clear();
+            buffer.put(body, offset, Math.min(buffer.capacity(), body.length - offset));
+            buffer.flip();
+            checksum.update(buffer);
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    private static byte[] md5(byte[] body) throws Exception {
+        return MessageDigest.getInstance("MD5").digest(body);
+    }
+
+    private static String hex(byte[] bytes){
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] body(int length){
+        byte[] body = new byte[length];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) (i * 31 + i / 256);
+        }
+        return body;
+    }
+}
@@ -0,0 +1,49 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests adaptation of concurrency limit to throughput, latency and
+ * failures.
+ */
+public class VLSyncConcurrencyLimitTest extends TestCase {
+
+    private static final long SIZE = 100 * 1024;
+
+    public void testLimitGrowsUntilTransfersQueue() {
+        VLSyncConcurrencyLimit limit = VLSyncConcurrencyLimit.adaptive();
+        assertEquals(VLSyncConcurrencyLimit.INITIAL_LIMIT, limit.getLimit());
+
+        round(limit, 2, 100, 100);
+        assertEquals(3, limit.getLimit());
+        round(limit, 3, 100, 200);
+        assertEquals(4, limit.getLimit());
+
+        // same bytes in twice the time, each transfer twice as slow
+        round(limit, 4, 200, 400);
+        assertEquals(3, limit.getLimit());
+    }
+
+    public void testFailuresHalveLimitOncePerRound() {
+        VLSyncConcurrencyLimit limit = new VLSyncConcurrencyLimit(8, 1, VLSyncConcurrencyLimit.MAX_LIMIT);
+        limit.onCongestion();
+        limit.onCongestion();
+        assertEquals(4, limit.getLimit());
+
+        round(limit, 4, 100, 100);
+        assertEquals(4, limit.getLimit());
+        limit.onCongestion();
+        assertEquals(2, limit.getLimit());
+
+        VLSyncConcurrencyLimit fixed = new VLSyncConcurrencyLimit(3);
+        fixed.onCongestion();
+        round(fixed, 3, 100, 100);
+        assertEquals(3, fixed.getLimit());
+    }
+
+    private static void round(VLSyncConcurrencyLimit limit, int samples, long millis, long now) {
+        for (int i = 0; i < samples; i++) {
+            limit.onSample(SIZE, millis, now);
+        }
+    }
+}
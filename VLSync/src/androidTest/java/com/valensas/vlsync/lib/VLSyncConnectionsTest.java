@@ -0,0 +1,60 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests that manifest and file requests share kept alive connections.
+ */
+public class VLSyncConnectionsTest extends TestCase {
+
+    private VLSyncTestOrigin origin;
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        origin = new VLSyncTestOrigin();
+        dir = File.createTempFile("vlsync", "connections");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        origin.shutdown();
+        FileUtils.deleteDirectory(dir);
+        super.tearDown();
+    }
+
+    public void testSequentialRequestsReuseOneConnection() throws IOException {
+        origin.put("content.json", "{\"files\":[{\"path\":\"contents/a.json\",\"size\":2}]}", "\"v1\"");
+        origin.put("contents/a.json", "{}", null);
+        origin.put("contents/b.json", "[]", null);
+
+        VLSyncManifestFetch fetch = VLSyncManifestFetch.open(origin.getURL(), VLSyncManifestFetch.candidates(null), null);
+        assertEquals("content.json", fetch.getName());
+        VLSyncManifestParser.parse(fetch.getInputStream(), new VLSyncManifestParser.OnFileParsedListener() {
+            @Override
+            public void onFileParsed(VLSyncFile file) {
+            }
+        });
+        fetch.close();
+
+        assertNull(VLSyncManifestDelta.fetch(origin.getURL(), "\"v0\""));
+        VLSyncHttpTransport.transfer(origin.getURL() + "contents/a.json", new File(dir, "a.json"), null, -1);
+        VLSyncHttpTransport.transfer(origin.getURL() + "contents/b.json", new File(dir, "b.json"), null, -1);
+
+        fetch = VLSyncManifestFetch.open(origin.getURL(), VLSyncManifestFetch.candidates("content.json"), "\"v1\"");
+        assertTrue(fetch.isNotModified());
+        fetch.close();
+
+        assertEquals(8, origin.getRequestCount());
+        assertEquals(1, origin.getConnectionCount());
+    }
+}
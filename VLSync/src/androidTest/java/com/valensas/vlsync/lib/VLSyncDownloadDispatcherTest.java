@@ -0,0 +1,140 @@
+package com.valensas.vlsync.lib;
+
+import android.app.DownloadManager;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests dispatching of download completions to their listeners.
+ */
+public class VLSyncDownloadDispatcherTest extends TestCase {
+
+    private final Map<Long, int[]> statuses = new HashMap<Long, int[]>();
+
+    private final List<String> results = new ArrayList<String>();
+
+    private final List<Runnable> posted = new ArrayList<Runnable>();
+
+    private VLSyncDownloadDispatcher dispatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dispatcher = new VLSyncDownloadDispatcher(null, new VLSyncDownloadDispatcher.StatusQuery() {
+            @Override
+            public int[] query(long downloadID) {
+                return statuses.get(downloadID);
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                posted.add(runnable);
+            }
+        });
+    }
+
+    public void testCompletionsAreDispatchedOutOfOrder() {
+        for (long id = 1; id <= 3; id++) {
+            dispatcher.register(id, listener(id));
+        }
+        statuses.put(3L, new int[]{DownloadManager.STATUS_SUCCESSFUL, 0});
+        statuses.put(1L, new int[]{DownloadManager.STATUS_FAILED, DownloadManager.ERROR_INSUFFICIENT_SPACE});
+        statuses.put(2L, new int[]{DownloadManager.STATUS_SUCCESSFUL, 0});
+
+        dispatcher.complete(3);
+        dispatcher.complete(1);
+        dispatcher.complete(2);
+        dispatcher.complete(3);
+
+        assertEquals(3, results.size());
+        assertEquals("3 success", results.get(0));
+        assertEquals("1 failed " + DownloadManager.ERROR_INSUFFICIENT_SPACE, results.get(1));
+        assertEquals("2 success", results.get(2));
+    }
+
+    public void testUnknownAndUnregisteredDownloadsAreIgnored() {
+        dispatcher.register(1, listener(1));
+        dispatcher.register(2, listener(2));
+        dispatcher.unregister(2);
+        statuses.put(2L, new int[]{DownloadManager.STATUS_SUCCESSFUL, 0});
+        statuses.put(7L, new int[]{DownloadManager.STATUS_SUCCESSFUL, 0});
+
+        dispatcher.complete(2);
+        dispatcher.complete(7);
+        assertTrue(results.isEmpty());
+
+        dispatcher.complete(1);
+        assertEquals(1, results.size());
+        assertEquals("1 failed " + VLSyncDownloadTask.NO_STATUS, results.get(0));
+    }
+
+    public void testDownloadsAfterIdleMomentAreDispatched() {
+        statuses.put(1L, new int[]{DownloadManager.STATUS_SUCCESSFUL, 0});
+        statuses.put(2L, new int[]{DownloadManager.STATUS_SUCCESSFUL, 0});
+        dispatcher.register(1, listener(1));
+        dispatcher.complete(1);
+
+        // no download is waiting until the retry is enqueued
+        dispatcher.register(2, listener(2));
+        dispatcher.complete(2);
+
+        assertEquals(2, results.size());
+        assertEquals("2 success", results.get(1));
+    }
+
+    public void testCompletionBeforeRegistrationIsDelivered() {
+        // broadcast arrives between enqueue and registration of listener
+        statuses.put(1L, new int[]{DownloadManager.STATUS_SUCCESSFUL, 0});
+        dispatcher.complete(1);
+        dispatcher.register(1, listener(1));
+        assertTrue(results.isEmpty());
+        runPosted();
+        assertEquals(1, results.size());
+        assertEquals("1 success", results.get(0));
+
+        // broadcast arrives after registration as well
+        statuses.put(2L, new int[]{DownloadManager.STATUS_FAILED, DownloadManager.ERROR_CANNOT_RESUME});
+        dispatcher.register(2, listener(2));
+        dispatcher.complete(2);
+        runPosted();
+        assertEquals(2, results.size());
+        assertEquals("2 failed " + DownloadManager.ERROR_CANNOT_RESUME, results.get(1));
+    }
+
+    public void testRunningDownloadWaitsForBroadcast() {
+        statuses.put(1L, new int[]{DownloadManager.STATUS_RUNNING, 0});
+        dispatcher.register(1, listener(1));
+        assertTrue(posted.isEmpty());
+
+        statuses.put(1L, new int[]{DownloadManager.STATUS_SUCCESSFUL, 0});
+        dispatcher.complete(1);
+        assertEquals(1, results.size());
+    }
+
+    private void runPosted() {
+        for (Runnable runnable : posted) {
+            runnable.run();
+        }
+        posted.clear();
+    }
+
+    private VLSyncDownloadTask.OnDownloadFinishedListener listener(final long id) {
+        return new VLSyncDownloadTask.OnDownloadFinishedListener() {
+            @Override
+            public void success() {
+                results.add(id + " success");
+            }
+
+            @Override
+            public void failed(int status) {
+                results.add(id + " failed " + status);
+            }
+        };
+    }
+}
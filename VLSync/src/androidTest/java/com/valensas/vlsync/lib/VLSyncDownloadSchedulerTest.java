@@ -0,0 +1,170 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests bounded concurrency, retries and partial result of download
+ * scheduler.
+ */
+public class VLSyncDownloadSchedulerTest extends TestCase {
+
+    private VLSyncManifest files;
+
+    private final ArrayList<VLSyncDownloadTask.OnDownloadFinishedListener> inFlight = new ArrayList<VLSyncDownloadTask.OnDownloadFinishedListener>();
+
+    private final ArrayList<Integer> started = new ArrayList<Integer>();
+
+    private final ArrayList<String> events = new ArrayList<String>();
+
+    private int maxInFlight = 0;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        files = new VLSyncManifest();
+        for (int i = 0; i < 10; i++) {
+            files.add("contents/file" + i, null, 10);
+        }
+    }
+
+    public void testTransfersAreBoundedAndProgressIsAggregated() {
+        VLSyncDownloadScheduler scheduler = scheduler(3);
+        scheduler.start();
+        assertEquals(3, inFlight.size());
+
+        while (!inFlight.isEmpty()){
+            inFlight.remove(0).success();
+        }
+
+        assertEquals(3, maxInFlight);
+        assertEquals(10, started.size());
+        assertEquals(11, events.size());
+        assertEquals("progress 10/100", events.get(0));
+        assertEquals("progress 100/100", events.get(9));
+        assertEquals("finished", events.get(10));
+    }
+
+    public void testSkippedFilesAreNotDownloaded() {
+        VLSyncDownloadScheduler scheduler = scheduler(4);
+        for (int i = 0; i < 8; i++) {
+            scheduler.skip(i);
+        }
+        scheduler.start();
+        assertEquals(2, inFlight.size());
+        assertEquals("[8, 9]", started.toString());
+
+        inFlight.remove(0).success();
+        assertEquals("progress 90/100", events.get(0));
+        inFlight.remove(0).success();
+        assertEquals("finished", events.get(2));
+    }
+
+    public void testAllSkippedFinishesRightAway() {
+        VLSyncDownloadScheduler scheduler = scheduler(4);
+        for (int i = 0; i < 10; i++) {
+            scheduler.skip(i);
+        }
+        scheduler.start();
+        assertTrue(started.isEmpty());
+        assertEquals("[finished]", events.toString());
+    }
+
+    public void testFailedFileDoesNotStopOthers() {
+        VLSyncDownloadScheduler scheduler = scheduler(3, VLSync.RetryPolicy.NONE);
+        scheduler.start();
+
+        inFlight.remove(1).failed(404);
+        while (!inFlight.isEmpty()){
+            inFlight.remove(0).success();
+        }
+
+        assertEquals(10, started.size());
+        assertEquals(10, events.size());
+        assertEquals("failed [contents/file1]", events.get(9));
+    }
+
+    public void testRetryableFailureIsRetried() throws Exception {
+        VLSyncDownloadScheduler scheduler = scheduler(2, new VLSync.RetryPolicy(3, 1, 5));
+        scheduler.start();
+
+        VLSyncDownloadTask.OnDownloadFinishedListener first;
+        synchronized (this){
+            first = inFlight.remove(0);
+        }
+        first.failed(503);
+        first = awaitStart(3);
+        first.failed(VLSyncDownloadTask.NO_STATUS);
+        first = awaitStart(4);
+        first.failed(503);
+
+        while (true){
+            VLSyncDownloadTask.OnDownloadFinishedListener next;
+            synchronized (this){
+                if(inFlight.isEmpty()){
+                    break;
+                }
+                next = inFlight.remove(0);
+            }
+            next.success();
+        }
+
+        assertEquals("[0, 1, 0, 0, 2, 3, 4, 5, 6, 7, 8, 9]", started.toString());
+        assertEquals("failed [contents/file0]", events.get(events.size() - 1));
+    }
+
+    public void testFailuresAreClassified() {
+        assertTrue(VLSyncDownloadScheduler.isRetryable(VLSyncDownloadTask.NO_STATUS));
+        assertTrue(VLSyncDownloadScheduler.isRetryable(503));
+        assertTrue(VLSyncDownloadScheduler.isRetryable(429));
+        assertFalse(VLSyncDownloadScheduler.isRetryable(404));
+        assertFalse(VLSyncDownloadScheduler.isRetryable(403));
+        assertFalse(VLSyncDownloadScheduler.isRetryable(501));
+    }
+
+    private VLSyncDownloadTask.OnDownloadFinishedListener awaitStart(int count) throws InterruptedException {
+        synchronized (this){
+            long deadline = System.currentTimeMillis() + 5000;
+            while (started.size() < count && System.currentTimeMillis() < deadline){
+                wait(10);
+            }
+            assertEquals(count, started.size());
+            return inFlight.remove(inFlight.size() - 1);
+        }
+    }
+
+    private VLSyncDownloadScheduler scheduler(int maxConcurrent){
+        return scheduler(maxConcurrent, VLSync.RetryPolicy.DEFAULT);
+    }
+
+    private VLSyncDownloadScheduler scheduler(int maxConcurrent, VLSync.RetryPolicy retryPolicy){
+        return new VLSyncDownloadScheduler(files, maxConcurrent, retryPolicy, new VLSyncDownloadScheduler.Starter() {
+            @Override
+            public void start(int entry, VLSyncDownloadTask.OnDownloadFinishedListener listener) {
+                synchronized (VLSyncDownloadSchedulerTest.this){
+                    started.add(entry);
+                    inFlight.add(listener);
+                    maxInFlight = Math.max(maxInFlight, inFlight.size());
+                }
+            }
+        }, new VLSyncDownloadScheduler.OnScheduleListener() {
+            @Override
+            public void onProgress(long completedSize, long totalSize) {
+                events.add("progress " + completedSize + "/" + totalSize);
+            }
+
+            @Override
+            public void onFinished() {
+                events.add("finished");
+            }
+
+            @Override
+            public void onFailed(List<String> completedPaths, List<String> failedPaths) {
+                assertEquals(files.size(), completedPaths.size() + failedPaths.size());
+                events.add("failed " + failedPaths);
+            }
+        });
+    }
+}
@@ -0,0 +1,119 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests hedging of slow transfers against local stand-in origins.
+ */
+public class VLSyncHedgedTransferTest extends TestCase {
+
+    private static final String BODY = "hedged content";
+
+    private VLSyncTestOrigin slow;
+
+    private VLSyncTestOrigin fast;
+
+    private VLSyncMirrors mirrors;
+
+    private ExecutorService executor;
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        slow = new VLSyncTestOrigin();
+        fast = new VLSyncTestOrigin();
+        slow.put("contents/a.txt", BODY, "\"a1\"").delay(3000);
+        fast.put("contents/a.txt", BODY, "\"a1\"");
+        mirrors = new VLSyncMirrors(new String[]{slow.getURL(), fast.getURL()});
+        executor = Executors.newCachedThreadPool();
+        dir = File.createTempFile("vlsync", "hedge");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        slow.shutdown();
+        fast.shutdown();
+        FileUtils.deleteDirectory(dir);
+        super.tearDown();
+    }
+
+    public void testSlowTransferIsHedgedOnOtherMirror() throws Exception {
+        VLSyncHedgePolicy policy = new VLSyncHedgePolicy(mirrors);
+        for (int i = 0; i < VLSyncHedgePolicy.MIN_SAMPLES; i++) {
+            transfer(policy, fast.getURL(), new File(dir, "warm" + i + ".txt"));
+        }
+
+        File file = new File(dir, "a.txt");
+        long start = System.currentTimeMillis();
+        transfer(policy, slow.getURL(), file);
+
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(BODY, FileUtils.readFileToString(file, "UTF-8"));
+        assertEquals(VLSyncHedgePolicy.MIN_SAMPLES + 1, fast.getRequestCount());
+        assertEquals("[a.txt]", Arrays.toString(dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File parent, String name) {
+                return name.startsWith("a") || name.startsWith(VLSyncHedgedTransfer.HEDGE_PREFIX);
+            }
+        })));
+    }
+
+    public void testTransfersAreNotHedgedWithoutSamples() throws Exception {
+        slow.put("contents/a.txt", BODY, "\"a1\"").delay(200);
+        VLSyncHedgePolicy policy = new VLSyncHedgePolicy(mirrors);
+        File file = new File(dir, "a.txt");
+
+        transfer(policy, slow.getURL(), file);
+
+        assertEquals(BODY, FileUtils.readFileToString(file, "UTF-8"));
+        assertEquals(0, fast.getRequestCount());
+        assertTrue(policy.acquire());
+        assertFalse(policy.acquire());
+    }
+
+    public void testFailedRequestIsRecordedOnce() throws Exception {
+        final IdentityHashMap<VLSyncHttpTransport.Progress, Integer> records = new IdentityHashMap<VLSyncHttpTransport.Progress, Integer>();
+        VLSyncHedgePolicy policy = new VLSyncHedgePolicy(mirrors) {
+            @Override
+            protected synchronized void record(VLSyncHttpTransport.Progress progress, boolean completed) {
+                super.record(progress, completed);
+                Integer count = records.get(progress);
+                records.put(progress, count == null ? 1 : count + 1);
+            }
+        };
+        for (int i = 0; i < VLSyncHedgePolicy.MIN_SAMPLES; i++) {
+            transfer(policy, fast.getURL(), new File(dir, "warm" + i + ".txt"));
+        }
+        records.clear();
+        // primary fails while the hedge is still in flight
+        slow.put("contents/a.txt", BODY, "\"a1\"").delay(300).cut(3);
+        fast.put("contents/a.txt", BODY, "\"a1\"").delay(800);
+
+        File file = new File(dir, "a.txt");
+        transfer(policy, slow.getURL(), file);
+
+        assertEquals(BODY, FileUtils.readFileToString(file, "UTF-8"));
+        assertEquals(2, records.size());
+        for (Integer count : records.values()) {
+            assertEquals(1, count.intValue());
+        }
+    }
+
+    private void transfer(VLSyncHedgePolicy policy, String origin, File file) throws Exception {
+        new VLSyncHedgedTransfer(origin + "contents/a.txt", file, BODY.length(), null, policy, executor).run();
+    }
+}
@@ -0,0 +1,174 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests in-process transport against a local stand-in origin.
+ */
+public class VLSyncHttpTransportTest extends TestCase {
+
+    private VLSyncTestOrigin origin;
+
+    private File dir;
+
+    private VLSyncHttpTransport transport;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        origin = new VLSyncTestOrigin();
+        dir = File.createTempFile("vlsync", "transport");
+        dir.delete();
+        dir.mkdirs();
+        transport = new VLSyncHttpTransport(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        transport.release();
+        origin.shutdown();
+        FileUtils.deleteDirectory(dir);
+        super.tearDown();
+    }
+
+    public void testFileIsStreamedToStorage() throws Exception {
+        byte[] body = body(300 * 1024);
+        origin.put("contents/images/big.png", body, "\"x\"");
+
+        File file = new File(dir, "temp/contents/images/big.png");
+        assertTrue(download("contents/images/big.png", file));
+        assertTrue(Arrays.equals(body, FileUtils.readFileToByteArray(file)));
+        assertFalse(new File(file.getPath() + ".part").exists());
+    }
+
+    public void testInterruptedFileIsResumed() throws Exception {
+        byte[] body = body(500 * 1024);
+        origin.put("contents/videos/intro.mp4", body, "\"v1\"").cut(200 * 1024);
+
+        File file = new File(dir, "temp/contents/videos/intro.mp4");
+        assertFalse(download("contents/videos/intro.mp4", file));
+        assertFalse(file.exists());
+        assertEquals(200 * 1024, new File(file.getPath() + ".part").length());
+
+        assertTrue(download("contents/videos/intro.mp4", file));
+        assertTrue(Arrays.equals(body, FileUtils.readFileToByteArray(file)));
+        assertEquals(body.length, origin.getBytesSent());
+        assertFalse(new File(file.getPath() + ".part").exists());
+        assertFalse(new File(file.getPath() + ".part.etag").exists());
+    }
+
+    public void testChangedFileIsRestarted() throws Exception {
+        origin.put("contents/videos/intro.mp4", body(500 * 1024), "\"v1\"").cut(200 * 1024);
+        File file = new File(dir, "temp/contents/videos/intro.mp4");
+        assertFalse(download("contents/videos/intro.mp4", file));
+
+        byte[] changed = body(300 * 1024);
+        changed[0] = 42;
+        origin.put("contents/videos/intro.mp4", changed, "\"v2\"");
+        assertTrue(download("contents/videos/intro.mp4", file));
+        assertTrue(Arrays.equals(changed, FileUtils.readFileToByteArray(file)));
+    }
+
+    public void testCorruptFileIsRejected() throws Exception {
+        byte[] body = body(64 * 1024);
+        origin.put("contents/data.json", body, "\"5d41402abc4b2a76b9719d911017c592\"");
+
+        File file = new File(dir, "temp/contents/data.json");
+        assertEquals(VLSyncDownloadTask.CORRUPT, download("contents/data.json", file, body.length, "\"5d41402abc4b2a76b9719d911017c592\""));
+        assertFalse(file.exists());
+        assertFalse(new File(file.getPath() + ".part").exists());
+    }
+
+    public void testGzipEncodedResponseIsDecompressed() throws Exception {
+        byte[] body = text(4000);
+        String eTag = eTag(body);
+        origin.put("contents/data.json", body, eTag).gzip();
+
+        File file = new File(dir, "temp/contents/data.json");
+        assertEquals(0, download("contents/data.json", file, body.length, eTag));
+        assertTrue(Arrays.equals(body, FileUtils.readFileToByteArray(file)));
+        assertTrue(origin.getBytesSent() < body.length / 4);
+        assertFalse(new File(file.getPath() + ".part.etag").exists());
+    }
+
+    public void testPrecompressedSiblingIsDecompressed() throws Exception {
+        byte[] body = text(4000);
+        String eTag = eTag(body);
+        origin.put("contents/data.json.gz", VLSyncTestOrigin.gzip(body), "\"gz\"");
+
+        File file = new File(dir, "temp/contents/data.json");
+        assertEquals(0, download("contents/data.json.gz", file, body.length, eTag));
+        assertTrue(Arrays.equals(body, FileUtils.readFileToByteArray(file)));
+
+        assertEquals(VLSyncDownloadTask.CORRUPT, download("contents/data.json.gz", file, body.length + 1, null));
+        assertFalse(new File(file.getPath() + ".part").exists());
+    }
+
+    public void testMissingFileFailsWithoutLeftovers() throws Exception {
+        File file = new File(dir, "temp/contents/missing.json");
+        assertFalse(download("contents/missing.json", file));
+        assertFalse(file.exists());
+        assertFalse(new File(file.getPath() + ".part").exists());
+    }
+
+    private static byte[] body(int length){
+        byte[] body = new byte[length];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) (i * 31 + i / 256);
+        }
+        return body;
+    }
+
+    private static byte[] text(int lines) throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            builder.append("{\"id\":").append(i).append(",\"title\":\"Item\"}\n");
+        }
+        return builder.toString().getBytes("UTF-8");
+    }
+
+    private static String eTag(byte[] body) throws Exception {
+        StringBuilder builder = new StringBuilder("\"");
+        for (byte b : MessageDigest.getInstance("MD5").digest(body)){
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.append('"').toString();
+    }
+
+    private boolean download(String path, File file) throws InterruptedException {
+        return download(path, file, -1, null) == 0;
+    }
+
+    private int download(String path, File file, long size, String eTag) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final int[] result = new int[1];
+        transport.download(origin.getURL() + path, file, size, eTag, new VLSyncDownloadTask.OnDownloadFinishedListener() {
+            @Override
+            public void success() {
+                latch.countDown();
+            }
+
+            @Override
+            public void failed(int status) {
+                result[0] = status;
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return result[0];
+    }
+}
@@ -0,0 +1,158 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+/**
+ * Tests reconciliation of committed files with committed manifest.
+ */
+public class VLSyncIntegrityTest extends TestCase {
+
+    private static final int COUNT = 200;
+
+    private File dir;
+
+    private VLSyncManifestIndex index;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("vlsync", "integrity");
+        dir.delete();
+        dir.mkdirs();
+
+        VLSyncManifestIndex.Writer writer = new VLSyncManifestIndex.Writer(new File(dir, "content.idx.part"));
+        for (int i = 0; i < COUNT; i++) {
+            String path = "contents/" + (i % 10) + "/file" + i + ".txt";
+            byte[] body = ("file " + i).getBytes("UTF-8");
+            FileUtils.writeByteArrayToFile(new File(dir, path), body);
+            VLSyncFile file = new VLSyncFile();
+            file.setPath(path);
+            file.setEtag(i % 2 == 0 ? "\"" + md5(body) + "\"" : "abc-" + i);
+            file.setSize(body.length);
+            writer.add(file);
+        }
+        writer.setLastUpdatedDate(42);
+        writer.commit(new File(dir, "content.idx"));
+        index = VLSyncManifestIndex.open(new File(dir, "content.idx"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        index.close();
+        FileUtils.deleteDirectory(dir);
+        super.tearDown();
+    }
+
+    public void testIntactTreeNeedsNoRepair() throws IOException {
+        VLSyncIntegrity integrity = new VLSyncIntegrity(dir);
+        assertTrue(integrity.reconcile(index).isEmpty());
+        assertTrue(new File(dir, VLSyncIntegrity.STATE_FILE).exists());
+        assertTrue(integrity.reconcile(index).isEmpty());
+    }
+
+    public void testMissingAndCorruptFilesAreRepaired() throws IOException {
+        VLSyncIntegrity integrity = new VLSyncIntegrity(dir);
+        assertTrue(integrity.reconcile(index).isEmpty());
+
+        File missing = new File(dir, "contents/3/file3.txt");
+        assertTrue(missing.delete());
+        File corrupt = new File(dir, "contents/4/file4.txt");
+        long modified = corrupt.lastModified();
+        FileUtils.writeByteArrayToFile(corrupt, "file X".getBytes("UTF-8"));
+        corrupt.setLastModified(modified + 2000);
+        File touched = new File(dir, "contents/6/file6.txt");
+        touched.setLastModified(touched.lastModified() + 2000);
+
+        VLSyncManifest repairs = integrity.reconcile(index);
+        assertEquals(2, repairs.size());
+        assertEquals("contents/3/file3.txt", repairs.getPath(0));
+        assertEquals("contents/4/file4.txt", repairs.getPath(1));
+    }
+
+    public void testStateOfAnotherManifestIsIgnored() throws IOException {
+        VLSyncIntegrity integrity = new VLSyncIntegrity(dir);
+        assertTrue(integrity.reconcile(index).isEmpty());
+        integrity.reset();
+        assertFalse(new File(dir, VLSyncIntegrity.STATE_FILE).exists());
+        assertTrue(integrity.reconcile(index).isEmpty());
+    }
+
+    public void testCorruptFileIsFoundWithoutState() throws IOException {
+        FileUtils.writeByteArrayToFile(new File(dir, "contents/4/file4.txt"), "file X".getBytes("UTF-8"));
+        FileUtils.writeByteArrayToFile(new File(dir, "contents/5/file5.txt"), "file Y".getBytes("UTF-8"));
+
+        VLSyncManifest repairs = new VLSyncIntegrity(dir).reconcile(index);
+        // eTag of file5 is not an MD5 digest, so its size is all that is checked
+        assertEquals(1, repairs.size());
+        assertEquals("contents/4/file4.txt", repairs.getPath(0));
+    }
+
+    public void testLargeTreeIsReconciledFromState() throws Exception {
+        File large = new File(dir, "large");
+        VLSyncManifestIndex.Writer writer = new VLSyncManifestIndex.Writer(new File(large, "content.idx.part"));
+        for (int i = 0; i < 10000; i++) {
+            String path = "contents/" + (i % 100) + "/file" + i + ".txt";
+            byte[] body = ("file " + i).getBytes("UTF-8");
+            FileUtils.writeByteArrayToFile(new File(large, path), body);
+            VLSyncFile file = new VLSyncFile();
+            file.setPath(path);
+            file.setEtag("\"" + md5(body) + "\"");
+            file.setSize(body.length);
+            writer.add(file);
+        }
+        writer.setLastUpdatedDate(42);
+        writer.commit(new File(large, "content.idx"));
+        VLSyncManifestIndex largeIndex = VLSyncManifestIndex.open(new File(large, "content.idx"));
+        try {
+            VLSyncIntegrity integrity = new VLSyncIntegrity(large);
+            assertTrue(integrity.reconcile(largeIndex).isEmpty());
+
+            long start = System.currentTimeMillis();
+            assertTrue(integrity.reconcile(largeIndex).isEmpty());
+            // only sizes and modification times are read
+            assertTrue(System.currentTimeMillis() - start < 2000);
+        } finally {
+            largeIndex.close();
+        }
+    }
+
+    public void testCorruptFileWithMultipartETagIsFound() throws Exception {
+        File multipart = new File(dir, "multipart");
+        byte[] body = "multipart file".getBytes("UTF-8");
+        FileUtils.writeByteArrayToFile(new File(multipart, "contents/m.txt"), body);
+        VLSyncManifestIndex.Writer writer = new VLSyncManifestIndex.Writer(new File(multipart, "content.idx.part"));
+        VLSyncFile file = new VLSyncFile();
+        file.setPath("contents/m.txt");
+        file.setEtag("\"" + md5(MessageDigest.getInstance("MD5").digest(body)) + "-1\"");
+        file.setSize(body.length);
+        writer.add(file);
+        writer.setLastUpdatedDate(42);
+        writer.commit(new File(multipart, "content.idx"));
+        VLSyncManifestIndex multipartIndex = VLSyncManifestIndex.open(new File(multipart, "content.idx"));
+        try {
+            assertTrue(new VLSyncIntegrity(multipart).reconcile(multipartIndex).isEmpty());
+
+            FileUtils.writeByteArrayToFile(new File(multipart, "contents/m.txt"), "multipart fil3".getBytes("UTF-8"));
+            new File(multipart, VLSyncIntegrity.STATE_FILE).delete();
+            VLSyncManifest repairs = new VLSyncIntegrity(multipart).reconcile(multipartIndex);
+            assertEquals(1, repairs.size());
+            assertEquals("contents/m.txt", repairs.getPath(0));
+        } finally {
+            multipartIndex.close();
+        }
+    }
+
+    private static String md5(byte[] body) throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(body)){
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+}
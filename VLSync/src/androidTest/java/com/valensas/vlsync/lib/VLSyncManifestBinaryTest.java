@@ -0,0 +1,146 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Tests that binary and json manifests describe the same content.
+ */
+public class VLSyncManifestBinaryTest extends TestCase {
+
+    private static final String JSON = "{\"lastUpdatedDate\":1422540000000,\"files\":[" +
+            "{\"etag\":\"\\\"d41d8cd98f00b204e9800998ecf8427e\\\"\",\"path\":\"contents/main.json\",\"size\":120}," +
+            "{\"etag\":\"abc-3\",\"path\":\"contents/images/\u00e7i\u00e7ek.png\",\"size\":2048}," +
+            "{\"path\":\"contents/empty\",\"size\":0}]}";
+
+    private File json;
+
+    private File binary;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        json = File.createTempFile("content", ".json");
+        binary = File.createTempFile("content", ".bin");
+        FileOutputStream out = new FileOutputStream(json);
+        try {
+            out.write(JSON.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        json.delete();
+        binary.delete();
+        super.tearDown();
+    }
+
+    public void testBothFormatsGiveSameContentFile() throws IOException {
+        VLSyncManifestBinary.convert(json, binary);
+
+        VLSyncContentFile fromJson = VLSyncManifestParser.parse(json);
+        VLSyncContentFile fromBinary = VLSyncManifestBinary.read(binary);
+
+        assertEquals(fromJson.getLastUpdatedDate(), fromBinary.getLastUpdatedDate());
+        assertEquals(fromJson.getFiles().length, fromBinary.getFiles().length);
+        for (int i = 0; i < fromJson.getFiles().length; i++) {
+            VLSyncFile a = fromJson.getFiles()[i];
+            VLSyncFile b = fromBinary.getFiles()[i];
+            assertEquals(a.getPath(), b.getPath());
+            assertEquals(a.getEtag(), b.getEtag());
+            assertEquals(a.getSize(), b.getSize());
+        }
+        assertEquals(fromJson.toString(), fromBinary.toString());
+    }
+
+    public void testCursorReadsMappedBufferInPlace() throws IOException {
+        VLSyncManifestBinary.convert(json, binary);
+
+        RandomAccessFile raf = new RandomAccessFile(binary, "r");
+        try {
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            VLSyncManifestBinary.Cursor cursor = new VLSyncManifestBinary.Cursor(buffer);
+            assertEquals(3, cursor.getCount());
+            long total = 0;
+            int count = 0;
+            while (cursor.next()){
+                total += cursor.getSize();
+                count++;
+            }
+            assertEquals(3, count);
+            assertEquals(2168, total);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public void testHeaderFieldsSurviveConversion() throws IOException {
+        FileOutputStream out = new FileOutputStream(json);
+        try {
+            out.write(("{\"lastUpdatedDate\":5,\"files\":[{\"path\":\"a/b.json\",\"etag\":\"e1\",\"size\":1}]," +
+                    "\"shards\":[{\"prefix\":\"c/\",\"path\":\"shards/c.json\",\"hash\":\"h1\"}]," +
+                    "\"packs\":[{\"prefix\":\"a/\",\"path\":\"packs/a.tar\",\"size\":10}]," +
+                    "\"patches\":[{\"target\":\"a/b.json\",\"base\":\"e0\",\"path\":\"patches/b.vcdiff\",\"size\":1}]," +
+                    "\"compressed\":[\".json\"]}").getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        VLSyncManifestBinary.convert(json, binary);
+
+        VLSyncContentFile header = VLSyncManifestBinary.read(binary);
+        assertEquals(5, header.getLastUpdatedDate());
+        assertEquals(1, header.getFiles().length);
+        assertTrue(header.isSharded());
+        assertEquals("h1", header.getShards()[0].getHash());
+        assertEquals("packs/a.tar", header.getPacks()[0].getPath());
+        assertEquals("e0", header.getPatches()[0].getBase());
+        assertEquals(".json", header.getCompressed()[0]);
+    }
+
+    public void testFirstVersionIsRead() throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(binary));
+        try {
+            out.writeInt(0x564C5342);
+            out.writeInt(1);
+            out.writeLong(7);
+            out.writeInt(1);
+            out.writeShort(1);
+            out.write('a');
+            out.writeShort(0xFFFF);
+            out.writeLong(3);
+        } finally {
+            out.close();
+        }
+
+        VLSyncContentFile contentFile = VLSyncManifestBinary.read(binary);
+        assertEquals(7, contentFile.getLastUpdatedDate());
+        assertEquals("a", contentFile.getFiles()[0].getPath());
+        assertNull(contentFile.getFiles()[0].getEtag());
+        assertNull(contentFile.getPacks());
+    }
+
+    public void testTruncatedManifestIsRejected() throws IOException {
+        VLSyncManifestBinary.convert(json, binary);
+
+        RandomAccessFile raf = new RandomAccessFile(binary, "rw");
+        try {
+            raf.setLength(raf.length() - 4);
+        } finally {
+            raf.close();
+        }
+        try {
+            VLSyncManifestBinary.read(binary);
+            fail("Truncated manifest must not be read.");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * Tests delta manifests against a local stand-in origin.
+ */
+public class VLSyncManifestDeltaTest extends TestCase {
+
+    private VLSyncTestOrigin origin;
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        origin = new VLSyncTestOrigin();
+        dir = File.createTempFile("vlsync", "delta");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        origin.shutdown();
+        FileUtils.deleteDirectory(dir);
+        super.tearDown();
+    }
+
+    public void testDeltaIsAppliedToCommittedIndex() throws IOException {
+        VLSyncManifestIndex index = writeIndex(
+                file("contents/a.json", "a1", 1),
+                file("contents/b.json", "b1", 2),
+                file("contents/c.png", "c1", 3));
+
+        origin.put("deltas/" + VLSyncManifestDelta.key("\"v1\"") + ".json", "{\"from\":\"\\\"v1\\\"\",\"to\":\"\\\"v2\\\"\",\"lastUpdatedDate\":7," +
+                "\"added\":[{\"path\":\"contents/d.json\",\"etag\":\"d1\",\"size\":4}]," +
+                "\"changed\":[{\"path\":\"contents/a.json\",\"etag\":\"a2\",\"size\":5}]," +
+                "\"removed\":[\"contents/b.json\"]}", null);
+
+        VLSyncManifestDelta delta = VLSyncManifestDelta.fetch(origin.getURL(), "\"v1\"");
+        assertNotNull(delta);
+        assertTrue(delta.matches("\"v1\"", "\"v2\""));
+        assertFalse(delta.matches("\"v1\"", "\"v3\""));
+        assertEquals(7, delta.getLastUpdatedDate());
+
+        final VLSyncManifestDiff diff = new VLSyncManifestDiff(index);
+        final ArrayList<String> result = new ArrayList<String>();
+        delta.apply(index, new VLSyncManifestParser.OnFileParsedListener() {
+            @Override
+            public void onFileParsed(VLSyncFile file) {
+                diff.offer(file);
+                result.add(file.getPath() + ":" + file.getEtag());
+            }
+        });
+        diff.finish();
+        index.close();
+
+        assertEquals("[contents/c.png:c1, contents/d.json:d1, contents/a.json:a2]", result.toString());
+        assertEquals(1, diff.getAdded().size());
+        assertEquals("contents/d.json", diff.getAdded().get(0).getPath());
+        assertEquals(1, diff.getChanged().size());
+        assertEquals("contents/a.json", diff.getChanged().get(0).getPath());
+        assertEquals(1, diff.getDeleted().size());
+        assertEquals("contents/b.json", diff.getDeleted().get(0).getPath());
+    }
+
+    public void testDeltaIsAppliedWithoutManifestBody() throws IOException {
+        origin.put("contents/a.json", "aaa", null);
+        origin.put("content.json", "{\"files\":[{\"path\":\"contents/a.json\",\"etag\":\"a1\",\"size\":3}]}", "\"v1\"");
+        update(null);
+
+        StringBuilder manifest = new StringBuilder("{\"files\":[{\"path\":\"contents/a.json\",\"etag\":\"a2\",\"size\":4}");
+        for (int i = 0; i < 100000; i++) {
+            manifest.append(",{\"path\":\"contents/other/").append(i).append(".json\",\"etag\":null,\"size\":0}");
+        }
+        origin.put("content.json", manifest.append("]}").toString(), "\"v2\"");
+        origin.put("contents/a.json", "aaaa", null);
+        origin.put("deltas/" + VLSyncManifestDelta.key("\"v1\"") + ".json", "{\"from\":\"\\\"v1\\\"\",\"to\":\"\\\"v2\\\"\"," +
+                "\"changed\":[{\"path\":\"contents/a.json\",\"etag\":\"a2\",\"size\":4}]}", null);
+        long sent = origin.getBytesSent();
+        int requests = origin.getRequestCount();
+        update("\"v1\"");
+
+        assertTrue(origin.getBytesSent() - sent < manifest.length());
+        // manifest, delta and the changed file
+        assertEquals(3, origin.getRequestCount() - requests);
+        assertEquals("aaaa", FileUtils.readFileToString(new File(dir, "root/contents/a.json"), "UTF-8"));
+    }
+
+    public void testDeltaMustNameBothManifests() throws IOException {
+        origin.put("deltas/" + VLSyncManifestDelta.key("\"v1\"") + ".json", "{\"from\":\"\\\"v1\\\"\"}", null);
+
+        VLSyncManifestDelta delta = VLSyncManifestDelta.fetch(origin.getURL(), "\"v1\"");
+        assertNotNull(delta);
+        assertFalse(delta.matches("\"v1\"", "\"v2\""));
+        assertFalse(delta.matches("\"v1\"", null));
+    }
+
+    public void testMissingDeltaFallsBackToFullManifest() throws IOException {
+        origin.put("contents/a.json", "aaa", null);
+        origin.put("contents/b.json", "bb", null);
+        origin.put("content.json", "{\"files\":[{\"path\":\"contents/a.json\",\"etag\":\"a1\",\"size\":3}," +
+                "{\"path\":\"contents/b.json\",\"etag\":\"b1\",\"size\":2}]}", "\"v1\"");
+        assertEquals(2, update(null).getDownloads().size());
+
+        origin.put("contents/a.json", "aaaa", null);
+        origin.put("contents/c.json", "c", null);
+        origin.put("content.json", "{\"files\":[{\"path\":\"contents/a.json\",\"etag\":\"a2\",\"size\":4}," +
+                "{\"path\":\"contents/b.json\",\"etag\":\"b1\",\"size\":2}," +
+                "{\"path\":\"contents/c.json\",\"etag\":\"c1\",\"size\":1}]}", "\"v2\"");
+        int requests = origin.getRequestCount();
+        VLSyncUpdatePlan plan = update("\"v1\"");
+        VLSyncManifest downloads = plan.getDownloads();
+
+        assertTrue(plan.isDeltaMissing());
+        // manifest body is read from the first request after the delta lookup
+        assertEquals(4, origin.getRequestCount() - requests);
+        assertEquals(2, downloads.size());
+        assertEquals("[contents/a.json, contents/c.json]", new TreeSet<String>(Arrays.asList(downloads.getPath(0), downloads.getPath(1))).toString());
+        assertEquals("aaaa", FileUtils.readFileToString(new File(dir, "root/contents/a.json"), "UTF-8"));
+        assertEquals("c", FileUtils.readFileToString(new File(dir, "root/contents/c.json"), "UTF-8"));
+        VLSyncManifestIndex index = VLSyncManifestIndex.open(new File(dir, "root/content.idx"));
+        assertEquals(3, index.size());
+        assertEquals("a2", index.getEtag(index.find("contents/a.json")));
+        index.close();
+    }
+
+    public void testDeltaOfOtherManifestIsNotApplied() throws IOException {
+        origin.put("contents/a.json", "aaa", null);
+        origin.put("contents/b.json", "bb", null);
+        origin.put("content.json", "{\"files\":[{\"path\":\"contents/a.json\",\"etag\":\"a1\",\"size\":3}," +
+                "{\"path\":\"contents/b.json\",\"etag\":\"b1\",\"size\":2}]}", "\"v1\"");
+        update(null);
+
+        origin.put("contents/a.json", "aaaa", null);
+        origin.put("content.json", "{\"files\":[{\"path\":\"contents/a.json\",\"etag\":\"a2\",\"size\":4}," +
+                "{\"path\":\"contents/b.json\",\"etag\":\"b1\",\"size\":2}]}", "\"v3\"");
+        // delta leads to another manifest and would delete b.json
+        origin.put("deltas/" + VLSyncManifestDelta.key("\"v1\"") + ".json", "{\"from\":\"\\\"v1\\\"\",\"to\":\"\\\"v2\\\"\"," +
+                "\"removed\":[\"contents/b.json\"]}", null);
+        update("\"v1\"");
+
+        assertEquals("aaaa", FileUtils.readFileToString(new File(dir, "root/contents/a.json"), "UTF-8"));
+        assertTrue(new File(dir, "root/contents/b.json").exists());
+    }
+
+    public void testShardsSurviveDeltaUpdate() throws IOException {
+        origin.put("a/x.json", "x1", null);
+        origin.put("b/y.json", "yy", null);
+        origin.put("shards/a.json", "{\"files\":[{\"path\":\"a/x.json\",\"etag\":\"x1\",\"size\":2}]}", null);
+        origin.put("shards/b.json", "{\"files\":[{\"path\":\"b/y.json\",\"etag\":\"y1\",\"size\":2}]}", null);
+        origin.put("content.json", "{\"files\":[],\"shards\":[" +
+                "{\"prefix\":\"a/\",\"path\":\"shards/a.json\",\"hash\":\"ha1\"}," +
+                "{\"prefix\":\"b/\",\"path\":\"shards/b.json\",\"hash\":\"hb1\"}]}", "\"v1\"");
+        update(null);
+        assertTrue(new File(dir, "root/shards.json").exists());
+
+        origin.put("a/x.json", "x22", null);
+        origin.put("content.json", "{}", "\"v2\"");
+        origin.put("deltas/" + VLSyncManifestDelta.key("\"v1\"") + ".json", "{\"from\":\"\\\"v1\\\"\",\"to\":\"\\\"v2\\\"\"," +
+                "\"changed\":[{\"path\":\"a/x.json\",\"etag\":\"x2\",\"size\":3}],\"shards\":[" +
+                "{\"prefix\":\"a/\",\"path\":\"shards/a.json\",\"hash\":\"ha2\"}," +
+                "{\"prefix\":\"b/\",\"path\":\"shards/b.json\",\"hash\":\"hb1\"}]}", null);
+        assertEquals(1, update("\"v1\"").getDownloads().size());
+        assertTrue(new File(dir, "root/shards.json").exists());
+
+        // only shard 'a/' is changed, shard 'b/' is not served anymore and must not be requested
+        origin.put("a/x.json", "x333", null);
+        origin.put("shards/a.json", "{\"files\":[{\"path\":\"a/x.json\",\"etag\":\"x3\",\"size\":4}]}", null);
+        origin.put("shards/b.json", "", null).cut(0);
+        origin.put("content.json", "{\"files\":[],\"shards\":[" +
+                "{\"prefix\":\"a/\",\"path\":\"shards/a.json\",\"hash\":\"ha3\"}," +
+                "{\"prefix\":\"b/\",\"path\":\"shards/b.json\",\"hash\":\"hb1\"}]}", "\"v3\"");
+        VLSyncManifest downloads = update("\"v2\"").getDownloads();
+
+        assertEquals(1, downloads.size());
+        assertEquals("a/x.json", downloads.getPath(0));
+        assertEquals("x333", FileUtils.readFileToString(new File(dir, "root/a/x.json"), "UTF-8"));
+        VLSyncManifestIndex index = VLSyncManifestIndex.open(new File(dir, "root/content.idx"));
+        assertEquals(2, index.size());
+        assertEquals("y1", index.getEtag(index.find("b/y.json")));
+        index.close();
+    }
+
+    public void testDeltaCarriesCompressedExtensionsAndPacks() throws IOException {
+        origin.put("deltas/" + VLSyncManifestDelta.key("\"v1\"") + ".json", "{\"from\":\"\\\"v1\\\"\",\"to\":\"\\\"v2\\\"\"," +
+                "\"compressed\":[\".json\"],\"packs\":[{\"prefix\":\"a/\",\"path\":\"packs/a.tar\",\"size\":10}]}", null);
+
+        VLSyncContentFile header = VLSyncManifestDelta.fetch(origin.getURL(), "\"v1\"").getHeader();
+        assertEquals(".json", header.getCompressed()[0]);
+        assertEquals("packs/a.tar", header.getPacks()[0].getPath());
+    }
+
+    public void testKeysOfDistinctETagsDiffer() {
+        assertEquals("22763122", VLSyncManifestDelta.key("\"v1\""));
+        assertFalse(VLSyncManifestDelta.key("\"a/b\"").equals(VLSyncManifestDelta.key("\"a_b\"")));
+        assertFalse(VLSyncManifestDelta.key("W/\"v1\"").equals(VLSyncManifestDelta.key("\"v1\"")));
+    }
+
+    /**
+     * Runs an update against origin as update task does, downloading
+     * planned files on calling thread.
+     */
+    private VLSyncUpdatePlan update(String oldETag) throws IOException {
+        File temp = new File(dir, "temp");
+        VLSyncUpdatePlan plan = new VLSyncUpdatePlan(new File(dir, "root"), temp, origin.getURL());
+        VLSyncManifestFetch fetch = VLSyncManifestFetch.open(origin.getURL(), new String[]{"content.json"}, oldETag);
+        try {
+            if(plan.planFromDelta(oldETag, fetch.getETag())){
+                fetch.abandon();
+            }else{
+                plan.planFromManifest(fetch, false);
+            }
+        } finally {
+            fetch.close();
+        }
+        VLSyncManifest downloads = plan.getDownloads();
+        for (int i = 0; i < downloads.size(); i++){
+            VLSyncHttpTransport.transfer(origin.getURL() + downloads.getPath(i), new File(temp, downloads.getPath(i)), downloads.getEtag(i), downloads.getSize(i));
+        }
+        try {
+            plan.commit();
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        return plan;
+    }
+
+    private VLSyncManifestIndex writeIndex(VLSyncFile... files) throws IOException {
+        VLSyncManifestIndex.Writer writer = new VLSyncManifestIndex.Writer(new File(dir, "content.idx.part"));
+        for (VLSyncFile f : files){
+            writer.add(f);
+        }
+        File indexFile = new File(dir, "content.idx");
+        writer.commit(indexFile);
+        return VLSyncManifestIndex.open(indexFile);
+    }
+
+    private static VLSyncFile file(String path, String eTag, long size){
+        VLSyncFile file = new VLSyncFile();
+        file.setPath(path);
+        file.setEtag(eTag);
+        file.setSize(size);
+        return file;
+    }
+}
@@ -0,0 +1,123 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests manifest difference in memory and against a mapped index.
+ */
+public class VLSyncManifestDiffTest extends TestCase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("vlsync", "diff");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+        super.tearDown();
+    }
+
+    public void testAddedChangedAndDeletedFiles() {
+        VLSyncManifestDiff diff = VLSyncManifestDiff.compute(
+                new VLSyncFile[]{file("a", "a1", 1), file("b", "b1", 2), file("c", "c1", 3)},
+                new VLSyncFile[]{file("a", "a1", 1), file("b", "b2", 4), file("d", "d1", 5)});
+
+        assertEquals("[d]", paths(diff.getAdded()));
+        assertEquals("[b]", paths(diff.getChanged()));
+        assertEquals("[c]", paths(diff.getDeleted()));
+        assertTrue(diff.getMoved().isEmpty());
+        assertEquals("[d, b]", paths(diff.getDownloads()));
+        assertEquals(9, diff.getDownloadSize());
+    }
+
+    public void testMovedFileIsNotDownloaded() {
+        VLSyncManifestDiff diff = VLSyncManifestDiff.compute(
+                new VLSyncFile[]{file("old/a", "a1", 1)},
+                new VLSyncFile[]{file("new/a", "a1", 1)});
+
+        assertEquals(1, diff.getMoved().size());
+        assertEquals("old/a", diff.getMoved().get(0).getFrom().getPath());
+        assertEquals("new/a", diff.getMoved().get(0).getTo().getPath());
+        assertTrue(diff.getDownloads().isEmpty());
+        assertTrue(diff.getDeleted().isEmpty());
+    }
+
+    public void testDuplicateETagsAreMovedOnce() {
+        VLSyncManifestDiff diff = VLSyncManifestDiff.compute(
+                new VLSyncFile[]{file("a", "e1", 1), file("b", "e1", 1)},
+                new VLSyncFile[]{file("c", "e1", 1), file("d", "e1", 1), file("e", "e1", 1)});
+
+        assertEquals(2, diff.getMoved().size());
+        assertFalse(diff.getMoved().get(0).getFrom().getPath().equals(diff.getMoved().get(1).getFrom().getPath()));
+        assertEquals("[e]", paths(diff.getAdded()));
+        assertTrue(diff.getDeleted().isEmpty());
+    }
+
+    public void testContentOntoExistingPathIsDownloaded() {
+        // content of 'a' shows up at 'b', whose old content is gone
+        VLSyncManifestDiff diff = VLSyncManifestDiff.compute(
+                new VLSyncFile[]{file("a", "e1", 1), file("b", "e2", 2)},
+                new VLSyncFile[]{file("b", "e1", 1)});
+
+        assertTrue(diff.getMoved().isEmpty());
+        assertEquals("[b]", paths(diff.getChanged()));
+        assertEquals("[a]", paths(diff.getDeleted()));
+    }
+
+    public void testIndexedOldManifestGivesSameDifference() throws IOException {
+        VLSyncManifestIndex index = writeIndex(file("a", "a1", 1), file("b", "b1", 2), file("c", "c1", 3), file("m", "m1", 4));
+        try {
+            VLSyncManifestDiff diff = new VLSyncManifestDiff(index);
+            diff.offer(file("a", "a1", 1));
+            diff.offer(file("b", "b2", 4));
+            diff.offer(file("d", "d1", 5));
+            diff.offer(file("n", "m1", 4));
+            diff.finish();
+
+            assertEquals("[d]", paths(diff.getAdded()));
+            assertEquals("[b]", paths(diff.getChanged()));
+            assertEquals("[c]", paths(diff.getDeleted()));
+            assertEquals(1, diff.getMoved().size());
+            assertEquals("m", diff.getMoved().get(0).getFrom().getPath());
+        } finally {
+            index.close();
+        }
+    }
+
+    private VLSyncManifestIndex writeIndex(VLSyncFile... files) throws IOException {
+        VLSyncManifestIndex.Writer writer = new VLSyncManifestIndex.Writer(new File(dir, "content.idx.part"));
+        for (VLSyncFile f : files){
+            writer.add(f);
+        }
+        File indexFile = new File(dir, "content.idx");
+        writer.commit(indexFile);
+        return VLSyncManifestIndex.open(indexFile);
+    }
+
+    private static String paths(VLSyncManifest manifest){
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < manifest.size(); i++) {
+            builder.append(i > 0 ? ", " : "").append(manifest.getPath(i));
+        }
+        return builder.append(']').toString();
+    }
+
+    private static VLSyncFile file(String path, String eTag, long size){
+        VLSyncFile file = new VLSyncFile();
+        file.setPath(path);
+        file.setEtag(eTag);
+        file.setSize(size);
+        return file;
+    }
+}
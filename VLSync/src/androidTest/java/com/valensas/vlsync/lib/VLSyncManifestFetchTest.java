@@ -0,0 +1,161 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tests compressed manifest transfer against a local stand-in origin.
+ */
+public class VLSyncManifestFetchTest extends TestCase {
+
+    private static final String JSON = "{\"lastUpdatedDate\":3,\"files\":[" +
+            "{\"path\":\"contents/a.json\",\"etag\":\"a1\",\"size\":1}," +
+            "{\"path\":\"contents/b.json\",\"etag\":\"b1\",\"size\":2}]}";
+
+    private VLSyncTestOrigin origin;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        origin = new VLSyncTestOrigin();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        origin.shutdown();
+        super.tearDown();
+    }
+
+    public void testPreCompressedManifestIsPreferred() throws IOException {
+        origin.put("content.json", "{\"files\":[]}", null);
+        origin.put("content.json.gz", gzip(JSON), null);
+
+        VLSyncManifestFetch fetch = VLSyncManifestFetch.open(origin.getURL(), "content.json");
+        assertTrue(fetch.isCompressed());
+        assertEquals("[contents/a.json, contents/b.json]", parse(fetch).toString());
+    }
+
+    public void testGzipContentEncodingIsDecodedWhileParsing() throws IOException {
+        origin.put("content.json", gzip(JSON), null).header("Content-Encoding", "gzip");
+
+        VLSyncManifestFetch fetch = VLSyncManifestFetch.open(origin.getURL(), "content.json");
+        assertTrue(fetch.isCompressed());
+        assertEquals("[contents/a.json, contents/b.json]", parse(fetch).toString());
+    }
+
+    public void testIdentityEncodingIsReadAsIs() throws IOException {
+        origin.put("content.json", JSON, null);
+
+        VLSyncManifestFetch fetch = VLSyncManifestFetch.open(origin.getURL(), "content.json");
+        assertFalse(fetch.isCompressed());
+        assertEquals("[contents/a.json, contents/b.json]", parse(fetch).toString());
+    }
+
+    public void testMissingManifestIsReported() {
+        try {
+            VLSyncManifestFetch.open(origin.getURL(), "content.json");
+            fail("Missing manifest must not be opened.");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testSingleConditionalRequestAnswersNotModified() throws IOException {
+        origin.put("content.json", JSON, "\"v1\"").header("Cache-Control", "public, max-age=600").header("Age", "100");
+
+        VLSyncManifestFetch fetch = VLSyncManifestFetch.open(origin.getURL(), VLSyncManifestFetch.candidates("content.json"), "\"v1\"");
+        try {
+            assertTrue(fetch.isNotModified());
+            assertNull(fetch.getInputStream());
+            assertEquals(500, fetch.getMaxAge());
+        } finally {
+            fetch.close();
+        }
+        assertEquals(1, origin.getRequestCount());
+    }
+
+    public void testChangedManifestIsReturnedByConditionalRequest() throws IOException {
+        origin.put("content.json", JSON, "\"v2\"");
+
+        VLSyncManifestFetch fetch = VLSyncManifestFetch.open(origin.getURL(), VLSyncManifestFetch.candidates(null), "\"v1\"");
+        assertFalse(fetch.isNotModified());
+        assertEquals("content.json", fetch.getName());
+        assertEquals("\"v2\"", fetch.getETag());
+        assertEquals("[contents/a.json, contents/b.json]", parse(fetch).toString());
+    }
+
+    public void testAbandonedBodyIsNotTransferred() throws IOException {
+        StringBuilder json = new StringBuilder("{\"files\":[{\"path\":\"contents/a.json\",\"etag\":\"a1\",\"size\":1}");
+        for (int i = 0; i < 100000; i++) {
+            json.append(",{\"path\":\"contents/other/").append(i).append(".json\",\"etag\":null,\"size\":0}");
+        }
+        origin.put("content.json", json.append("]}").toString(), "\"v2\"");
+
+        VLSyncManifestFetch fetch = VLSyncManifestFetch.open(origin.getURL(), VLSyncManifestFetch.candidates("content.json"), "\"v1\"");
+        assertFalse(fetch.isNotModified());
+        assertEquals("\"v2\"", fetch.getETag());
+        fetch.abandon();
+        // closing an abandoned response does not drain its body
+        fetch.close();
+
+        assertTrue(origin.getBytesSent() < json.length());
+    }
+
+    public void testDiscoveryFindsMostPreferredObject() throws IOException {
+        origin.put("content.json", JSON, null).delay(200);
+        origin.put("content.json.gz", gzip(JSON), null).delay(200);
+
+        long start = System.currentTimeMillis();
+        assertEquals("content.json.gz", VLSyncManifestFetch.discover(origin.getURL()));
+        // all objects are asked for at once
+        assertTrue(System.currentTimeMillis() - start < 600);
+        assertEquals(VLSyncManifestFetch.MANIFEST_NAMES.length, origin.getRequestCount());
+    }
+
+    public void testDiscoveryReportsMissingManifest() throws IOException {
+        try {
+            VLSyncManifestFetch.discover(origin.getURL());
+            fail("Missing manifest must not be discovered.");
+        } catch (FileNotFoundException expected) {
+        }
+    }
+
+    public void testMaxAgeDirectives() {
+        assertEquals(-1, VLSyncManifestFetch.maxAge(null, null));
+        assertEquals(-1, VLSyncManifestFetch.maxAge("public", null));
+        assertEquals(60, VLSyncManifestFetch.maxAge("max-age=60", null));
+        assertEquals(0, VLSyncManifestFetch.maxAge("max-age=60", "90"));
+        assertEquals(0, VLSyncManifestFetch.maxAge("no-cache, max-age=60", null));
+    }
+
+    private static ArrayList<String> parse(VLSyncManifestFetch fetch) throws IOException {
+        final ArrayList<String> paths = new ArrayList<String>();
+        try {
+            VLSyncContentFile header = VLSyncManifestParser.parse(fetch.getInputStream(), new VLSyncManifestParser.OnFileParsedListener() {
+                @Override
+                public void onFileParsed(VLSyncFile file) {
+                    paths.add(file.getPath());
+                }
+            });
+            assertEquals(3, header.getLastUpdatedDate());
+        } finally {
+            fetch.close();
+        }
+        return paths;
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,115 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests manifest index lookups and recovery from partial writes.
+ */
+public class VLSyncManifestIndexTest extends TestCase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("vlsync", "index");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+        super.tearDown();
+    }
+
+    public void testEntriesAreFoundByPath() throws IOException {
+        VLSyncManifestIndex.Writer writer = new VLSyncManifestIndex.Writer(new File(dir, "content.idx.part"));
+        for (int i = 0; i < 1000; i++) {
+            writer.add(file("contents/" + i + ".json", i % 2 == 0 ? "e" + i : null, i));
+        }
+        writer.setLastUpdatedDate(5);
+        writer.commit(new File(dir, "content.idx"));
+
+        VLSyncManifestIndex index = VLSyncManifestIndex.open(new File(dir, "content.idx"));
+        try {
+            assertEquals(1000, index.size());
+            assertEquals(5, index.getLastUpdatedDate());
+            int entry = index.find("contents/998.json");
+            assertEquals(998, entry);
+            assertEquals("e998", index.getEtag(entry));
+            assertNull(index.getEtag(index.find("contents/999.json")));
+            assertEquals(-1, index.find("contents/1000.json"));
+        } finally {
+            index.close();
+        }
+    }
+
+    public void testEmptyIndexOpens() throws IOException {
+        new VLSyncManifestIndex.Writer(new File(dir, "content.idx.part")).commit(new File(dir, "content.idx"));
+
+        VLSyncManifestIndex index = VLSyncManifestIndex.open(new File(dir, "content.idx"));
+        assertEquals(0, index.size());
+        assertEquals(-1, index.find("a"));
+        index.close();
+    }
+
+    public void testPartialWriteKeepsCommittedIndex() throws IOException {
+        File indexFile = new File(dir, "content.idx");
+        VLSyncManifestIndex.Writer writer = new VLSyncManifestIndex.Writer(new File(dir, "content.idx.part"));
+        writer.add(file("a", "a1", 1));
+        writer.commit(indexFile);
+
+        // next update is killed while its records are written
+        VLSyncManifestIndex.Writer next = new VLSyncManifestIndex.Writer(new File(dir, "content.idx.part"));
+        next.add(file("b", "b1", 2));
+        next.onFileParsed(file("c", "c1", 3));
+
+        VLSyncManifestIndex index = VLSyncManifestIndex.open(indexFile);
+        assertEquals(1, index.size());
+        assertEquals("a1", index.getEtag(index.find("a")));
+        index.close();
+        next.abort();
+        assertFalse(new File(dir, "content.idx.part").exists());
+    }
+
+    public void testTruncatedIndexIsRejected() throws IOException {
+        File indexFile = new File(dir, "content.idx");
+        VLSyncManifestIndex.Writer writer = new VLSyncManifestIndex.Writer(new File(dir, "content.idx.part"));
+        writer.add(file("a", "a1", 1));
+        writer.add(file("b", "b1", 2));
+        writer.commit(indexFile);
+
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        raf.setLength(raf.length() - 4);
+        raf.close();
+        assertInvalid(indexFile);
+
+        raf = new RandomAccessFile(indexFile, "rw");
+        raf.setLength(10);
+        raf.close();
+        assertInvalid(indexFile);
+    }
+
+    private static void assertInvalid(File indexFile) {
+        try {
+            VLSyncManifestIndex.open(indexFile).close();
+            fail("Truncated index is opened.");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static VLSyncFile file(String path, String eTag, long size){
+        VLSyncFile file = new VLSyncFile();
+        file.setPath(path);
+        file.setEtag(eTag);
+        file.setSize(size);
+        return file;
+    }
+}
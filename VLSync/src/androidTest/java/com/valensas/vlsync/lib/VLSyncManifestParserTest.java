@@ -0,0 +1,63 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Tests streaming parser of 'content.json' against malformed and
+ * unusual manifests.
+ */
+public class VLSyncManifestParserTest extends TestCase {
+
+    private final ArrayList<VLSyncFile> parsed = new ArrayList<VLSyncFile>();
+
+    public void testUnknownFieldsAreSkipped() throws IOException {
+        VLSyncContentFile header = parse("{\"version\":{\"major\":2,\"tags\":[1,[2]]}," +
+                "\"files\":[{\"path\":\"a\",\"etag\":\"e1\",\"size\":3,\"mime\":\"text/plain\",\"meta\":{\"x\":[null]}}," +
+                "null,{\"path\":\"b\",\"etag\":null,\"size\":4}]," +
+                "\"lastUpdatedDate\":9,\"extra\":null}");
+
+        assertEquals(2, parsed.size());
+        assertEquals("a", parsed.get(0).getPath());
+        assertEquals("e1", parsed.get(0).getEtag());
+        assertEquals(3, parsed.get(0).getSize());
+        assertNull(parsed.get(1).getEtag());
+        assertEquals(9, header.getLastUpdatedDate());
+        assertNull(header.getShards());
+    }
+
+    public void testEmptyManifestsHaveNoFiles() throws IOException {
+        assertEquals(1, parse("{\"files\":[],\"lastUpdatedDate\":1}").getLastUpdatedDate());
+        assertEquals(0, parse("{}").getLastUpdatedDate());
+        assertEquals(0, parse("{\"files\":null,\"shards\":[]}").getShards().length);
+        assertTrue(parsed.isEmpty());
+    }
+
+    public void testMalformedManifestsAreRejected() {
+        assertMalformed("{\"files\":[{\"path\":\"a\",\"etag\":\"e1\",\"size\":3}");
+        assertMalformed("{\"files\":\"a\"}");
+        assertMalformed("{\"files\":[{\"path\":\"a\",\"size\":\"large\"}]}");
+        assertMalformed("[]");
+        assertMalformed("");
+    }
+
+    private void assertMalformed(String json) {
+        try {
+            parse(json);
+            fail("Malformed manifest is parsed: " + json);
+        } catch (IOException expected) {
+        }
+    }
+
+    private VLSyncContentFile parse(String json) throws IOException {
+        return VLSyncManifestParser.parse(new ByteArrayInputStream(json.getBytes("UTF-8")), new VLSyncManifestParser.OnFileParsedListener() {
+            @Override
+            public void onFileParsed(VLSyncFile file) {
+                parsed.add(file);
+            }
+        });
+    }
+}
@@ -0,0 +1,116 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+
+/**
+ * Tests that compact manifest gives back entries as they are added.
+ */
+public class VLSyncManifestTest extends TestCase {
+
+    private static final String HEX = "0123456789abcdef0123456789abcdef";
+
+    public void testHexETagsArePacked() throws Exception {
+        VLSyncManifest manifest = new VLSyncManifest();
+        manifest.add("a", HEX, 1);
+        manifest.add("b", "\"" + HEX + "\"", 2);
+        manifest.add("c", "ffffffffffffffff0000000000000000", 3);
+        manifest.add("d", null, 4);
+
+        assertEquals(HEX, manifest.getEtag(0));
+        assertEquals("\"" + HEX + "\"", manifest.getEtag(1));
+        assertEquals("ffffffffffffffff0000000000000000", manifest.getEtag(2));
+        assertNull(manifest.getEtag(3));
+        assertEquals(0, rawETags(manifest).size());
+        assertEquals(10, manifest.getTotalSize());
+    }
+
+    public void testOtherETagsAreKeptAsIs() throws Exception {
+        String[] eTags = {
+                "\"" + HEX + "-3\"",
+                HEX.toUpperCase(),
+                "W/\"" + HEX + "\"",
+                "\"" + HEX,
+                HEX.substring(1) + "g",
+                HEX + "0",
+                "",
+                "\"\"",
+                "abc-12",
+        };
+        VLSyncManifest manifest = new VLSyncManifest();
+        for (int i = 0; i < eTags.length; i++) {
+            manifest.add("f" + i, eTags[i], i);
+        }
+
+        for (int i = 0; i < eTags.length; i++) {
+            assertEquals(eTags[i], manifest.getEtag(i));
+            assertEquals(i, manifest.getSize(i));
+        }
+        assertEquals(eTags.length, rawETags(manifest).size());
+    }
+
+    public void testPathsAreRebuiltFromSharedPrefixes() {
+        StringBuilder deep = new StringBuilder("d0");
+        for (int i = 1; i < 64; i++) {
+            deep.append("/d").append(i);
+        }
+        String[] paths = {
+                "contents/images/a.png",
+                "contents/images/b.png",
+                "contents/a.png",
+                "images/contents/a.png",
+                "a/a/a",
+                "a",
+                "contents/images/a.png",
+                "/leading/slash",
+                "trailing/slash/",
+                "double//slash",
+                "contents/\u00e7i\u00e7ek/\u00e7i\u00e7ek.png",
+                deep.toString(),
+                deep + "/leaf",
+        };
+        VLSyncManifest manifest = new VLSyncManifest();
+        for (String path : paths){
+            manifest.add(path, null, 0);
+        }
+
+        assertEquals(paths.length, manifest.size());
+        for (int i = 0; i < paths.length; i++) {
+            assertEquals(paths[i], manifest.getPath(i));
+            assertEquals(paths[i], manifest.get(i).getPath());
+        }
+    }
+
+    public void testManyEntriesAreKept() {
+        VLSyncManifest manifest = new VLSyncManifest();
+        for (int i = 0; i < 20000; i++) {
+            manifest.add("contents/" + (i % 97) + "/" + i + ".json", String.format("%032x", i), i);
+        }
+
+        assertEquals(20000, manifest.size());
+        for (int i = 0; i < 20000; i += 1234) {
+            assertEquals("contents/" + (i % 97) + "/" + i + ".json", manifest.getPath(i));
+            assertEquals(String.format("%032x", i), manifest.getEtag(i));
+            assertEquals(i, manifest.getSize(i));
+        }
+    }
+
+    public void testInvalidEntryIsRejected() {
+        VLSyncManifest manifest = new VLSyncManifest();
+        manifest.add("a", null, 0);
+        try {
+            manifest.getPath(1);
+            fail("Entry out of range is read.");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Integer, String> rawETags(VLSyncManifest manifest) throws Exception {
+        Field field = VLSyncManifest.class.getDeclaredField("mRawETags");
+        field.setAccessible(true);
+        return (Map<Integer, String>) field.get(manifest);
+    }
+}
@@ -0,0 +1,56 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests mirror selection against local stand-in origins.
+ */
+public class VLSyncMirrorsTest extends TestCase {
+
+    private VLSyncTestOrigin near;
+
+    private VLSyncTestOrigin far;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        near = new VLSyncTestOrigin();
+        far = new VLSyncTestOrigin();
+        near.put("content.json", "{}", "\"m1\"");
+        far.put("content.json", "{}", "\"m1\"").delay(300);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        near.shutdown();
+        far.shutdown();
+        super.tearDown();
+    }
+
+    public void testProbeSelectsFastestMirror() throws Exception {
+        VLSyncMirrors mirrors = new VLSyncMirrors(new String[]{far.getURL(), near.getURL()});
+        assertEquals(far.getURL(), mirrors.select());
+
+        mirrors.probe("content.json");
+
+        assertEquals(Arrays.asList(near.getURL(), far.getURL()), mirrors.ordered());
+        assertEquals(1, far.getRequestCount());
+    }
+
+    public void testFailedMirrorIsTriedLast() throws Exception {
+        VLSyncMirrors mirrors = new VLSyncMirrors(new String[]{near.getURL(), far.getURL()});
+        mirrors.onFailure(near.getURL());
+        assertEquals(far.getURL(), mirrors.select());
+
+        mirrors.onSuccess(near.getURL());
+        assertEquals(near.getURL(), mirrors.select());
+
+        near.shutdown();
+        mirrors.probe("content.json");
+        assertEquals(Arrays.asList(far.getURL(), near.getURL()), mirrors.ordered());
+        assertTrue(VLSyncMirrors.isMirrorFailure(503));
+        assertFalse(VLSyncMirrors.isMirrorFailure(404));
+    }
+}
@@ -0,0 +1,139 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests streaming extraction of packs against a local stand-in
+ * origin.
+ */
+public class VLSyncPackTransferTest extends TestCase {
+
+    private VLSyncTestOrigin origin;
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        origin = new VLSyncTestOrigin();
+        dir = File.createTempFile("vlsync", "packs");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        origin.shutdown();
+        FileUtils.deleteDirectory(dir);
+        super.tearDown();
+    }
+
+    public void testWantedEntriesAreExtractedFromZip() throws Exception {
+        byte[] a = "{\"a\":1}".getBytes("UTF-8");
+        byte[] b = "{\"b\":2}".getBytes("UTF-8");
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(buffer);
+        zip.putNextEntry(new ZipEntry("data/"));
+        zip.putNextEntry(new ZipEntry("data/a.json"));
+        zip.write(a);
+        zip.putNextEntry(new ZipEntry("data/b.json"));
+        zip.write(b);
+        zip.close();
+        origin.put("packs/data.zip", buffer.toByteArray(), "\"p1\"");
+
+        Map<String, VLSyncFile> wanted = new HashMap<String, VLSyncFile>();
+        wanted.put("data/a.json", file("data/a.json", a.length));
+        VLSyncPackTransfer transfer = new VLSyncPackTransfer(origin.getURL() + "packs/data.zip", dir, wanted);
+        transfer.run();
+
+        assertEquals(1, transfer.getExtracted().size());
+        assertTrue(Arrays.equals(a, FileUtils.readFileToByteArray(new File(dir, "data/a.json"))));
+        assertFalse(new File(dir, "data/b.json").exists());
+    }
+
+    public void testEncodedTarWithLongNamesIsExtracted() throws Exception {
+        String longName = "icons/" + repeat('x', 120) + ".png";
+        byte[] icon = new byte[3000];
+        for (int i = 0; i < icon.length; i++) {
+            icon[i] = (byte) i;
+        }
+        byte[] small = "small".getBytes("UTF-8");
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        tarEntry(tar, "././@LongLink", 'L', longName.getBytes("UTF-8"));
+        tarEntry(tar, longName.substring(0, 99), '0', icon);
+        tarEntry(tar, "icons/small.txt", '0', small);
+        tar.write(new byte[1024]);
+        origin.put("packs/icons.tar", tar.toByteArray(), "\"p1\"").gzip();
+
+        Map<String, VLSyncFile> wanted = new HashMap<String, VLSyncFile>();
+        wanted.put(longName, file(longName, icon.length));
+        wanted.put("icons/small.txt", file("icons/small.txt", small.length));
+        VLSyncPackTransfer transfer = new VLSyncPackTransfer(origin.getURL() + "packs/icons.tar", dir, wanted);
+        transfer.run();
+
+        assertEquals(2, transfer.getExtracted().size());
+        assertTrue(Arrays.equals(icon, FileUtils.readFileToByteArray(new File(dir, longName))));
+        assertTrue(Arrays.equals(small, FileUtils.readFileToByteArray(new File(dir, "icons/small.txt"))));
+    }
+
+    public void testMismatchingEntryIsLeftOut() throws Exception {
+        byte[] body = "stale".getBytes("UTF-8");
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        tarEntry(tar, "data/a.json", '0', body);
+        tar.write(new byte[1024]);
+        origin.put("packs/data.tar", tar.toByteArray(), "\"p1\"");
+
+        Map<String, VLSyncFile> wanted = new HashMap<String, VLSyncFile>();
+        wanted.put("data/a.json", file("data/a.json", body.length + 1));
+        VLSyncPackTransfer transfer = new VLSyncPackTransfer(origin.getURL() + "packs/data.tar", dir, wanted);
+        transfer.run();
+
+        assertTrue(transfer.getExtracted().isEmpty());
+        assertFalse(new File(dir, "data/a.json").exists());
+        assertFalse(new File(dir, "data/a.json.part").exists());
+    }
+
+    public void testPackIsChosenByDownloadSetSize() {
+        VLSyncPack pack = new VLSyncPack();
+        pack.setSize(1024 * 1024);
+        assertTrue(pack.isWorthFetching(200, 600 * 1024));
+        assertFalse(pack.isWorthFetching(3, 20 * 1024));
+        assertFalse(pack.isWorthFetching(1, 1024 * 1024));
+    }
+
+    private static VLSyncFile file(String path, long size){
+        VLSyncFile file = new VLSyncFile();
+        file.setPath(path);
+        file.setSize(size);
+        return file;
+    }
+
+    private static String repeat(char c, int count){
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static void tarEntry(ByteArrayOutputStream out, String name, char type, byte[] body) throws Exception {
+        byte[] header = new byte[512];
+        byte[] nameBytes = name.getBytes("UTF-8");
+        System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, 100));
+        byte[] size = String.format("%011o", body.length).getBytes("US-ASCII");
+        System.arraycopy(size, 0, header, 124, size.length);
+        header[156] = (byte) type;
+        System.arraycopy("ustar".getBytes("US-ASCII"), 0, header, 257, 5);
+        out.write(header);
+        out.write(body);
+        out.write(new byte[(512 - body.length % 512) % 512]);
+    }
+}
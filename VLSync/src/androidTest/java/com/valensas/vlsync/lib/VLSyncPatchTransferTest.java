@@ -0,0 +1,71 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.security.MessageDigest;
+
+/**
+ * Tests patching committed files against a local stand-in origin.
+ */
+public class VLSyncPatchTransferTest extends TestCase {
+
+    private VLSyncTestOrigin origin;
+
+    private File dir;
+
+    private File base;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        origin = new VLSyncTestOrigin();
+        dir = File.createTempFile("vlsync", "patches");
+        dir.delete();
+        dir.mkdirs();
+        base = new File(dir, "committed/contents/story.txt");
+        FileUtils.writeStringToFile(base, VLSyncVcdiffTest.BASE, "UTF-8");
+        origin.put("patches/story.txt.vcdiff", VLSyncVcdiffTest.patch(), "\"p1\"");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        origin.shutdown();
+        FileUtils.deleteDirectory(dir);
+        super.tearDown();
+    }
+
+    public void testPatchedFileIsVerifiedAndMoved() throws Exception {
+        byte[] target = VLSyncVcdiffTest.TARGET.getBytes("UTF-8");
+        File file = new File(dir, "temp/contents/story.txt");
+
+        assertTrue(transfer(file, target.length, eTag(target)).run());
+        assertEquals(VLSyncVcdiffTest.TARGET, FileUtils.readFileToString(file, "UTF-8"));
+        assertFalse(new File(file.getPath() + ".part").exists());
+    }
+
+    public void testMismatchingResultFallsBack() throws Exception {
+        byte[] target = VLSyncVcdiffTest.TARGET.getBytes("UTF-8");
+        File file = new File(dir, "temp/contents/story.txt");
+
+        assertFalse(transfer(file, target.length, eTag("other".getBytes("UTF-8"))).run());
+        assertFalse(file.exists());
+        assertFalse(new File(file.getPath() + ".part").exists());
+        assertFalse(transfer(file, target.length, "\"not-a-digest\"").run());
+        assertEquals(1, origin.getRequestCount());
+    }
+
+    private VLSyncPatchTransfer transfer(File file, long size, String eTag){
+        return new VLSyncPatchTransfer(origin.getURL() + "patches/story.txt.vcdiff", base, file, size, eTag);
+    }
+
+    private static String eTag(byte[] body) throws Exception {
+        StringBuilder builder = new StringBuilder("\"");
+        for (byte b : MessageDigest.getInstance("MD5").digest(body)){
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.append('"').toString();
+    }
+}
@@ -0,0 +1,138 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests segmented transfer of large files against a local stand-in
+ * origin.
+ */
+public class VLSyncSegmentedTransferTest extends TestCase {
+
+    private static final int SIZE = 1024 * 1024;
+
+    private VLSyncTestOrigin origin;
+
+    private File dir;
+
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        origin = new VLSyncTestOrigin();
+        dir = File.createTempFile("vlsync", "segments");
+        dir.delete();
+        dir.mkdirs();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        origin.shutdown();
+        FileUtils.deleteDirectory(dir);
+        super.tearDown();
+    }
+
+    public void testSegmentsAreWrittenInPlace() throws Exception {
+        byte[] body = body(SIZE, 0);
+        origin.put("contents/videos/intro.mp4", body, "\"v1\"");
+
+        File file = new File(dir, "temp/contents/videos/intro.mp4");
+        transfer(file, 4).run();
+
+        assertTrue(Arrays.equals(body, FileUtils.readFileToByteArray(file)));
+        assertEquals(4, origin.getRequestCount());
+        assertEquals(SIZE, origin.getBytesSent());
+        assertFalse(new File(file.getPath() + ".part").exists());
+        assertFalse(new File(file.getPath() + ".part.etag").exists());
+    }
+
+    public void testInterruptedSegmentIsResumed() throws Exception {
+        byte[] body = body(SIZE, 0);
+        origin.put("contents/videos/intro.mp4", body, "\"v1\"").cut(100 * 1024);
+
+        File file = new File(dir, "temp/contents/videos/intro.mp4");
+        try {
+            transfer(file, 4).run();
+            fail("Cut segment must fail the transfer.");
+        } catch (IOException expected) {
+        }
+        assertFalse(file.exists());
+        assertEquals(SIZE, new File(file.getPath() + ".part").length());
+        assertTrue(new File(file.getPath() + ".part.etag").exists());
+
+        long sent = origin.getBytesSent();
+        transfer(file, 4).run();
+        assertTrue(Arrays.equals(body, FileUtils.readFileToByteArray(file)));
+        assertTrue(origin.getBytesSent() - sent < SIZE);
+    }
+
+    public void testProgressIsSavedWhileSegmentsAreWritten() throws Exception {
+        byte[] body = body(SIZE, 0);
+        origin.put("contents/videos/intro.mp4", body, "\"v1\"").stall(100 * 1024, 1500);
+
+        final File file = new File(dir, "temp/contents/videos/intro.mp4");
+        Future<?> running = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                transfer(file, 4).run();
+                return null;
+            }
+        });
+        Thread.sleep(750);
+        // what a killed process would leave behind
+        File killed = new File(dir, "killed/intro.mp4");
+        FileUtils.copyFile(new File(file.getPath() + ".part"), new File(killed.getPath() + ".part"));
+        FileUtils.copyFile(new File(file.getPath() + ".part.etag"), new File(killed.getPath() + ".part.etag"));
+        String[] record = FileUtils.readFileToString(new File(killed.getPath() + ".part.etag"), "UTF-8").split("\n");
+        for (int i = 3; i < record.length; i++) {
+            String[] values = record[i].split(" ");
+            assertEquals(Long.parseLong(values[1]) + 1, Long.parseLong(values[2]));
+        }
+        running.get();
+        assertTrue(Arrays.equals(body, FileUtils.readFileToByteArray(file)));
+
+        long sent = origin.getBytesSent();
+        transfer(killed, 4).run();
+        assertTrue(Arrays.equals(body, FileUtils.readFileToByteArray(killed)));
+        assertTrue(origin.getBytesSent() - sent <= SIZE / 4);
+    }
+
+    public void testChangedFileIsWrittenFromBeginning() throws Exception {
+        origin.put("contents/videos/intro.mp4", body(SIZE, 0), "\"v1\"").cut(100 * 1024);
+        File file = new File(dir, "temp/contents/videos/intro.mp4");
+        try {
+            transfer(file, 4).run();
+            fail("Cut segment must fail the transfer.");
+        } catch (IOException expected) {
+        }
+
+        byte[] changed = body(SIZE, 7);
+        origin.put("contents/videos/intro.mp4", changed, "\"v2\"");
+        transfer(file, 4).run();
+        assertTrue(Arrays.equals(changed, FileUtils.readFileToByteArray(file)));
+    }
+
+    private VLSyncSegmentedTransfer transfer(File file, int segments){
+        return new VLSyncSegmentedTransfer(origin.getURL() + "contents/videos/intro.mp4", file, SIZE, null, segments, executor);
+    }
+
+    private static byte[] body(int length, int seed){
+        byte[] body = new byte[length];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) (i * 31 + i / 256 + seed);
+        }
+        return body;
+    }
+}
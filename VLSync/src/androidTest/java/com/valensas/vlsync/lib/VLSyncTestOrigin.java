@@ -0,0 +1,491 @@
+package com.valensas.vlsync.lib;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local stand-in for VLSync origin used by tests. It serves
+ * registered objects over HTTP/1.1 from a loopback socket.
+ */
+class VLSyncTestOrigin {
+
+    /**
+     * Served objects keyed by path without leading slash.
+     */
+    private final Map<String, Resource> mResources = new HashMap<String, Resource>();
+
+    /**
+     * Server socket bound to loopback interface.
+     */
+    private ServerSocket mServerSocket;
+
+    /**
+     * Number of requests received.
+     */
+    private volatile int mRequestCount = 0;
+
+    /**
+     * Number of connections accepted.
+     */
+    private volatile int mConnectionCount = 0;
+
+    /**
+     * Number of body bytes sent.
+     */
+    private volatile long mBytesSent = 0;
+
+    /**
+     * Starts serving on a free port.
+     *
+     * @throws IOException if socket cannot be bound
+     */
+    VLSyncTestOrigin() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()){
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        mConnectionCount++;
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }).start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return project URL of this origin, ending with a slash
+     */
+    String getURL(){
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/";
+    }
+
+    /**
+     * @return number of requests received
+     */
+    int getRequestCount(){
+        return mRequestCount;
+    }
+
+    /**
+     * @return number of connections accepted
+     */
+    int getConnectionCount(){
+        return mConnectionCount;
+    }
+
+    /**
+     * @return number of body bytes sent
+     */
+    long getBytesSent(){
+        return mBytesSent;
+    }
+
+    /**
+     * Registers an object.
+     *
+     * @param path path without leading slash
+     * @param body content of object
+     * @param eTag eTag header value or null
+     * @return registered resource to add headers
+     */
+    Resource put(String path, byte[] body, String eTag){
+        Resource resource = new Resource(body, eTag);
+        synchronized (mResources){
+            mResources.put(path, resource);
+        }
+        return resource;
+    }
+
+    /**
+     * Registers a UTF-8 text object.
+     *
+     * @param path path without leading slash
+     * @param body content of object
+     * @param eTag eTag header value or null
+     * @return registered resource to add headers
+     */
+    Resource put(String path, String body, String eTag){
+        try {
+            return put(path, body.getBytes("UTF-8"), eTag);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Stops serving.
+     */
+    void shutdown(){
+        try {
+            mServerSocket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Serves requests of a connection until it is closed.
+     *
+     * @param socket accepted connection
+     */
+    private void serve(Socket socket){
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (true){
+                Request request = Request.read(in);
+                if(request == null){
+                    break;
+                }
+                mRequestCount++;
+                Resource resource;
+                synchronized (mResources){
+                    resource = mResources.get(request.path);
+                }
+                boolean complete = respond(request, resource, out);
+                out.flush();
+                if(!complete || "close".equalsIgnoreCase(request.headers.get("connection"))){
+                    break;
+                }
+            }
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Writes response of a request. Single byte ranges are served if
+     * 'If-Range' matches eTag of the object. Whole bodies of objects
+     * which allow it are gzip encoded if the request accepts gzip.
+     *
+     * @param request parsed request
+     * @param resource requested object or null
+     * @param out connection output
+     * @return false if body is cut and connection must be closed
+     * @throws IOException if response cannot be written
+     */
+    private boolean respond(Request request, Resource resource, OutputStream out) throws IOException {
+        if(resource == null){
+            writeHead(out, 404, "Not Found", new LinkedHashMap<String, String>(), 0);
+            return true;
+        }
+        if(resource.delay > 0){
+            try {
+                Thread.sleep(resource.delay);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        Map<String, String> headers = new LinkedHashMap<String, String>(resource.headers);
+        if(resource.eTag != null){
+            headers.put("ETag", resource.eTag);
+        }
+        if(resource.eTag != null && resource.eTag.equals(request.headers.get("if-none-match"))){
+            writeHead(out, 304, "Not Modified", headers, 0);
+            return true;
+        }
+        byte[] body = resource.body;
+        int from = 0;
+        int to = body.length - 1;
+        String range = request.headers.get("range");
+        String ifRange = request.headers.get("if-range");
+        if(range != null && range.startsWith("bytes=") && (ifRange == null || ifRange.equals(resource.eTag))){
+            int dash = range.indexOf('-');
+            from = Integer.parseInt(range.substring(6, dash));
+            if(dash < range.length() - 1){
+                to = Math.min(to, Integer.parseInt(range.substring(dash + 1)));
+            }
+            if(from > to){
+                writeHead(out, 416, "Range Not Satisfiable", headers, 0);
+                return true;
+            }
+            headers.put("Content-Range", "bytes " + from + "-" + to + "/" + body.length);
+            writeHead(out, 206, "Partial Content", headers, to - from + 1);
+        }else{
+            String accept = request.headers.get("accept-encoding");
+            if(resource.gzip && accept != null && accept.contains("gzip")){
+                body = gzip(body);
+                to = body.length - 1;
+                headers.put("Content-Encoding", "gzip");
+            }
+            writeHead(out, 200, "OK", headers, body.length);
+        }
+        if("HEAD".equals(request.method)){
+            return true;
+        }
+        int length = to - from + 1;
+        int cut = resource.cut;
+        if(cut >= 0 && cut < length){
+            resource.cut = -1;
+            out.write(body, from, cut);
+            mBytesSent += cut;
+            return false;
+        }
+        int stall = resource.stall;
+        if(stall >= 0 && stall < length){
+            resource.stall = -1;
+            out.write(body, from, stall);
+            out.flush();
+            mBytesSent += stall;
+            try {
+                Thread.sleep(resource.stallMillis);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            from += stall;
+            length -= stall;
+        }
+        out.write(body, from, length);
+        mBytesSent += length;
+        return true;
+    }
+
+    /**
+     * @param bytes content to compress
+     * @return gzip encoded content
+     * @throws IOException if content cannot be compressed
+     */
+    static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(buffer);
+        out.write(bytes);
+        out.close();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Writes status line and headers.
+     *
+     * @param out connection output
+     * @param status status code
+     * @param reason reason phrase
+     * @param headers response headers
+     * @param length content length
+     * @throws IOException if head cannot be written
+     */
+    private static void writeHead(OutputStream out, int status, String reason, Map<String, String> headers, long length) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        builder.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()){
+            builder.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        builder.append("Content-Length: ").append(length).append("\r\n\r\n");
+        out.write(builder.toString().getBytes("ISO-8859-1"));
+    }
+
+    /**
+     * Object served by origin.
+     */
+    static class Resource {
+
+        /**
+         * Content of object.
+         */
+        final byte[] body;
+
+        /**
+         * ETag header value or null.
+         */
+        final String eTag;
+
+        /**
+         * Additional response headers.
+         */
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+        /**
+         * Number of body bytes after which next response is cut, -1
+         * to send whole body.
+         */
+        volatile int cut = -1;
+
+        /**
+         * Flag whether whole bodies are gzip encoded for requests
+         * which accept it.
+         */
+        volatile boolean gzip = false;
+
+        /**
+         * Time in milliseconds to wait before responding.
+         */
+        volatile long delay = 0;
+
+        /**
+         * Number of body bytes after which next response stalls, -1
+         * to send whole body at once.
+         */
+        volatile int stall = -1;
+
+        /**
+         * Time in milliseconds a stalled response waits.
+         */
+        volatile long stallMillis = 0;
+
+        /**
+         * @param body content of object
+         * @param eTag eTag header value or null
+         */
+        Resource(byte[] body, String eTag) {
+            this.body = body;
+            this.eTag = eTag;
+        }
+
+        /**
+         * Adds a response header.
+         *
+         * @param name header name
+         * @param value header value
+         * @return this resource
+         */
+        Resource header(String name, String value){
+            headers.put(name, value);
+            return this;
+        }
+
+        /**
+         * Cuts next response after given number of body bytes and
+         * closes its connection.
+         *
+         * @param bytes number of body bytes to send
+         * @return this resource
+         */
+        Resource cut(int bytes){
+            cut = bytes;
+            return this;
+        }
+
+        /**
+         * Encodes whole bodies with gzip for requests which accept it.
+         *
+         * @return this resource
+         */
+        Resource gzip(){
+            gzip = true;
+            return this;
+        }
+
+        /**
+         * Delays responses by given time.
+         *
+         * @param millis time in milliseconds to wait before responding
+         * @return this resource
+         */
+        Resource delay(long millis){
+            delay = millis;
+            return this;
+        }
+
+        /**
+         * Stalls next response after given number of body bytes.
+         *
+         * @param bytes number of body bytes to send before stalling
+         * @param millis time in milliseconds to stall
+         * @return this resource
+         */
+        Resource stall(int bytes, long millis){
+            stallMillis = millis;
+            stall = bytes;
+            return this;
+        }
+    }
+
+    /**
+     * Parsed request head.
+     */
+    static class Request {
+
+        /**
+         * Request method.
+         */
+        String method;
+
+        /**
+         * Requested path without leading slash and query.
+         */
+        String path;
+
+        /**
+         * Request headers with lower case names.
+         */
+        final Map<String, String> headers = new HashMap<String, String>();
+
+        /**
+         * Reads a request head.
+         *
+         * @param in connection input
+         * @return parsed request or null if connection is closed
+         * @throws IOException if request cannot be read
+         */
+        static Request read(InputStream in) throws IOException {
+            String line = readLine(in);
+            if(line == null || line.length() == 0){
+                return null;
+            }
+            String[] parts = line.split(" ");
+            Request request = new Request();
+            request.method = parts[0];
+            String target = parts.length > 1 ? parts[1] : "/";
+            int query = target.indexOf('?');
+            if(query >= 0){
+                target = target.substring(0, query);
+            }
+            request.path = target.startsWith("/") ? target.substring(1) : target;
+            while ((line = readLine(in)) != null && line.length() > 0){
+                int colon = line.indexOf(':');
+                if(colon > 0){
+                    request.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+            }
+            return request;
+        }
+
+        /**
+         * Reads a CRLF terminated line.
+         *
+         * @param in connection input
+         * @return line without terminator or null at end of stream
+         * @throws IOException if line cannot be read
+         */
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != -1){
+                if(c == '\n'){
+                    break;
+                }
+                if(c != '\r'){
+                    line.write(c);
+                }
+            }
+            if(c == -1 && line.size() == 0){
+                return null;
+            }
+            return line.toString("ISO-8859-1");
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.BitSet;
+
+/**
+ * Tests update plans against a local stand-in origin.
+ */
+public class VLSyncUpdatePlanTest extends TestCase {
+
+    private VLSyncTestOrigin origin;
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        origin = new VLSyncTestOrigin();
+        dir = File.createTempFile("vlsync", "plan");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        origin.shutdown();
+        FileUtils.deleteDirectory(dir);
+        super.tearDown();
+    }
+
+    public void testLeftoverOfAnotherVersionIsDownloadedAgain() throws IOException {
+        origin.put("contents/a.json", "aaa", null);
+        origin.put("contents/b.json", "bb", null);
+        origin.put("content.json", "{\"files\":[{\"path\":\"contents/a.json\",\"etag\":\"a1\",\"size\":3}," +
+                "{\"path\":\"contents/b.json\",\"etag\":\"b1\",\"size\":2}]}", "\"v1\"");
+        update(false);
+
+        origin.put("contents/a.json", "AAA", null);
+        origin.put("content.json", "{\"files\":[{\"path\":\"contents/a.json\",\"etag\":\"a2\",\"size\":3}," +
+                "{\"path\":\"contents/b.json\",\"etag\":\"b1\",\"size\":2}]}", "\"v2\"");
+        VLSyncUpdatePlan plan = update(true);
+
+        BitSet prepared = plan.getPrepared();
+        assertNotNull(prepared);
+        assertEquals(1, prepared.cardinality());
+        assertEquals("contents/b.json", plan.getDownloads().getPath(prepared.nextSetBit(0)));
+        assertEquals("AAA", FileUtils.readFileToString(new File(dir, "root/contents/a.json"), "UTF-8"));
+        assertEquals("bb", FileUtils.readFileToString(new File(dir, "root/contents/b.json"), "UTF-8"));
+    }
+
+    public void testCorruptLeftoverIsDownloadedAgain() throws IOException {
+        String eTag = "\"47bce5c74f589f4867dbd57e9ca9f808\"";
+        origin.put("contents/a.json", "aaa", null);
+        origin.put("content.json", "{\"files\":[{\"path\":\"contents/a.json\",\"etag\":\"" + eTag.replace("\"", "\\\"") + "\",\"size\":3}]}", "\"v1\"");
+        update(false);
+        FileUtils.writeStringToFile(new File(dir, "temp/contents/a.json"), "xxx", "UTF-8");
+
+        VLSyncUpdatePlan plan = update(true);
+
+        assertNull(plan.getPrepared());
+        assertEquals("aaa", FileUtils.readFileToString(new File(dir, "root/contents/a.json"), "UTF-8"));
+    }
+
+    public void testOnlyPartialsOfPlannedFilesAreDeleted() throws IOException {
+        origin.put("contents/notes.part", "nn", null);
+        origin.put("contents/a.json", "aaa", null);
+        origin.put("content.json", "{\"files\":[{\"path\":\"contents/notes.part\",\"etag\":\"n1\",\"size\":2}," +
+                "{\"path\":\"contents/a.json\",\"etag\":\"a1\",\"size\":3}]}", "\"v1\"");
+        FileUtils.writeStringToFile(new File(dir, "temp/contents/a.json" + VLSyncHttpTransport.PART_SUFFIX), "a", "UTF-8");
+
+        update(true);
+
+        assertEquals("nn", FileUtils.readFileToString(new File(dir, "root/contents/notes.part"), "UTF-8"));
+        assertEquals("aaa", FileUtils.readFileToString(new File(dir, "root/contents/a.json"), "UTF-8"));
+        assertFalse(new File(dir, "root/contents/a.json" + VLSyncHttpTransport.PART_SUFFIX).exists());
+    }
+
+    public void testRepairCommitsOnlyRepairedFiles() throws Exception {
+        origin.put("contents/a.json", "aaa", null);
+        origin.put("contents/b.json", "bb", null);
+        origin.put("content.json", "{\"files\":[{\"path\":\"contents/a.json\",\"etag\":\"a1\",\"size\":3}," +
+                "{\"path\":\"contents/b.json\",\"etag\":\"b1\",\"size\":2}]}", "\"v1\"");
+        update(true);
+        String manifest = FileUtils.readFileToString(new File(dir, "root/content.json"), "UTF-8");
+        new File(dir, "root/contents/a.json").delete();
+        // leftovers of a failed update of another manifest
+        FileUtils.writeStringToFile(new File(dir, "temp/content.json"), "{\"files\":[]}", "UTF-8");
+        FileUtils.writeStringToFile(new File(dir, "temp/contents/b.json"), "BB", "UTF-8");
+        FileUtils.writeStringToFile(new File(dir, "temp/contents/c.json"), "c", "UTF-8");
+
+        File temp = new File(dir, "temp");
+        VLSyncUpdatePlan plan = new VLSyncUpdatePlan(new File(dir, "root"), temp, origin.getURL());
+        assertTrue(plan.reconcile());
+        VLSyncManifest downloads = plan.getDownloads();
+        assertEquals(1, downloads.size());
+        VLSyncHttpTransport.transfer(origin.getURL() + downloads.getPath(0), new File(temp, downloads.getPath(0)), downloads.getEtag(0), downloads.getSize(0));
+        plan.commit();
+
+        assertEquals("aaa", FileUtils.readFileToString(new File(dir, "root/contents/a.json"), "UTF-8"));
+        assertEquals("bb", FileUtils.readFileToString(new File(dir, "root/contents/b.json"), "UTF-8"));
+        assertEquals(manifest, FileUtils.readFileToString(new File(dir, "root/content.json"), "UTF-8"));
+        assertFalse(new File(dir, "root/contents/c.json").exists());
+        assertFalse(temp.exists());
+    }
+
+    public void testPatchesAreAppliedInParallel() throws Exception {
+        int baseSize = VLSyncVcdiffTest.BASE.length();
+        origin.put("contents/a.txt", VLSyncVcdiffTest.BASE, null);
+        origin.put("contents/b.txt", VLSyncVcdiffTest.BASE, null);
+        origin.put("content.json", "{\"files\":[{\"path\":\"contents/a.txt\",\"etag\":\"a1\",\"size\":" + baseSize + "}," +
+                "{\"path\":\"contents/b.txt\",\"etag\":\"b1\",\"size\":" + baseSize + "}]}", "\"v1\"");
+        update(true);
+
+        byte[] patch = VLSyncVcdiffTest.patch();
+        String eTag = md5(VLSyncVcdiffTest.TARGET).replace("\"", "\\\"");
+        int size = VLSyncVcdiffTest.TARGET.length();
+        origin.put("patches/a.vcdiff", patch, null).delay(300);
+        origin.put("patches/b.vcdiff", patch, null).delay(300);
+        origin.put("content.json", "{\"patches\":[" +
+                "{\"target\":\"contents/a.txt\",\"base\":\"a1\",\"path\":\"patches/a.vcdiff\",\"size\":" + patch.length + "}," +
+                "{\"target\":\"contents/b.txt\",\"base\":\"b1\",\"path\":\"patches/b.vcdiff\",\"size\":" + patch.length + "}]," +
+                "\"files\":[{\"path\":\"contents/a.txt\",\"etag\":\"" + eTag + "\",\"size\":" + size + "}," +
+                "{\"path\":\"contents/b.txt\",\"etag\":\"" + eTag + "\",\"size\":" + size + "}]}", "\"v2\"");
+        VLSyncUpdatePlan plan = new VLSyncUpdatePlan(new File(dir, "root"), new File(dir, "temp"), origin.getURL());
+        VLSyncManifestFetch fetch = VLSyncManifestFetch.open(origin.getURL(), new String[]{"content.json"}, null);
+        try {
+            plan.planFromManifest(fetch, false);
+        } finally {
+            fetch.close();
+        }
+
+        long start = System.currentTimeMillis();
+        plan.prepareFiles();
+        // both patches are requested at once
+        assertTrue(System.currentTimeMillis() - start < 600);
+        assertEquals(2, plan.getPrepared().cardinality());
+        assertEquals(VLSyncVcdiffTest.TARGET, FileUtils.readFileToString(new File(dir, "temp/contents/a.txt"), "UTF-8"));
+        assertEquals(VLSyncVcdiffTest.TARGET, FileUtils.readFileToString(new File(dir, "temp/contents/b.txt"), "UTF-8"));
+    }
+
+    public void testDeltaIsTakenFromMirrorOfManifest() throws IOException {
+        origin.put("contents/a.json", "aaa", null);
+        origin.put("content.json", "{\"files\":[{\"path\":\"contents/a.json\",\"etag\":\"a1\",\"size\":3}]}", "\"v1\"");
+        update(true);
+
+        origin.put("contents/a.json", "aaaa", null);
+        origin.put("content.json", "{\"files\":[{\"path\":\"contents/a.json\",\"etag\":\"a2\",\"size\":4}]}", "\"v2\"");
+        origin.put("deltas/" + VLSyncManifestDelta.key("\"v1\"") + ".json", "{\"from\":\"\\\"v1\\\"\",\"to\":\"\\\"v2\\\"\"," +
+                "\"changed\":[{\"path\":\"contents/a.json\",\"etag\":\"a2\",\"size\":4}]}", null);
+        VLSyncTestOrigin stale = new VLSyncTestOrigin();
+        try {
+            VLSyncUpdatePlan plan = new VLSyncUpdatePlan(new File(dir, "root"), new File(dir, "temp"), stale.getURL());
+            VLSyncManifestFetch fetch = VLSyncManifestFetch.open(origin.getURL(), new String[]{"content.json"}, "\"v1\"");
+            try {
+                plan.setProjectURL(fetch.getProjectURL());
+                assertTrue(plan.planFromDelta("\"v1\"", fetch.getETag()));
+                fetch.abandon();
+            } finally {
+                fetch.close();
+            }
+            assertEquals(0, stale.getRequestCount());
+            assertEquals("contents/a.json", plan.getDownloads().getPath(0));
+        } finally {
+            stale.shutdown();
+        }
+    }
+
+    private static String md5(String body) throws Exception {
+        StringBuilder builder = new StringBuilder("\"");
+        for (byte b : MessageDigest.getInstance("MD5").digest(body.getBytes("UTF-8"))){
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.append('"').toString();
+    }
+
+    /**
+     * Runs an update the way the update task does.
+     *
+     * @param commit false to leave the update failed before commit
+     * @return plan of the update
+     */
+    private VLSyncUpdatePlan update(boolean commit) throws IOException {
+        File temp = new File(dir, "temp");
+        VLSyncUpdatePlan plan = new VLSyncUpdatePlan(new File(dir, "root"), temp, origin.getURL());
+        plan.recoverFailedTask();
+        VLSyncManifestFetch fetch = VLSyncManifestFetch.open(origin.getURL(), new String[]{"content.json"}, null);
+        try {
+            plan.planFromManifest(fetch, false);
+        } finally {
+            fetch.close();
+        }
+        plan.recoverFiles();
+        VLSyncManifest downloads = plan.getDownloads();
+        BitSet prepared = plan.getPrepared();
+        for (int i = 0; i < downloads.size(); i++){
+            if(prepared == null || !prepared.get(i)){
+                VLSyncHttpTransport.transfer(origin.getURL() + downloads.getPath(i), new File(temp, downloads.getPath(i)), downloads.getEtag(i), downloads.getSize(i));
+            }
+        }
+        if(commit){
+            try {
+                plan.commit();
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+        return plan;
+    }
+}
@@ -0,0 +1,152 @@
+package com.valensas.vlsync.lib;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests VCDIFF decoding against hand encoded windows.
+ */
+public class VLSyncVcdiffTest extends TestCase {
+
+    static final String BASE = "The quick brown fox jumps over the lazy dog.";
+
+    static final String TARGET = "The quick red fox jumps over the lazy dog!!!!!abababab.The ";
+
+    static final String FRAMED_BASE = "{\"title\":\"Intro\",\"items\":[1,2,3],\"version\":1,\"tags\":[\"a\",\"b\"]}\n";
+
+    static final String FRAMED_TARGET = "{\"title\":\"Intro\",\"items\":[1,2,3,4],\"version\":2,\"tags\":[\"a\",\"b\"]}\n";
+
+    /**
+     * Hand-encoded patch of {@link #FRAMED_BASE} to
+     * {@link #FRAMED_TARGET} with the xdelta3 extensions: application
+     * header "target//base/", a window with its source segment and
+     * Adler-32 checksum, and a first copy hitting the zeroed 'same'
+     * address cache.
+     */
+    static final byte[] FRAMED_PATCH = {
+            (byte) 0xd6, (byte) 0xc3, (byte) 0xc4, 0x00, 0x04, 0x0d, 0x74, 0x61, 0x72, 0x67, 0x65, 0x74, 0x2f, 0x2f, 0x62,
+            0x61, 0x73, 0x65, 0x2f, 0x05, 0x3f, 0x00, 0x16, 0x41, 0x00, 0x03, 0x07, 0x03, (byte) 0x97, (byte) 0x8d,
+            0x13, 0x2f, 0x2c, 0x34, 0x32, 0x73, 0x1f, 0x03, 0x1c, 0x02, 0x43, 0x13, 0x00, 0x1f, 0x0d
+    };
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("vlsync", "vcdiff");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+        super.tearDown();
+    }
+
+    public void testWindowIsDecodedAgainstBase() throws Exception {
+        File base = new File(dir, "base");
+        FileUtils.writeStringToFile(base, BASE, "UTF-8");
+        File target = new File(dir, "target");
+
+        long length = VLSyncVcdiff.apply(base, new ByteArrayInputStream(patch()), target, null);
+
+        assertEquals(TARGET.length(), length);
+        assertEquals(TARGET, FileUtils.readFileToString(target, "UTF-8"));
+    }
+
+    public void testFramedPatchIsApplied() throws Exception {
+        File base = new File(dir, "base");
+        FileUtils.writeStringToFile(base, FRAMED_BASE, "UTF-8");
+        File target = new File(dir, "target");
+
+        long length = VLSyncVcdiff.apply(base, new ByteArrayInputStream(FRAMED_PATCH), target, null);
+
+        assertEquals(FRAMED_TARGET.length(), length);
+        assertEquals(FRAMED_TARGET, FileUtils.readFileToString(target, "UTF-8"));
+    }
+
+    public void testSecondaryCompressionIsRejected() throws Exception {
+        byte[] patch = patch();
+        patch[4] = 0x01;
+        try {
+            VLSyncVcdiff.apply(null, new ByteArrayInputStream(patch), new File(dir, "target"), null);
+            fail("Secondary compression is not supported.");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * @return patch of {@link #BASE} to {@link #TARGET}
+     */
+    static byte[] patch() throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteArrayOutputStream instructions = new ByteArrayOutputStream();
+        ByteArrayOutputStream addresses = new ByteArrayOutputStream();
+
+        // "The quick " copied from base, mode 0
+        instructions.write(19);
+        writeInt(instructions, 10);
+        writeInt(addresses, 0);
+        // "red" added
+        instructions.write(1);
+        writeInt(instructions, 3);
+        data.write("red".getBytes("UTF-8"));
+        // " fox jumps over the lazy dog" copied from base, near mode 2
+        instructions.write(19 + 2 * 16);
+        writeInt(instructions, 28);
+        writeInt(addresses, 15);
+        // "!!!!!" run
+        instructions.write(0);
+        writeInt(instructions, 5);
+        data.write('!');
+        // "ab" added, then copied over itself from target, here mode 1
+        instructions.write(1);
+        writeInt(instructions, 2);
+        data.write("ab".getBytes("UTF-8"));
+        instructions.write(19 + 16);
+        writeInt(instructions, 6);
+        writeInt(addresses, 2);
+        // "." added and "The " copied from base, combined code 163
+        instructions.write(163);
+        data.write('.');
+        writeInt(addresses, 0);
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        writeInt(delta, TARGET.length());
+        delta.write(0);
+        writeInt(delta, data.size());
+        writeInt(delta, instructions.size());
+        writeInt(delta, addresses.size());
+        data.writeTo(delta);
+        instructions.writeTo(delta);
+        addresses.writeTo(delta);
+
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        patch.write(new byte[]{(byte) 0xD6, (byte) 0xC3, (byte) 0xC4, 0, 0});
+        patch.write(0x01);
+        writeInt(patch, BASE.length());
+        writeInt(patch, 0);
+        writeInt(patch, delta.size());
+        delta.writeTo(patch);
+        return patch.toByteArray();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, long value) {
+        int groups = 1;
+        while ((value >>> (7 * groups)) != 0) {
+            groups++;
+        }
+        for (int i = groups - 1; i >= 0; i--) {
+            int b = (int) ((value >>> (7 * i)) & 0x7F);
+            out.write(i > 0 ? b | 0x80 : b);
+        }
+    }
+}
@@ -2,11 +2,14 @@ package com.valensas.vlsync.lib;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Map;
 
@@ -46,9 +49,16 @@ public class VLSync {
     private static boolean mDebugEnabled = false;
 
     /**
-     * Project root URL.
+     * Mirrors of project, VLSync servers by default. See
+     * {@link #setOrigins(String...)}
      */
-    private String mProjectURL;
+    private VLSyncMirrors mMirrors;
+
+    /**
+     * Whether a connection is to be prewarmed once origins are known.
+     * See {@link #initWithProjectId(String, android.content.Context, boolean)}
+     */
+    private boolean mPrewarmPending = false;
 
     /**
      * Singleton instance of VLSync
@@ -128,6 +138,42 @@ public class VLSync {
      */
     private boolean showProgressText = false;
 
+    /**
+     * Number of files downloaded at the same time.
+     */
+    private ConcurrentDownloads concurrentDownloads = ConcurrentDownloads.ADAPTIVE;
+
+    /**
+     * Transport which transfers content files.
+     */
+    private Transport transport = Transport.DOWNLOAD_MANAGER;
+
+    /**
+     * Size in bytes from which files are downloaded in segments.
+     */
+    private long segmentThreshold = VLSyncHttpTransport.DEFAULT_SEGMENT_THRESHOLD;
+
+    /**
+     * Number of segments of a large file.
+     */
+    private int segments = VLSyncHttpTransport.DEFAULT_SEGMENTS;
+
+    /**
+     * Networks which {@link Transport#DOWNLOAD_MANAGER} downloads are
+     * allowed on.
+     */
+    private DownloadNetworks downloadNetworks = DownloadNetworks.ANY;
+
+    /**
+     * Retry policy of failed downloads.
+     */
+    private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+    /**
+     * Hedging of slow {@link Transport#HTTP} downloads.
+     */
+    private Hedging hedging = Hedging.NONE;
+
     /**
      * Private constructor for VLSync called by {@link #initWithProjectId}
      *
@@ -149,7 +195,7 @@ public class VLSync {
         }
         this.mContext = applicationContext;
         this.mId = id;
-        this.mProjectURL = S3_URL + this.mId + "/";
+        this.mMirrors = new VLSyncMirrors(new String[]{S3_URL + this.mId + "/"});
         mSharedPrefs = mContext.getSharedPreferences("com.valensas.vlsync.lib", 0);
         log("VLSync instance created.");
     }
@@ -188,6 +234,53 @@ public class VLSync {
         return instance;
     }
 
+    /**
+     * Initializer method for VLSync. It must be called before VLSync
+     * is used. If prewarm is true, a connection to the preferred
+     * origin is opened in background, so that first update after
+     * application launch does not wait for host resolution and
+     * connection setup. Prewarming is deferred until origins are set
+     * with {@link #setOrigins(String...)} or, if they are not set
+     * right after initialization, until the main thread is idle.
+     *
+     * @since 1.1
+     *
+     * @param id Project Id from VLSync project on web. It cannot be
+     *           null.
+     * @param applicationContext {@link android.app.Activity#getApplicationContext()}
+     * @param prewarm whether a connection to VLSync server is opened
+     *                in background
+     * @return VLSync object.
+     */
+    public static VLSync initWithProjectId(@NonNull String id, @NonNull Context applicationContext, boolean prewarm){
+        final VLSync sync = initWithProjectId(id, applicationContext);
+        if(prewarm){
+            sync.mPrewarmPending = true;
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    sync.prewarm();
+                }
+            });
+        }
+        return sync;
+    }
+
+    /**
+     * Opens a connection to the preferred origin in background if it
+     * is pending and no update has started yet.
+     *
+     * @since 1.1
+     */
+    private void prewarm(){
+        if(!mPrewarmPending){
+            return;
+        }
+        mPrewarmPending = false;
+        String name = getManifestName();
+        VLSyncConnections.prewarm(getProjectURL() + (name != null ? name : "content.json"));
+    }
+
     /**
      * Starts update process for files. Detects file changes between
      * VLSync server and application content. Downloads changes from
@@ -201,6 +294,7 @@ public class VLSync {
             return;
         }
         updating = true;
+        mPrewarmPending = false;
         log("Update started.");
 
         if(mListener != null) {
@@ -228,6 +322,7 @@ public class VLSync {
             return;
         }
         updating = true;
+        mPrewarmPending = false;
         log("Update started.");
         if(showHUD){
             mHUD = VLSyncHUD.show(context, showProgressText, showProgress);
@@ -356,6 +451,32 @@ public class VLSync {
                             break;
                     }
                     break;
+                case TRANSPORT:
+                    this.transport = (Transport) options.get(key);
+                    log("Transport is set to " + this.transport + ".");
+                    break;
+                case CONCURRENT_DOWNLOADS:
+                    this.concurrentDownloads = (ConcurrentDownloads) options.get(key);
+                    log("Concurrent downloads are set to " + this.concurrentDownloads + ".");
+                    break;
+                case SEGMENTED_DOWNLOADS:
+                    SegmentedDownloads segmented = (SegmentedDownloads) options.get(key);
+                    this.segmentThreshold = segmented.getThreshold();
+                    this.segments = segmented.getSegments();
+                    log("Segmented downloads are set to " + segmented + ".");
+                    break;
+                case DOWNLOAD_NETWORKS:
+                    this.downloadNetworks = (DownloadNetworks) options.get(key);
+                    log("Download networks are set to " + this.downloadNetworks + ".");
+                    break;
+                case RETRY_POLICY:
+                    this.retryPolicy = (RetryPolicy) options.get(key);
+                    log("Retry policy is set to " + this.retryPolicy + ".");
+                    break;
+                case HEDGING:
+                    this.hedging = (Hedging) options.get(key);
+                    log("Hedging is set to " + this.hedging + ".");
+                    break;
             }
         }
     }
@@ -403,6 +524,38 @@ public class VLSync {
         return root;
     }
 
+    /**
+     * Sets origins which project is served from, e.g. VLSync servers
+     * and mirrors closer to users. Project id is appended to each
+     * origin. Latency of origins is probed and files are downloaded
+     * from the fastest healthy one. A failed request is retried on
+     * the next origin. Origins cannot be changed while updating.
+     *
+     * @since 1.1
+     *
+     * @param origins root URLs of origins, in order of preference
+     *                before they are probed. At least one is required,
+     *                otherwise VLSyncException is thrown.
+     */
+    public void setOrigins(String... origins){
+        if(origins == null || origins.length == 0){
+            log("VLSync cannot be set up without an origin.");
+            throw new VLSyncException("VLSync cannot be set up without an origin.");
+        }
+        if(updating){
+            log("Already updating... Origins are not changed.");
+            return;
+        }
+        String[] urls = new String[origins.length];
+        for (int i = 0; i < origins.length; i++){
+            String origin = origins[i].trim();
+            urls[i] = origin + (origin.endsWith("/") ? "" : "/") + mId + "/";
+        }
+        log("Origins set as " + Arrays.toString(urls));
+        this.mMirrors = new VLSyncMirrors(urls);
+        prewarm();
+    }
+
     /**
      * Setter for OnUpdateListener.
      *
@@ -470,6 +623,13 @@ public class VLSync {
         if(customOptionsUsed){
             log("Setting options back to default values.");
             customOptionsUsed = false;
+            this.concurrentDownloads = ConcurrentDownloads.ADAPTIVE;
+            this.transport = Transport.DOWNLOAD_MANAGER;
+            this.segmentThreshold = VLSyncHttpTransport.DEFAULT_SEGMENT_THRESHOLD;
+            this.segments = VLSyncHttpTransport.DEFAULT_SEGMENTS;
+            this.downloadNetworks = DownloadNetworks.ANY;
+            this.retryPolicy = RetryPolicy.DEFAULT;
+            this.hedging = Hedging.NONE;
             if(this.defaultOptions != null) {
                 setUpdateOptions(this.defaultOptions);
             }else{
@@ -491,15 +651,26 @@ public class VLSync {
     }
 
     /**
-     * Returns project URL
+     * Returns project URL on the preferred mirror.
      *
-     * @see #mProjectURL
+     * @see VLSyncMirrors#select()
      * @since 1.0
      *
      * @return URL string of project.
      */
     protected String getProjectURL(){
-        return mProjectURL;
+        return mMirrors.select();
+    }
+
+    /**
+     * Getter method for {@link #mMirrors}
+     *
+     * @since 1.1
+     *
+     * @return mirrors of project
+     */
+    protected VLSyncMirrors getMirrors(){
+        return mMirrors;
     }
 
     /**
@@ -525,6 +696,82 @@ public class VLSync {
         return mSharedPrefs.getString("com.valensas.vlsync.lib.etag", null);
     }
 
+    /**
+     * Update time until which committed content is fresh and
+     * need not be revalidated with origin.
+     *
+     * @since 1.1
+     *
+     * @param freshUntil time in milliseconds, 0 if content must be
+     *                   revalidated on every update
+     */
+    protected void updateContentFreshness(long freshUntil){
+        log("Updating content freshness as: " + freshUntil);
+        SharedPreferences.Editor editor = mSharedPrefs.edit();
+        editor.putLong("com.valensas.vlsync.lib.fresh_until", freshUntil);
+        editor.apply();
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return time in milliseconds until which committed content is
+     * fresh, 0 if it must be revalidated
+     */
+    protected long getContentFreshness(){
+        return mSharedPrefs.getLong("com.valensas.vlsync.lib.fresh_until", 0L);
+    }
+
+    /**
+     * Update name of manifest object served by origin, e.g.
+     * 'content.json.gz'.
+     *
+     * @since 1.1
+     *
+     * @param name name of manifest object
+     */
+    protected void updateManifestName(String name){
+        log("Updating manifest name as: " + name);
+        SharedPreferences.Editor editor = mSharedPrefs.edit();
+        editor.putString("com.valensas.vlsync.lib.manifest", name);
+        editor.apply();
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return name of manifest object served by origin or null if
+     * it is not known yet
+     */
+    protected String getManifestName(){
+        return mSharedPrefs.getString("com.valensas.vlsync.lib.manifest", null);
+    }
+
+    /**
+     * Update time at which origin answered that it has no delta from
+     * committed manifest. See {@link VLSyncManifestDelta}
+     *
+     * @since 1.1
+     *
+     * @param missingAt time in milliseconds, 0 if origin serves deltas
+     */
+    protected void updateDeltaMissingAt(long missingAt){
+        log("Updating delta missing time as: " + missingAt);
+        SharedPreferences.Editor editor = mSharedPrefs.edit();
+        editor.putLong("com.valensas.vlsync.lib.delta_missing_at", missingAt);
+        editor.apply();
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return time in milliseconds at which origin answered that it
+     * has no delta, 0 if it serves deltas or it is not asked yet
+     */
+    protected long getDeltaMissingAt(){
+        return mSharedPrefs.getLong("com.valensas.vlsync.lib.delta_missing_at", 0L);
+    }
+
     /**
      * @since 1.0
      *
@@ -565,6 +812,71 @@ public class VLSync {
         }
     }
 
+    /**
+     * @since 1.1
+     *
+     * @return number of files downloaded at the same time
+     */
+    protected ConcurrentDownloads getConcurrentDownloads(){
+        return this.concurrentDownloads;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return transport which transfers content files
+     */
+    protected Transport getTransport(){
+        return this.transport;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return size in bytes from which files are downloaded in
+     * segments
+     */
+    protected long getSegmentThreshold(){
+        return this.segmentThreshold;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return number of segments of a large file
+     */
+    protected int getSegments(){
+        return this.segments;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return networks which {@link Transport#DOWNLOAD_MANAGER}
+     * downloads are allowed on
+     */
+    protected DownloadNetworks getDownloadNetworks(){
+        return this.downloadNetworks;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return retry policy of failed downloads
+     */
+    protected RetryPolicy getRetryPolicy(){
+        return this.retryPolicy;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return hedging of slow downloads
+     */
+    protected Hedging getHedging(){
+        return this.hedging;
+    }
+
     /**
      * @since 1.0
      *
@@ -638,7 +950,55 @@ public class VLSync {
          * @see com.valensas.vlsync.lib.VLSync.HUDState
          * @since 1.0
          */
-        HUD_STATE
+        HUD_STATE,
+
+        /**
+         * Concurrent downloads option key.
+         *
+         * @see com.valensas.vlsync.lib.VLSync.ConcurrentDownloads
+         * @since 1.1
+         */
+        CONCURRENT_DOWNLOADS,
+
+        /**
+         * Transport option key.
+         *
+         * @see com.valensas.vlsync.lib.VLSync.Transport
+         * @since 1.1
+         */
+        TRANSPORT,
+
+        /**
+         * Segmented downloads option key.
+         *
+         * @see com.valensas.vlsync.lib.VLSync.SegmentedDownloads
+         * @since 1.1
+         */
+        SEGMENTED_DOWNLOADS,
+
+        /**
+         * Download networks option key.
+         *
+         * @see com.valensas.vlsync.lib.VLSync.DownloadNetworks
+         * @since 1.1
+         */
+        DOWNLOAD_NETWORKS,
+
+        /**
+         * Retry policy option key.
+         *
+         * @see com.valensas.vlsync.lib.VLSync.RetryPolicy
+         * @since 1.1
+         */
+        RETRY_POLICY,
+
+        /**
+         * Hedging option key.
+         *
+         * @see com.valensas.vlsync.lib.VLSync.Hedging
+         * @since 1.1
+         */
+        HEDGING
     }
 
     /**
@@ -716,4 +1076,363 @@ public class VLSync {
          */
         INDETERMINATE_TEXT_VISIBLE
     }
+
+    /**
+     * Transport values
+     *
+     * @version 1.1
+     * @since 1.1
+     */
+    public enum Transport implements UpdateOptionValue {
+
+        /**
+         * Indicates that content files are downloaded by
+         * {@link android.app.DownloadManager}. This is the default.
+         *
+         * @since 1.1
+         */
+        DOWNLOAD_MANAGER,
+
+        /**
+         * Indicates that content files are streamed to storage
+         * in-process over {@link java.net.HttpURLConnection}.
+         *
+         * @since 1.1
+         */
+        HTTP
+    }
+
+    /**
+     * Hedging values. A hedged download is requested a second time
+     * when it falls behind 95% of earlier downloads, either waiting
+     * longer for its first byte or receiving slower. The first of the
+     * two requests to complete is kept and the other is cancelled.
+     * Applies to {@link Transport#HTTP} only.
+     *
+     * @version 1.1
+     * @since 1.1
+     */
+    public enum Hedging implements UpdateOptionValue {
+
+        /**
+         * Indicates that downloads are not hedged. This is the
+         * default.
+         *
+         * @since 1.1
+         */
+        NONE,
+
+        /**
+         * Indicates that slow downloads are requested again from the
+         * same mirror.
+         *
+         * @since 1.1
+         */
+        SAME_MIRROR,
+
+        /**
+         * Indicates that slow downloads are requested again from
+         * another healthy mirror if there is one, see
+         * {@link VLSync#setOrigins(String...)}.
+         *
+         * @since 1.1
+         */
+        OTHER_MIRROR
+    }
+
+    /**
+     * Number of files downloaded at the same time by
+     * {@link Transport#HTTP}. Default is {@link #ADAPTIVE}, which
+     * starts with 2 files and adapts to measured throughput and
+     * latency of the link, up to 16 files.
+     *
+     * @version 1.1
+     * @since 1.1
+     */
+    public static class ConcurrentDownloads implements UpdateOptionValue {
+
+        /**
+         * Number of files adapted to the link while downloading.
+         *
+         * @since 1.1
+         */
+        public static final ConcurrentDownloads ADAPTIVE = new ConcurrentDownloads();
+
+        /**
+         * Maximum number of files downloaded at the same time, 0 if
+         * adaptive.
+         */
+        private final int count;
+
+        /**
+         * Constructor method of {@link #ADAPTIVE}.
+         */
+        private ConcurrentDownloads(){
+            this.count = 0;
+        }
+
+        /**
+         * Constructor method.
+         *
+         * @since 1.1
+         *
+         * @param count maximum number of files downloaded at the same
+         *              time. Values less than 1 are treated as 1.
+         */
+        public ConcurrentDownloads(int count){
+            this.count = Math.max(1, count);
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return maximum number of files downloaded at the same
+         * time, 0 if adaptive
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return true if number of files is adapted to the link
+         */
+        public boolean isAdaptive() {
+            return count == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "{ \"_class\":\"" + getClass().getName() + "\", \"count\":" + count + ", \"adaptive\":" + isAdaptive() + " }";
+        }
+    }
+
+    /**
+     * Splitting of large files into byte ranges which are downloaded
+     * in parallel by {@link Transport#HTTP}. Default is 4 segments
+     * from 16 MB.
+     *
+     * @version 1.1
+     * @since 1.1
+     */
+    public static class SegmentedDownloads implements UpdateOptionValue {
+
+        /**
+         * Size in bytes from which files are downloaded in segments.
+         */
+        private final long threshold;
+
+        /**
+         * Number of segments of a large file.
+         */
+        private final int segments;
+
+        /**
+         * Constructor method.
+         *
+         * @since 1.1
+         *
+         * @param threshold size in bytes from which files are
+         *                  downloaded in segments
+         * @param segments number of segments of a large file. Values
+         *                 less than 2 disable segmented downloads.
+         */
+        public SegmentedDownloads(long threshold, int segments){
+            this.threshold = threshold;
+            this.segments = Math.max(1, segments);
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return size in bytes from which files are downloaded in
+         * segments
+         */
+        public long getThreshold() {
+            return threshold;
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return number of segments of a large file
+         */
+        public int getSegments() {
+            return segments;
+        }
+
+        @Override
+        public String toString() {
+            return "{ \"_class\":\"" + getClass().getName() + "\", \"threshold\":" + threshold + ", \"segments\":" + segments + " }";
+        }
+    }
+
+    /**
+     * Networks which {@link Transport#DOWNLOAD_MANAGER} downloads are
+     * allowed on. Downloads which are not allowed on current network
+     * wait until an allowed one is available. Default is
+     * {@link #ANY}.
+     *
+     * @version 1.1
+     * @since 1.1
+     */
+    public static class DownloadNetworks implements UpdateOptionValue {
+
+        /**
+         * Downloads are allowed on every network, including roaming.
+         *
+         * @since 1.1
+         */
+        public static final DownloadNetworks ANY = new DownloadNetworks(true, true);
+
+        /**
+         * Downloads are allowed on unmetered Wi-Fi networks only.
+         *
+         * @since 1.1
+         */
+        public static final DownloadNetworks WIFI_ONLY = new DownloadNetworks(false, false);
+
+        /**
+         * Flag whether mobile and metered networks are allowed.
+         */
+        private final boolean mobileAllowed;
+
+        /**
+         * Flag whether downloads are allowed while roaming.
+         */
+        private final boolean roamingAllowed;
+
+        /**
+         * Constructor method.
+         *
+         * @since 1.1
+         *
+         * @param mobileAllowed true if mobile and metered networks are
+         *                      allowed
+         * @param roamingAllowed true if downloads are allowed while
+         *                       roaming
+         */
+        public DownloadNetworks(boolean mobileAllowed, boolean roamingAllowed){
+            this.mobileAllowed = mobileAllowed;
+            this.roamingAllowed = roamingAllowed;
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return true if mobile and metered networks are allowed
+         */
+        public boolean isMobileAllowed() {
+            return mobileAllowed;
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return true if downloads are allowed while roaming
+         */
+        public boolean isRoamingAllowed() {
+            return roamingAllowed;
+        }
+
+        @Override
+        public String toString() {
+            return "{ \"_class\":\"" + getClass().getName() + "\", \"mobileAllowed\":" + mobileAllowed + ", \"roamingAllowed\":" + roamingAllowed + " }";
+        }
+    }
+
+    /**
+     * Retries of failed downloads within an update. A file whose
+     * download fails with a connection error, a timeout, throttling
+     * or a server error is downloaded again after a delay, which
+     * doubles with each attempt up to a maximum and is randomized so
+     * that failed files are not retried together. Other files keep
+     * downloading meanwhile. Default is 3 attempts with delays from
+     * 1 to 30 seconds.
+     *
+     * @version 1.1
+     * @since 1.1
+     */
+    public static class RetryPolicy implements UpdateOptionValue {
+
+        /**
+         * Default retry policy.
+         *
+         * @since 1.1
+         */
+        public static final RetryPolicy DEFAULT = new RetryPolicy(3, 1000, 30000);
+
+        /**
+         * Retry policy which does not retry failed downloads.
+         *
+         * @since 1.1
+         */
+        public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+        /**
+         * Maximum number of attempts of a file.
+         */
+        private final int maxAttempts;
+
+        /**
+         * Delay before the first retry in milliseconds.
+         */
+        private final long initialDelay;
+
+        /**
+         * Maximum delay before a retry in milliseconds.
+         */
+        private final long maxDelay;
+
+        /**
+         * Constructor method.
+         *
+         * @since 1.1
+         *
+         * @param maxAttempts maximum number of attempts of a file,
+         *                    including the first one. Values less
+         *                    than 1 are treated as 1.
+         * @param initialDelay delay before the first retry in
+         *                     milliseconds
+         * @param maxDelay maximum delay before a retry in milliseconds
+         */
+        public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay){
+            this.maxAttempts = Math.max(1, maxAttempts);
+            this.initialDelay = Math.max(0, initialDelay);
+            this.maxDelay = Math.max(this.initialDelay, maxDelay);
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return maximum number of attempts of a file
+         */
+        public int getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return delay before the first retry in milliseconds
+         */
+        public long getInitialDelay() {
+            return initialDelay;
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return maximum delay before a retry in milliseconds
+         */
+        public long getMaxDelay() {
+            return maxDelay;
+        }
+
+        @Override
+        public String toString() {
+            return "{ \"_class\":\"" + getClass().getName() + "\", \"maxAttempts\":" + maxAttempts + ", \"initialDelay\":" + initialDelay + ", \"maxDelay\":" + maxDelay + " }";
+        }
+    }
 }
@@ -0,0 +1,335 @@
+package com.valensas.vlsync.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Verifies content of a file against its S3 style eTag while the
+ * content is being written, so a download is checked without reading
+ * it back. The eTag of a single part object is MD5 digest of the
+ * content. The eTag of a multipart object, '&lt;hex&gt;-&lt;parts&gt;',
+ * is MD5 digest of concatenated MD5 digests of its parts. Part size
+ * is not part of the eTag, so common part sizes which give the same
+ * number of parts for the file size are digested side by side.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncChecksum {
+
+    /**
+     * Part sizes of common upload tools in megabytes.
+     */
+    private static final long[] PART_SIZES = {5, 8, 10, 15, 16, 25, 32, 50, 64, 100, 128, 256, 512};
+
+    /**
+     * Size of read buffer of {@link #verify(java.io.File, String, long)}
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Expected digest in lower case hex digits.
+     */
+    private String mExpected;
+
+    /**
+     * Digests of candidate part sizes, a single one for a single part
+     * object.
+     */
+    private List<Candidate> mCandidates;
+
+    /**
+     * Private constructor. See {@link #create(String, long)}
+     *
+     * @param expected expected digest in lower case hex digits
+     * @param candidates digests of candidate part sizes
+     */
+    private VLSyncChecksum(String expected, List<Candidate> candidates){
+        this.mExpected = expected;
+        this.mCandidates = candidates;
+    }
+
+    /**
+     * Creates a checksum for a file.
+     *
+     * @since 1.1
+     *
+     * @param eTag eTag of file, optionally in double quotes
+     * @param size size of file in bytes
+     * @return checksum to feed with content of file or null if the
+     * eTag is not a digest which can be verified
+     */
+    protected static VLSyncChecksum create(String eTag, long size){
+        if(eTag == null){
+            return null;
+        }
+        String digest = md5(eTag);
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        if(digest != null){
+            candidates.add(new Candidate(-1));
+            return new VLSyncChecksum(digest, candidates);
+        }
+
+        String value = eTag.startsWith("\"") && eTag.endsWith("\"") && eTag.length() > 1 ? eTag.substring(1, eTag.length() - 1) : eTag;
+        int dash = value.indexOf('-');
+        digest = dash < 0 ? null : md5(value.substring(0, dash));
+        if(digest == null || size <= 0){
+            return null;
+        }
+        int parts;
+        try {
+            parts = Integer.parseInt(value.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if(parts == 1){
+            // every part size from file size gives the same digest
+            candidates.add(new Candidate(size));
+            return new VLSyncChecksum(digest, candidates);
+        }
+        for (long megabytes : PART_SIZES){
+            long partSize = megabytes * 1024 * 1024;
+            if((size + partSize - 1) / partSize == parts){
+                candidates.add(new Candidate(partSize));
+            }
+        }
+        if(candidates.isEmpty()){
+            VLSync.log("Part size of multipart eTag cannot be found: " + eTag);
+            return null;
+        }
+        return new VLSyncChecksum(digest, candidates);
+    }
+
+    /**
+     * Feeds next bytes of content. Buffer position is not changed.
+     *
+     * @since 1.1
+     *
+     * @param buffer buffer whose remaining bytes are next bytes of
+     *               content
+     */
+    protected void update(ByteBuffer buffer){
+        for (Candidate candidate : mCandidates){
+            candidate.update(buffer.duplicate());
+        }
+    }
+
+    /**
+     * Feeds next bytes of content.
+     *
+     * @since 1.1
+     *
+     * @param bytes array holding next bytes of content
+     * @param offset position of first byte in array
+     * @param length number of bytes
+     */
+    protected void update(byte[] bytes, int offset, int length){
+        update(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Completes digests. Must be called once, after the whole content
+     * is fed.
+     *
+     * @since 1.1
+     *
+     * @return true if content matches the eTag
+     */
+    protected boolean matches(){
+        for (Candidate candidate : mCandidates){
+            if(mExpected.equals(candidate.finish())){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads a file and checks it against its eTag. Used when content
+     * cannot be fed in order while it is being written.
+     *
+     * @since 1.1
+     *
+     * @param file file to check
+     * @param eTag eTag of file
+     * @param size size of file in bytes
+     * @return false if content does not match the eTag, true if it
+     * matches or the eTag cannot be verified
+     * @throws IOException if file cannot be read
+     */
+    protected static boolean verify(File file, String eTag, long size) throws IOException{
+        VLSyncChecksum checksum = create(eTag, size);
+        if(checksum == null){
+            return true;
+        }
+        feed(checksum, file, file.length());
+        return checksum.matches();
+    }
+
+    /**
+     * Feeds beginning of a file.
+     *
+     * @since 1.1
+     *
+     * @param checksum checksum to feed
+     * @param file file to read
+     * @param length number of bytes to read
+     * @throws IOException if file cannot be read
+     */
+    protected static void feed(VLSyncChecksum checksum, File file, long length) throws IOException{
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long left = length;
+            int read;
+            while (left > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, left))) != -1){
+                checksum.update(buffer, 0, read);
+                left -= read;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Extracts MD5 digest from an eTag.
+     *
+     * @since 1.1
+     *
+     * @param eTag eTag, optionally in double quotes
+     * @return 32 lower case hex digits or null if eTag is not an MD5
+     * digest, e.g. eTag of a multipart upload
+     */
+    protected static String md5(String eTag){
+        if(eTag == null){
+            return null;
+        }
+        String digest = eTag.length() == 34 && eTag.startsWith("\"") && eTag.endsWith("\"") ? eTag.substring(1, 33) : eTag;
+        if(digest.length() != 32){
+            return null;
+        }
+        digest = digest.toLowerCase();
+        for (int i = 0; i < 32; i++) {
+            char c = digest.charAt(i);
+            if((c < '0' || c > '9') && (c < 'a' || c > 'f')){
+                return null;
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * @return new MD5 digest
+     */
+    private static MessageDigest newDigest(){
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new VLSyncException(e);
+        }
+    }
+
+    /**
+     * @param bytes digest
+     * @return digest in lower case hex digits
+     */
+    private static String hex(byte[] bytes){
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes){
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"expected\":\"" + mExpected + "\", \"candidates\":" + mCandidates.size() + " }";
+    }
+
+    /**
+     * Digest of content split into parts of a candidate size.
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    private static class Candidate {
+
+        /**
+         * Part size in bytes, -1 for a single part object.
+         */
+        private long mPartSize;
+
+        /**
+         * Digest of current part.
+         */
+        private MessageDigest mPart;
+
+        /**
+         * Digest of concatenated part digests.
+         */
+        private MessageDigest mParts;
+
+        /**
+         * Number of bytes fed to current part.
+         */
+        private long mFilled = 0;
+
+        /**
+         * Constructor method.
+         *
+         * @param partSize part size in bytes, -1 for a single part
+         *                 object
+         */
+        private Candidate(long partSize){
+            this.mPartSize = partSize;
+            this.mPart = newDigest();
+            this.mParts = partSize > 0 ? newDigest() : null;
+        }
+
+        /**
+         * @param buffer next bytes of content, consumed
+         */
+        private void update(ByteBuffer buffer){
+            if(mParts == null){
+                mPart.update(buffer);
+                return;
+            }
+            while (buffer.hasRemaining()){
+                int length = (int) Math.min(buffer.remaining(), mPartSize - mFilled);
+                ByteBuffer slice = buffer.slice();
+                slice.limit(length);
+                mPart.update(slice);
+                buffer.position(buffer.position() + length);
+                mFilled += length;
+                if(mFilled == mPartSize){
+                    mParts.update(mPart.digest());
+                    mFilled = 0;
+                }
+            }
+        }
+
+        /**
+         * @return digest of content in lower case hex digits
+         */
+        private String finish(){
+            if(mParts == null){
+                return hex(mPart.digest());
+            }
+            if(mFilled > 0){
+                mParts.update(mPart.digest());
+            }
+            return hex(mParts.digest());
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.valensas.vlsync.lib;
+
+/**
+ * Number of transfers kept in flight, adapted to the link with an
+ * additive increase, multiplicative decrease controller. Completed
+ * transfers are sampled in rounds of as many transfers as the limit.
+ * After each round the limit grows by one, unless aggregate
+ * throughput stopped improving while transfers got slower than the
+ * best round, which means extra transfers only queue on the link,
+ * then it is cut by a quarter. Throttling and connection failures
+ * halve the limit right away.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @see com.valensas.vlsync.lib.VLSyncDownloadScheduler
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncConcurrencyLimit {
+
+    /**
+     * Limit which adaptive controller starts from.
+     */
+    protected static final int INITIAL_LIMIT = 2;
+
+    /**
+     * Highest limit of adaptive controller.
+     */
+    protected static final int MAX_LIMIT = 16;
+
+    /**
+     * Throughput gain of a round over the previous one which counts
+     * as an improvement.
+     */
+    private static final double GAIN = 0.1;
+
+    /**
+     * Ratio of round latency to best round latency from which
+     * transfers count as queued.
+     */
+    private static final double LATENCY_TOLERANCE = 1.5;
+
+    /**
+     * Factor which limit is multiplied with when transfers queue.
+     */
+    private static final double QUEUE_DECREASE = 0.75;
+
+    /**
+     * Factor which limit is multiplied with after a failure.
+     */
+    private static final double FAILURE_DECREASE = 0.5;
+
+    /**
+     * Lowest limit.
+     */
+    private final int mMin;
+
+    /**
+     * Highest limit.
+     */
+    private final int mMax;
+
+    /**
+     * Current limit.
+     */
+    private int mLimit;
+
+    /**
+     * Start time of current round in milliseconds, -1 if not started.
+     */
+    private long mRoundStart = -1;
+
+    /**
+     * Number of transfers sampled in current round.
+     */
+    private int mRoundSamples = 0;
+
+    /**
+     * Bytes transferred in current round.
+     */
+    private long mRoundBytes = 0;
+
+    /**
+     * Sum of normalized latencies of current round.
+     */
+    private double mRoundLatency = 0;
+
+    /**
+     * Flag whether limit is decreased after a failure in current
+     * round.
+     */
+    private boolean mRoundFailed = false;
+
+    /**
+     * Throughput of previous round in bytes per millisecond, 0 if
+     * there is none.
+     */
+    private double mThroughput = 0;
+
+    /**
+     * Lowest average normalized latency of a round, 0 if there is
+     * none.
+     */
+    private double mBaseLatency = 0;
+
+    /**
+     * Constructor method of a fixed limit.
+     *
+     * @since 1.1
+     *
+     * @param limit number of transfers in flight. If it is less than
+     *              1, 1 is used.
+     */
+    protected VLSyncConcurrencyLimit(int limit){
+        this(limit, limit, limit);
+    }
+
+    /**
+     * Constructor method.
+     *
+     * @since 1.1
+     *
+     * @param initial limit to start from
+     * @param min lowest limit, at least 1
+     * @param max highest limit, at least min
+     */
+    protected VLSyncConcurrencyLimit(int initial, int min, int max){
+        this.mMin = Math.max(1, min);
+        this.mMax = Math.max(this.mMin, max);
+        this.mLimit = Math.max(this.mMin, Math.min(this.mMax, initial));
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return adaptive limit from {@link #INITIAL_LIMIT} up to
+     * {@link #MAX_LIMIT}
+     */
+    protected static VLSyncConcurrencyLimit adaptive(){
+        return new VLSyncConcurrencyLimit(INITIAL_LIMIT, 1, MAX_LIMIT);
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return number of transfers to keep in flight
+     */
+    protected synchronized int getLimit(){
+        return mLimit;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return true if limit adapts to samples
+     */
+    protected boolean isAdaptive(){
+        return mMin != mMax;
+    }
+
+    /**
+     * Records a completed transfer.
+     *
+     * @since 1.1
+     *
+     * @param bytes size of transferred file
+     * @param millis time from start to completion of transfer
+     */
+    protected void onSample(long bytes, long millis){
+        onSample(bytes, millis, System.currentTimeMillis());
+    }
+
+    /**
+     * Records a completed transfer. Latency of a transfer is its time
+     * per byte, counting {@link VLSyncPack#REQUEST_COST} for its
+     * request, so small and large files are comparable.
+     *
+     * @since 1.1
+     *
+     * @param bytes size of transferred file
+     * @param millis time from start to completion of transfer
+     * @param now current time in milliseconds
+     */
+    protected synchronized void onSample(long bytes, long millis, long now){
+        if(!isAdaptive()){
+            return;
+        }
+        if(mRoundStart < 0){
+            // first transfers started when the first one did
+            mRoundStart = now - millis;
+        }
+        mRoundSamples++;
+        mRoundBytes += bytes;
+        mRoundLatency += millis / (double) (bytes + VLSyncPack.REQUEST_COST);
+        if(mRoundSamples < mLimit){
+            return;
+        }
+
+        double throughput = mRoundBytes / (double) Math.max(1, now - mRoundStart);
+        double latency = mRoundLatency / mRoundSamples;
+        boolean improved = mThroughput == 0 || throughput >= mThroughput * (1 + GAIN);
+        boolean queued = mBaseLatency > 0 && latency > mBaseLatency * LATENCY_TOLERANCE;
+        if(!mRoundFailed){
+            if(!improved && queued){
+                decrease(QUEUE_DECREASE);
+            }else if(mLimit < mMax){
+                mLimit++;
+                VLSync.log("Concurrent downloads are increased to " + mLimit + ".");
+            }
+        }
+        if(mBaseLatency == 0 || latency < mBaseLatency){
+            mBaseLatency = latency;
+        }
+        mThroughput = throughput;
+        mRoundStart = now;
+        mRoundSamples = 0;
+        mRoundBytes = 0;
+        mRoundLatency = 0;
+        mRoundFailed = false;
+    }
+
+    /**
+     * Records a transfer failed with throttling, a timeout or a
+     * connection failure. Limit is decreased once per round, so a
+     * burst of failures of transfers in flight together does not
+     * collapse it.
+     *
+     * @since 1.1
+     */
+    protected synchronized void onCongestion(){
+        if(!isAdaptive() || mRoundFailed){
+            return;
+        }
+        mRoundFailed = true;
+        decrease(FAILURE_DECREASE);
+    }
+
+    /**
+     * Multiplies limit with given factor, keeping it above
+     * {@link #mMin}.
+     *
+     * @param factor factor less than 1
+     */
+    private void decrease(double factor){
+        int limit = Math.max(mMin, (int) (mLimit * factor));
+        if(limit != mLimit){
+            mLimit = limit;
+            VLSync.log("Concurrent downloads are decreased to " + mLimit + ".");
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"limit\":" + mLimit + ", \"min\":" + mMin + ", \"max\":" + mMax + " }";
+    }
+}
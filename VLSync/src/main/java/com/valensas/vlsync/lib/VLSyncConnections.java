@@ -0,0 +1,157 @@
+package com.valensas.vlsync.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens and releases connections to origin so that they are kept
+ * alive and reused by the connection pool of the platform across
+ * manifest and file requests. A connection goes back to the pool
+ * only when its response body is read to the end and closed, so
+ * released responses are drained instead of disconnected. Only a
+ * response with too much unread body is disconnected, since reading
+ * it costs more than a new handshake.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncConnections {
+
+    /**
+     * Connect and read timeout in milliseconds.
+     */
+    protected static final int TIMEOUT = 15000;
+
+    /**
+     * Maximum number of unread bytes drained to keep a connection
+     * alive.
+     */
+    private static final int DRAIN_LIMIT = 64 * 1024;
+
+    /**
+     * Private constructor. This class has only static methods.
+     */
+    private VLSyncConnections(){
+    }
+
+    /**
+     * Opens a connection with timeouts set. Request is not sent
+     * until the connection is connected or its response is read.
+     *
+     * @since 1.1
+     *
+     * @param urlString requested URL
+     * @return connection to configure further
+     * @throws IOException if URL is invalid or connection cannot be
+     * opened
+     */
+    protected static HttpURLConnection open(String urlString) throws IOException{
+        HttpURLConnection con = (HttpURLConnection) new URL(urlString).openConnection();
+        con.setConnectTimeout(TIMEOUT);
+        con.setReadTimeout(TIMEOUT);
+        return con;
+    }
+
+    /**
+     * Returns connection of a response whose body is read through
+     * given stream to the pool. Rest of the body is drained and the
+     * stream is closed. Streams already closed are ignored.
+     *
+     * @since 1.1
+     *
+     * @param con connection
+     * @param in body stream of connection or null if it is not opened
+     */
+    protected static void release(HttpURLConnection con, InputStream in){
+        if(in == null){
+            return;
+        }
+        if(!drain(in)){
+            VLSync.log("Response is not drained. Disconnecting from " + con.getURL());
+            con.disconnect();
+        }
+    }
+
+    /**
+     * Returns connection of a response whose body is not needed to
+     * the pool, e.g. an error or a not modified response.
+     *
+     * @since 1.1
+     *
+     * @param con connection
+     */
+    protected static void discard(HttpURLConnection con){
+        InputStream in;
+        try {
+            in = con.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST ? con.getErrorStream() : con.getInputStream();
+        } catch (IOException e) {
+            con.disconnect();
+            return;
+        }
+        release(con, in);
+    }
+
+    /**
+     * Resolves host and opens a connection to origin on a background
+     * thread. The connection is left in the pool for the first
+     * request of next update.
+     *
+     * @since 1.1
+     *
+     * @param urlString any URL on origin
+     */
+    protected static void prewarm(final String urlString){
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    VLSync.log("Prewarming connection to " + urlString);
+                    HttpURLConnection con = open(urlString);
+                    con.setRequestMethod("HEAD");
+                    con.setUseCaches(false);
+                    discard(con);
+                } catch (IOException e) {
+                    VLSync.log("Connection cannot be prewarmed.", e);
+                }
+            }
+        }, "VLSync-prewarm");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Reads rest of a stream and closes it.
+     *
+     * @param in stream to drain
+     * @return false if too much is left to drain
+     */
+    private static boolean drain(InputStream in){
+        try {
+            byte[] buffer = new byte[8192];
+            long drained = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1){
+                drained += read;
+                if(drained > DRAIN_LIMIT){
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            // stream is already closed or broken, nothing to reuse
+            return true;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                VLSync.log("Response stream cannot be closed.", e);
+            }
+        }
+    }
+}
@@ -20,11 +20,35 @@ class VLSyncContentFile implements Serializable {
      */
     private VLSyncFile[] files;
 
+    /**
+     * Shards referenced in 'content.json' file. If shards are
+     * listed, {@link #files} holds only files which do not belong
+     * to any shard.
+     */
+    private VLSyncShard[] shards;
+
+    /**
+     * Packs referenced in 'content.json' file. Files in a pack are
+     * listed in {@link #files} or shards as well.
+     */
+    private VLSyncPack[] packs;
+
+    /**
+     * Patches referenced in 'content.json' file.
+     */
+    private VLSyncPatch[] patches;
+
     /**
      * Last update date of 'content.json' file
      */
     private long lastUpdatedDate;
 
+    /**
+     * Extensions of files which have pre-compressed '.gz' siblings
+     * on origin, e.g. '.json'.
+     */
+    private String[] compressed;
+
     /**
      * Getter method for {@link #files}
      *
@@ -47,6 +71,103 @@ class VLSyncContentFile implements Serializable {
         this.files = files;
     }
 
+    /**
+     * Getter method for {@link #shards}
+     *
+     * @since 1.1
+     *
+     * @return array of shards if any or null
+     */
+    public VLSyncShard[] getShards() {
+        return shards;
+    }
+
+    /**
+     * Setter method for {@link #shards}
+     *
+     * @since 1.1
+     *
+     * @param shards array of shards
+     */
+    public void setShards(VLSyncShard[] shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return true if this content file lists shards
+     */
+    protected boolean isSharded(){
+        return shards != null && shards.length > 0;
+    }
+
+    /**
+     * Getter method for {@link #packs}
+     *
+     * @since 1.1
+     *
+     * @return array of packs if any or null
+     */
+    public VLSyncPack[] getPacks() {
+        return packs;
+    }
+
+    /**
+     * Setter method for {@link #packs}
+     *
+     * @since 1.1
+     *
+     * @param packs array of packs
+     */
+    public void setPacks(VLSyncPack[] packs) {
+        this.packs = packs;
+    }
+
+    /**
+     * Getter method for {@link #patches}
+     *
+     * @since 1.1
+     *
+     * @return array of patches if any or null
+     */
+    public VLSyncPatch[] getPatches() {
+        return patches;
+    }
+
+    /**
+     * Setter method for {@link #patches}
+     *
+     * @since 1.1
+     *
+     * @param patches array of patches
+     */
+    public void setPatches(VLSyncPatch[] patches) {
+        this.patches = patches;
+    }
+
+    /**
+     * Getter method for {@link #compressed}
+     *
+     * @since 1.1
+     *
+     * @return extensions of files with '.gz' siblings or null
+     */
+    public String[] getCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Setter method for {@link #compressed}
+     *
+     * @since 1.1
+     *
+     * @param compressed extensions of files with '.gz' siblings
+     */
+    public void setCompressed(String[] compressed) {
+        this.compressed = compressed;
+    }
+
     /**
      * Getter method for {@link #lastUpdatedDate}
      *
@@ -77,6 +198,9 @@ class VLSyncContentFile implements Serializable {
      */
     protected long getTotalSize(){
         long total = 0;
+        if(files == null){
+            return total;
+        }
         for (VLSyncFile file : files){
             total += file.getSize();
         }
@@ -89,7 +213,7 @@ class VLSyncContentFile implements Serializable {
 
         String result = "{ \"_class\":\"" + getClass().getName() + "\", \"lastUpdatedDate\":" + lastUpdatedDate + ", \"files\":[";
 
-        for (int i = 0; i < files.length; i++) {
+        for (int i = 0; files != null && i < files.length; i++) {
             if(i == files.length - 1){
                 result += files[i];
             }else{
@@ -97,7 +221,45 @@ class VLSyncContentFile implements Serializable {
             }
         }
 
-        result += "]}";
+        result += "]";
+
+        if(shards != null){
+            result += ", \"shards\":[";
+            for (int i = 0; i < shards.length; i++) {
+                if(i == shards.length - 1){
+                    result += shards[i];
+                }else{
+                    result += shards[i] + ", ";
+                }
+            }
+            result += "]";
+        }
+
+        if(packs != null){
+            result += ", \"packs\":[";
+            for (int i = 0; i < packs.length; i++) {
+                if(i == packs.length - 1){
+                    result += packs[i];
+                }else{
+                    result += packs[i] + ", ";
+                }
+            }
+            result += "]";
+        }
+
+        if(patches != null){
+            result += ", \"patches\":[";
+            for (int i = 0; i < patches.length; i++) {
+                if(i == patches.length - 1){
+                    result += patches[i];
+                }else{
+                    result += patches[i] + ", ";
+                }
+            }
+            result += "]";
+        }
+
+        result += "}";
 
         return result;
     }
@@ -0,0 +1,251 @@
+package com.valensas.vlsync.lib;
+
+import android.app.DownloadManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Process-wide receiver of {@link android.app.DownloadManager}
+ * completion broadcasts. Listeners are kept by download id, so a
+ * broadcast wakes a single receiver and only the completed download
+ * is queried. The receiver is registered on application context
+ * while a transport is attached, for the whole update, so it does not
+ * miss a broadcast while no download happens to be waiting.
+ * Broadcasts of unknown downloads are ignored. A download may
+ * complete before its listener is registered, so its status is
+ * queried once on registration as well.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncDownloadDispatcher {
+
+    /**
+     * Shared instance.
+     */
+    private static VLSyncDownloadDispatcher sInstance;
+
+    /**
+     * Listeners of downloads in flight keyed by download id.
+     */
+    private final Map<Long, VLSyncDownloadTask.OnDownloadFinishedListener> mListeners = new HashMap<Long, VLSyncDownloadTask.OnDownloadFinishedListener>();
+
+    /**
+     * Application context which receiver is registered on.
+     */
+    private Context mContext;
+
+    /**
+     * Query of download status.
+     */
+    private StatusQuery mQuery;
+
+    /**
+     * Executor of main thread which listeners are notified on.
+     */
+    private Executor mMainThread;
+
+    /**
+     * Receiver of completion broadcasts, null if it is not
+     * registered.
+     */
+    private BroadcastReceiver mReceiver;
+
+    /**
+     * Number of transports attached.
+     */
+    private int mAttached = 0;
+
+    /**
+     * Constructor method. See {@link #getInstance(android.content.Context)}
+     *
+     * @since 1.1
+     *
+     * @param context application context to register receiver on
+     * @param query query of download status
+     * @param mainThread executor of main thread
+     */
+    protected VLSyncDownloadDispatcher(Context context, StatusQuery query, Executor mainThread){
+        this.mContext = context;
+        this.mQuery = query;
+        this.mMainThread = mainThread;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @param context any context of application
+     * @return shared instance
+     */
+    protected static synchronized VLSyncDownloadDispatcher getInstance(Context context){
+        if(sInstance == null){
+            Context application = context.getApplicationContext();
+            final Context app = application != null ? application : context;
+            final Handler handler = new Handler(Looper.getMainLooper());
+            sInstance = new VLSyncDownloadDispatcher(app, new StatusQuery() {
+                @Override
+                public int[] query(long downloadID) {
+                    DownloadManager downloadManager = (DownloadManager) app.getSystemService(Context.DOWNLOAD_SERVICE);
+                    Cursor cursor = downloadManager.query(new DownloadManager.Query().setFilterById(downloadID));
+                    if(cursor == null){
+                        return null;
+                    }
+                    try {
+                        if(!cursor.moveToFirst()){
+                            return null;
+                        }
+                        return new int[]{cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_STATUS)),
+                                cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_REASON))};
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            }, new Executor() {
+                @Override
+                public void execute(Runnable runnable) {
+                    handler.post(runnable);
+                }
+            });
+        }
+        return sInstance;
+    }
+
+    /**
+     * Registers receiver if it is the first transport attached.
+     * Called when a transport is created, before it enqueues any
+     * download.
+     *
+     * @since 1.1
+     */
+    protected synchronized void attach(){
+        if(mAttached++ == 0){
+            VLSync.log("Registering download completion receiver.");
+            mReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    complete(intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, 0L));
+                }
+            };
+            mContext.registerReceiver(mReceiver, new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE));
+        }
+    }
+
+    /**
+     * Unregisters receiver if the last attached transport is
+     * released.
+     *
+     * @since 1.1
+     */
+    protected synchronized void detach(){
+        if(mAttached > 0 && --mAttached == 0){
+            VLSync.log("Unregistering download completion receiver.");
+            mContext.unregisterReceiver(mReceiver);
+            mReceiver = null;
+        }
+    }
+
+    /**
+     * Registers listener of a download. If the download is already
+     * completed, its broadcast may have been received before the
+     * listener was known, so the listener is notified right away. A
+     * listener is never notified twice, whichever of the two comes
+     * first.
+     *
+     * @since 1.1
+     *
+     * @param downloadID id of download in {@link android.app.DownloadManager}
+     * @param listener callback object to notify on main thread when
+     *                 download is completed
+     */
+    protected void register(final long downloadID, VLSyncDownloadTask.OnDownloadFinishedListener listener){
+        synchronized (this){
+            mListeners.put(downloadID, listener);
+        }
+        int[] status = mQuery.query(downloadID);
+        if(status != null && (status[0] == DownloadManager.STATUS_SUCCESSFUL || status[0] == DownloadManager.STATUS_FAILED)){
+            VLSync.log("Download " + downloadID + " is completed before its listener is registered.");
+            mMainThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    complete(downloadID);
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes listener of a download which is not needed anymore.
+     *
+     * @since 1.1
+     *
+     * @param downloadID id of download in {@link android.app.DownloadManager}
+     */
+    protected synchronized void unregister(long downloadID){
+        mListeners.remove(downloadID);
+    }
+
+    /**
+     * Notifies listener of a completed download, if it is still
+     * registered, with its status. Called on main thread.
+     *
+     * @since 1.1
+     *
+     * @param downloadID id of completed download
+     */
+    protected void complete(long downloadID){
+        VLSyncDownloadTask.OnDownloadFinishedListener listener;
+        synchronized (this){
+            listener = mListeners.remove(downloadID);
+        }
+        if(listener == null){
+            return;
+        }
+
+        int[] status = mQuery.query(downloadID);
+        if(status != null && status[0] == DownloadManager.STATUS_SUCCESSFUL){
+            VLSync.log("Download is completed successfully by download manager.");
+            listener.success();
+        }else{
+            int reason = status != null ? status[1] : VLSyncDownloadTask.NO_STATUS;
+            VLSync.log("Download is failed. Reason: " + reason);
+            listener.failed(reason);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"inFlight\":" + mListeners.size() + ", \"attached\":" + mAttached + " }";
+    }
+
+    /**
+     * Query of {@link android.app.DownloadManager} status of a
+     * download.
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    protected interface StatusQuery {
+
+        /**
+         * @since 1.1
+         *
+         * @param downloadID id of download
+         * @return status and reason columns of download, null if it
+         * is not found
+         */
+        public int[] query(long downloadID);
+    }
+}
@@ -0,0 +1,286 @@
+package com.valensas.vlsync.lib;
+
+import android.app.DownloadManager;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Transport which hands every transfer to
+ * {@link android.app.DownloadManager}. Completion is received by
+ * the shared {@link com.valensas.vlsync.lib.VLSyncDownloadDispatcher},
+ * which is attached from creation of transport until it is released.
+ * Requests are enqueued on a background thread in the order they are
+ * given, so a whole download plan can be handed over at once and
+ * {@link android.app.DownloadManager} runs transfers in parallel on
+ * its own.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncDownloadManagerTransport implements VLSyncTransport {
+
+    /**
+     * {@link android.app.DownloadManager} to download files
+     */
+    private DownloadManager downloadManager;
+
+    /**
+     * Ids of downloads in flight.
+     */
+    private final Set<Long> mPending = new HashSet<Long>();
+
+    /**
+     * Thread which enqueues requests, since each enqueue is a write
+     * to download provider.
+     */
+    private ExecutorService mEnqueuer;
+
+    /**
+     * Thread which checks downloaded files against their eTags.
+     */
+    private ExecutorService mVerifier;
+
+    /**
+     * Handler of main thread which listeners are notified on.
+     */
+    private Handler mMainThread;
+
+    /**
+     * Networks which downloads are allowed on.
+     */
+    private VLSync.DownloadNetworks mNetworks;
+
+    /**
+     * Receiver of completion broadcasts, attached until transport is
+     * released.
+     */
+    private VLSyncDownloadDispatcher mDispatcher;
+
+    /**
+     * Flag whether transport is released. Requests enqueued afterwards
+     * are removed right away.
+     */
+    private boolean mReleased = false;
+
+    /**
+     * Constructor method.
+     *
+     * @since 1.1
+     *
+     * @param context Context to reach {@link android.app.DownloadManager}
+     * @param networks networks which downloads are allowed on
+     */
+    protected VLSyncDownloadManagerTransport(Context context, VLSync.DownloadNetworks networks){
+        if(context == null){
+            VLSync.log("Context cannot be null.");
+            throw new VLSyncException("Context cannot be null.");
+        }
+        this.downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+        this.mNetworks = networks;
+        this.mEnqueuer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "VLSync-enqueue");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.mVerifier = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "VLSync-verify");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.mMainThread = new Handler(Looper.getMainLooper());
+        this.mDispatcher = VLSyncDownloadDispatcher.getInstance(context);
+        mDispatcher.attach();
+    }
+
+    @Override
+    public void download(final String url, final File file, final long size, final String eTag, final VLSyncDownloadTask.OnDownloadFinishedListener listener) {
+        mEnqueuer.execute(new Runnable() {
+            @Override
+            public void run() {
+                enqueue(url, file, size, eTag, listener);
+            }
+        });
+    }
+
+    /**
+     * Enqueues a request and registers its listener.
+     *
+     * @since 1.1
+     *
+     * @param url download URL
+     * @param file file to save downloaded content to
+     * @param size size of file listed in manifest or -1
+     * @param eTag eTag of file listed in manifest or null
+     * @param listener callback object to notify when transfer is
+     *                 completed
+     */
+    private void enqueue(String url, final File file, final long size, final String eTag, final VLSyncDownloadTask.OnDownloadFinishedListener listener){
+        VLSync.log("Starting to download file at " + url + ". File will be saved to " + file.getAbsolutePath() + ".");
+        File parent = file.getParentFile();
+        if(parent != null && !parent.exists()){
+            parent.mkdirs();
+        }
+
+        DownloadManager.Request request = new DownloadManager.Request(Uri.parse(url));
+
+        request.setTitle("VLSync");
+        request.setDescription("Downloading " + file.getName());
+
+        request.setVisibleInDownloadsUi(false);
+        if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            request.setNotificationVisibility(DownloadManager.Request.VISIBILITY_HIDDEN);
+        }
+        if(!mNetworks.isMobileAllowed()){
+            request.setAllowedNetworkTypes(DownloadManager.Request.NETWORK_WIFI);
+            if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                request.setAllowedOverMetered(false);
+            }
+        }
+        request.setAllowedOverRoaming(mNetworks.isRoamingAllowed());
+        request.setDestinationUri(Uri.fromFile(file));
+
+        final long downloadID = downloadManager.enqueue(request);
+        synchronized (mPending){
+            if(mReleased){
+                VLSync.log("Transport is released. Removing download " + downloadID + ".");
+                downloadManager.remove(downloadID);
+                return;
+            }
+            mPending.add(downloadID);
+            // registered under the same lock, so release() cannot miss the listener.
+            // completion receiver is attached since transport is created, and a
+            // broadcast sent before this point is recovered by register().
+            mDispatcher.register(downloadID, new VLSyncDownloadTask.OnDownloadFinishedListener() {
+                @Override
+                public void success() {
+                    complete(downloadID);
+                    verify(file, size, eTag, listener);
+                }
+
+                @Override
+                public void failed(int status) {
+                    complete(downloadID);
+                    // failed row is not needed anymore, a retry enqueues a new request
+                    downloadManager.remove(downloadID);
+                    listener.failed(status);
+                }
+            });
+        }
+        VLSync.log("Download flow initiated.");
+    }
+
+    /**
+     * Checks a downloaded file against its eTag on a background
+     * thread and notifies listener on main thread. Download manager
+     * writes the file itself, so it has to be read once.
+     *
+     * @param file downloaded file
+     * @param size size of file listed in manifest or -1
+     * @param eTag eTag of file listed in manifest or null
+     * @param listener callback object to notify
+     */
+    private void verify(final File file, final long size, final String eTag, final VLSyncDownloadTask.OnDownloadFinishedListener listener){
+        if(VLSyncChecksum.create(eTag, size) == null){
+            listener.success();
+            return;
+        }
+        mVerifier.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean intact;
+                try {
+                    intact = VLSyncChecksum.verify(file, eTag, size);
+                } catch (IOException e) {
+                    VLSync.log("Downloaded file cannot be read: " + file.getAbsolutePath(), e);
+                    intact = false;
+                }
+                if(!intact){
+                    VLSync.log("Content of " + file.getAbsolutePath() + " does not match eTag " + eTag);
+                    file.delete();
+                }
+                final boolean result = intact;
+                mMainThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(result){
+                            listener.success();
+                        }else{
+                            listener.failed(VLSyncDownloadTask.CORRUPT);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Removes a completed download from {@link #mPending}
+     *
+     * @param downloadID id of download in {@link android.app.DownloadManager}
+     */
+    private void complete(long downloadID){
+        synchronized (mPending){
+            mPending.remove(downloadID);
+        }
+    }
+
+    /**
+     * Unregisters downloads in flight from
+     * {@link com.valensas.vlsync.lib.VLSyncDownloadDispatcher} and
+     * removes them from {@link android.app.DownloadManager}, so they
+     * do not keep writing to temp folder after update task ends.
+     * Completion receiver is detached last.
+     */
+    @Override
+    public void release() {
+        mEnqueuer.shutdownNow();
+        mVerifier.shutdownNow();
+        long[] ids;
+        synchronized (mPending){
+            if(mReleased){
+                return;
+            }
+            mReleased = true;
+            ids = new long[mPending.size()];
+            int i = 0;
+            for (Long id : mPending){
+                ids[i++] = id;
+            }
+            mPending.clear();
+        }
+        for (long id : ids){
+            mDispatcher.unregister(id);
+        }
+        mDispatcher.detach();
+        if(ids.length > 0){
+            VLSync.log("Removing " + ids.length + " downloads in flight.");
+            downloadManager.remove(ids);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"networks\":" + mNetworks + " }";
+    }
+}
@@ -0,0 +1,482 @@
+package com.valensas.vlsync.lib;
+
+import android.app.DownloadManager;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Schedules downloads of a file list keeping at most a number of
+ * transfers in flight, fixed or adapted to measured throughput and
+ * latency by a {@link com.valensas.vlsync.lib.VLSyncConcurrencyLimit}.
+ * Completion is tracked per file and
+ * aggregate progress is reported as files complete. A failed
+ * download is retried after an exponential backoff with jitter as
+ * long as its failure is retryable and the
+ * {@link com.valensas.vlsync.lib.VLSync.RetryPolicy} allows. Other
+ * files keep downloading while a file waits or fails, and the
+ * listener is notified once when every file is either downloaded or
+ * failed for good, with paths of both groups if any file failed.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncDownloadScheduler {
+
+    /**
+     * Files to download.
+     */
+    private VLSyncManifest mFiles;
+
+    /**
+     * Number of transfers to keep in flight.
+     */
+    private VLSyncConcurrencyLimit mLimit;
+
+    /**
+     * Starts transfers of files.
+     */
+    private Starter mStarter;
+
+    /**
+     * Callback object to notify about progress and result.
+     */
+    private OnScheduleListener mListener;
+
+    /**
+     * Retry policy of failed downloads.
+     */
+    private VLSync.RetryPolicy mRetryPolicy;
+
+    /**
+     * Number of attempts of each entry.
+     */
+    private int[] mAttempts;
+
+    /**
+     * Start time of last attempt of each entry in milliseconds.
+     */
+    private long[] mStartedAt;
+
+    /**
+     * Entries which failed for good.
+     */
+    private BitSet mFailed;
+
+    /**
+     * Number of entries which failed for good.
+     */
+    private int mFailedCount = 0;
+
+    /**
+     * Timer of retries, created when the first retry is scheduled.
+     */
+    private Timer mTimer;
+
+    /**
+     * Source of backoff jitter.
+     */
+    private final Random mRandom = new Random();
+
+    /**
+     * Entries which are downloaded or skipped.
+     */
+    private BitSet mCompleted;
+
+    /**
+     * Number of completed entries.
+     */
+    private int mCompletedCount = 0;
+
+    /**
+     * Total size of completed entries.
+     */
+    private long mCompletedSize = 0;
+
+    /**
+     * Next entry to be started.
+     */
+    private int mNext = 0;
+
+    /**
+     * Number of transfers in flight.
+     */
+    private int mInFlight = 0;
+
+    /**
+     * Flag whether schedule is finished, successfully or not.
+     */
+    private boolean mFinished = false;
+
+    /**
+     * Constructor method of a schedule with fixed concurrency.
+     *
+     * @since 1.1
+     *
+     * @param files files to download
+     * @param maxConcurrent maximum number of transfers in flight. If
+     *                      it is less than 1, 1 is used.
+     * @param retryPolicy retry policy of failed downloads
+     * @param starter starts transfers of files
+     * @param listener callback object to notify about progress and
+     *                 result
+     */
+    protected VLSyncDownloadScheduler(VLSyncManifest files, int maxConcurrent, VLSync.RetryPolicy retryPolicy, Starter starter, OnScheduleListener listener){
+        this(files, new VLSyncConcurrencyLimit(maxConcurrent), retryPolicy, starter, listener);
+    }
+
+    /**
+     * Constructor method.
+     *
+     * @since 1.1
+     *
+     * @param files files to download
+     * @param limit number of transfers to keep in flight, fed with
+     *              completed and congested transfers
+     * @param retryPolicy retry policy of failed downloads
+     * @param starter starts transfers of files
+     * @param listener callback object to notify about progress and
+     *                 result
+     */
+    protected VLSyncDownloadScheduler(VLSyncManifest files, VLSyncConcurrencyLimit limit, VLSync.RetryPolicy retryPolicy, Starter starter, OnScheduleListener listener){
+        if(files == null || limit == null || retryPolicy == null || starter == null || listener == null){
+            throw new VLSyncException("Files, limit, retry policy, starter and listener cannot be null.");
+        }
+        this.mFiles = files;
+        this.mLimit = limit;
+        this.mRetryPolicy = retryPolicy;
+        this.mStarter = starter;
+        this.mListener = listener;
+        this.mCompleted = new BitSet(files.size());
+        this.mFailed = new BitSet(files.size());
+        this.mAttempts = new int[files.size()];
+        this.mStartedAt = new long[files.size()];
+    }
+
+    /**
+     * Marks an entry as already downloaded. Must be called before
+     * {@link #start()}.
+     *
+     * @since 1.1
+     *
+     * @param entry entry number in files
+     */
+    protected synchronized void skip(int entry){
+        if(!mCompleted.get(entry)){
+            mCompleted.set(entry);
+            mCompletedCount++;
+            mCompletedSize += mFiles.getSize(entry);
+        }
+    }
+
+    /**
+     * Starts first transfers. If all entries are skipped, listener
+     * is notified right away.
+     *
+     * @since 1.1
+     */
+    protected void start(){
+        boolean done;
+        synchronized (this){
+            done = mCompletedCount == mFiles.size();
+            if(done){
+                mFinished = true;
+            }
+        }
+        if(done){
+            mListener.onFinished();
+            return;
+        }
+        fill();
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return number of transfers in flight
+     */
+    protected synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    /**
+     * Starts transfers until there are as many transfers in flight as
+     * {@link #mLimit} allows or no entry is left. If the limit is
+     * decreased, transfers in flight are not stopped but no new one
+     * is started until they drop below it.
+     */
+    private void fill(){
+        ArrayList<Integer> entries = new ArrayList<Integer>();
+        int limit = mLimit.getLimit();
+        synchronized (this){
+            while (!mFinished && mInFlight < limit && mNext < mFiles.size()){
+                int entry = mNext++;
+                if(!mCompleted.get(entry)){
+                    mInFlight++;
+                    entries.add(entry);
+                }
+            }
+        }
+        for (int entry : entries){
+            launch(entry);
+        }
+    }
+
+    /**
+     * Starts an attempt of an entry which is counted in
+     * {@link #mInFlight}. An entry waiting for retry keeps its slot.
+     *
+     * @param entry entry number in files
+     */
+    private void launch(final int entry){
+        synchronized (this){
+            mAttempts[entry]++;
+            mStartedAt[entry] = System.currentTimeMillis();
+        }
+        mStarter.start(entry, new VLSyncDownloadTask.OnDownloadFinishedListener() {
+            @Override
+            public void success() {
+                completed(entry);
+            }
+
+            @Override
+            public void failed(int status) {
+                failure(entry, status);
+            }
+        });
+    }
+
+    /**
+     * Called when transfer of an entry is completed.
+     *
+     * @param entry entry number in files
+     */
+    private void completed(int entry){
+        long completedSize;
+        long millis;
+        synchronized (this){
+            if(mFinished || mCompleted.get(entry)){
+                return;
+            }
+            millis = System.currentTimeMillis() - mStartedAt[entry];
+            mInFlight--;
+            mCompleted.set(entry);
+            mCompletedCount++;
+            mCompletedSize += mFiles.getSize(entry);
+            completedSize = mCompletedSize;
+        }
+        mLimit.onSample(mFiles.getSize(entry), millis);
+        mListener.onProgress(completedSize, mFiles.getTotalSize());
+        next();
+    }
+
+    /**
+     * Called when transfer of an entry is failed. The entry is
+     * retried if its failure is retryable and it has attempts left,
+     * otherwise it is failed for good.
+     *
+     * @param entry entry number in files
+     * @param status HTTP status or reason of failure, see
+     *               {@link #isRetryable(int)}
+     */
+    private void failure(final int entry, int status){
+        if(isCongestion(status)){
+            mLimit.onCongestion();
+        }
+        synchronized (this){
+            if(mFinished || mCompleted.get(entry) || mFailed.get(entry)){
+                return;
+            }
+            if(isRetryable(status) && mAttempts[entry] < mRetryPolicy.getMaxAttempts()){
+                long delay = backoff(mAttempts[entry]);
+                VLSync.log("Download of " + mFiles.getPath(entry) + " is failed (" + status + "). Retrying in " + delay + " ms.");
+                if(mTimer == null){
+                    mTimer = new Timer("VLSync-retry", true);
+                }
+                mTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        synchronized (VLSyncDownloadScheduler.this){
+                            if(mFinished){
+                                return;
+                            }
+                        }
+                        launch(entry);
+                    }
+                }, delay);
+                return;
+            }
+            VLSync.log("Download of " + mFiles.getPath(entry) + " is failed for good (" + status + ").");
+            mInFlight--;
+            mFailed.set(entry);
+            mFailedCount++;
+        }
+        next();
+    }
+
+    /**
+     * Finishes schedule if every entry is completed or failed,
+     * otherwise starts next transfers.
+     */
+    private void next(){
+        boolean done;
+        boolean failed;
+        synchronized (this){
+            done = mCompletedCount + mFailedCount == mFiles.size();
+            failed = mFailedCount > 0;
+            if(done){
+                mFinished = true;
+                if(mTimer != null){
+                    mTimer.cancel();
+                    mTimer = null;
+                }
+            }
+        }
+        if(!done){
+            fill();
+        }else if(!failed){
+            mListener.onFinished();
+        }else{
+            List<String> completedPaths = new ArrayList<String>();
+            List<String> failedPaths = new ArrayList<String>();
+            for (int i = 0; i < mFiles.size(); i++){
+                (mFailed.get(i) ? failedPaths : completedPaths).add(mFiles.getPath(i));
+            }
+            mListener.onFailed(completedPaths, failedPaths);
+        }
+    }
+
+    /**
+     * Delay before next attempt, growing exponentially from
+     * {@link com.valensas.vlsync.lib.VLSync.RetryPolicy#getInitialDelay()}
+     * up to {@link com.valensas.vlsync.lib.VLSync.RetryPolicy#getMaxDelay()}.
+     * A random half of the delay is taken off, so files failed
+     * together are not retried together.
+     *
+     * @param attempts number of attempts made
+     * @return delay in milliseconds
+     */
+    private long backoff(int attempts){
+        long delay = mRetryPolicy.getInitialDelay();
+        for (int i = 1; i < attempts && delay < mRetryPolicy.getMaxDelay(); i++){
+            delay *= 2;
+        }
+        delay = Math.min(delay, mRetryPolicy.getMaxDelay());
+        return delay - (long) (mRandom.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * Classifies failures. Connection failures, timeouts, corrupt
+     * content, throttling and server errors are retryable as well as
+     * transfer errors of {@link android.app.DownloadManager}. Other
+     * client errors and storage errors fail the file right away.
+     *
+     * @since 1.1
+     *
+     * @param status HTTP status, {@link VLSyncDownloadTask#NO_STATUS}
+     *               if the request failed without a response,
+     *               {@link VLSyncDownloadTask#CORRUPT} if content does
+     *               not match eTag or
+     *               {@link android.app.DownloadManager} error reason
+     * @return true if the download may succeed when retried
+     */
+    protected static boolean isRetryable(int status){
+        switch (status){
+            case VLSyncDownloadTask.NO_STATUS:
+            case VLSyncDownloadTask.CORRUPT:
+            case 408: // request timeout
+            case 429: // too many requests
+            case DownloadManager.ERROR_UNKNOWN:
+            case DownloadManager.ERROR_HTTP_DATA_ERROR:
+            case DownloadManager.ERROR_CANNOT_RESUME:
+                return true;
+            case 501: // not implemented
+            case 505: // HTTP version not supported
+                return false;
+            default:
+                return status >= 500 && status < 600;
+        }
+    }
+
+    /**
+     * Decides whether a failure tells that the link or origin is
+     * overloaded, so fewer transfers should be kept in flight.
+     *
+     * @param status status of failure, see {@link #isRetryable(int)}
+     * @return true for connection failures, timeouts, throttling
+     * and unavailability
+     */
+    private static boolean isCongestion(int status){
+        return status == VLSyncDownloadTask.NO_STATUS || status == 408 || status == 429 || status == 503;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"files\":" + mFiles.size() + ", \"completed\":" + mCompletedCount + ", \"failed\":" + mFailedCount + ", \"inFlight\":" + mInFlight + ", \"limit\":" + mLimit + " }";
+    }
+
+    /**
+     * Starts transfer of a single file.
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    protected interface Starter {
+
+        /**
+         * Starts transfer of given entry.
+         *
+         * @since 1.1
+         *
+         * @param entry entry number in files
+         * @param listener callback object to notify when transfer is
+         *                 completed
+         */
+        public void start(int entry, VLSyncDownloadTask.OnDownloadFinishedListener listener);
+    }
+
+    /**
+     * Listener class to communicate with caller object.
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    protected interface OnScheduleListener {
+
+        /**
+         * Called when a file is completed.
+         *
+         * @since 1.1
+         *
+         * @param completedSize total size of completed files
+         * @param totalSize total size of all files
+         */
+        public void onProgress(long completedSize, long totalSize);
+
+        /**
+         * Called when all files are downloaded.
+         *
+         * @since 1.1
+         */
+        public void onFinished();
+
+        /**
+         * Called when no download is left and some of them failed
+         * for good.
+         *
+         * @since 1.1
+         *
+         * @param completedPaths paths of downloaded and skipped files
+         * @param failedPaths paths of failed files
+         */
+        public void onFailed(List<String> completedPaths, List<String> failedPaths);
+    }
+}
@@ -1,28 +1,35 @@
 package com.valensas.vlsync.lib;
 
-import android.app.DownloadManager;
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.database.Cursor;
-import android.net.Uri;
-import android.os.Build;
+
+import java.io.File;
 
 /**
  * This class represents objects which handles a download task
- * for a specific file. When the download completed, {@link #mListener}
- * object is notified.
+ * for a specific file. The file is transferred by a
+ * {@link com.valensas.vlsync.lib.VLSyncTransport}. When the download
+ * completed, {@link #mListener} object is notified.
  * </br></br>
  * Created on 1/22/15</br>
  * Created @ Valensas
  *
  * @author Furkan Bayraktar
- * @version 1.0
+ * @version 1.1
  * @since 1.0
  */
 class VLSyncDownloadTask {
 
+    /**
+     * Status of a download which failed without a response, e.g. a
+     * connection failure or a timeout.
+     */
+    protected static final int NO_STATUS = -1;
+
+    /**
+     * Status of a download whose content does not match its eTag.
+     */
+    protected static final int CORRUPT = -2;
+
     /**
      * Download URL.
      */
@@ -34,20 +41,24 @@ class VLSyncDownloadTask {
     private String mPath;
 
     /**
-     * Context to reach {@link android.app.DownloadManager}
+     * Size of file in bytes or -1 if it is unknown.
      */
-    private Context mContext;
+    private long mSize;
+
+    /**
+     * eTag of file or null.
+     */
+    private String mETag;
 
     /**
-     * Id of download task in {@link android.app.DownloadManager}
+     * Context to reach external files directory
      */
-    private long downloadID;
+    private Context mContext;
 
     /**
-     * {@link android.app.DownloadManager} to download specified
-     * file
+     * Transport which transfers the file.
      */
-    private DownloadManager downloadManager;
+    private VLSyncTransport mTransport;
 
     /**
      * Callback object to notify when download is completed.
@@ -57,14 +68,19 @@ class VLSyncDownloadTask {
     /**
      * Constructor method.
      *
-     * @since 1.0
+     * @since 1.1
      *
      * @param url Download URL
-     * @param path Path to save downloaded file
-     * @param context Context to reach {@link android.app.DownloadManager}
+     * @param path Path to save downloaded file, relative to external
+     *             files directory
+     * @param size Size of file in bytes as listed in manifest or -1 if
+     *             it is unknown
+     * @param eTag eTag of file listed in manifest or null
+     * @param context Context to reach external files directory
+     * @param transport Transport which transfers the file
      * @param listener Callback object to notify when download is completed
      */
-    protected VLSyncDownloadTask(String url, String path, Context context, OnDownloadFinishedListener listener) {
+    protected VLSyncDownloadTask(String url, String path, long size, String eTag, Context context, VLSyncTransport transport, OnDownloadFinishedListener listener) {
         VLSync.log("Constructing download task...");
         if(url == null){
             VLSync.log("Url cannot be null.");
@@ -78,86 +94,38 @@ class VLSyncDownloadTask {
             VLSync.log("Context cannot be null.");
             throw new VLSyncException("Context cannot be null.");
         }
+        if(transport == null){
+            VLSync.log("Transport cannot be null.");
+            throw new VLSyncException("Transport cannot be null.");
+        }
         if(listener == null){
             VLSync.log("Listener cannot be null.");
             throw new VLSyncException("Listener cannot be null.");
         }
         this.mUrl = url;
         this.mPath = path;
+        this.mSize = size;
+        this.mETag = eTag;
         this.mContext = context;
+        this.mTransport = transport;
         this.mListener = listener;
-        downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
-        initializeDownloadManager();
         VLSync.log("Construction completed.");
     }
 
-    /**
-     * Initialization method for {@link #downloadManager}. It simply
-     * registers a {@link android.content.BroadcastReceiver} to manager.
-     *
-     * @since 1.0
-     */
-    private void initializeDownloadManager(){
-        VLSync.log("Initializing download manager...");
-        mContext.registerReceiver(new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                VLSync.log("Data received from download manager.");
-                long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, 0L);
-                if (id != downloadID) {
-                    VLSync.log("Id is not matched with currently downloaded file's id.");
-                    return;
-                }
-                DownloadManager.Query query = new DownloadManager.Query();
-                query.setFilterById(id);
-                Cursor cursor = downloadManager.query(query);
-
-                // it shouldn't be empty, but just in case
-                if (!cursor.moveToFirst()) {
-                    return;
-                }
-
-                int statusIndex = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
-                int x = cursor.getInt(statusIndex);
-                if (DownloadManager.STATUS_SUCCESSFUL != x) {
-                    VLSync.log("Download is failed.");
-                    mListener.failed();
-                }else{
-                    VLSync.log("Download is completed successfully by download manager.");
-                    mListener.success();
-                }
-            }
-        }, new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE));
-        VLSync.log("Download manager initialization completed.");
-    }
-
     /**
      * Used to start download process.
      *
      * @since 1.0
      */
     protected void download(){
-        VLSync.log("Starting to download file at " + mUrl + ". File will be saved to " + mPath + ".");
-        DownloadManager.Request request = new DownloadManager.Request(Uri.parse(mUrl));
-
-        request.setTitle("VLSync");
-        request.setDescription("Downloading content.json");
-
-        request.setVisibleInDownloadsUi(false);
-        if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-            request.setNotificationVisibility(DownloadManager.Request.VISIBILITY_HIDDEN);
-        }
-        request.setDestinationInExternalFilesDir(mContext, null, mPath);
-
-        downloadID = downloadManager.enqueue(request);
-        VLSync.log("Download flow initiated.");
+        mTransport.download(mUrl, new File(mContext.getExternalFilesDir(null), mPath), mSize, mETag, mListener);
     }
 
     /**
      * Listener class to communicate with caller object.
      *
      * @since 1.0
-     * @version 1.0
+     * @version 1.1
      */
     protected interface OnDownloadFinishedListener {
 
@@ -172,8 +140,14 @@ class VLSyncDownloadTask {
         /**
          * If download failed, this method is called.
          *
-         * @since 1.0
+         * @since 1.1
+         *
+         * @param status HTTP status of response, {@link #NO_STATUS}
+         *               if there is no response, {@link #CORRUPT} if
+         *               content does not match eTag or
+         *               {@link android.app.DownloadManager} error
+         *               reason
          */
-        public void failed();
+        public void failed(int status);
     }
 }
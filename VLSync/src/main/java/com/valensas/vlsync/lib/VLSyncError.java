@@ -1,5 +1,7 @@
 package com.valensas.vlsync.lib;
 
+import java.util.List;
+
 /**
  * This class represents an error object to be
  * delivered to library user in case of a failure.
@@ -8,7 +10,7 @@ package com.valensas.vlsync.lib;
  * Created @ Valensas
  *
  * @author Furkan Bayraktar
- * @version 1.0
+ * @version 1.1
  * @since 1.0
  */
 public class VLSyncError {
@@ -23,6 +25,16 @@ public class VLSyncError {
      */
     private int code;
 
+    /**
+     * Paths of files which are downloaded when some files failed.
+     */
+    private List<String> completedPaths;
+
+    /**
+     * Paths of files which failed to download.
+     */
+    private List<String> failedPaths;
+
     /**
      * Getter method for {@link #message}
      *
@@ -67,8 +79,56 @@ public class VLSyncError {
         this.code = code;
     }
 
+    /**
+     * Getter method for {@link #completedPaths}. Files downloaded by
+     * a failed update are kept and not downloaded again by next
+     * update.
+     *
+     * @since 1.1
+     *
+     * @return {@link #completedPaths} or null if the error is not a
+     * download failure
+     */
+    public List<String> getCompletedPaths() {
+        return completedPaths;
+    }
+
+    /**
+     * Setter method for {@link #completedPaths}
+     *
+     * @since 1.1
+     *
+     * @param completedPaths paths of downloaded files
+     */
+    public void setCompletedPaths(List<String> completedPaths) {
+        this.completedPaths = completedPaths;
+    }
+
+    /**
+     * Getter method for {@link #failedPaths}
+     *
+     * @since 1.1
+     *
+     * @return {@link #failedPaths} or null if the error is not a
+     * download failure
+     */
+    public List<String> getFailedPaths() {
+        return failedPaths;
+    }
+
+    /**
+     * Setter method for {@link #failedPaths}
+     *
+     * @since 1.1
+     *
+     * @param failedPaths paths of failed files
+     */
+    public void setFailedPaths(List<String> failedPaths) {
+        this.failedPaths = failedPaths;
+    }
+
     @Override
     public String toString() {
-        return "{ \"_class\":\"" + getClass().getName() + "\", \"message\":\"" + message + "\", \"code\":" + code + " }";
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"message\":\"" + message + "\", \"code\":" + code + (failedPaths == null ? "" : ", \"failed\":" + failedPaths.size() + ", \"completed\":" + completedPaths.size()) + " }";
     }
 }
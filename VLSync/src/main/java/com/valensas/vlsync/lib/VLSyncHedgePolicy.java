@@ -0,0 +1,188 @@
+package com.valensas.vlsync.lib;
+
+import java.util.Arrays;
+
+/**
+ * Decides when a transfer is hedged. Time to first byte and
+ * throughput of recent transfers are sampled, and a transfer is
+ * behind when it waits for its response longer than 95% of them or,
+ * once its body has been streaming that long, receives slower than
+ * 95% of them. Transfers are not hedged until enough samples are
+ * collected, and hedges are capped at a small share of transfers so
+ * a slow link is not loaded with duplicates.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @see com.valensas.vlsync.lib.VLSyncHedgedTransfer
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncHedgePolicy {
+
+    /**
+     * Number of recent samples kept.
+     */
+    private static final int WINDOW = 64;
+
+    /**
+     * Number of samples required before transfers are hedged.
+     */
+    protected static final int MIN_SAMPLES = 8;
+
+    /**
+     * Share of transfers which may be hedged.
+     */
+    private static final double MAX_HEDGE_RATIO = 0.05;
+
+    /**
+     * Shortest time in milliseconds a transfer is waited before it is
+     * hedged.
+     */
+    private static final long MIN_DELAY = 20;
+
+    /**
+     * Smallest body in bytes whose throughput is sampled, smaller
+     * bodies are dominated by latency.
+     */
+    private static final long MIN_THROUGHPUT_BYTES = 64 * 1024;
+
+    /**
+     * Mirrors to hedge on, null to hedge on the same URL.
+     */
+    private VLSyncMirrors mMirrors;
+
+    /**
+     * Recent times to first byte in milliseconds.
+     */
+    private final long[] mFirstByte = new long[WINDOW];
+
+    /**
+     * Number of time to first byte samples taken.
+     */
+    private int mFirstByteCount = 0;
+
+    /**
+     * Recent throughputs in bytes per second.
+     */
+    private final long[] mThroughput = new long[WINDOW];
+
+    /**
+     * Number of throughput samples taken.
+     */
+    private int mThroughputCount = 0;
+
+    /**
+     * Number of transfers completed.
+     */
+    private int mTransfers = 0;
+
+    /**
+     * Number of hedges started.
+     */
+    private int mHedges = 0;
+
+    /**
+     * Constructor method.
+     *
+     * @since 1.1
+     *
+     * @param mirrors mirrors to hedge on another mirror of, null to
+     *                hedge on the same URL
+     */
+    protected VLSyncHedgePolicy(VLSyncMirrors mirrors){
+        this.mMirrors = mirrors;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @param url URL of a transfer
+     * @return URL to hedge the transfer with
+     */
+    protected String hedgeURL(String url){
+        return mMirrors == null ? url : mMirrors.alternate(url);
+    }
+
+    /**
+     * Records a finished transfer, whether it completed or not.
+     *
+     * @since 1.1
+     *
+     * @param progress progress of transfer
+     * @param completed true if transfer completed
+     */
+    protected synchronized void record(VLSyncHttpTransport.Progress progress, boolean completed){
+        long respondedAt = progress.getRespondedAt();
+        if(respondedAt > 0){
+            mFirstByte[mFirstByteCount++ % WINDOW] = respondedAt - progress.getStartedAt();
+        }
+        if(completed){
+            mTransfers++;
+            long millis = System.currentTimeMillis() - respondedAt;
+            if(progress.getWritten() >= MIN_THROUGHPUT_BYTES && millis > 0){
+                mThroughput[mThroughputCount++ % WINDOW] = progress.getWritten() * 1000 / millis;
+            }
+        }
+    }
+
+    /**
+     * Decides whether a transfer in flight is behind recent ones.
+     *
+     * @since 1.1
+     *
+     * @param progress progress of transfer
+     * @param now current time in milliseconds
+     * @return true if transfer should be hedged
+     */
+    protected synchronized boolean isBehind(VLSyncHttpTransport.Progress progress, long now){
+        if(mFirstByteCount < MIN_SAMPLES){
+            return false;
+        }
+        long firstByte = Math.max(MIN_DELAY, percentile(mFirstByte, mFirstByteCount, 0.95));
+        long respondedAt = progress.getRespondedAt();
+        if(respondedAt == 0){
+            return now - progress.getStartedAt() > firstByte;
+        }
+        long millis = now - respondedAt;
+        if(mThroughputCount < MIN_SAMPLES || millis <= firstByte){
+            return false;
+        }
+        return progress.getWritten() * 1000 / millis < percentile(mThroughput, mThroughputCount, 0.05);
+    }
+
+    /**
+     * Takes a hedge from the budget of {@link #MAX_HEDGE_RATIO} of
+     * completed transfers, one hedge being allowed from the start.
+     *
+     * @since 1.1
+     *
+     * @return true if a hedge may be started
+     */
+    protected synchronized boolean acquire(){
+        if(mHedges >= 1 + (int) (mTransfers * MAX_HEDGE_RATIO)){
+            return false;
+        }
+        mHedges++;
+        return true;
+    }
+
+    /**
+     * @param samples ring of samples
+     * @param count number of samples taken
+     * @param fraction fraction of samples to be below result
+     * @return percentile of kept samples
+     */
+    private static long percentile(long[] samples, int count, double fraction){
+        long[] sorted = Arrays.copyOf(samples, Math.min(count, samples.length));
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, (int) (fraction * sorted.length))];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"transfers\":" + mTransfers + ", \"hedges\":" + mHedges + ", \"mirrors\":" + (mMirrors != null) + " }";
+    }
+}
@@ -0,0 +1,250 @@
+package com.valensas.vlsync.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads a file with a single request and hedges it with a second
+ * request when {@link com.valensas.vlsync.lib.VLSyncHedgePolicy}
+ * finds it behind recent transfers. The hedge writes to a hidden
+ * sibling of the file, so the two requests never share a '.part'
+ * file. Whichever request completes first wins, the other one is
+ * cancelled and waited for, and the hedge is moved in place if it won.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @see com.valensas.vlsync.lib.VLSyncHttpTransport#transfer(String, java.io.File, String, long, com.valensas.vlsync.lib.VLSyncHttpTransport.Progress)
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncHedgedTransfer {
+
+    /**
+     * Prefix of hedge file names.
+     */
+    protected static final String HEDGE_PREFIX = ".hedge.";
+
+    /**
+     * Interval in milliseconds a transfer is checked at until it is
+     * hedged.
+     */
+    private static final long CHECK_INTERVAL = 25;
+
+    /**
+     * Download URL of file.
+     */
+    private String mUrl;
+
+    /**
+     * File to save downloaded content to.
+     */
+    private File mFile;
+
+    /**
+     * Size of file listed in manifest.
+     */
+    private long mSize;
+
+    /**
+     * ETag of file listed in manifest.
+     */
+    private String mETag;
+
+    /**
+     * Policy deciding when to hedge, shared by transfers of a
+     * transport.
+     */
+    private VLSyncHedgePolicy mPolicy;
+
+    /**
+     * Executor which requests are run on.
+     */
+    private ExecutorService mExecutor;
+
+    /**
+     * Constructor method.
+     *
+     * @since 1.1
+     *
+     * @param url download URL of file
+     * @param file file to save downloaded content to
+     * @param size size of file listed in manifest
+     * @param eTag eTag of file listed in manifest
+     * @param policy policy deciding when to hedge
+     * @param executor executor which requests are run on
+     */
+    protected VLSyncHedgedTransfer(String url, File file, long size, String eTag, VLSyncHedgePolicy policy, ExecutorService executor){
+        this.mUrl = url;
+        this.mFile = file;
+        this.mSize = size;
+        this.mETag = eTag;
+        this.mPolicy = policy;
+        this.mExecutor = executor;
+    }
+
+    /**
+     * Downloads file on calling thread, hedging it if it falls behind.
+     *
+     * @since 1.1
+     *
+     * @throws IOException failure of first request, or of the hedge if
+     * first request is cancelled, if neither completes
+     */
+    protected void run() throws IOException{
+        File hedgeFile = new File(mFile.getParentFile(), HEDGE_PREFIX + mFile.getName());
+        CompletionService<Void> completion = new ExecutorCompletionService<Void>(mExecutor);
+        VLSyncHttpTransport.Progress primary = new VLSyncHttpTransport.Progress();
+        VLSyncHttpTransport.Progress hedge = null;
+        Future<Void> primaryFuture = completion.submit(request(mUrl, mFile, primary));
+        Future<Void> hedgeFuture = null;
+        int pending = 1;
+        boolean primaryFailed = false;
+        boolean hedgeFailed = false;
+        IOException failure = null;
+        try {
+            while (pending > 0){
+                Future<Void> done = hedge == null ? completion.poll(CHECK_INTERVAL, TimeUnit.MILLISECONDS) : completion.take();
+                if(done == null){
+                    if(mPolicy.isBehind(primary, System.currentTimeMillis()) && mPolicy.acquire()){
+                        String url = mPolicy.hedgeURL(mUrl);
+                        VLSync.log("Download of " + mUrl + " is behind. Hedging with " + url);
+                        hedge = new VLSyncHttpTransport.Progress();
+                        hedgeFuture = completion.submit(request(url, hedgeFile, hedge));
+                        pending++;
+                    }
+                    continue;
+                }
+                pending--;
+                boolean primaryDone = done == primaryFuture;
+                try {
+                    done.get();
+                } catch (ExecutionException e) {
+                    mPolicy.record(primaryDone ? primary : hedge, false);
+                    if(primaryDone){
+                        primaryFailed = true;
+                    }else{
+                        hedgeFailed = true;
+                    }
+                    if(primaryDone || failure == null){
+                        failure = unwrap(e);
+                    }
+                    continue;
+                }
+                mPolicy.record(primaryDone ? primary : hedge, true);
+                // a request which already failed is recorded, it is not cancelled
+                if(primaryDone){
+                    if(hedge != null && !hedgeFailed){
+                        cancel(hedge, hedgeFuture);
+                    }
+                }else{
+                    VLSync.log("Hedge of " + mUrl + " completed first.");
+                    if(primaryFailed || !cancel(primary, primaryFuture)){
+                        moveInPlace(hedgeFile);
+                    }
+                }
+                return;
+            }
+        } catch (InterruptedException e) {
+            primary.cancel();
+            if(hedge != null){
+                hedge.cancel();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download of " + mUrl + " is interrupted.");
+        } finally {
+            if(hedgeFuture != null){
+                deleteParts(hedgeFile);
+                hedgeFile.delete();
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * @param url download URL
+     * @param file file to save downloaded content to
+     * @param progress progress of request
+     * @return request to run
+     */
+    private Callable<Void> request(final String url, final File file, final VLSyncHttpTransport.Progress progress){
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                VLSyncHttpTransport.transfer(url, file, mETag, mSize, progress);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Cancels losing request and waits until it ends.
+     *
+     * @param progress progress of losing request
+     * @param future future of losing request
+     * @return true if it completed before it was cancelled
+     * @throws InterruptedException if calling thread is interrupted
+     */
+    private boolean cancel(VLSyncHttpTransport.Progress progress, Future<Void> future) throws InterruptedException{
+        progress.cancel();
+        try {
+            future.get();
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        } finally {
+            mPolicy.record(progress, false);
+        }
+    }
+
+    /**
+     * Moves completed hedge to file, dropping what the cancelled
+     * request kept for resuming.
+     *
+     * @param hedgeFile completed hedge
+     * @throws IOException if hedge cannot be moved
+     */
+    private void moveInPlace(File hedgeFile) throws IOException{
+        deleteParts(mFile);
+        if((mFile.exists() && !mFile.delete()) || !hedgeFile.renameTo(mFile)){
+            throw new IOException("Hedged file cannot be moved to " + mFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Deletes '.part' file and resume record of given file.
+     *
+     * @param file downloaded file
+     */
+    private static void deleteParts(File file){
+        new File(file.getPath() + VLSyncHttpTransport.PART_SUFFIX).delete();
+        new File(file.getPath() + VLSyncHttpTransport.RECORD_SUFFIX).delete();
+    }
+
+    /**
+     * @param e failure of a request
+     * @return cause as an IOException
+     */
+    private static IOException unwrap(ExecutionException e){
+        Throwable cause = e.getCause();
+        if(cause instanceof IOException){
+            return (IOException) cause;
+        }
+        return new IOException("Download failed: " + cause, cause);
+    }
+
+    @Override
+    public String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"url\":\"" + mUrl + "\", \"size\":" + mSize + ", \"policy\":" + mPolicy + " }";
+    }
+}
@@ -0,0 +1,678 @@
+package com.valensas.vlsync.lib;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process transport which streams response bodies of
+ * {@link java.net.HttpURLConnection} into a
+ * {@link java.nio.channels.FileChannel}. Transfers run on worker
+ * threads and write to a '.part' file, which is renamed when the
+ * whole body is received. An interrupted '.part' file is kept with
+ * eTag of its response and continued by the next transfer of the
+ * same file with a range request. Files from a size threshold are
+ * downloaded in parallel segments by
+ * {@link com.valensas.vlsync.lib.VLSyncSegmentedTransfer}. Fresh
+ * transfers accept gzip encoded responses, which are decompressed
+ * while they are written. Other files are hedged by
+ * {@link com.valensas.vlsync.lib.VLSyncHedgedTransfer} if a
+ * {@link com.valensas.vlsync.lib.VLSyncHedgePolicy} is set. Listeners are notified through a callback
+ * executor, main thread by default.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncHttpTransport implements VLSyncTransport {
+
+    /**
+     * Size of transfer buffer in bytes.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Suffix of partially downloaded files.
+     */
+    protected static final String PART_SUFFIX = ".part";
+
+    /**
+     * Suffix of resume records, which hold eTag of the response a
+     * partially downloaded file is received from.
+     */
+    protected static final String RECORD_SUFFIX = ".part.etag";
+
+    /**
+     * 'Requested Range Not Satisfiable' status code, which
+     * {@link java.net.HttpURLConnection} does not define.
+     */
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * Suffix of pre-compressed siblings of files on origin.
+     */
+    protected static final String GZIP_SUFFIX = ".gz";
+
+    /**
+     * Default size in bytes from which files are downloaded in
+     * segments.
+     */
+    protected static final long DEFAULT_SEGMENT_THRESHOLD = 16 * 1024 * 1024;
+
+    /**
+     * Default number of segments of a large file.
+     */
+    protected static final int DEFAULT_SEGMENTS = 4;
+
+    /**
+     * Worker threads of transfers.
+     */
+    private ExecutorService mExecutor;
+
+    /**
+     * Executor which listeners are notified on.
+     */
+    private Executor mCallbackExecutor;
+
+    /**
+     * Size in bytes from which files are downloaded in segments.
+     */
+    private long mSegmentThreshold;
+
+    /**
+     * Number of segments of a large file.
+     */
+    private int mSegments;
+
+    /**
+     * Policy of hedging slow transfers, null if they are not hedged.
+     */
+    private VLSyncHedgePolicy mHedgePolicy;
+
+    /**
+     * Constructor method. Listeners are notified on main thread.
+     *
+     * @since 1.1
+     *
+     * @param segmentThreshold size in bytes from which files are
+     *                         downloaded in segments
+     * @param segments number of segments of a large file, 1 to
+     *                 download every file with a single request
+     */
+    protected VLSyncHttpTransport(long segmentThreshold, int segments){
+        this(mainThread(), segmentThreshold, segments);
+    }
+
+    /**
+     * Constructor method. Files are segmented with default values.
+     *
+     * @since 1.1
+     *
+     * @param callbackExecutor executor which listeners are notified on
+     */
+    protected VLSyncHttpTransport(Executor callbackExecutor){
+        this(callbackExecutor, DEFAULT_SEGMENT_THRESHOLD, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Constructor method.
+     *
+     * @since 1.1
+     *
+     * @param callbackExecutor executor which listeners are notified on
+     * @param segmentThreshold size in bytes from which files are
+     *                         downloaded in segments
+     * @param segments number of segments of a large file, 1 to
+     *                 download every file with a single request
+     */
+    protected VLSyncHttpTransport(Executor callbackExecutor, long segmentThreshold, int segments){
+        this.mCallbackExecutor = callbackExecutor;
+        this.mSegmentThreshold = segmentThreshold;
+        this.mSegments = segments;
+        this.mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "VLSync-transfer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Setter method for {@link #mHedgePolicy}
+     *
+     * @since 1.1
+     *
+     * @param hedgePolicy policy of hedging slow transfers, null to
+     *                    not hedge them
+     */
+    protected void setHedgePolicy(VLSyncHedgePolicy hedgePolicy) {
+        this.mHedgePolicy = hedgePolicy;
+    }
+
+    @Override
+    public void download(final String url, final File file, final long size, final String eTag, final VLSyncDownloadTask.OnDownloadFinishedListener listener) {
+        VLSync.log("Starting to download file at " + url + ". File will be saved to " + file.getAbsolutePath() + ".");
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = false;
+                int status = VLSyncDownloadTask.NO_STATUS;
+                try {
+                    if(mSegments > 1 && size >= mSegmentThreshold && size >= mSegments && !isPrecompressed(url, file)){
+                        new VLSyncSegmentedTransfer(url, file, size, eTag, mSegments, mExecutor).run();
+                    }else if(mHedgePolicy != null){
+                        new VLSyncHedgedTransfer(url, file, size, eTag, mHedgePolicy, mExecutor).run();
+                    }else{
+                        transfer(url, file, eTag, size);
+                    }
+                    success = true;
+                } catch (StatusException e) {
+                    VLSync.log("Download is failed: " + url, e);
+                    status = e.getStatus();
+                } catch (IOException e) {
+                    VLSync.log("Download is failed: " + url, e);
+                }
+                final boolean result = success;
+                final int code = status;
+                mCallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(result){
+                            listener.success();
+                        }else{
+                            listener.failed(code);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Downloads given URL to given file on calling thread. If a
+     * previous transfer of the file is interrupted, its '.part' file
+     * is continued with a 'Range' request. 'If-Range' carries eTag of
+     * the interrupted response, so origin answers with the whole body
+     * if the file is changed since then. Gzip encoded responses and
+     * pre-compressed '.gz' siblings are decompressed into the file;
+     * they cannot be resumed, as ranges are of the compressed bytes.
+     * Content is checked against eTag and size of the file listed in
+     * manifest while it is written, see
+     * {@link com.valensas.vlsync.lib.VLSyncChecksum}
+     *
+     * @since 1.1
+     *
+     * @param url download URL
+     * @param file file to save downloaded content to
+     * @param expectedETag eTag of file listed in manifest or null
+     * @param size size of file listed in manifest or -1
+     * @throws IOException if file cannot be downloaded completely or
+     * its content does not match the eTag
+     */
+    protected static void transfer(String url, File file, String expectedETag, long size) throws IOException{
+        transfer(url, file, expectedETag, size, null);
+    }
+
+    /**
+     * Downloads given URL to given file on calling thread, reporting
+     * to given progress, which can cancel the transfer.
+     *
+     * @since 1.1
+     *
+     * @see #transfer(String, java.io.File, String, long)
+     *
+     * @param url download URL
+     * @param file file to save downloaded content to
+     * @param expectedETag eTag of file listed in manifest or null
+     * @param size size of file listed in manifest or -1
+     * @param progress progress of transfer or null
+     * @throws IOException if file cannot be downloaded completely, its
+     * content does not match the eTag or transfer is cancelled
+     */
+    protected static void transfer(String url, File file, String expectedETag, long size, Progress progress) throws IOException{
+        File part = new File(file.getPath() + PART_SUFFIX);
+        File record = new File(file.getPath() + RECORD_SUFFIX);
+        boolean precompressed = isPrecompressed(url, file);
+        String eTag = readRecord(part, record);
+        if(precompressed && eTag != null){
+            part.delete();
+            record.delete();
+            eTag = null;
+        }
+        long offset = eTag == null ? 0 : part.length();
+
+        HttpURLConnection con = VLSyncConnections.open(url);
+        if(progress != null){
+            progress.attach(con);
+        }
+        if(offset > 0){
+            VLSync.log("Resuming download of " + url + " from byte " + offset + ".");
+            con.setRequestProperty("Range", "bytes=" + offset + "-");
+            con.setRequestProperty("If-Range", eTag);
+            con.setRequestProperty("Accept-Encoding", "identity");
+        }else{
+            // set explicitly, so the body is not decoded transparently
+            // and encoded bytes can be counted
+            con.setRequestProperty("Accept-Encoding", "gzip");
+        }
+        boolean resumable = false;
+        boolean encoded = false;
+        try {
+            int code = con.getResponseCode();
+            if(progress != null){
+                progress.onResponse();
+            }
+            if(code == HTTP_RANGE_NOT_SATISFIABLE && offset > 0){
+                VLSync.log("Interrupted download of " + url + " cannot be resumed. Restarting...");
+                VLSyncConnections.discard(con);
+                part.delete();
+                record.delete();
+                transfer(url, file, expectedETag, size, progress);
+                return;
+            }
+            if(code == HttpURLConnection.HTTP_PARTIAL && offset > 0 && rangeStart(con) == offset){
+                VLSync.log("Origin continues " + url + " from byte " + offset + ".");
+            }else if(code == HttpURLConnection.HTTP_OK){
+                offset = 0;
+                encoded = precompressed || "gzip".equalsIgnoreCase(con.getContentEncoding());
+                eTag = encoded ? null : strongETag(con.getHeaderField("ETag"));
+                writeRecord(record, eTag);
+            }else{
+                VLSyncConnections.discard(con);
+                throw new StatusException(code, "Unexpected response " + code + " for " + url);
+            }
+            resumable = eTag != null;
+
+            VLSyncChecksum checksum = VLSyncChecksum.create(expectedETag, size);
+            if(checksum != null && offset > 0){
+                // digest state is not persisted, so the kept part is read once
+                VLSyncChecksum.feed(checksum, part, offset);
+            }
+
+            File parent = file.getParentFile();
+            if(parent != null && !parent.exists()){
+                parent.mkdirs();
+            }
+
+            long written = 0;
+            CountingInputStream raw = new CountingInputStream(con.getInputStream());
+            InputStream in = raw;
+            try {
+                if(encoded){
+                    in = new GZIPInputStream(raw, BUFFER_SIZE);
+                }
+                FileOutputStream out = new FileOutputStream(part, offset > 0);
+                try {
+                    FileChannel channel = out.getChannel();
+                    ReadableByteChannel source = Channels.newChannel(in);
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                    while (source.read(buffer) != -1){
+                        buffer.flip();
+                        if(checksum != null){
+                            checksum.update(buffer);
+                        }
+                        while (buffer.hasRemaining()){
+                            written += channel.write(buffer);
+                        }
+                        buffer.clear();
+                        if(progress != null){
+                            progress.onWritten(written);
+                        }
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                VLSyncConnections.release(con, raw);
+                if(in != raw){
+                    // ends the inflater, body is already drained
+                    IOUtils.closeQuietly(in);
+                }
+            }
+
+            long expected = contentLength(con);
+            if(expected >= 0 && raw.getByteCount() != expected){
+                throw new IOException("Body of " + url + " is truncated: " + raw.getByteCount() + "/" + expected);
+            }
+            if(encoded){
+                VLSync.log("Decompressed " + raw.getByteCount() + " bytes of " + url + " to " + written + " bytes.");
+                if(size >= 0 && written != size){
+                    throw new StatusException(VLSyncDownloadTask.CORRUPT, "Decompressed body of " + url + " is " + written + " bytes, expected " + size);
+                }
+            }
+            resumable = false;
+            if(checksum != null && !checksum.matches()){
+                throw new StatusException(VLSyncDownloadTask.CORRUPT, "Content of " + url + " does not match eTag " + expectedETag);
+            }
+            if((file.exists() && !file.delete()) || !part.renameTo(file)){
+                throw new IOException("Downloaded file cannot be moved to " + file.getAbsolutePath());
+            }
+            record.delete();
+        } catch (IOException e) {
+            if(resumable && part.length() > 0){
+                VLSync.log("Interrupted download of " + url + " is kept at byte " + part.length() + ".");
+            }else{
+                part.delete();
+                record.delete();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @param url download URL
+     * @param file file to save downloaded content to
+     * @return true if URL is a pre-compressed '.gz' sibling of the
+     * file, whose body must be decompressed
+     */
+    protected static boolean isPrecompressed(String url, File file){
+        return url.endsWith(GZIP_SUFFIX) && !file.getName().endsWith(GZIP_SUFFIX);
+    }
+
+    /**
+     * Reads eTag of an interrupted transfer. Leftovers which cannot be
+     * resumed, including preallocated files of segmented transfers,
+     * are deleted.
+     *
+     * @param part partially downloaded file
+     * @param record resume record of partially downloaded file
+     * @return eTag to send as 'If-Range' or null if transfer must
+     * start from the beginning
+     */
+    private static String readRecord(File part, File record){
+        if(part.length() > 0 && record.exists()){
+            try {
+                String value = FileUtils.readFileToString(record, "UTF-8");
+                String eTag = strongETag(value);
+                if(eTag != null && value.indexOf('\n') < 0){
+                    return eTag;
+                }
+            } catch (IOException e) {
+                VLSync.log("Resume record cannot be read: " + record.getAbsolutePath(), e);
+            }
+        }
+        part.delete();
+        record.delete();
+        return null;
+    }
+
+    /**
+     * Records eTag of a response whose body is written to a '.part'
+     * file. Bytes received are the length of '.part' file, so the
+     * record is written once per response.
+     *
+     * @param record resume record to write
+     * @param eTag strong eTag of response or null if response cannot
+     *             be resumed
+     * @throws IOException if record cannot be written
+     */
+    private static void writeRecord(File record, String eTag) throws IOException{
+        if(eTag == null){
+            record.delete();
+            return;
+        }
+        FileUtils.writeStringToFile(record, eTag, "UTF-8");
+    }
+
+    /**
+     * Weak eTags cannot be used in 'If-Range', so only strong ones
+     * are kept.
+     *
+     * @since 1.1
+     *
+     * @param eTag eTag header value or null
+     * @return given eTag trimmed if it is strong, otherwise null
+     */
+    protected static String strongETag(String eTag){
+        if(eTag == null){
+            return null;
+        }
+        eTag = eTag.trim();
+        return eTag.startsWith("\"") ? eTag : null;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @param con connection of a 206 response
+     * @return first byte position in 'Content-Range' header or -1 if
+     * it is invalid
+     */
+    protected static long rangeStart(HttpURLConnection con){
+        String value = con.getHeaderField("Content-Range");
+        if(value == null || !value.trim().startsWith("bytes ")){
+            return -1;
+        }
+        int dash = value.indexOf('-');
+        if(dash < 0){
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.substring(value.indexOf(' ') + 1, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param con connected connection
+     * @return value of 'Content-Length' header or -1 if it is unknown
+     */
+    private static long contentLength(HttpURLConnection con){
+        String value = con.getHeaderField("Content-Length");
+        if(value == null){
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return executor which runs tasks on main thread
+     */
+    private static Executor mainThread(){
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                handler.post(runnable);
+            }
+        };
+    }
+
+    @Override
+    public void release() {
+        mExecutor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\" }";
+    }
+
+    /**
+     * Progress of a single transfer, watched by another thread which
+     * may cancel it. A cancelled transfer is disconnected, so it
+     * fails even while it waits for a response.
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    protected static class Progress {
+
+        /**
+         * Start time of transfer in milliseconds.
+         */
+        private final long mStartedAt = System.currentTimeMillis();
+
+        /**
+         * Time response is received in milliseconds, 0 if it is not
+         * received yet.
+         */
+        private volatile long mRespondedAt = 0;
+
+        /**
+         * Number of bytes written.
+         */
+        private volatile long mWritten = 0;
+
+        /**
+         * Flag whether transfer is cancelled.
+         */
+        private boolean mCancelled = false;
+
+        /**
+         * Connection of transfer, null if it is not opened yet.
+         */
+        private HttpURLConnection mConnection;
+
+        /**
+         * Attaches connection of transfer, so it can be cancelled.
+         *
+         * @param con opened connection
+         * @throws IOException if transfer is already cancelled
+         */
+        private synchronized void attach(HttpURLConnection con) throws IOException{
+            if(mCancelled){
+                throw new IOException("Transfer is cancelled.");
+            }
+            mConnection = con;
+        }
+
+        /**
+         * Called when response of transfer is received.
+         */
+        private void onResponse(){
+            if(mRespondedAt == 0){
+                mRespondedAt = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Called after bytes are written.
+         *
+         * @param written total number of bytes written
+         * @throws IOException if transfer is cancelled
+         */
+        private void onWritten(long written) throws IOException{
+            mWritten = written;
+            synchronized (this){
+                if(mCancelled){
+                    throw new IOException("Transfer is cancelled.");
+                }
+            }
+        }
+
+        /**
+         * Cancels transfer, disconnecting it if it is in flight.
+         *
+         * @since 1.1
+         */
+        protected void cancel(){
+            HttpURLConnection con;
+            synchronized (this){
+                mCancelled = true;
+                con = mConnection;
+            }
+            if(con != null){
+                con.disconnect();
+            }
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return start time of transfer in milliseconds
+         */
+        protected long getStartedAt() {
+            return mStartedAt;
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return time response is received in milliseconds, 0 if it
+         * is not received yet
+         */
+        protected long getRespondedAt() {
+            return mRespondedAt;
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return number of bytes written
+         */
+        protected long getWritten() {
+            return mWritten;
+        }
+    }
+
+    /**
+     * Failure of a transfer which origin answered with an unexpected
+     * status or whose content does not match its eTag.
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    protected static class StatusException extends IOException {
+
+        /**
+         * HTTP status of response or
+         * {@link VLSyncDownloadTask#CORRUPT}
+         */
+        private final int mStatus;
+
+        /**
+         * Constructor method.
+         *
+         * @since 1.1
+         *
+         * @param status HTTP status of response or
+         *               {@link VLSyncDownloadTask#CORRUPT}
+         * @param message detail message
+         */
+        protected StatusException(int status, String message){
+            super(message);
+            this.mStatus = status;
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return HTTP status of response or
+         * {@link VLSyncDownloadTask#CORRUPT}
+         */
+        protected int getStatus() {
+            return mStatus;
+        }
+    }
+}
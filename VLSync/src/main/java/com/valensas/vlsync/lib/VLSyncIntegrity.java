@@ -0,0 +1,274 @@
+package com.valensas.vlsync.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reconciles committed files in project folder with committed
+ * manifest. Size and modification time of every file is kept in
+ * 'content.state' file, aligned with entries of
+ * {@link com.valensas.vlsync.lib.VLSyncManifestIndex}. A file whose
+ * values are not changed since it was last trusted is not read. Files
+ * whose values are changed, and all files on the first run without a
+ * state, are hashed in parallel and checked against their eTag by
+ * {@link VLSyncChecksum}, multipart eTags included. Files whose eTag
+ * cannot be verified are only checked by size.
+ * Missing or corrupt files are returned to be downloaded again.
+ * </br></br>
+ * Layout (big endian):
+ * <pre>
+ * header  : magic, version, last updated date of index, count
+ * entries : size (-1 if not trusted), modification time
+ * </pre>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncIntegrity {
+
+    /**
+     * Name of state file in project folder.
+     */
+    protected static final String STATE_FILE = "content.state";
+
+    /**
+     * Magic number of state files. 'VLST' in ASCII.
+     */
+    private static final int MAGIC = 0x564C5354;
+
+    /**
+     * Version of state file layout.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Size of header in bytes.
+     */
+    private static final int HEADER_SIZE = 20;
+
+    /**
+     * Project folder.
+     */
+    private File mRoot;
+
+    /**
+     * State file in {@link #mRoot}
+     */
+    private File mStateFile;
+
+    /**
+     * Constructor method.
+     *
+     * @since 1.1
+     *
+     * @param root project folder
+     */
+    protected VLSyncIntegrity(File root){
+        this.mRoot = root;
+        this.mStateFile = new File(root, STATE_FILE);
+    }
+
+    /**
+     * Checks every committed file against given index. Files without
+     * a state and files whose size or modification time is changed
+     * since they were trusted are hashed, unless they were downloaded
+     * again after they were found broken.
+     * State file is rewritten if anything is changed.
+     *
+     * @since 1.1
+     *
+     * @param index index of committed manifest
+     * @return missing or corrupt files, empty if all files are intact
+     * @throws IOException if files cannot be hashed
+     */
+    protected VLSyncManifest reconcile(VLSyncManifestIndex index) throws IOException{
+        int count = index.size();
+        long[] state = readState(index);
+        long[] observed = new long[count * 2];
+        boolean changed = state == null;
+        VLSyncManifest repairs = new VLSyncManifest();
+        ArrayList<Integer> suspects = new ArrayList<Integer>();
+        ArrayList<VLSyncChecksum> checksums = new ArrayList<VLSyncChecksum>();
+
+        for (int i = 0; i < count; i++) {
+            File file = new File(mRoot, index.getPath(i));
+            long length = file.length();
+            long modified = file.lastModified();
+            observed[2 * i] = -1;
+            if(modified == 0 || length != index.getSize(i)){
+                VLSync.log("File is missing or its size is wrong: " + file.getAbsolutePath());
+                repairs.add(index.get(i));
+                changed = true;
+                continue;
+            }
+            observed[2 * i] = length;
+            observed[2 * i + 1] = modified;
+            if(state != null && state[2 * i] == length && state[2 * i + 1] == modified){
+                continue;
+            }
+            changed = true;
+            VLSyncChecksum checksum = state == null || state[2 * i] >= 0 ? VLSyncChecksum.create(index.getEtag(i), length) : null;
+            if(checksum != null){
+                suspects.add(i);
+                checksums.add(checksum);
+            }
+        }
+
+        if(!suspects.isEmpty()){
+            VLSync.log("Hashing " + suspects.size() + " changed files...");
+            boolean[] intact = verify(index, suspects, checksums);
+            for (int i = 0; i < intact.length; i++) {
+                if(!intact[i]){
+                    int entry = suspects.get(i);
+                    VLSync.log("File is corrupt: " + index.getPath(entry));
+                    repairs.add(index.get(entry));
+                    observed[2 * entry] = -1;
+                }
+            }
+        }
+
+        if(changed){
+            writeState(index, observed);
+        }
+        return repairs;
+    }
+
+    /**
+     * Deletes state file. Called when a new manifest is committed.
+     *
+     * @since 1.1
+     */
+    protected void reset(){
+        if(mStateFile.exists()){
+            mStateFile.delete();
+        }
+    }
+
+    /**
+     * Hashes given entries on all cores.
+     *
+     * @param index index of committed manifest
+     * @param entries entries to hash
+     * @param checksums checksums of entries, created from their eTags
+     * @return whether content of each entry matches its eTag
+     * @throws IOException if hashing is interrupted
+     */
+    private boolean[] verify(VLSyncManifestIndex index, ArrayList<Integer> entries, ArrayList<VLSyncChecksum> checksums) throws IOException{
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), entries.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < entries.size(); i++){
+                final File file = new File(mRoot, index.getPath(entries.get(i)));
+                final VLSyncChecksum checksum = checksums.get(i);
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        VLSyncChecksum.feed(checksum, file, file.length());
+                        return checksum.matches();
+                    }
+                }));
+            }
+            boolean[] intact = new boolean[entries.size()];
+            for (int i = 0; i < intact.length; i++) {
+                try {
+                    intact[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    VLSync.log("File cannot be hashed.", e.getCause());
+                    intact[i] = false;
+                }
+            }
+            return intact;
+        } catch (InterruptedException e) {
+            throw new IOException("Hashing is interrupted.", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads state file if it belongs to given index.
+     *
+     * @param index index of committed manifest
+     * @return sizes and modification times of entries, or null if
+     * there is no valid state
+     */
+    private long[] readState(VLSyncManifestIndex index){
+        if(!mStateFile.exists()){
+            return null;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(mStateFile, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                if(channel.size() != HEADER_SIZE + 16L * index.size()){
+                    return null;
+                }
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                        || buffer.getLong(8) != index.getLastUpdatedDate() || buffer.getInt(16) != index.size()){
+                    return null;
+                }
+                long[] state = new long[index.size() * 2];
+                buffer.position(HEADER_SIZE);
+                buffer.asLongBuffer().get(state);
+                return state;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            VLSync.log("State file cannot be read.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes state file.
+     *
+     * @param index index of committed manifest
+     * @param state sizes and modification times of entries
+     */
+    private void writeState(VLSyncManifestIndex index, long[] state){
+        File part = new File(mRoot, STATE_FILE + ".part");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(part)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(index.getLastUpdatedDate());
+                out.writeInt(index.size());
+                for (long value : state){
+                    out.writeLong(value);
+                }
+            } finally {
+                out.close();
+            }
+            if((mStateFile.exists() && !mStateFile.delete()) || !part.renameTo(mStateFile)){
+                throw new IOException("State file cannot be moved to " + mStateFile.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            VLSync.log("State file cannot be written.", e);
+            part.delete();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"root\":\"" + mRoot.getAbsolutePath() + "\" }";
+    }
+}
@@ -0,0 +1,456 @@
+package com.valensas.vlsync.lib;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Compact in-memory list of manifest entries. Paths are stored as
+ * nodes of a trie whose segments are interned, so a directory prefix
+ * is kept once no matter how many files it contains. Hex eTags are
+ * packed into two longs and sizes are kept in a long array. Entries
+ * are read through {@link #getPath(int)}, {@link #getEtag(int)} and
+ * {@link #getSize(int)}, or as a {@link com.valensas.vlsync.lib.VLSyncFile}
+ * view created by {@link #get(int)}.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncManifest {
+
+    /**
+     * ETag is stored in {@link #mRawETags} as is, or null.
+     */
+    private static final byte ETAG_RAW = 0;
+
+    /**
+     * ETag is 32 lower case hex digits packed into two longs.
+     */
+    private static final byte ETAG_HEX = 1;
+
+    /**
+     * ETag is 32 lower case hex digits in double quotes packed
+     * into two longs.
+     */
+    private static final byte ETAG_QUOTED_HEX = 2;
+
+    /**
+     * Hex digits used to format packed eTags.
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Interned path segments.
+     */
+    private String[] mSegments = new String[16];
+
+    /**
+     * Segment numbers keyed by segment.
+     */
+    private HashMap<String, Integer> mSegmentIds = new HashMap<String, Integer>();
+
+    /**
+     * Number of interned segments.
+     */
+    private int mSegmentCount = 0;
+
+    /**
+     * Parent node of every trie node, -1 for first level nodes.
+     */
+    private int[] mNodeParents = new int[16];
+
+    /**
+     * Segment number of every trie node.
+     */
+    private int[] mNodeSegments = new int[16];
+
+    /**
+     * Number of trie nodes.
+     */
+    private int mNodeCount = 0;
+
+    /**
+     * Open addressing table of child nodes keyed by parent and
+     * segment. See {@link #childKey(int, int)}.
+     */
+    private long[] mChildKeys = new long[32];
+
+    /**
+     * Child node + 1 of {@link #mChildKeys}, 0 if slot is empty.
+     */
+    private int[] mChildNodes = new int[32];
+
+    /**
+     * Trie node of every entry.
+     */
+    private int[] mNodes = new int[16];
+
+    /**
+     * High 64 bits of packed eTags.
+     */
+    private long[] mETagHigh = new long[16];
+
+    /**
+     * Low 64 bits of packed eTags.
+     */
+    private long[] mETagLow = new long[16];
+
+    /**
+     * Storage format of every eTag.
+     */
+    private byte[] mETagFormats = new byte[16];
+
+    /**
+     * ETags which cannot be packed, keyed by entry number.
+     */
+    private HashMap<Integer, String> mRawETags = new HashMap<Integer, String>();
+
+    /**
+     * Size of every entry.
+     */
+    private long[] mSizes = new long[16];
+
+    /**
+     * Number of entries.
+     */
+    private int mCount = 0;
+
+    /**
+     * Total size of entries.
+     */
+    private long mTotalSize = 0;
+
+    /**
+     * Appends a file entry.
+     *
+     * @since 1.1
+     *
+     * @param file file entry
+     */
+    protected void add(VLSyncFile file){
+        add(file.getPath(), file.getEtag(), file.getSize());
+    }
+
+    /**
+     * Appends an entry.
+     *
+     * @since 1.1
+     *
+     * @param path path of file
+     * @param eTag eTag of file or null
+     * @param size size of file
+     */
+    protected void add(String path, String eTag, long size){
+        if(mCount == mNodes.length){
+            int capacity = mCount * 2;
+            mNodes = Arrays.copyOf(mNodes, capacity);
+            mETagHigh = Arrays.copyOf(mETagHigh, capacity);
+            mETagLow = Arrays.copyOf(mETagLow, capacity);
+            mSizes = Arrays.copyOf(mSizes, capacity);
+            mETagFormats = Arrays.copyOf(mETagFormats, capacity);
+        }
+        int entry = mCount++;
+        mNodes[entry] = node(path);
+        mSizes[entry] = size;
+        mTotalSize += size;
+        packETag(entry, eTag);
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return number of entries
+     */
+    protected int size(){
+        return mCount;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return true if there is no entry
+     */
+    protected boolean isEmpty(){
+        return mCount == 0;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return total size of entries
+     */
+    protected long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @param entry entry number
+     * @return path of entry
+     */
+    protected String getPath(int entry){
+        check(entry);
+        int depth = 0;
+        int length = 0;
+        for (int node = mNodes[entry]; node >= 0; node = mNodeParents[node]){
+            length += mSegments[mNodeSegments[node]].length();
+            depth++;
+        }
+        char[] chars = new char[length + depth - 1];
+        int position = chars.length;
+        for (int node = mNodes[entry]; node >= 0; node = mNodeParents[node]){
+            String segment = mSegments[mNodeSegments[node]];
+            position -= segment.length();
+            segment.getChars(0, segment.length(), chars, position);
+            if(position > 0){
+                chars[--position] = '/';
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @param entry entry number
+     * @return eTag of entry or null
+     */
+    protected String getEtag(int entry){
+        check(entry);
+        switch (mETagFormats[entry]){
+            case ETAG_HEX:
+                return formatETag(entry, false);
+            case ETAG_QUOTED_HEX:
+                return formatETag(entry, true);
+            default:
+                return mRawETags.get(entry);
+        }
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @param entry entry number
+     * @return size of entry
+     */
+    protected long getSize(int entry){
+        check(entry);
+        return mSizes[entry];
+    }
+
+    /**
+     * Creates a file object view of an entry.
+     *
+     * @since 1.1
+     *
+     * @param entry entry number
+     * @return file object of entry
+     */
+    protected VLSyncFile get(int entry){
+        VLSyncFile file = new VLSyncFile();
+        file.setPath(getPath(entry));
+        file.setEtag(getEtag(entry));
+        file.setSize(getSize(entry));
+        return file;
+    }
+
+    /**
+     * Finds or creates trie node of a path.
+     *
+     * @param path path of file
+     * @return node number
+     */
+    private int node(String path){
+        int parent = -1;
+        int start = 0;
+        while (true){
+            int end = path.indexOf('/', start);
+            String segment = end < 0 ? path.substring(start) : path.substring(start, end);
+            parent = child(parent, segment(segment));
+            if(end < 0){
+                return parent;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Interns a path segment.
+     *
+     * @param segment path segment
+     * @return segment number
+     */
+    private int segment(String segment){
+        Integer id = mSegmentIds.get(segment);
+        if(id != null){
+            return id;
+        }
+        if(mSegmentCount == mSegments.length){
+            mSegments = Arrays.copyOf(mSegments, mSegmentCount * 2);
+        }
+        mSegments[mSegmentCount] = segment;
+        mSegmentIds.put(segment, mSegmentCount);
+        return mSegmentCount++;
+    }
+
+    /**
+     * Finds or creates child node of a parent node.
+     *
+     * @param parent parent node or -1
+     * @param segment segment number
+     * @return child node number
+     */
+    private int child(int parent, int segment){
+        long key = childKey(parent, segment);
+        int mask = mChildKeys.length - 1;
+        int slot = mix(key) & mask;
+        while (mChildNodes[slot] != 0){
+            if(mChildKeys[slot] == key){
+                return mChildNodes[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if(mNodeCount == mNodeParents.length){
+            mNodeParents = Arrays.copyOf(mNodeParents, mNodeCount * 2);
+            mNodeSegments = Arrays.copyOf(mNodeSegments, mNodeCount * 2);
+        }
+        int node = mNodeCount++;
+        mNodeParents[node] = parent;
+        mNodeSegments[node] = segment;
+        mChildKeys[slot] = key;
+        mChildNodes[slot] = node + 1;
+        if(mNodeCount * 2 > mChildKeys.length){
+            rehash();
+        }
+        return node;
+    }
+
+    /**
+     * Doubles child node table.
+     */
+    private void rehash(){
+        long[] keys = mChildKeys;
+        int[] nodes = mChildNodes;
+        mChildKeys = new long[keys.length * 2];
+        mChildNodes = new int[keys.length * 2];
+        int mask = mChildKeys.length - 1;
+        for (int i = 0; i < keys.length; i++) {
+            if(nodes[i] == 0){
+                continue;
+            }
+            int slot = mix(keys[i]) & mask;
+            while (mChildNodes[slot] != 0){
+                slot = (slot + 1) & mask;
+            }
+            mChildKeys[slot] = keys[i];
+            mChildNodes[slot] = nodes[i];
+        }
+    }
+
+    /**
+     * Packs an eTag if it is 32 lower case hex digits, optionally
+     * in double quotes. Other eTags are kept as strings.
+     *
+     * @param entry entry number
+     * @param eTag eTag or null
+     */
+    private void packETag(int entry, String eTag){
+        mETagFormats[entry] = ETAG_RAW;
+        if(eTag == null){
+            return;
+        }
+        int start = 0;
+        byte format = ETAG_HEX;
+        if(eTag.length() == 34 && eTag.charAt(0) == '"' && eTag.charAt(33) == '"'){
+            start = 1;
+            format = ETAG_QUOTED_HEX;
+        }else if(eTag.length() != 32){
+            mRawETags.put(entry, eTag);
+            return;
+        }
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 32; i++) {
+            char c = eTag.charAt(start + i);
+            int digit;
+            if(c >= '0' && c <= '9'){
+                digit = c - '0';
+            }else if(c >= 'a' && c <= 'f'){
+                digit = c - 'a' + 10;
+            }else{
+                mRawETags.put(entry, eTag);
+                return;
+            }
+            if(i < 16){
+                high = (high << 4) | digit;
+            }else{
+                low = (low << 4) | digit;
+            }
+        }
+        mETagHigh[entry] = high;
+        mETagLow[entry] = low;
+        mETagFormats[entry] = format;
+    }
+
+    /**
+     * Formats a packed eTag.
+     *
+     * @param entry entry number
+     * @param quoted whether eTag is in double quotes
+     * @return eTag string
+     */
+    private String formatETag(int entry, boolean quoted){
+        char[] chars = new char[quoted ? 34 : 32];
+        int offset = quoted ? 1 : 0;
+        long high = mETagHigh[entry];
+        long low = mETagLow[entry];
+        for (int i = 15; i >= 0; i--) {
+            chars[offset + i] = HEX[(int) (high & 0xF)];
+            chars[offset + 16 + i] = HEX[(int) (low & 0xF)];
+            high >>>= 4;
+            low >>>= 4;
+        }
+        if(quoted){
+            chars[0] = '"';
+            chars[33] = '"';
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @param entry entry number
+     */
+    private void check(int entry){
+        if(entry < 0 || entry >= mCount){
+            throw new IndexOutOfBoundsException("Invalid entry: " + entry);
+        }
+    }
+
+    /**
+     * @param parent parent node or -1
+     * @param segment segment number
+     * @return key of child node table
+     */
+    private static long childKey(int parent, int segment){
+        return ((long) (parent + 1) << 32) | (segment & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param key child node key
+     * @return spread hash of key
+     */
+    private static int mix(long key){
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"size\":" + mCount + ", \"segments\":" + mSegmentCount + ", \"nodes\":" + mNodeCount + ", \"totalSize\":" + mTotalSize + " }";
+    }
+}
@@ -0,0 +1,538 @@
+package com.valensas.vlsync.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Compact binary form of 'content.json' file, served by origin as
+ * 'content.bin'. Entries are stored flat and length prefixed, so a
+ * {@link Cursor} walks them straight from a mapped
+ * {@link java.nio.ByteBuffer} and decodes fields only when they are
+ * requested. {@link #parse(java.io.File, VLSyncManifestParser.OnFileParsedListener)}
+ * still creates a {@link VLSyncFile} per entry, as manifest
+ * difference and writers of index and 'content.json' take entries as
+ * objects.
+ * Shards, packs, patches and compressed extensions follow the entries
+ * as a json object in the form of 'content.json' header, so a binary
+ * manifest announces everything its json form does.
+ * </br></br>
+ * Layout (big endian):
+ * <pre>
+ * header    : magic, version, last updated date, count
+ * entries   : path length, path, eTag length (0xFFFF if null), eTag, size
+ * extension : length, json header (version 2 and later)
+ * </pre>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncManifestBinary {
+
+    /**
+     * Magic number of binary manifests. 'VLSB' in ASCII.
+     */
+    private static final int MAGIC = 0x564C5342;
+
+    /**
+     * Version of binary manifest layout.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * First version of layout with an extension.
+     */
+    private static final int EXTENSION_VERSION = 2;
+
+    /**
+     * Size of header in bytes.
+     */
+    private static final int HEADER_SIZE = 20;
+
+    /**
+     * Length marker of null strings.
+     */
+    private static final int NULL_LENGTH = 0xFFFF;
+
+    /**
+     * Private constructor. This class has only static methods.
+     */
+    private VLSyncManifestBinary(){
+    }
+
+    /**
+     * Maps given binary manifest and hands every entry to listener.
+     *
+     * @since 1.1
+     *
+     * @param file binary manifest
+     * @param listener called for every file entry
+     * @return content file object without files. Only header fields
+     * are set.
+     * @throws IOException if file cannot be mapped or it is malformed
+     */
+    protected static VLSyncContentFile parse(File file, VLSyncManifestParser.OnFileParsedListener listener) throws IOException{
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), listener);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Hands every entry of given binary manifest to listener as a
+     * new {@link VLSyncFile} object.
+     *
+     * @since 1.1
+     *
+     * @param buffer binary manifest
+     * @param listener called for every file entry
+     * @return content file object without files. Only header fields
+     * are set.
+     * @throws IOException if manifest is malformed
+     */
+    protected static VLSyncContentFile parse(ByteBuffer buffer, VLSyncManifestParser.OnFileParsedListener listener) throws IOException{
+        Cursor cursor = new Cursor(buffer);
+        while (cursor.next()){
+            listener.onFileParsed(cursor.get());
+        }
+        VLSyncContentFile contentFile = new VLSyncContentFile();
+        byte[] extension = cursor.getExtension();
+        if(extension != null){
+            contentFile = VLSyncManifestParser.parse(new ByteArrayInputStream(extension), new VLSyncManifestParser.OnFileParsedListener() {
+                @Override
+                public void onFileParsed(VLSyncFile file) {
+                }
+            });
+        }
+        contentFile.setLastUpdatedDate(cursor.getLastUpdatedDate());
+        return contentFile;
+    }
+
+    /**
+     * Reads given binary manifest into a content file object with
+     * all of its files.
+     *
+     * @since 1.1
+     *
+     * @param file binary manifest
+     * @return parsed content file
+     * @throws IOException if file cannot be mapped or it is malformed
+     */
+    protected static VLSyncContentFile read(File file) throws IOException{
+        final ArrayList<VLSyncFile> files = new ArrayList<VLSyncFile>();
+        VLSyncContentFile contentFile = parse(file, new VLSyncManifestParser.OnFileParsedListener() {
+            @Override
+            public void onFileParsed(VLSyncFile file) {
+                files.add(file);
+            }
+        });
+        contentFile.setFiles(files.toArray(new VLSyncFile[files.size()]));
+        return contentFile;
+    }
+
+    /**
+     * Converts a 'content.json' file to binary form.
+     *
+     * @since 1.1
+     *
+     * @param json 'content.json' file
+     * @param binary binary manifest to write
+     * @throws IOException if json cannot be parsed or binary cannot
+     * be written
+     */
+    protected static void convert(File json, File binary) throws IOException{
+        Writer writer = new Writer(binary);
+        try {
+            VLSyncContentFile header = VLSyncManifestParser.parse(json, writer);
+            writer.close(header);
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        } catch (VLSyncException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * @param string string to encode
+     * @return UTF-8 bytes of string
+     */
+    private static byte[] encode(String string){
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new VLSyncException(e);
+        }
+    }
+
+    /**
+     * Forward only cursor over entries of a binary manifest. Fields
+     * of current entry are decoded only when they are requested.
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    protected static class Cursor {
+
+        /**
+         * Binary manifest.
+         */
+        private ByteBuffer mBuffer;
+
+        /**
+         * Version of layout.
+         */
+        private int mVersion;
+
+        /**
+         * Number of entries.
+         */
+        private int mCount;
+
+        /**
+         * Number of entries read so far.
+         */
+        private int mRead = 0;
+
+        /**
+         * Last update date of manifest.
+         */
+        private long mLastUpdatedDate;
+
+        /**
+         * Position of path length of current entry.
+         */
+        private int mPathPosition;
+
+        /**
+         * Position of eTag length of current entry.
+         */
+        private int mETagPosition;
+
+        /**
+         * Size of current entry.
+         */
+        private long mSize;
+
+        /**
+         * Constructor method. Validates header.
+         *
+         * @since 1.1
+         *
+         * @param buffer binary manifest
+         * @throws IOException if header is invalid
+         */
+        protected Cursor(ByteBuffer buffer) throws IOException {
+            this.mBuffer = buffer;
+            if(buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC){
+                throw new IOException("Invalid binary manifest.");
+            }
+            mVersion = buffer.getInt(4);
+            if(mVersion < 1 || mVersion > VERSION){
+                throw new IOException("Unsupported binary manifest version: " + mVersion);
+            }
+            mLastUpdatedDate = buffer.getLong(8);
+            mCount = buffer.getInt(16);
+            mETagPosition = HEADER_SIZE;
+            mSize = 0;
+            mPathPosition = -1;
+        }
+
+        /**
+         * Moves to next entry.
+         *
+         * @since 1.1
+         *
+         * @return false if there is no more entry
+         * @throws IOException if entry is truncated
+         */
+        protected boolean next() throws IOException {
+            if(mRead == mCount){
+                return false;
+            }
+            try {
+                int position = mPathPosition < 0 ? HEADER_SIZE : skipString(mETagPosition) + 8;
+                mPathPosition = position;
+                mETagPosition = skipString(position);
+                mSize = mBuffer.getLong(skipString(mETagPosition));
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Truncated binary manifest.", e);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated binary manifest.", e);
+            }
+            mRead++;
+            return true;
+        }
+
+        /**
+         * Reads extension which follows the entries. Called after
+         * {@link #next()} returns false.
+         *
+         * @since 1.1
+         *
+         * @return json header, null if layout has no extension or it
+         * is empty
+         * @throws IOException if extension is truncated
+         */
+        protected byte[] getExtension() throws IOException {
+            if(mVersion < EXTENSION_VERSION){
+                return null;
+            }
+            try {
+                int position = mPathPosition < 0 ? HEADER_SIZE : skipString(mETagPosition) + 8;
+                int length = mBuffer.getInt(position);
+                if(length == 0){
+                    return null;
+                }
+                if(length < 0){
+                    throw new IOException("Invalid binary manifest extension.");
+                }
+                byte[] bytes = new byte[length];
+                ByteBuffer duplicate = mBuffer.duplicate();
+                duplicate.position(position + 4);
+                duplicate.get(bytes);
+                return bytes;
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Truncated binary manifest.", e);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated binary manifest.", e);
+            }
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return number of entries
+         */
+        protected int getCount() {
+            return mCount;
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return last update date of manifest
+         */
+        protected long getLastUpdatedDate() {
+            return mLastUpdatedDate;
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return path of current entry
+         */
+        protected String getPath(){
+            return readString(mPathPosition);
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return eTag of current entry or null
+         */
+        protected String getEtag(){
+            return readString(mETagPosition);
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return size of current entry
+         */
+        protected long getSize(){
+            return mSize;
+        }
+
+        /**
+         * Decodes current entry as a file object.
+         *
+         * @since 1.1
+         *
+         * @return file object of current entry
+         */
+        protected VLSyncFile get(){
+            VLSyncFile file = new VLSyncFile();
+            file.setPath(getPath());
+            file.setEtag(getEtag());
+            file.setSize(mSize);
+            return file;
+        }
+
+        /**
+         * @param position position of string length
+         * @return position right after string
+         */
+        private int skipString(int position){
+            int length = mBuffer.getShort(position) & 0xFFFF;
+            return position + 2 + (length == NULL_LENGTH ? 0 : length);
+        }
+
+        /**
+         * @param position position of string length
+         * @return decoded string or null
+         */
+        private String readString(int position){
+            int length = mBuffer.getShort(position) & 0xFFFF;
+            if(length == NULL_LENGTH){
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            ByteBuffer duplicate = mBuffer.duplicate();
+            duplicate.position(position + 2);
+            duplicate.get(bytes);
+            try {
+                return new String(bytes, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new VLSyncException(e);
+            }
+        }
+    }
+
+    /**
+     * Streaming writer for binary manifests. Count and last update
+     * date are written to header when writer is closed.
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    protected static class Writer implements VLSyncManifestParser.OnFileParsedListener {
+
+        /**
+         * File to write.
+         */
+        private File mFile;
+
+        /**
+         * Output stream of {@link #mFile}
+         */
+        private DataOutputStream mOut;
+
+        /**
+         * Number of entries written.
+         */
+        private int mCount = 0;
+
+        /**
+         * Constructor method. Reserves header.
+         *
+         * @since 1.1
+         *
+         * @param file file to write
+         * @throws IOException if file cannot be created
+         */
+        protected Writer(File file) throws IOException {
+            this.mFile = file;
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            mOut.write(new byte[HEADER_SIZE]);
+        }
+
+        /**
+         * Appends a file entry.
+         *
+         * @since 1.1
+         *
+         * @param file file entry
+         * @throws IOException if entry cannot be written
+         */
+        protected void add(VLSyncFile file) throws IOException {
+            if(file == null || file.getPath() == null){
+                return;
+            }
+            writeString(file.getPath());
+            writeString(file.getEtag());
+            mOut.writeLong(file.getSize());
+            mCount++;
+        }
+
+        @Override
+        public void onFileParsed(VLSyncFile file) {
+            try {
+                add(file);
+            } catch (IOException e) {
+                throw new VLSyncException("Binary manifest cannot be written.", e);
+            }
+        }
+
+        /**
+         * Writes extension and header, and closes file.
+         *
+         * @since 1.1
+         *
+         * @param header content file object whose header fields are
+         *               written, its files are ignored
+         * @throws IOException if file cannot be written
+         */
+        protected void close(VLSyncContentFile header) throws IOException {
+            if(header.isSharded() || header.getPacks() != null || header.getPatches() != null || header.getCompressed() != null){
+                VLSyncContentFile extension = new VLSyncContentFile();
+                extension.setShards(header.getShards());
+                extension.setPacks(header.getPacks());
+                extension.setPatches(header.getPatches());
+                extension.setCompressed(header.getCompressed());
+                byte[] bytes = encode(VLSyncManifestParser.CONTENT_FILE_ADAPTER.toJson(extension));
+                mOut.writeInt(bytes.length);
+                mOut.write(bytes);
+            }else{
+                mOut.writeInt(0);
+            }
+            mOut.close();
+            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeLong(header.getLastUpdatedDate());
+                raf.writeInt(mCount);
+            } finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * Discards written file.
+         *
+         * @since 1.1
+         */
+        protected void abort(){
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                VLSync.log("Binary manifest cannot be closed.", e);
+            }
+            mFile.delete();
+        }
+
+        /**
+         * @param string string to write or null
+         * @throws IOException if string cannot be written
+         */
+        private void writeString(String string) throws IOException {
+            if(string == null){
+                mOut.writeShort(NULL_LENGTH);
+                return;
+            }
+            byte[] bytes = encode(string);
+            if(bytes.length >= NULL_LENGTH){
+                throw new IOException("String is too long: " + string);
+            }
+            mOut.writeShort(bytes.length);
+            mOut.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.valensas.vlsync.lib;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * This class represents a delta document of 'content.json' file.
+ * A delta lists only added, changed and removed entries between the
+ * manifest with eTag {@link #mFrom} and the manifest with eTag
+ * {@link #mTo}. It is served by origin at
+ * 'deltas/&lt;key of previous eTag&gt;.json' under project URL, see
+ * {@link #key(String)}. Header fields of the resulting manifest,
+ * such as shards, packs, patches and compressed extensions, are
+ * listed in the delta as they are in 'content.json'.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncManifestDelta {
+
+    /**
+     * ETag of manifest which delta is computed from.
+     */
+    private String mFrom;
+
+    /**
+     * ETag of manifest which delta leads to.
+     */
+    private String mTo;
+
+    /**
+     * Header fields of resulting manifest, such as last update date,
+     * shards, packs, patches and compressed extensions.
+     */
+    private VLSyncContentFile mHeader = new VLSyncContentFile();
+
+    /**
+     * Files which are added or changed.
+     */
+    private ArrayList<VLSyncFile> mFiles = new ArrayList<VLSyncFile>();
+
+    /**
+     * Paths which are removed.
+     */
+    private HashSet<String> mRemoved = new HashSet<String>();
+
+    /**
+     * Paths of {@link #mFiles}.
+     */
+    private HashSet<String> mPaths = new HashSet<String>();
+
+    /**
+     * Requests delta document from the given eTag.
+     *
+     * @since 1.1
+     *
+     * @param projectURL project root URL
+     * @param eTag eTag of committed manifest
+     * @return parsed delta or null if origin has no delta for eTag
+     * @throws IOException if delta cannot be downloaded or parsed
+     */
+    protected static VLSyncManifestDelta fetch(String projectURL, String eTag) throws IOException{
+        String urlString = projectURL + "deltas/" + key(eTag) + ".json";
+        VLSync.log("Requesting delta at " + urlString);
+        HttpURLConnection con = VLSyncConnections.open(urlString);
+        con.setInstanceFollowRedirects(false);
+        int status = con.getResponseCode();
+        if(status != HttpURLConnection.HTTP_OK){
+            VLSync.log("Delta not available. Status: " + status);
+            VLSyncConnections.discard(con);
+            return null;
+        }
+        InputStream in = con.getInputStream();
+        try {
+            return parse(in);
+        } finally {
+            VLSyncConnections.release(con, in);
+        }
+    }
+
+    /**
+     * Converts an eTag to a file name. The whole header value,
+     * quotes and weak prefix included, is encoded as lower case hex
+     * of its UTF-8 bytes, so distinct eTags never share a delta.
+     *
+     * @since 1.1
+     *
+     * @param eTag eTag header value
+     * @return file name of delta document
+     */
+    protected static String key(String eTag){
+        byte[] bytes;
+        try {
+            bytes = eTag.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new VLSyncException(e);
+        }
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            hex[2 * i + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Parses a delta document. Stream is closed before this method
+     * returns.
+     *
+     * @since 1.1
+     *
+     * @param stream delta document stream
+     * @return parsed delta
+     * @throws IOException if stream cannot be read or it is malformed
+     */
+    protected static VLSyncManifestDelta parse(InputStream stream) throws IOException{
+        JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(stream, "UTF-8")));
+        try {
+            VLSyncManifestDelta delta = new VLSyncManifestDelta();
+            reader.beginObject();
+            while (reader.hasNext()){
+                String name = reader.nextName();
+                if(reader.peek() == JsonToken.NULL){
+                    reader.nextNull();
+                }else if("from".equals(name)){
+                    delta.mFrom = reader.nextString();
+                }else if("to".equals(name)){
+                    delta.mTo = reader.nextString();
+                }else if("added".equals(name) || "changed".equals(name)){
+                    reader.beginArray();
+                    while (reader.hasNext()){
+                        VLSyncFile file = VLSyncManifestParser.FILE_ADAPTER.read(reader);
+                        if(file != null && file.getPath() != null && delta.mPaths.add(file.getPath())){
+                            delta.mFiles.add(file);
+                        }
+                    }
+                    reader.endArray();
+                }else if("removed".equals(name)){
+                    reader.beginArray();
+                    while (reader.hasNext()){
+                        delta.mRemoved.add(reader.nextString());
+                    }
+                    reader.endArray();
+                }else if(!VLSyncManifestParser.readHeaderField(reader, name, delta.mHeader)){
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return delta;
+        } catch (IllegalStateException e) {
+            throw new IOException("Malformed delta document", e);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed delta document", e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Applies this delta to given manifest index. Every entry of
+     * resulting manifest is handed to listener, unchanged entries
+     * first in their committed order.
+     *
+     * @since 1.1
+     *
+     * @param old index of committed manifest
+     * @param listener called for every entry of resulting manifest
+     */
+    protected void apply(VLSyncManifestIndex old, VLSyncManifestParser.OnFileParsedListener listener){
+        for (int i = 0; i < old.size(); i++) {
+            String path = old.getPath(i);
+            if(mRemoved.contains(path) || mPaths.contains(path)){
+                continue;
+            }
+            listener.onFileParsed(old.get(i));
+        }
+        for (VLSyncFile file : mFiles){
+            listener.onFileParsed(file);
+        }
+    }
+
+    /**
+     * Checks whether this delta leads from one manifest to another.
+     *
+     * @since 1.1
+     *
+     * @param from eTag of committed manifest
+     * @param to eTag of current manifest on origin
+     * @return false if delta is computed for other manifests or does
+     * not name both of them
+     */
+    protected boolean matches(String from, String to){
+        return mFrom != null && mTo != null && mFrom.equals(from) && mTo.equals(to);
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return last update date of resulting manifest
+     */
+    protected long getLastUpdatedDate() {
+        return mHeader.getLastUpdatedDate();
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return content file object without files. Header fields of
+     * resulting manifest are set as they are listed in the delta.
+     */
+    protected VLSyncContentFile getHeader() {
+        return mHeader;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return files which are added or changed
+     */
+    protected ArrayList<VLSyncFile> getFiles() {
+        return mFiles;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return paths which are removed
+     */
+    protected HashSet<String> getRemoved() {
+        return mRemoved;
+    }
+
+    @Override
+    public String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"from\":\"" + mFrom + "\", \"to\":\"" + mTo + "\", \"files\":" + mFiles.size() + ", \"removed\":" + mRemoved.size() + " }";
+    }
+}
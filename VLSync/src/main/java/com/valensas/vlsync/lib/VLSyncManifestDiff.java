@@ -0,0 +1,389 @@
+package com.valensas.vlsync.lib;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * This class computes the difference between two 'content.json'
+ * manifests. Old entries are indexed by path, either in memory or in a
+ * mapped {@link com.valensas.vlsync.lib.VLSyncManifestIndex}, so every
+ * new entry is matched in constant time. Entries which disappeared
+ * from an old path and show up under a new path with the same eTag
+ * are reported as moves, so they can be moved locally instead of
+ * downloaded again.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncManifestDiff {
+
+    /**
+     * Old entries which are not matched by a new entry yet,
+     * keyed by path. Insertion order is kept so that results
+     * follow manifest order.
+     */
+    private LinkedHashMap<String, VLSyncFile> mOldByPath = new LinkedHashMap<String, VLSyncFile>();
+
+    /**
+     * Mapped index of old manifest or null if old entries are
+     * indexed in memory.
+     */
+    private VLSyncManifestIndex mOldIndex;
+
+    /**
+     * Entries of {@link #mOldIndex} which are matched by a new entry.
+     */
+    private BitSet mMatched;
+
+    /**
+     * New entries whose path is not found in old manifest.
+     * They are resolved as added or moved by {@link #finish()}.
+     */
+    private VLSyncManifest mPending = new VLSyncManifest();
+
+    /**
+     * Files which are not found in old manifest.
+     */
+    private VLSyncManifest mAdded = new VLSyncManifest();
+
+    /**
+     * Files whose eTag is changed.
+     */
+    private VLSyncManifest mChanged = new VLSyncManifest();
+
+    /**
+     * Files which are removed from new manifest.
+     */
+    private VLSyncManifest mDeleted = new VLSyncManifest();
+
+    /**
+     * Files which are moved to another path with the same content.
+     */
+    private ArrayList<Move> mMoved = new ArrayList<Move>();
+
+    /**
+     * Total size of added and changed files.
+     */
+    private long mDownloadSize = 0;
+
+    /**
+     * Flag whether {@link #finish()} is called or not.
+     */
+    private boolean mFinished = false;
+
+    /**
+     * Constructor method for an empty old manifest. Old entries
+     * can be indexed in memory by {@link #indexOld(VLSyncFile)}.
+     *
+     * @since 1.1
+     */
+    protected VLSyncManifestDiff(){
+    }
+
+    /**
+     * Constructor method for an old manifest which is indexed on
+     * disk. Index must stay open until {@link #finish()} is called.
+     *
+     * @since 1.1
+     *
+     * @param oldIndex mapped index of committed manifest
+     */
+    protected VLSyncManifestDiff(VLSyncManifestIndex oldIndex){
+        this.mOldIndex = oldIndex;
+        this.mMatched = new BitSet(oldIndex.size());
+    }
+
+    /**
+     * Computes the difference of two file arrays.
+     *
+     * @since 1.1
+     *
+     * @param oldFiles files of committed manifest or null if
+     *                 there is no committed manifest
+     * @param newFiles files of downloaded manifest
+     * @return finished diff object
+     */
+    protected static VLSyncManifestDiff compute(VLSyncFile[] oldFiles, VLSyncFile[] newFiles){
+        VLSyncManifestDiff diff = new VLSyncManifestDiff();
+        if(oldFiles != null){
+            for (VLSyncFile f : oldFiles){
+                diff.indexOld(f);
+            }
+        }
+        if(newFiles != null){
+            for (VLSyncFile f : newFiles){
+                diff.offer(f);
+            }
+        }
+        diff.finish();
+        return diff;
+    }
+
+    /**
+     * Adds an entry of old manifest to path index. All old entries
+     * must be indexed before the first {@link #offer(VLSyncFile)} call.
+     *
+     * @since 1.1
+     *
+     * @param file entry of committed manifest
+     */
+    protected void indexOld(VLSyncFile file){
+        if(file == null || file.getPath() == null){
+            return;
+        }
+        mOldByPath.put(file.getPath(), file);
+    }
+
+    /**
+     * Matches an entry of new manifest against old manifest.
+     *
+     * @since 1.1
+     *
+     * @param file entry of downloaded manifest
+     */
+    protected void offer(VLSyncFile file){
+        if(mFinished){
+            VLSync.log("Diff is already finished.");
+            throw new VLSyncException("Diff is already finished.");
+        }
+        if(file == null || file.getPath() == null){
+            return;
+        }
+        String oldETag;
+        VLSyncFile old = mOldByPath.remove(file.getPath());
+        if(old != null){
+            oldETag = old.getEtag();
+        }else if(mOldIndex != null){
+            int entry = mOldIndex.find(file.getPath());
+            if(entry < 0 || mMatched.get(entry)){
+                mPending.add(file);
+                return;
+            }
+            mMatched.set(entry);
+            oldETag = mOldIndex.getEtag(entry);
+        }else{
+            mPending.add(file);
+            return;
+        }
+        if(!equalETags(oldETag, file.getEtag())){
+            VLSync.log("File changed: " + file);
+            mChanged.add(file);
+            mDownloadSize += file.getSize();
+        }
+    }
+
+    /**
+     * Marks an entry of old manifest index as unchanged without
+     * comparing it. Used for entries of subtrees whose aggregate
+     * hash is not changed.
+     *
+     * @since 1.1
+     *
+     * @param entry entry number in old manifest index
+     */
+    protected void retain(int entry){
+        if(mOldIndex == null){
+            VLSync.log("Diff has no old manifest index.");
+            throw new VLSyncException("Diff has no old manifest index.");
+        }
+        mMatched.set(entry);
+    }
+
+    /**
+     * Resolves pending entries as moved or added and remaining
+     * old entries as deleted. Old entries are indexed by eTag
+     * to detect moves.
+     *
+     * @since 1.1
+     */
+    protected void finish(){
+        if(mFinished){
+            return;
+        }
+        mFinished = true;
+
+        if(mOldIndex != null){
+            for (int i = mMatched.nextClearBit(0); i < mOldIndex.size(); i = mMatched.nextClearBit(i + 1)){
+                VLSyncFile f = mOldIndex.get(i);
+                if(!mOldByPath.containsKey(f.getPath())){
+                    mOldByPath.put(f.getPath(), f);
+                }
+            }
+            mMatched = null;
+        }
+
+        HashMap<String, ArrayList<VLSyncFile>> oldByETag = new HashMap<String, ArrayList<VLSyncFile>>();
+        for (VLSyncFile f : mOldByPath.values()){
+            if(f.getEtag() == null){
+                continue;
+            }
+            ArrayList<VLSyncFile> list = oldByETag.get(f.getEtag());
+            if(list == null){
+                list = new ArrayList<VLSyncFile>(1);
+                oldByETag.put(f.getEtag(), list);
+            }
+            list.add(f);
+        }
+
+        for (int i = 0; i < mPending.size(); i++) {
+            VLSyncFile f = mPending.get(i);
+            ArrayList<VLSyncFile> list = f.getEtag() == null ? null : oldByETag.get(f.getEtag());
+            if(list != null && !list.isEmpty()){
+                VLSyncFile source = list.remove(list.size() - 1);
+                mOldByPath.remove(source.getPath());
+                VLSync.log("File moved from " + source.getPath() + " to " + f.getPath());
+                mMoved.add(new Move(source, f));
+            }else{
+                VLSync.log("File added: " + f);
+                mAdded.add(f);
+                mDownloadSize += f.getSize();
+            }
+        }
+        mPending = null;
+
+        Iterator<VLSyncFile> iterator = mOldByPath.values().iterator();
+        while (iterator.hasNext()){
+            VLSyncFile f = iterator.next();
+            VLSync.log("File deleted: " + f);
+            mDeleted.add(f);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return files which are not found in old manifest
+     */
+    protected VLSyncManifest getAdded() {
+        return mAdded;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return files whose eTag is changed
+     */
+    protected VLSyncManifest getChanged() {
+        return mChanged;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return files which are removed from new manifest
+     */
+    protected VLSyncManifest getDeleted() {
+        return mDeleted;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return files which are moved to another path
+     */
+    protected ArrayList<Move> getMoved() {
+        return mMoved;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return added and changed files which must be downloaded
+     */
+    protected VLSyncManifest getDownloads(){
+        VLSyncManifest downloads = new VLSyncManifest();
+        for (int i = 0; i < mAdded.size(); i++) {
+            downloads.add(mAdded.getPath(i), mAdded.getEtag(i), mAdded.getSize(i));
+        }
+        for (int i = 0; i < mChanged.size(); i++) {
+            downloads.add(mChanged.getPath(i), mChanged.getEtag(i), mChanged.getSize(i));
+        }
+        return downloads;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return total size of added and changed files
+     */
+    protected long getDownloadSize() {
+        return mDownloadSize;
+    }
+
+    /**
+     * Null safe eTag comparison.
+     *
+     * @since 1.1
+     *
+     * @param a first eTag
+     * @param b second eTag
+     * @return true if both eTags are equal
+     */
+    private static boolean equalETags(String a, String b){
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * This class represents a file whose content is kept but
+     * path is changed.
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    protected static class Move {
+
+        /**
+         * Entry in old manifest.
+         */
+        private VLSyncFile mFrom;
+
+        /**
+         * Entry in new manifest.
+         */
+        private VLSyncFile mTo;
+
+        /**
+         * Constructor method.
+         *
+         * @since 1.1
+         *
+         * @param from entry in old manifest
+         * @param to entry in new manifest
+         */
+        protected Move(VLSyncFile from, VLSyncFile to) {
+            this.mFrom = from;
+            this.mTo = to;
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return entry in old manifest
+         */
+        protected VLSyncFile getFrom() {
+            return mFrom;
+        }
+
+        /**
+         * @since 1.1
+         *
+         * @return entry in new manifest
+         */
+        protected VLSyncFile getTo() {
+            return mTo;
+        }
+
+        @Override
+        public String toString() {
+            return "{ \"_class\":\"" + getClass().getName() + "\", \"from\":" + mFrom + ", \"to\":" + mTo + " }";
+        }
+    }
+}
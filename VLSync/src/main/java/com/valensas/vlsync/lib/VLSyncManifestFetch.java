@@ -0,0 +1,401 @@
+package com.valensas.vlsync.lib;
+
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compressed, conditional transfer of a manifest from origin. Every
+ * candidate object is requested with a single GET carrying
+ * 'If-None-Match', so origin answers either 304 or the new manifest
+ * body. Pre-compressed '.gz' objects are decoded as well as responses
+ * with gzip content encoding, so {@link #getInputStream()} returns
+ * the decompressed manifest as a stream, ready to be handed to a
+ * parser without being written to disk first. The body is read only
+ * when it is needed, so a delta can be looked for while the response
+ * waits, and a body which is not needed is abandoned with
+ * {@link #abandon()} instead of being drained.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncManifestFetch {
+
+    /**
+     * Names of root manifest objects in order of preference.
+     */
+    protected static final String[] MANIFEST_NAMES = {"content.bin.gz", "content.bin", "content.json.gz", "content.json"};
+
+    /**
+     * Size of stream buffers in bytes.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Connect and read timeout in milliseconds of requests which
+     * discover manifest objects.
+     */
+    private static final int DISCOVER_TIMEOUT = 10000;
+
+    /**
+     * Connection of manifest response.
+     */
+    private HttpURLConnection mConnection;
+
+    /**
+     * Project URL which manifest is requested from.
+     */
+    private String mProjectURL;
+
+    /**
+     * Name of requested manifest object.
+     */
+    private String mName;
+
+    /**
+     * Flag whether origin answered that committed manifest is not
+     * modified.
+     */
+    private boolean mNotModified;
+
+    /**
+     * Decompressed manifest stream, null if manifest is not
+     * modified.
+     */
+    private InputStream mInputStream;
+
+    /**
+     * Flag whether manifest is transferred compressed.
+     */
+    private boolean mCompressed;
+
+    /**
+     * Flag whether response is closed or abandoned.
+     */
+    private boolean mClosed = false;
+
+    /**
+     * Constructor method. Wraps response stream with a gzip
+     * decoder if it is compressed.
+     *
+     * @param connection connection of manifest response
+     * @param projectURL project URL which manifest is requested from
+     * @param name name of requested manifest object
+     * @throws IOException if response stream cannot be opened
+     */
+    private VLSyncManifestFetch(HttpURLConnection connection, String projectURL, String name) throws IOException {
+        this.mConnection = connection;
+        this.mProjectURL = projectURL;
+        this.mName = name;
+        mNotModified = connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+        if(mNotModified){
+            return;
+        }
+        mCompressed = name.endsWith(".gz") || "gzip".equalsIgnoreCase(connection.getContentEncoding());
+        InputStream in = new BufferedInputStream(connection.getInputStream(), BUFFER_SIZE);
+        mInputStream = mCompressed ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+    }
+
+    /**
+     * Requests given manifest from origin. '&lt;name&gt;.gz' is tried
+     * first, then '&lt;name&gt;' with 'Accept-Encoding: gzip'.
+     *
+     * @since 1.1
+     *
+     * @param projectURL URL of project folder, ending with a slash
+     * @param name name of manifest, e.g. 'content.json'
+     * @return opened manifest
+     * @throws FileNotFoundException if origin does not have the manifest
+     * @throws IOException if manifest cannot be requested
+     */
+    protected static VLSyncManifestFetch open(String projectURL, String name) throws IOException{
+        return open(projectURL, new String[]{name + ".gz", name}, null);
+    }
+
+    /**
+     * Requests first manifest object which origin has among given
+     * names. If an eTag is given, it is sent as 'If-None-Match' and
+     * origin may answer with {@link #isNotModified()}.
+     *
+     * @since 1.1
+     *
+     * @param projectURL URL of project folder, ending with a slash
+     * @param names candidate object names in order of preference
+     * @param eTag eTag of committed manifest or null
+     * @return opened manifest
+     * @throws FileNotFoundException if origin has none of the objects
+     * @throws IOException if manifest cannot be requested
+     */
+    protected static VLSyncManifestFetch open(String projectURL, String[] names, String eTag) throws IOException{
+        int code = -1;
+        for (String name : names){
+            HttpURLConnection con = connect(projectURL + name, eTag);
+            code = con.getResponseCode();
+            if(code == HttpURLConnection.HTTP_OK || code == HttpURLConnection.HTTP_NOT_MODIFIED){
+                try {
+                    return new VLSyncManifestFetch(con, projectURL, name);
+                } catch (IOException e) {
+                    con.disconnect();
+                    throw e;
+                }
+            }
+            VLSync.log("Manifest object is not served: " + name + " (" + code + ")");
+            VLSyncConnections.discard(con);
+        }
+        throw new FileNotFoundException("Manifest cannot be downloaded: " + names[names.length - 1] + " (" + code + ")");
+    }
+
+    /**
+     * Finds which manifest object origin serves, asking for all of
+     * {@link #MANIFEST_NAMES} at once with 'HEAD' requests instead of
+     * requesting them one after another. Called once, the result is
+     * remembered by {@link VLSync#updateManifestName(String)}.
+     *
+     * @since 1.1
+     *
+     * @param projectURL URL of project folder, ending with a slash
+     * @return most preferred object name which origin serves
+     * @throws FileNotFoundException if origin has none of the objects
+     * @throws IOException if origin cannot be reached
+     */
+    protected static String discover(final String projectURL) throws IOException{
+        ExecutorService executor = Executors.newFixedThreadPool(MANIFEST_NAMES.length);
+        try {
+            List<Future<Integer>> codes = new ArrayList<Future<Integer>>();
+            for (final String name : MANIFEST_NAMES){
+                codes.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        HttpURLConnection con = VLSyncConnections.open(projectURL + name);
+                        con.setConnectTimeout(DISCOVER_TIMEOUT);
+                        con.setReadTimeout(DISCOVER_TIMEOUT);
+                        con.setRequestMethod("HEAD");
+                        int code = con.getResponseCode();
+                        VLSyncConnections.discard(con);
+                        return code;
+                    }
+                }));
+            }
+            IOException failure = null;
+            for (int i = 0; i < MANIFEST_NAMES.length; i++){
+                try {
+                    if(codes.get(i).get() == HttpURLConnection.HTTP_OK){
+                        VLSync.log("Origin serves manifest object " + MANIFEST_NAMES[i]);
+                        return MANIFEST_NAMES[i];
+                    }
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+            if(failure != null){
+                throw failure;
+            }
+            throw new FileNotFoundException("Origin serves no manifest object at " + projectURL);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Manifest discovery is interrupted.");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Orders {@link #MANIFEST_NAMES} so that the object origin served
+     * last time is requested first.
+     *
+     * @since 1.1
+     *
+     * @param preferred name of manifest object served last time or null
+     * @return candidate object names
+     */
+    protected static String[] candidates(String preferred){
+        ArrayList<String> names = new ArrayList<String>();
+        if(preferred != null){
+            names.add(preferred);
+        }
+        for (String name : MANIFEST_NAMES){
+            if(!name.equals(preferred)){
+                names.add(name);
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Reads freshness lifetime of a response.
+     *
+     * @since 1.1
+     *
+     * @param cacheControl 'Cache-Control' header value or null
+     * @param age 'Age' header value or null
+     * @return remaining freshness lifetime in seconds, 0 if response
+     * must be revalidated, -1 if lifetime is not given
+     */
+    protected static long maxAge(String cacheControl, String age){
+        if(cacheControl == null){
+            return -1;
+        }
+        long maxAge = -1;
+        for (String directive : cacheControl.split(",")){
+            directive = directive.trim().toLowerCase();
+            if(directive.equals("no-cache") || directive.equals("no-store")){
+                return 0;
+            }
+            if(directive.startsWith("max-age=")){
+                try {
+                    maxAge = Long.parseLong(directive.substring(8).replace("\"", "").trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        if(maxAge > 0 && age != null){
+            try {
+                maxAge = Math.max(0, maxAge - Long.parseLong(age.trim()));
+            } catch (NumberFormatException e) {
+                VLSync.log("Invalid Age header: " + age);
+            }
+        }
+        return maxAge;
+    }
+
+    /**
+     * Sends a request which accepts gzip content encoding.
+     * Response body is decoded by this class and caches of the
+     * platform are bypassed, so a 304 answer is seen as is.
+     *
+     * @param urlString requested URL
+     * @param eTag eTag to send as 'If-None-Match' or null
+     * @return connected connection
+     * @throws IOException if connection cannot be established
+     */
+    private static HttpURLConnection connect(String urlString, String eTag) throws IOException{
+        HttpURLConnection con = VLSyncConnections.open(urlString);
+        con.setUseCaches(false);
+        con.setRequestProperty("Accept-Encoding", "gzip");
+        if(eTag != null){
+            con.setRequestProperty("If-None-Match", eTag);
+        }
+        con.connect();
+        return con;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return project URL which manifest is requested from
+     */
+    protected String getProjectURL() {
+        return mProjectURL;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return name of requested manifest object
+     */
+    protected String getName() {
+        return mName;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return eTag of manifest object or null
+     */
+    protected String getETag() {
+        return mConnection.getHeaderField("ETag");
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return remaining freshness lifetime of manifest in seconds.
+     * See {@link #maxAge(String, String)}
+     */
+    protected long getMaxAge() {
+        return maxAge(mConnection.getHeaderField("Cache-Control"), mConnection.getHeaderField("Age"));
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return true if origin answered that committed manifest is
+     * not modified
+     */
+    protected boolean isNotModified() {
+        return mNotModified;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return decompressed manifest stream, null if manifest is not
+     * modified
+     */
+    protected InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return true if manifest is transferred compressed
+     */
+    protected boolean isCompressed() {
+        return mCompressed;
+    }
+
+    /**
+     * Closes manifest stream and returns its connection to the pool.
+     *
+     * @since 1.1
+     */
+    protected void close(){
+        if(mClosed){
+            return;
+        }
+        mClosed = true;
+        if(mInputStream == null){
+            VLSyncConnections.discard(mConnection);
+        }else{
+            VLSyncConnections.release(mConnection, mInputStream);
+        }
+    }
+
+    /**
+     * Closes manifest response without reading the rest of its body,
+     * e.g. when a delta is applied instead. Connection is not
+     * returned to the pool, so the body is not transferred.
+     *
+     * @since 1.1
+     */
+    protected void abandon(){
+        if(mClosed){
+            return;
+        }
+        mClosed = true;
+        VLSync.log("Manifest body is not needed. Disconnecting from " + mConnection.getURL());
+        mConnection.disconnect();
+    }
+
+    @Override
+    public String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"name\":\"" + mName + "\", \"notModified\":\"" + isNotModified() + "\", \"compressed\":\"" + mCompressed + "\" }";
+    }
+}
@@ -0,0 +1,524 @@
+package com.valensas.vlsync.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class represents a compact binary index of a committed
+ * 'content.json' file. The index is memory-mapped, so looking up an
+ * entry by path costs a few page faults instead of parsing the whole
+ * manifest.
+ * </br></br>
+ * Layout of the index file (big endian):
+ * <pre>
+ * header  : magic, version, count, slot count, offsets position, last updated date
+ * records : path hash, path length, path, eTag length, eTag, size
+ * offsets : record position of every entry, in manifest order
+ * slots   : open addressing hash table of entry number + 1, 0 if empty
+ * </pre>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncManifestIndex {
+
+    /**
+     * Magic number of index files. 'VLSI' in ASCII.
+     */
+    private static final int MAGIC = 0x564C5349;
+
+    /**
+     * Version of index file layout.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Size of index file header in bytes.
+     */
+    private static final int HEADER_SIZE = 28;
+
+    /**
+     * Mapped index file.
+     */
+    private MappedByteBuffer mBuffer;
+
+    /**
+     * Channel of mapped index file.
+     */
+    private FileChannel mChannel;
+
+    /**
+     * Number of entries.
+     */
+    private int mCount;
+
+    /**
+     * Number of hash table slots. Always a power of two.
+     */
+    private int mSlotCount;
+
+    /**
+     * Position of offsets table.
+     */
+    private int mOffsetsPosition;
+
+    /**
+     * Position of hash table.
+     */
+    private int mSlotsPosition;
+
+    /**
+     * Last update date of indexed manifest.
+     */
+    private long mLastUpdatedDate;
+
+    /**
+     * Private constructor called by {@link #open(java.io.File)}
+     *
+     * @param channel channel of index file
+     * @param buffer mapped index file
+     * @throws IOException if header is invalid
+     */
+    private VLSyncManifestIndex(FileChannel channel, MappedByteBuffer buffer) throws IOException{
+        this.mChannel = channel;
+        this.mBuffer = buffer;
+        if(buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION){
+            throw new IOException("Invalid manifest index.");
+        }
+        mCount = buffer.getInt(8);
+        mSlotCount = buffer.getInt(12);
+        mOffsetsPosition = buffer.getInt(16);
+        mLastUpdatedDate = buffer.getLong(20);
+        mSlotsPosition = mOffsetsPosition + 4 * mCount;
+        if(mCount < 0 || mSlotCount <= 0 || Integer.bitCount(mSlotCount) != 1 || mSlotsPosition + 4 * mSlotCount != buffer.capacity()){
+            throw new IOException("Invalid manifest index.");
+        }
+    }
+
+    /**
+     * Maps given index file to memory.
+     *
+     * @since 1.1
+     *
+     * @param file index file
+     * @return opened index
+     * @throws IOException if file cannot be mapped or it is invalid
+     */
+    protected static VLSyncManifestIndex open(File file) throws IOException{
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel();
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new VLSyncManifestIndex(channel, buffer);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes index file. Entries must not be read after this call.
+     *
+     * @since 1.1
+     */
+    protected void close(){
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            VLSync.log("Manifest index cannot be closed.", e);
+        }
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return number of entries in index
+     */
+    protected int size(){
+        return mCount;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return last update date of indexed manifest
+     */
+    protected long getLastUpdatedDate() {
+        return mLastUpdatedDate;
+    }
+
+    /**
+     * Finds entry number of given path.
+     *
+     * @since 1.1
+     *
+     * @param path path of file
+     * @return entry number or -1 if path is not indexed
+     */
+    protected int find(String path){
+        int hash = path.hashCode();
+        byte[] bytes = null;
+        int mask = mSlotCount - 1;
+        for (int slot = mix(hash) & mask, probes = 0; probes < mSlotCount; slot = (slot + 1) & mask, probes++){
+            int entry = mBuffer.getInt(mSlotsPosition + 4 * slot) - 1;
+            if(entry < 0){
+                return -1;
+            }
+            int position = recordPosition(entry);
+            if(mBuffer.getInt(position) != hash){
+                continue;
+            }
+            if(bytes == null){
+                bytes = encode(path);
+            }
+            if(pathEquals(position, bytes)){
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @param entry entry number
+     * @return path of entry
+     */
+    protected String getPath(int entry){
+        int position = recordPosition(entry) + 4;
+        return readString(position);
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @param entry entry number
+     * @return eTag of entry or null
+     */
+    protected String getEtag(int entry){
+        return readString(skipString(recordPosition(entry) + 4));
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @param entry entry number
+     * @return size of entry
+     */
+    protected long getSize(int entry){
+        return mBuffer.getLong(skipString(skipString(recordPosition(entry) + 4)));
+    }
+
+    /**
+     * Decodes entry as a file object.
+     *
+     * @since 1.1
+     *
+     * @param entry entry number
+     * @return file object of entry
+     */
+    protected VLSyncFile get(int entry){
+        int position = recordPosition(entry) + 4;
+        VLSyncFile file = new VLSyncFile();
+        file.setPath(readString(position));
+        position = skipString(position);
+        file.setEtag(readString(position));
+        position = skipString(position);
+        file.setSize(mBuffer.getLong(position));
+        return file;
+    }
+
+    /**
+     * @param entry entry number
+     * @return position of record of entry
+     */
+    private int recordPosition(int entry){
+        if(entry < 0 || entry >= mCount){
+            throw new IndexOutOfBoundsException("Invalid entry: " + entry);
+        }
+        return mBuffer.getInt(mOffsetsPosition + 4 * entry);
+    }
+
+    /**
+     * Compares path of record at given position with given bytes.
+     *
+     * @param position record position
+     * @param bytes UTF-8 bytes of path
+     * @return true if path is equal
+     */
+    private boolean pathEquals(int position, byte[] bytes){
+        position += 4;
+        int length = mBuffer.getShort(position) & 0xFFFF;
+        if(length != bytes.length){
+            return false;
+        }
+        position += 2;
+        for (int i = 0; i < length; i++) {
+            if(mBuffer.get(position + i) != bytes[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param position position of string length
+     * @return position right after string
+     */
+    private int skipString(int position){
+        int length = mBuffer.getShort(position) & 0xFFFF;
+        return position + 2 + (length == 0xFFFF ? 0 : length);
+    }
+
+    /**
+     * Reads a length prefixed string. Length 0xFFFF is null.
+     *
+     * @param position position of length
+     * @return string or null
+     */
+    private String readString(int position){
+        int length = mBuffer.getShort(position) & 0xFFFF;
+        if(length == 0xFFFF){
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer duplicate = mBuffer.duplicate();
+        duplicate.position(position + 2);
+        duplicate.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new VLSyncException(e);
+        }
+    }
+
+    /**
+     * Spreads higher bits of hash to lower bits.
+     *
+     * @param hash hash code
+     * @return mixed hash code
+     */
+    private static int mix(int hash){
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @param string string to encode
+     * @return UTF-8 bytes of string
+     */
+    private static byte[] encode(String string){
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new VLSyncException(e);
+        }
+    }
+
+    /**
+     * Writer for index files. Records are streamed to a part
+     * file as they are added, only their hashes and positions
+     * are kept in memory. Offsets and hash table are appended
+     * by {@link #commit(java.io.File)}.
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    protected static class Writer implements VLSyncManifestParser.OnFileParsedListener {
+
+        /**
+         * Part file records are written to.
+         */
+        private File mFile;
+
+        /**
+         * Output stream of {@link #mFile}
+         */
+        private DataOutputStream mOut;
+
+        /**
+         * Path hashes of entries.
+         */
+        private int[] mHashes = new int[256];
+
+        /**
+         * Record positions of entries.
+         */
+        private int[] mOffsets = new int[256];
+
+        /**
+         * Number of entries.
+         */
+        private int mCount = 0;
+
+        /**
+         * Current write position.
+         */
+        private int mPosition = HEADER_SIZE;
+
+        /**
+         * Last update date of indexed manifest.
+         */
+        private long mLastUpdatedDate;
+
+        /**
+         * Constructor method. Creates part file.
+         *
+         * @since 1.1
+         *
+         * @param file part file to write records
+         * @throws IOException if file cannot be created
+         */
+        protected Writer(File file) throws IOException {
+            this.mFile = file;
+            File parent = file.getParentFile();
+            if(parent != null && !parent.exists()){
+                parent.mkdirs();
+            }
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            mOut.write(new byte[HEADER_SIZE]);
+        }
+
+        /**
+         * Appends a file entry to index.
+         *
+         * @since 1.1
+         *
+         * @param file file entry
+         * @throws IOException if entry cannot be written
+         */
+        protected void add(VLSyncFile file) throws IOException {
+            if(file == null || file.getPath() == null){
+                return;
+            }
+            if(mCount == mOffsets.length){
+                int[] hashes = new int[mCount * 2];
+                int[] offsets = new int[mCount * 2];
+                System.arraycopy(mHashes, 0, hashes, 0, mCount);
+                System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+                mHashes = hashes;
+                mOffsets = offsets;
+            }
+            byte[] path = encode(file.getPath());
+            byte[] etag = file.getEtag() == null ? null : encode(file.getEtag());
+            if(path.length >= 0xFFFF || (etag != null && etag.length >= 0xFFFF)){
+                throw new IOException("Entry is too long: " + file.getPath());
+            }
+            int hash = file.getPath().hashCode();
+            mHashes[mCount] = hash;
+            mOffsets[mCount] = mPosition;
+            mCount++;
+
+            mOut.writeInt(hash);
+            mOut.writeShort(path.length);
+            mOut.write(path);
+            if(etag == null){
+                mOut.writeShort(0xFFFF);
+            }else{
+                mOut.writeShort(etag.length);
+                mOut.write(etag);
+            }
+            mOut.writeLong(file.getSize());
+            mPosition += 4 + 2 + path.length + 2 + (etag == null ? 0 : etag.length) + 8;
+        }
+
+        @Override
+        public void onFileParsed(VLSyncFile file) {
+            try {
+                add(file);
+            } catch (IOException e) {
+                throw new VLSyncException("Manifest index cannot be written.", e);
+            }
+        }
+
+        /**
+         * Setter method for {@link #mLastUpdatedDate}
+         *
+         * @since 1.1
+         *
+         * @param lastUpdatedDate in milliseconds
+         */
+        protected void setLastUpdatedDate(long lastUpdatedDate) {
+            this.mLastUpdatedDate = lastUpdatedDate;
+        }
+
+        /**
+         * Appends offsets and hash table, writes header and
+         * renames part file to target.
+         *
+         * @since 1.1
+         *
+         * @param target index file
+         * @throws IOException if index cannot be written
+         */
+        protected void commit(File target) throws IOException {
+            int slotCount = 2;
+            while (slotCount < mCount * 2){
+                slotCount <<= 1;
+            }
+            int[] slots = new int[slotCount];
+            int mask = slotCount - 1;
+            for (int i = 0; i < mCount; i++) {
+                int slot = mix(mHashes[i]) & mask;
+                while (slots[slot] != 0){
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = i + 1;
+            }
+
+            try {
+                for (int i = 0; i < mCount; i++) {
+                    mOut.writeInt(mOffsets[i]);
+                }
+                for (int slot : slots){
+                    mOut.writeInt(slot);
+                }
+            } finally {
+                mOut.close();
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeInt(mCount);
+                raf.writeInt(slotCount);
+                raf.writeInt(mPosition);
+                raf.writeLong(mLastUpdatedDate);
+            } finally {
+                raf.close();
+            }
+
+            if(target.exists() && !target.delete()){
+                throw new IOException("Old manifest index cannot be deleted.");
+            }
+            if(!mFile.renameTo(target)){
+                throw new IOException("Manifest index cannot be moved to " + target.getAbsolutePath());
+            }
+        }
+
+        /**
+         * Discards part file.
+         *
+         * @since 1.1
+         */
+        protected void abort(){
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                VLSync.log("Manifest index cannot be closed.", e);
+            }
+            mFile.delete();
+        }
+    }
+}
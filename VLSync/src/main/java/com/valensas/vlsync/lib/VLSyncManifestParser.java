@@ -0,0 +1,610 @@
+package com.valensas.vlsync.lib;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * Streaming parser for 'content.json' file. Entries are read one by
+ * one with {@link com.google.gson.stream.JsonReader} and handed to an
+ * {@link OnFileParsedListener}, so the whole files array is never
+ * materialized. Shards are small and kept in the returned content
+ * file. Adapters are written by hand, no reflection is used.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncManifestParser {
+
+    /**
+     * Adapter for single file entries.
+     */
+    protected static final FileAdapter FILE_ADAPTER = new FileAdapter();
+
+    /**
+     * Adapter for shard entries.
+     */
+    protected static final ShardAdapter SHARD_ADAPTER = new ShardAdapter();
+
+    /**
+     * Adapter for pack entries.
+     */
+    protected static final PackAdapter PACK_ADAPTER = new PackAdapter();
+
+    /**
+     * Adapter for patch entries.
+     */
+    protected static final PatchAdapter PATCH_ADAPTER = new PatchAdapter();
+
+    /**
+     * Adapter for whole content file.
+     */
+    protected static final ContentFileAdapter CONTENT_FILE_ADAPTER = new ContentFileAdapter();
+
+    /**
+     * Private constructor. This class has only static methods.
+     */
+    private VLSyncManifestParser(){
+    }
+
+    /**
+     * Parses given 'content.json' file entry by entry. Reader is
+     * closed before this method returns.
+     *
+     * @since 1.1
+     *
+     * @param file 'content.json' file
+     * @param listener called for every file entry
+     * @return content file object without files. Only header fields
+     * such as last updated date and shards are set.
+     * @throws IOException if file cannot be read or it is malformed
+     */
+    protected static VLSyncContentFile parse(File file, OnFileParsedListener listener) throws IOException{
+        return parse(new FileInputStream(file), listener);
+    }
+
+    /**
+     * Parses given 'content.json' stream entry by entry. Stream is
+     * closed before this method returns.
+     *
+     * @since 1.1
+     *
+     * @param stream 'content.json' stream
+     * @param listener called for every file entry
+     * @return content file object without files. Only header fields
+     * such as last updated date and shards are set.
+     * @throws IOException if stream cannot be read or it is malformed
+     */
+    protected static VLSyncContentFile parse(InputStream stream, OnFileParsedListener listener) throws IOException{
+        JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(stream, "UTF-8")));
+        try {
+            return readContentFile(reader, listener);
+        } catch (IllegalStateException e) {
+            throw new IOException("Malformed content.json", e);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed content.json", e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parses given 'content.json' file into a content file object
+     * with all of its files.
+     *
+     * @since 1.1
+     *
+     * @param file 'content.json' file
+     * @return parsed content file
+     * @throws IOException if file cannot be read or it is malformed
+     */
+    protected static VLSyncContentFile parse(File file) throws IOException{
+        Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            return CONTENT_FILE_ADAPTER.fromJson(reader);
+        } catch (IllegalStateException e) {
+            throw new IOException("Malformed content.json", e);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed content.json", e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads a content file object from reader. Files are handed to
+     * listener as they are read.
+     *
+     * @param reader json reader positioned at content object
+     * @param listener called for every file entry
+     * @return content file object without files
+     * @throws IOException if reader fails
+     */
+    private static VLSyncContentFile readContentFile(JsonReader reader, OnFileParsedListener listener) throws IOException{
+        VLSyncContentFile contentFile = new VLSyncContentFile();
+        reader.beginObject();
+        while (reader.hasNext()){
+            String name = reader.nextName();
+            if(reader.peek() == JsonToken.NULL){
+                reader.nextNull();
+                continue;
+            }
+            if("files".equals(name)){
+                reader.beginArray();
+                while (reader.hasNext()){
+                    VLSyncFile file = FILE_ADAPTER.read(reader);
+                    if(file != null){
+                        listener.onFileParsed(file);
+                    }
+                }
+                reader.endArray();
+            }else if(!readHeaderField(reader, name, contentFile)){
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return contentFile;
+    }
+
+    /**
+     * Reads a header field of a content object, that is shards,
+     * packs, patches, compressed extensions or last update date.
+     *
+     * @since 1.1
+     *
+     * @param reader json reader positioned at value of field
+     * @param name name of field
+     * @param contentFile content file object to set field of
+     * @return false if field is not a header field and it is not read
+     * @throws IOException if reader fails
+     */
+    protected static boolean readHeaderField(JsonReader reader, String name, VLSyncContentFile contentFile) throws IOException{
+        if("shards".equals(name)){
+            ArrayList<VLSyncShard> shards = new ArrayList<VLSyncShard>();
+            reader.beginArray();
+            while (reader.hasNext()){
+                VLSyncShard shard = SHARD_ADAPTER.read(reader);
+                if(shard != null && shard.getPath() != null && shard.getPrefix() != null){
+                    shards.add(shard);
+                }
+            }
+            reader.endArray();
+            contentFile.setShards(shards.toArray(new VLSyncShard[shards.size()]));
+        }else if("packs".equals(name)){
+            ArrayList<VLSyncPack> packs = new ArrayList<VLSyncPack>();
+            reader.beginArray();
+            while (reader.hasNext()){
+                VLSyncPack pack = PACK_ADAPTER.read(reader);
+                if(pack != null && pack.getPath() != null && pack.getPrefix() != null){
+                    packs.add(pack);
+                }
+            }
+            reader.endArray();
+            contentFile.setPacks(packs.toArray(new VLSyncPack[packs.size()]));
+        }else if("patches".equals(name)){
+            ArrayList<VLSyncPatch> patches = new ArrayList<VLSyncPatch>();
+            reader.beginArray();
+            while (reader.hasNext()){
+                VLSyncPatch patch = PATCH_ADAPTER.read(reader);
+                if(patch != null && patch.getPath() != null && patch.getTarget() != null && patch.getBase() != null){
+                    patches.add(patch);
+                }
+            }
+            reader.endArray();
+            contentFile.setPatches(patches.toArray(new VLSyncPatch[patches.size()]));
+        }else if("lastUpdatedDate".equals(name)){
+            contentFile.setLastUpdatedDate(reader.nextLong());
+        }else if("compressed".equals(name)){
+            ArrayList<String> extensions = new ArrayList<String>();
+            reader.beginArray();
+            while (reader.hasNext()){
+                extensions.add(reader.nextString());
+            }
+            reader.endArray();
+            contentFile.setCompressed(extensions.toArray(new String[extensions.size()]));
+        }else{
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Listener which is notified for every parsed file entry.
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    protected interface OnFileParsedListener {
+
+        /**
+         * Called when a file entry is parsed.
+         *
+         * @since 1.1
+         *
+         * @param file parsed entry
+         */
+        public void onFileParsed(VLSyncFile file);
+    }
+
+    /**
+     * Streaming writer for 'content.json' file. Entries are
+     * written as they are handed to {@link #onFileParsed(VLSyncFile)}.
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    protected static class Writer implements OnFileParsedListener {
+
+        /**
+         * File to write.
+         */
+        private File mFile;
+
+        /**
+         * Json writer of {@link #mFile}
+         */
+        private JsonWriter mWriter;
+
+        /**
+         * Constructor method. Opens files array.
+         *
+         * @since 1.1
+         *
+         * @param file file to write
+         * @throws IOException if file cannot be created
+         */
+        protected Writer(File file) throws IOException {
+            this.mFile = file;
+            File parent = file.getParentFile();
+            if(parent != null && !parent.exists()){
+                parent.mkdirs();
+            }
+            mWriter = new JsonWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8")));
+            mWriter.beginObject();
+            mWriter.name("files");
+            mWriter.beginArray();
+        }
+
+        @Override
+        public void onFileParsed(VLSyncFile file) {
+            try {
+                FILE_ADAPTER.write(mWriter, file);
+            } catch (IOException e) {
+                throw new VLSyncException("Content file cannot be written.", e);
+            }
+        }
+
+        /**
+         * Closes files array, writes header fields and closes file.
+         *
+         * @since 1.1
+         *
+         * @param lastUpdatedDate last update date of manifest
+         * @throws IOException if file cannot be written
+         */
+        protected void close(long lastUpdatedDate) throws IOException {
+            try {
+                mWriter.endArray();
+                mWriter.name("lastUpdatedDate").value(lastUpdatedDate);
+                mWriter.endObject();
+            } finally {
+                mWriter.close();
+            }
+        }
+
+        /**
+         * Discards written file.
+         *
+         * @since 1.1
+         */
+        protected void abort(){
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                VLSync.log("Content file cannot be closed.", e);
+            }
+            mFile.delete();
+        }
+    }
+
+    /**
+     * Reflection free adapter for {@link com.valensas.vlsync.lib.VLSyncFile}
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    protected static class FileAdapter extends TypeAdapter<VLSyncFile> {
+
+        @Override
+        public void write(JsonWriter out, VLSyncFile file) throws IOException {
+            if(file == null){
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("etag").value(file.getEtag());
+            out.name("path").value(file.getPath());
+            out.name("size").value(file.getSize());
+            out.endObject();
+        }
+
+        @Override
+        public VLSyncFile read(JsonReader in) throws IOException {
+            if(in.peek() == JsonToken.NULL){
+                in.nextNull();
+                return null;
+            }
+            VLSyncFile file = new VLSyncFile();
+            in.beginObject();
+            while (in.hasNext()){
+                String name = in.nextName();
+                if(in.peek() == JsonToken.NULL){
+                    in.nextNull();
+                }else if("etag".equals(name)){
+                    file.setEtag(in.nextString());
+                }else if("path".equals(name)){
+                    file.setPath(in.nextString());
+                }else if("size".equals(name)){
+                    file.setSize(in.nextLong());
+                }else{
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return file;
+        }
+    }
+
+    /**
+     * Reflection free adapter for {@link com.valensas.vlsync.lib.VLSyncShard}
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    protected static class ShardAdapter extends TypeAdapter<VLSyncShard> {
+
+        @Override
+        public void write(JsonWriter out, VLSyncShard shard) throws IOException {
+            if(shard == null){
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("path").value(shard.getPath());
+            out.name("prefix").value(shard.getPrefix());
+            out.name("hash").value(shard.getHash());
+            out.name("etag").value(shard.getEtag());
+            out.name("size").value(shard.getSize());
+            out.endObject();
+        }
+
+        @Override
+        public VLSyncShard read(JsonReader in) throws IOException {
+            if(in.peek() == JsonToken.NULL){
+                in.nextNull();
+                return null;
+            }
+            VLSyncShard shard = new VLSyncShard();
+            in.beginObject();
+            while (in.hasNext()){
+                String name = in.nextName();
+                if(in.peek() == JsonToken.NULL){
+                    in.nextNull();
+                }else if("path".equals(name)){
+                    shard.setPath(in.nextString());
+                }else if("prefix".equals(name)){
+                    shard.setPrefix(in.nextString());
+                }else if("hash".equals(name)){
+                    shard.setHash(in.nextString());
+                }else if("etag".equals(name)){
+                    shard.setEtag(in.nextString());
+                }else if("size".equals(name)){
+                    shard.setSize(in.nextLong());
+                }else{
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return shard;
+        }
+    }
+
+    /**
+     * Reflection free adapter for {@link com.valensas.vlsync.lib.VLSyncPack}
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    protected static class PackAdapter extends TypeAdapter<VLSyncPack> {
+
+        @Override
+        public void write(JsonWriter out, VLSyncPack pack) throws IOException {
+            if(pack == null){
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("path").value(pack.getPath());
+            out.name("prefix").value(pack.getPrefix());
+            out.name("etag").value(pack.getEtag());
+            out.name("size").value(pack.getSize());
+            out.endObject();
+        }
+
+        @Override
+        public VLSyncPack read(JsonReader in) throws IOException {
+            if(in.peek() == JsonToken.NULL){
+                in.nextNull();
+                return null;
+            }
+            VLSyncPack pack = new VLSyncPack();
+            in.beginObject();
+            while (in.hasNext()){
+                String name = in.nextName();
+                if(in.peek() == JsonToken.NULL){
+                    in.nextNull();
+                }else if("path".equals(name)){
+                    pack.setPath(in.nextString());
+                }else if("prefix".equals(name)){
+                    pack.setPrefix(in.nextString());
+                }else if("etag".equals(name)){
+                    pack.setEtag(in.nextString());
+                }else if("size".equals(name)){
+                    pack.setSize(in.nextLong());
+                }else{
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return pack;
+        }
+    }
+
+    /**
+     * Reflection free adapter for {@link com.valensas.vlsync.lib.VLSyncPatch}
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    protected static class PatchAdapter extends TypeAdapter<VLSyncPatch> {
+
+        @Override
+        public void write(JsonWriter out, VLSyncPatch patch) throws IOException {
+            if(patch == null){
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("path").value(patch.getPath());
+            out.name("target").value(patch.getTarget());
+            out.name("base").value(patch.getBase());
+            out.name("etag").value(patch.getEtag());
+            out.name("size").value(patch.getSize());
+            out.endObject();
+        }
+
+        @Override
+        public VLSyncPatch read(JsonReader in) throws IOException {
+            if(in.peek() == JsonToken.NULL){
+                in.nextNull();
+                return null;
+            }
+            VLSyncPatch patch = new VLSyncPatch();
+            in.beginObject();
+            while (in.hasNext()){
+                String name = in.nextName();
+                if(in.peek() == JsonToken.NULL){
+                    in.nextNull();
+                }else if("path".equals(name)){
+                    patch.setPath(in.nextString());
+                }else if("target".equals(name)){
+                    patch.setTarget(in.nextString());
+                }else if("base".equals(name)){
+                    patch.setBase(in.nextString());
+                }else if("etag".equals(name)){
+                    patch.setEtag(in.nextString());
+                }else if("size".equals(name)){
+                    patch.setSize(in.nextLong());
+                }else{
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return patch;
+        }
+    }
+
+    /**
+     * Reflection free adapter for {@link com.valensas.vlsync.lib.VLSyncContentFile}
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    protected static class ContentFileAdapter extends TypeAdapter<VLSyncContentFile> {
+
+        @Override
+        public void write(JsonWriter out, VLSyncContentFile contentFile) throws IOException {
+            if(contentFile == null){
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("lastUpdatedDate").value(contentFile.getLastUpdatedDate());
+            out.name("files");
+            out.beginArray();
+            if(contentFile.getFiles() != null){
+                for (VLSyncFile file : contentFile.getFiles()){
+                    FILE_ADAPTER.write(out, file);
+                }
+            }
+            out.endArray();
+            if(contentFile.getShards() != null){
+                out.name("shards");
+                out.beginArray();
+                for (VLSyncShard shard : contentFile.getShards()){
+                    SHARD_ADAPTER.write(out, shard);
+                }
+                out.endArray();
+            }
+            if(contentFile.getPacks() != null){
+                out.name("packs");
+                out.beginArray();
+                for (VLSyncPack pack : contentFile.getPacks()){
+                    PACK_ADAPTER.write(out, pack);
+                }
+                out.endArray();
+            }
+            if(contentFile.getPatches() != null){
+                out.name("patches");
+                out.beginArray();
+                for (VLSyncPatch patch : contentFile.getPatches()){
+                    PATCH_ADAPTER.write(out, patch);
+                }
+                out.endArray();
+            }
+            if(contentFile.getCompressed() != null){
+                out.name("compressed");
+                out.beginArray();
+                for (String extension : contentFile.getCompressed()){
+                    out.value(extension);
+                }
+                out.endArray();
+            }
+            out.endObject();
+        }
+
+        @Override
+        public VLSyncContentFile read(JsonReader in) throws IOException {
+            if(in.peek() == JsonToken.NULL){
+                in.nextNull();
+                return null;
+            }
+            final ArrayList<VLSyncFile> files = new ArrayList<VLSyncFile>();
+            VLSyncContentFile contentFile = readContentFile(in, new OnFileParsedListener() {
+                @Override
+                public void onFileParsed(VLSyncFile file) {
+                    files.add(file);
+                }
+            });
+            contentFile.setFiles(files.toArray(new VLSyncFile[files.size()]));
+            return contentFile;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package com.valensas.vlsync.lib;
+
+import android.app.DownloadManager;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mirrors of a project and their health. Latency of each mirror is
+ * probed with a 'HEAD' request and traffic goes to the fastest
+ * healthy one. A mirror which fails a request is skipped for a
+ * backoff period which grows with consecutive failures, so requests
+ * fail over to the next mirror. All mirrors are expected to serve
+ * the same objects, a lagging mirror is caught by eTag checks of
+ * downloaded files.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncMirrors {
+
+    /**
+     * Time in milliseconds after which latencies are probed again.
+     */
+    protected static final long PROBE_INTERVAL = 5 * 60 * 1000;
+
+    /**
+     * Connect and read timeout of a probe in milliseconds.
+     */
+    private static final int PROBE_TIMEOUT = 3000;
+
+    /**
+     * Time in milliseconds a mirror is skipped after its first
+     * failure.
+     */
+    private static final long INITIAL_BACKOFF = 5000;
+
+    /**
+     * Longest time in milliseconds a mirror is skipped.
+     */
+    private static final long MAX_BACKOFF = 5 * 60 * 1000;
+
+    /**
+     * Mirrors in configured order.
+     */
+    private final Mirror[] mMirrors;
+
+    /**
+     * Time of last probe, 0 if mirrors are not probed yet.
+     */
+    private long mProbedAt = 0;
+
+    /**
+     * Constructor method.
+     *
+     * @since 1.1
+     *
+     * @param projectURLs project URLs on each mirror, ending with a
+     *                    slash, in order of preference before probing
+     */
+    protected VLSyncMirrors(String[] projectURLs){
+        if(projectURLs == null || projectURLs.length == 0){
+            throw new VLSyncException("At least one mirror is required.");
+        }
+        mMirrors = new Mirror[projectURLs.length];
+        for (int i = 0; i < projectURLs.length; i++){
+            mMirrors[i] = new Mirror(projectURLs[i], i);
+        }
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return number of mirrors
+     */
+    protected int size(){
+        return mMirrors.length;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return project URL on fastest healthy mirror, or on the mirror
+     * which recovers first if none is healthy
+     */
+    protected String select(){
+        return ordered().get(0);
+    }
+
+    /**
+     * Orders mirrors to try for a request. Healthy mirrors come
+     * first, fastest first, then mirrors in backoff by the time they
+     * recover.
+     *
+     * @since 1.1
+     *
+     * @return project URLs of all mirrors
+     */
+    protected synchronized List<String> ordered(){
+        final long now = System.currentTimeMillis();
+        Mirror[] mirrors = Arrays.copyOf(mMirrors, mMirrors.length);
+        Arrays.sort(mirrors, new Comparator<Mirror>() {
+            @Override
+            public int compare(Mirror a, Mirror b) {
+                boolean aHealthy = a.downUntil <= now;
+                boolean bHealthy = b.downUntil <= now;
+                if(aHealthy != bHealthy){
+                    return aHealthy ? -1 : 1;
+                }
+                if(!aHealthy && a.downUntil != b.downUntil){
+                    return a.downUntil < b.downUntil ? -1 : 1;
+                }
+                long aLatency = a.latency < 0 ? Long.MAX_VALUE : a.latency;
+                long bLatency = b.latency < 0 ? Long.MAX_VALUE : b.latency;
+                if(aLatency != bLatency){
+                    return aLatency < bLatency ? -1 : 1;
+                }
+                return a.order - b.order;
+            }
+        });
+        List<String> urls = new ArrayList<String>(mirrors.length);
+        for (Mirror mirror : mirrors){
+            urls.add(mirror.url);
+        }
+        return urls;
+    }
+
+    /**
+     * Marks a mirror healthy after a successful request.
+     *
+     * @since 1.1
+     *
+     * @param projectURL project URL on mirror
+     */
+    protected synchronized void onSuccess(String projectURL){
+        Mirror mirror = find(projectURL);
+        if(mirror != null){
+            mirror.failures = 0;
+            mirror.downUntil = 0;
+        }
+    }
+
+    /**
+     * Puts a mirror in backoff after a failed request.
+     *
+     * @since 1.1
+     *
+     * @param projectURL project URL on mirror
+     */
+    protected synchronized void onFailure(String projectURL){
+        Mirror mirror = find(projectURL);
+        if(mirror == null || mMirrors.length == 1){
+            return;
+        }
+        long backoff = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(mirror.failures, 16));
+        mirror.failures++;
+        mirror.downUntil = System.currentTimeMillis() + backoff;
+        VLSync.log("Mirror is skipped for " + backoff + " ms: " + projectURL);
+    }
+
+    /**
+     * Finds the URL of the same object on another mirror.
+     *
+     * @since 1.1
+     *
+     * @param url URL of an object on a mirror
+     * @return URL on the fastest other healthy mirror, or given URL if
+     * there is none
+     */
+    protected String alternate(String url){
+        String current = null;
+        for (Mirror mirror : mMirrors){
+            if(url.startsWith(mirror.url)){
+                current = mirror.url;
+                break;
+            }
+        }
+        if(current == null){
+            return url;
+        }
+        long now = System.currentTimeMillis();
+        for (String mirror : ordered()){
+            if(!mirror.equals(current)){
+                synchronized (this){
+                    if(find(mirror).downUntil > now){
+                        break;
+                    }
+                }
+                return mirror + url.substring(current.length());
+            }
+        }
+        return url;
+    }
+
+    /**
+     * Decides whether a failed request tells that its mirror is
+     * unhealthy rather than the object is missing or stale on it.
+     *
+     * @since 1.1
+     *
+     * @param status status reported by
+     *               {@link VLSyncDownloadTask.OnDownloadFinishedListener#failed(int)}
+     * @return true if mirror should be put in backoff
+     */
+    protected static boolean isMirrorFailure(int status){
+        return status == VLSyncDownloadTask.NO_STATUS
+                || (status >= 500 && status < 600)
+                || status == DownloadManager.ERROR_UNKNOWN
+                || status == DownloadManager.ERROR_HTTP_DATA_ERROR;
+    }
+
+    /**
+     * Probes mirrors if there are more than one and they are not
+     * probed within {@link #PROBE_INTERVAL}. Called from background
+     * thread.
+     *
+     * @since 1.1
+     *
+     * @param path path of a small object to probe with, relative to
+     *             project URL
+     */
+    protected void probeIfStale(String path){
+        synchronized (this){
+            if(mMirrors.length < 2 || System.currentTimeMillis() - mProbedAt < PROBE_INTERVAL){
+                return;
+            }
+            mProbedAt = System.currentTimeMillis();
+        }
+        probe(path);
+    }
+
+    /**
+     * Measures latency of all mirrors in parallel with a 'HEAD'
+     * request. Mirrors which cannot be reached or answer with a
+     * server error are put in backoff. Blocks until all probes are
+     * answered or timed out.
+     *
+     * @since 1.1
+     *
+     * @param path path of a small object to probe with, relative to
+     *             project URL
+     */
+    protected void probe(final String path){
+        ExecutorService executor = Executors.newFixedThreadPool(mMirrors.length);
+        List<Callable<Void>> probes = new ArrayList<Callable<Void>>();
+        for (final Mirror mirror : mMirrors){
+            probes.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    probe(mirror, path);
+                    return null;
+                }
+            });
+        }
+        try {
+            executor.invokeAll(probes, 2 * PROBE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        VLSync.log("Mirrors are probed: " + this);
+    }
+
+    /**
+     * Probes a mirror and records the result.
+     *
+     * @param mirror mirror to probe
+     * @param path path of object to probe with
+     */
+    private void probe(Mirror mirror, String path){
+        long start = System.nanoTime();
+        int code;
+        try {
+            HttpURLConnection con = VLSyncConnections.open(mirror.url + path);
+            con.setConnectTimeout(PROBE_TIMEOUT);
+            con.setReadTimeout(PROBE_TIMEOUT);
+            con.setRequestMethod("HEAD");
+            code = con.getResponseCode();
+            VLSyncConnections.discard(con);
+        } catch (IOException e) {
+            VLSync.log("Mirror cannot be probed: " + mirror.url, e);
+            onFailure(mirror.url);
+            return;
+        }
+        long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if(isMirrorFailure(code)){
+            onFailure(mirror.url);
+            return;
+        }
+        synchronized (this){
+            mirror.latency = mirror.latency < 0 ? latency : (mirror.latency + latency) / 2;
+            mirror.failures = 0;
+            mirror.downUntil = 0;
+        }
+    }
+
+    /**
+     * @param projectURL project URL on a mirror
+     * @return mirror or null if URL is not of a mirror
+     */
+    private Mirror find(String projectURL){
+        for (Mirror mirror : mMirrors){
+            if(mirror.url.equals(projectURL)){
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"mirrors\":" + Arrays.toString(mMirrors) + " }";
+    }
+
+    /**
+     * State of a mirror. Guarded by its {@link VLSyncMirrors}.
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    private static class Mirror {
+
+        /**
+         * Project URL on mirror.
+         */
+        private final String url;
+
+        /**
+         * Position in configured order.
+         */
+        private final int order;
+
+        /**
+         * Smoothed probe latency in milliseconds, -1 if unknown.
+         */
+        private long latency = -1;
+
+        /**
+         * Number of consecutive failures.
+         */
+        private int failures = 0;
+
+        /**
+         * Time until which mirror is skipped.
+         */
+        private long downUntil = 0;
+
+        /**
+         * @param url project URL on mirror
+         * @param order position in configured order
+         */
+        private Mirror(String url, int order){
+            this.url = url;
+            this.order = order;
+        }
+
+        @Override
+        public String toString() {
+            return "{ \"url\":\"" + url + "\", \"latency\":" + latency + ", \"failures\":" + failures + " }";
+        }
+    }
+}
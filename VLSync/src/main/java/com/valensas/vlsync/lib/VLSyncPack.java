@@ -0,0 +1,77 @@
+package com.valensas.vlsync.lib;
+
+/**
+ * This class represents a pack referenced at 'content.json' file's
+ * packs field. A pack is a zip or tar archive of current versions of
+ * all files under {@link #prefix} directory. When many files under
+ * the prefix are changed, the pack is downloaded once and extracted
+ * instead of requesting files one by one.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @see com.valensas.vlsync.lib.VLSyncContentFile#packs
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncPack extends VLSyncFile {
+
+    /**
+     * Estimated cost of a request round trip in bytes. Requests of
+     * single files are weighed against bytes of unchanged files
+     * in a pack with it.
+     */
+    protected static final long REQUEST_COST = 32 * 1024;
+
+    /**
+     * Directory prefix of files in pack, ending with a slash.
+     */
+    private String prefix;
+
+    /**
+     * Getter method for {@link #prefix}
+     *
+     * @since 1.1
+     *
+     * @return {@link #prefix}
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Setter method for {@link #prefix}
+     *
+     * @since 1.1
+     *
+     * @param prefix directory prefix. A slash is appended if missing.
+     */
+    public void setPrefix(String prefix) {
+        if(prefix != null && !prefix.endsWith("/")){
+            prefix += "/";
+        }
+        this.prefix = prefix;
+    }
+
+    /**
+     * Decides whether the pack is cheaper to download than changed
+     * files in it. The pack costs its size and a request, files cost
+     * their sizes and a request each.
+     *
+     * @since 1.1
+     *
+     * @param files number of files in download set under prefix
+     * @param bytes total size of files in download set under prefix
+     * @return true if pack should be downloaded
+     */
+    protected boolean isWorthFetching(int files, long bytes){
+        return files > 1 && getSize() + REQUEST_COST < bytes + files * REQUEST_COST;
+    }
+
+    @Override
+    public String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"path\":" + getPath() + ", \"prefix\":" + prefix + ", \"size\":" + getSize() + " }";
+    }
+}
@@ -0,0 +1,232 @@
+package com.valensas.vlsync.lib;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Downloads a pack and extracts its entries into temp folder while
+ * the archive is streamed, so the archive itself is never written to
+ * disk. Only entries which are in the download set are extracted,
+ * each one is checked against size and eTag of its manifest entry.
+ * Entries which are missing in the pack or do not match are left to
+ * be downloaded one by one. Zip, tar and gzip compressed tar archives
+ * are supported, selected by extension of pack path.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncPackTransfer {
+
+    /**
+     * Size of copy buffer in bytes.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Download URL of pack.
+     */
+    private String mUrl;
+
+    /**
+     * Folder which entries are extracted to.
+     */
+    private File mRoot;
+
+    /**
+     * Manifest entries to extract keyed by path.
+     */
+    private Map<String, VLSyncFile> mWanted;
+
+    /**
+     * Paths of extracted entries.
+     */
+    private Set<String> mExtracted = new HashSet<String>();
+
+    /**
+     * Constructor method.
+     *
+     * @since 1.1
+     *
+     * @param url download URL of pack
+     * @param root folder which entries are extracted to
+     * @param wanted manifest entries to extract keyed by path
+     */
+    protected VLSyncPackTransfer(String url, File root, Map<String, VLSyncFile> wanted){
+        this.mUrl = url;
+        this.mRoot = root;
+        this.mWanted = wanted;
+    }
+
+    /**
+     * Downloads and extracts pack on calling thread. Entries extracted
+     * before a failure are kept, see {@link #getExtracted()}
+     *
+     * @since 1.1
+     *
+     * @throws IOException if pack cannot be downloaded or read
+     */
+    protected void run() throws IOException{
+        HttpURLConnection con = VLSyncConnections.open(mUrl);
+        con.setRequestProperty("Accept-Encoding", "gzip");
+        int code = con.getResponseCode();
+        if(code != HttpURLConnection.HTTP_OK){
+            VLSyncConnections.discard(con);
+            throw new VLSyncHttpTransport.StatusException(code, "Unexpected response " + code + " for " + mUrl);
+        }
+
+        InputStream raw = con.getInputStream();
+        InputStream archive = null;
+        try {
+            InputStream in = "gzip".equalsIgnoreCase(con.getContentEncoding()) ? new GZIPInputStream(raw, BUFFER_SIZE) : raw;
+            String path = stripQuery(mUrl);
+            if(path.endsWith(".zip")){
+                ZipInputStream zip = new ZipInputStream(in);
+                archive = zip;
+                extract(zip);
+            }else{
+                if(path.endsWith(".tar.gz") || path.endsWith(".tgz")){
+                    in = new GZIPInputStream(in, BUFFER_SIZE);
+                }
+                VLSyncTarInputStream tar = new VLSyncTarInputStream(in);
+                archive = tar;
+                extract(tar);
+            }
+        } finally {
+            VLSyncConnections.release(con, raw);
+            if(archive != null){
+                // ends inflaters, body is already drained
+                IOUtils.closeQuietly(archive);
+            }
+        }
+        VLSync.log("Extracted " + mExtracted.size() + " of " + mWanted.size() + " files from " + mUrl);
+    }
+
+    /**
+     * @param archive zip archive stream
+     * @throws IOException if archive cannot be read
+     */
+    private void extract(ZipInputStream archive) throws IOException{
+        ZipEntry entry;
+        while ((entry = archive.getNextEntry()) != null){
+            if(!entry.isDirectory()){
+                extract(entry.getName(), archive);
+            }
+        }
+    }
+
+    /**
+     * @param archive tar archive stream
+     * @throws IOException if archive cannot be read
+     */
+    private void extract(VLSyncTarInputStream archive) throws IOException{
+        String name;
+        while ((name = archive.getNextEntry()) != null){
+            extract(name, archive);
+        }
+    }
+
+    /**
+     * Writes body of an entry next to its target and moves it in
+     * place if it matches its manifest entry. Entries which are not
+     * wanted are left unread, archive stream skips them.
+     *
+     * @param name name of entry in archive
+     * @param body stream which reads body of entry
+     * @throws IOException if entry cannot be read or written
+     */
+    private void extract(String name, InputStream body) throws IOException{
+        if(name.startsWith("./")){
+            name = name.substring(2);
+        }
+        VLSyncFile file = mWanted.get(name);
+        if(file == null || mExtracted.contains(name)){
+            return;
+        }
+
+        File target = new File(mRoot, name);
+        File part = new File(target.getPath() + VLSyncHttpTransport.PART_SUFFIX);
+        File parent = target.getParentFile();
+        if(parent != null && !parent.exists()){
+            parent.mkdirs();
+        }
+
+        VLSyncChecksum checksum = VLSyncChecksum.create(file.getEtag(), file.getSize());
+        long written = 0;
+        boolean complete = false;
+        FileOutputStream out = new FileOutputStream(part);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = body.read(buffer)) != -1){
+                if(checksum != null){
+                    checksum.update(buffer, 0, read);
+                }
+                out.write(buffer, 0, read);
+                written += read;
+            }
+            complete = true;
+        } finally {
+            out.close();
+            if(!complete){
+                part.delete();
+            }
+        }
+
+        if(written != file.getSize() || (checksum != null && !checksum.matches())){
+            VLSync.log("Entry of pack does not match manifest. It will be downloaded alone: " + name);
+            part.delete();
+            return;
+        }
+        if((target.exists() && !target.delete()) || !part.renameTo(target)){
+            part.delete();
+            throw new IOException("Extracted file cannot be moved to " + target.getAbsolutePath());
+        }
+        mExtracted.add(name);
+    }
+
+    /**
+     * @param url download URL
+     * @return URL without query and fragment
+     */
+    private static String stripQuery(String url){
+        int end = url.length();
+        int query = url.indexOf('?');
+        int fragment = url.indexOf('#');
+        if(query >= 0){
+            end = query;
+        }
+        if(fragment >= 0 && fragment < end){
+            end = fragment;
+        }
+        return url.substring(0, end);
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return paths of entries which are extracted and verified
+     */
+    protected Set<String> getExtracted() {
+        return mExtracted;
+    }
+
+    @Override
+    public String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"url\":\"" + mUrl + "\", \"wanted\":" + mWanted.size() + ", \"extracted\":" + mExtracted.size() + " }";
+    }
+}
@@ -0,0 +1,78 @@
+package com.valensas.vlsync.lib;
+
+/**
+ * This class represents a patch referenced at 'content.json' file's
+ * patches field. A patch is a VCDIFF document at {@link #getPath()}
+ * which turns version {@link #base} of file {@link #target} into its
+ * version listed in the manifest.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @see com.valensas.vlsync.lib.VLSyncContentFile#patches
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncPatch extends VLSyncFile {
+
+    /**
+     * Path of patched file.
+     */
+    private String target;
+
+    /**
+     * ETag of file version which patch is made against.
+     */
+    private String base;
+
+    /**
+     * Getter method for {@link #target}
+     *
+     * @since 1.1
+     *
+     * @return {@link #target}
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * Setter method for {@link #target}
+     *
+     * @since 1.1
+     *
+     * @param target path of patched file
+     */
+    public void setTarget(String target) {
+        this.target = target;
+    }
+
+    /**
+     * Getter method for {@link #base}
+     *
+     * @since 1.1
+     *
+     * @return {@link #base}
+     */
+    public String getBase() {
+        return base;
+    }
+
+    /**
+     * Setter method for {@link #base}
+     *
+     * @since 1.1
+     *
+     * @param base eTag of file version which patch is made against
+     */
+    public void setBase(String base) {
+        this.base = base;
+    }
+
+    @Override
+    public String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"path\":" + getPath() + ", \"target\":" + target + ", \"base\":\"" + base + "\", \"size\":" + getSize() + " }";
+    }
+}
@@ -0,0 +1,145 @@
+package com.valensas.vlsync.lib;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Downloads a patch and applies it against the committed copy of a
+ * file while the patch is streamed. Result is written next to its
+ * target in temp folder and moved in place only if it matches size
+ * and eTag of the manifest entry, otherwise the file must be
+ * downloaded whole.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @see com.valensas.vlsync.lib.VLSyncVcdiff
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncPatchTransfer {
+
+    /**
+     * Size of decompression buffer in bytes.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Download URL of patch.
+     */
+    private String mUrl;
+
+    /**
+     * Committed copy which patch is applied against.
+     */
+    private File mBase;
+
+    /**
+     * File to save result to.
+     */
+    private File mFile;
+
+    /**
+     * Size of file listed in manifest.
+     */
+    private long mSize;
+
+    /**
+     * ETag of file listed in manifest.
+     */
+    private String mETag;
+
+    /**
+     * Constructor method.
+     *
+     * @since 1.1
+     *
+     * @param url download URL of patch
+     * @param base committed copy which patch is applied against
+     * @param file file to save result to
+     * @param size size of file listed in manifest
+     * @param eTag eTag of file listed in manifest
+     */
+    protected VLSyncPatchTransfer(String url, File base, File file, long size, String eTag){
+        this.mUrl = url;
+        this.mBase = base;
+        this.mFile = file;
+        this.mSize = size;
+        this.mETag = eTag;
+    }
+
+    /**
+     * Downloads and applies patch on calling thread. Patches are not
+     * applied to files whose eTag cannot be verified, as a corrupt
+     * committed copy would go unnoticed.
+     *
+     * @since 1.1
+     *
+     * @return true if result matches manifest entry and is moved in
+     * place, false if the file must be downloaded whole
+     * @throws IOException if patch cannot be downloaded or applied
+     */
+    protected boolean run() throws IOException{
+        VLSyncChecksum checksum = VLSyncChecksum.create(mETag, mSize);
+        if(checksum == null){
+            VLSync.log("Result of patch cannot be verified. Skipping " + mUrl);
+            return false;
+        }
+
+        HttpURLConnection con = VLSyncConnections.open(mUrl);
+        con.setRequestProperty("Accept-Encoding", "gzip");
+        int code = con.getResponseCode();
+        if(code != HttpURLConnection.HTTP_OK){
+            VLSyncConnections.discard(con);
+            throw new VLSyncHttpTransport.StatusException(code, "Unexpected response " + code + " for " + mUrl);
+        }
+
+        File part = new File(mFile.getPath() + VLSyncHttpTransport.PART_SUFFIX);
+        File parent = mFile.getParentFile();
+        if(parent != null && !parent.exists()){
+            parent.mkdirs();
+        }
+
+        long length;
+        InputStream raw = con.getInputStream();
+        InputStream in = raw;
+        try {
+            if("gzip".equalsIgnoreCase(con.getContentEncoding())){
+                in = new GZIPInputStream(raw, BUFFER_SIZE);
+            }
+            length = VLSyncVcdiff.apply(mBase, in, part, checksum);
+        } catch (IOException e) {
+            part.delete();
+            throw e;
+        } finally {
+            VLSyncConnections.release(con, raw);
+            if(in != raw){
+                // ends the inflater, body is already drained
+                IOUtils.closeQuietly(in);
+            }
+        }
+
+        if(length != mSize || !checksum.matches()){
+            VLSync.log("Result of patch does not match manifest: " + mUrl);
+            part.delete();
+            return false;
+        }
+        if((mFile.exists() && !mFile.delete()) || !part.renameTo(mFile)){
+            part.delete();
+            throw new IOException("Patched file cannot be moved to " + mFile.getAbsolutePath());
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"url\":\"" + mUrl + "\", \"base\":\"" + mBase + "\", \"size\":" + mSize + " }";
+    }
+}
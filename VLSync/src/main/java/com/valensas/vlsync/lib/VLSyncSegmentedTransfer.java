@@ -0,0 +1,567 @@
+package com.valensas.vlsync.lib;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Transfer of a large file as several byte ranges in parallel. The
+ * '.part' file is preallocated to the size of the file and every
+ * segment is written to its own region with positional
+ * {@link java.nio.channels.FileChannel} writes, so the file is
+ * complete once the last segment ends and it is only renamed. The
+ * first response tells eTag of the file, which is sent as
+ * 'If-Range' by other segments and kept in the resume record with
+ * progress of each segment, so an interrupted transfer continues
+ * every segment where it stopped. The record is saved periodically
+ * and whenever a segment ends, after written bytes are forced to
+ * storage, so a transfer killed with its process does not start
+ * over.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncSegmentedTransfer {
+
+    /**
+     * Size of transfer buffer of each segment in bytes.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Interval in milliseconds resume record is saved at while
+     * segments are written.
+     */
+    private static final long RECORD_INTERVAL = 1000;
+
+    /**
+     * Download URL.
+     */
+    private String mUrl;
+
+    /**
+     * File to save downloaded content to.
+     */
+    private File mFile;
+
+    /**
+     * Preallocated file segments are written to.
+     */
+    private File mPart;
+
+    /**
+     * Resume record of {@link #mPart}.
+     */
+    private File mRecord;
+
+    /**
+     * Size of file in bytes.
+     */
+    private long mSize;
+
+    /**
+     * eTag of file listed in manifest or null.
+     */
+    private String mExpectedETag;
+
+    /**
+     * Worker threads of segments other than the first one.
+     */
+    private ExecutorService mExecutor;
+
+    /**
+     * Strong eTag of file or null if origin does not give one.
+     */
+    private String mETag;
+
+    /**
+     * First byte position of each segment.
+     */
+    private long[] mStarts;
+
+    /**
+     * Last byte position of each segment, inclusive.
+     */
+    private long[] mEnds;
+
+    /**
+     * Next byte position to be written of each segment.
+     */
+    private AtomicLongArray mPositions;
+
+    /**
+     * Open connection of each segment to abort transfers when one of
+     * them fails.
+     */
+    private AtomicReferenceArray<HttpURLConnection> mConnections;
+
+    /**
+     * Flag whether transfer is aborted because a segment failed.
+     */
+    private volatile boolean mAborted;
+
+    /**
+     * Time in milliseconds resume record was last saved at.
+     */
+    private volatile long mSavedAt;
+
+    /**
+     * Constructor method.
+     *
+     * @since 1.1
+     *
+     * @param url download URL
+     * @param file file to save downloaded content to
+     * @param size size of file in bytes as listed in manifest
+     * @param expectedETag eTag of file listed in manifest or null
+     * @param segments number of segments, at least 2
+     * @param executor executor which runs segments other than the
+     *                 first one. It must not queue tasks, otherwise
+     *                 segments may wait for each other.
+     */
+    protected VLSyncSegmentedTransfer(String url, File file, long size, String expectedETag, int segments, ExecutorService executor){
+        if(segments < 2 || size < segments){
+            VLSync.log("File cannot be split into " + segments + " segments.");
+            throw new VLSyncException("File cannot be split into " + segments + " segments.");
+        }
+        this.mUrl = url;
+        this.mFile = file;
+        this.mPart = new File(file.getPath() + VLSyncHttpTransport.PART_SUFFIX);
+        this.mRecord = new File(file.getPath() + VLSyncHttpTransport.RECORD_SUFFIX);
+        this.mSize = size;
+        this.mExpectedETag = expectedETag;
+        this.mExecutor = executor;
+        this.mStarts = new long[segments];
+        this.mEnds = new long[segments];
+        this.mConnections = new AtomicReferenceArray<HttpURLConnection>(segments);
+        long length = size / segments;
+        for (int i = 0; i < segments; i++){
+            mStarts[i] = i * length;
+            mEnds[i] = i == segments - 1 ? size - 1 : (i + 1) * length - 1;
+        }
+    }
+
+    /**
+     * Downloads the file on calling thread and returns when all
+     * segments are written. If origin answers a resumed transfer with
+     * the whole file, the file is changed and written from the
+     * beginning. Segments arrive out of order, so the file is read
+     * once to be checked against its eTag before it is renamed.
+     *
+     * @since 1.1
+     *
+     * @throws IOException if file cannot be downloaded completely or
+     * its content does not match the eTag
+     */
+    protected void run() throws IOException{
+        boolean resumed = load();
+        try {
+            transfer(resumed);
+        } catch (IOException e) {
+            if(mETag != null && mPart.length() == mSize){
+                VLSync.log("Interrupted segments of " + mUrl + " are kept.");
+                saveRecord();
+            }else{
+                mPart.delete();
+                mRecord.delete();
+            }
+            throw e;
+        }
+        if(!VLSyncChecksum.verify(mPart, mExpectedETag, mSize)){
+            mPart.delete();
+            mRecord.delete();
+            throw new VLSyncHttpTransport.StatusException(VLSyncDownloadTask.CORRUPT, "Content of " + mUrl + " does not match eTag " + mExpectedETag);
+        }
+        if((mFile.exists() && !mFile.delete()) || !mPart.renameTo(mFile)){
+            mPart.delete();
+            mRecord.delete();
+            throw new IOException("Downloaded file cannot be moved to " + mFile.getAbsolutePath());
+        }
+        mRecord.delete();
+    }
+
+    /**
+     * Requests first unfinished segment, learns eTag of the file from
+     * its response and starts other segments in parallel.
+     *
+     * @param resumed true if segment progress is loaded from resume
+     *                record
+     * @throws IOException if a segment cannot be downloaded
+     */
+    private void transfer(boolean resumed) throws IOException{
+        int first = 0;
+        while (first < mStarts.length && mPositions.get(first) > mEnds[first]){
+            first++;
+        }
+
+        File parent = mFile.getParentFile();
+        if(parent != null && !parent.exists()){
+            parent.mkdirs();
+        }
+        mSavedAt = System.currentTimeMillis();
+
+        RandomAccessFile file = new RandomAccessFile(mPart, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            if(first == mStarts.length){
+                VLSync.log("All segments of " + mUrl + " are already downloaded.");
+                return;
+            }
+            HttpURLConnection con = request(first);
+            int code = con.getResponseCode();
+            if(code == HttpURLConnection.HTTP_OK){
+                VLSync.log((resumed ? "File is changed since interrupted transfer: " : "Origin does not serve ranges: ") + mUrl);
+                mRecord.delete();
+                mETag = null;
+                track(first, con);
+                file.setLength(0);
+                write(channel, con, first, -1);
+                return;
+            }
+            if(code != HttpURLConnection.HTTP_PARTIAL || VLSyncHttpTransport.rangeStart(con) != mPositions.get(first)){
+                VLSyncConnections.discard(con);
+                throw new VLSyncHttpTransport.StatusException(code, "Unexpected response " + code + " for segment of " + mUrl);
+            }
+            if(!resumed){
+                long total = rangeTotal(con);
+                if(total != mSize){
+                    VLSyncConnections.discard(con);
+                    throw new IOException("Size of " + mUrl + " is " + total + ", expected " + mSize);
+                }
+                mETag = VLSyncHttpTransport.strongETag(con.getHeaderField("ETag"));
+                file.setLength(mSize);
+                saveRecord();
+            }
+            track(first, con);
+
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = first + 1; i < mStarts.length; i++){
+                if(mPositions.get(i) <= mEnds[i]){
+                    futures.add(mExecutor.submit(new Segment(channel, i)));
+                }
+            }
+            VLSync.log("Downloading " + mUrl + " in " + (futures.size() + 1) + " segments.");
+
+            IOException failure = null;
+            try {
+                write(channel, con, first, mEnds[first]);
+            } catch (IOException e) {
+                failure = e;
+                abort();
+            }
+            for (Future<?> future : futures){
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if(failure == null){
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                        abort();
+                    }
+                } catch (InterruptedException e) {
+                    abort();
+                    Thread.currentThread().interrupt();
+                    failure = new IOException("Segmented transfer is interrupted: " + mUrl);
+                }
+            }
+            if(failure != null){
+                throw failure;
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Sends range request of a segment starting from its next byte
+     * position.
+     *
+     * @param segment index of segment
+     * @return connected connection
+     * @throws IOException if connection cannot be established
+     */
+    private HttpURLConnection request(int segment) throws IOException{
+        HttpURLConnection con = VLSyncConnections.open(mUrl);
+        con.setRequestProperty("Range", "bytes=" + mPositions.get(segment) + "-" + mEnds[segment]);
+        if(mETag != null){
+            con.setRequestProperty("If-Range", mETag);
+        }
+        con.connect();
+        return con;
+    }
+
+    /**
+     * Writes response body of a segment to its region of the file.
+     *
+     * @param channel channel of preallocated file
+     * @param con connection of segment response
+     * @param segment index of segment
+     * @param end last byte position to write or -1 to write whole
+     *            body from the beginning of the file
+     * @throws IOException if body cannot be written completely
+     */
+    private void write(FileChannel channel, HttpURLConnection con, int segment, long end) throws IOException{
+        long position = end < 0 ? 0 : mPositions.get(segment);
+        InputStream in = con.getInputStream();
+        try {
+            ReadableByteChannel source = Channels.newChannel(in);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (!mAborted && source.read(buffer) != -1){
+                buffer.flip();
+                if(end >= 0 && position + buffer.remaining() > end + 1){
+                    throw new IOException("Segment of " + mUrl + " is longer than requested.");
+                }
+                while (buffer.hasRemaining()){
+                    position += channel.write(buffer, position);
+                }
+                buffer.clear();
+                if(end >= 0){
+                    mPositions.set(segment, position);
+                    if(System.currentTimeMillis() - mSavedAt >= RECORD_INTERVAL){
+                        checkpoint(channel);
+                    }
+                }
+            }
+        } finally {
+            mConnections.set(segment, null);
+            VLSyncConnections.release(con, in);
+        }
+        if(mAborted){
+            throw new IOException("Segmented transfer is aborted: " + mUrl);
+        }
+        if(end >= 0 && position != end + 1){
+            throw new IOException("Segment of " + mUrl + " is truncated: " + position + "/" + (end + 1));
+        }
+        if(end >= 0){
+            checkpoint(channel);
+        }
+        if(end < 0 && position != mSize){
+            throw new IOException("Body of " + mUrl + " is truncated: " + position + "/" + mSize);
+        }
+    }
+
+    /**
+     * Keeps connection of a segment to be disconnected on abort. A
+     * connection kept after segments are aborted is disconnected
+     * here, as abort may have missed it.
+     *
+     * @param segment index of segment
+     * @param con connection of segment
+     * @throws IOException if transfer is aborted
+     */
+    private void track(int segment, HttpURLConnection con) throws IOException{
+        mConnections.set(segment, con);
+        if(mAborted){
+            mConnections.set(segment, null);
+            VLSyncConnections.discard(con);
+            throw new IOException("Segmented transfer is aborted: " + mUrl);
+        }
+    }
+
+    /**
+     * Stops all segments in flight.
+     */
+    private void abort(){
+        mAborted = true;
+        for (int i = 0; i < mConnections.length(); i++){
+            HttpURLConnection con = mConnections.get(i);
+            if(con != null){
+                con.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Forces written bytes to storage and saves progress of segments
+     * taken before, so the record never gets ahead of the file.
+     *
+     * @param channel channel of preallocated file
+     */
+    private synchronized void checkpoint(FileChannel channel){
+        long[] positions = positions();
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            VLSync.log("Segments cannot be forced to storage: " + mPart.getAbsolutePath(), e);
+            return;
+        }
+        saveRecord(positions);
+        mSavedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return next byte position to be written of each segment
+     */
+    private long[] positions(){
+        long[] positions = new long[mStarts.length];
+        for (int i = 0; i < positions.length; i++){
+            positions[i] = mPositions.get(i);
+        }
+        return positions;
+    }
+
+    /**
+     * Loads progress of segments from resume record. Leftovers which
+     * cannot be resumed are deleted.
+     *
+     * @return true if an interrupted transfer is resumed
+     */
+    private boolean load(){
+        mPositions = new AtomicLongArray(mStarts.length);
+        for (int i = 0; i < mStarts.length; i++){
+            mPositions.set(i, mStarts[i]);
+        }
+        if(mPart.length() == mSize && mRecord.exists()){
+            try {
+                String[] lines = FileUtils.readFileToString(mRecord, "UTF-8").split("\n");
+                mETag = VLSyncHttpTransport.strongETag(lines[0]);
+                if(mETag != null && lines.length == mStarts.length + 2 && Long.parseLong(lines[1].trim()) == mSize){
+                    for (int i = 0; i < mStarts.length; i++){
+                        String[] values = lines[i + 2].trim().split(" ");
+                        long position = Long.parseLong(values[2]);
+                        if(Long.parseLong(values[0]) != mStarts[i] || Long.parseLong(values[1]) != mEnds[i] || position < mStarts[i] || position > mEnds[i] + 1){
+                            throw new NumberFormatException("Segment does not match: " + lines[i + 2]);
+                        }
+                        mPositions.set(i, position);
+                    }
+                    VLSync.log("Resuming segmented download of " + mUrl + ".");
+                    return true;
+                }
+            } catch (IOException e) {
+                VLSync.log("Resume record cannot be read: " + mRecord.getAbsolutePath(), e);
+            } catch (RuntimeException e) {
+                VLSync.log("Resume record is invalid: " + mRecord.getAbsolutePath(), e);
+            }
+            for (int i = 0; i < mStarts.length; i++){
+                mPositions.set(i, mStarts[i]);
+            }
+        }
+        mETag = null;
+        mPart.delete();
+        mRecord.delete();
+        return false;
+    }
+
+    /**
+     * Writes eTag of file and current progress of segments to resume
+     * record.
+     */
+    private void saveRecord(){
+        saveRecord(positions());
+    }
+
+    /**
+     * Writes eTag of file and given progress of segments to resume
+     * record. A record which cannot be written is deleted, so the
+     * transfer starts from the beginning next time.
+     *
+     * @param positions next byte position to be written of each
+     *                  segment
+     */
+    private synchronized void saveRecord(long[] positions){
+        if(mETag == null){
+            mRecord.delete();
+            return;
+        }
+        StringBuilder builder = new StringBuilder();
+        builder.append(mETag).append('\n').append(mSize);
+        for (int i = 0; i < mStarts.length; i++){
+            builder.append('\n').append(mStarts[i]).append(' ').append(mEnds[i]).append(' ').append(positions[i]);
+        }
+        try {
+            FileUtils.writeStringToFile(mRecord, builder.toString(), "UTF-8");
+        } catch (IOException e) {
+            VLSync.log("Resume record cannot be written: " + mRecord.getAbsolutePath(), e);
+            mRecord.delete();
+        }
+    }
+
+    /**
+     * @param con connection of a 206 response
+     * @return complete length in 'Content-Range' header or -1 if it
+     * is unknown
+     */
+    private static long rangeTotal(HttpURLConnection con){
+        String value = con.getHeaderField("Content-Range");
+        int slash = value == null ? -1 : value.lastIndexOf('/');
+        if(slash < 0){
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"url\":\"" + mUrl + "\", \"size\":" + mSize + ", \"segments\":" + mStarts.length + " }";
+    }
+
+    /**
+     * Transfer of a segment other than the first one.
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    private class Segment implements Callable<Void> {
+
+        /**
+         * Channel of preallocated file.
+         */
+        private FileChannel mChannel;
+
+        /**
+         * Index of segment.
+         */
+        private int mIndex;
+
+        /**
+         * Constructor method.
+         *
+         * @param channel channel of preallocated file
+         * @param index index of segment
+         */
+        private Segment(FileChannel channel, int index){
+            this.mChannel = channel;
+            this.mIndex = index;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            if(mAborted){
+                throw new IOException("Segmented transfer is aborted: " + mUrl);
+            }
+            HttpURLConnection con = request(mIndex);
+            track(mIndex, con);
+            int code = con.getResponseCode();
+            if(code != HttpURLConnection.HTTP_PARTIAL || VLSyncHttpTransport.rangeStart(con) != mPositions.get(mIndex)){
+                mConnections.set(mIndex, null);
+                VLSyncConnections.discard(con);
+                throw new VLSyncHttpTransport.StatusException(code, "Unexpected response " + code + " for segment of " + mUrl);
+            }
+            write(mChannel, con, mIndex, mEnds[mIndex]);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.valensas.vlsync.lib;
+
+/**
+ * This class represents a shard referenced at 'content.json' file's
+ * shards field. A shard is a manifest of its own which lists files
+ * under {@link #prefix} directory. {@link #hash} is an aggregate hash
+ * of all files in that directory tree, so a shard whose hash is not
+ * changed is not downloaded or compared at all.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @see com.valensas.vlsync.lib.VLSyncContentFile#shards
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncShard extends VLSyncFile {
+
+    /**
+     * Directory prefix of files listed in shard, ending with
+     * a slash.
+     */
+    private String prefix;
+
+    /**
+     * Aggregate hash of directory tree.
+     */
+    private String hash;
+
+    /**
+     * Getter method for {@link #prefix}
+     *
+     * @since 1.1
+     *
+     * @return {@link #prefix}
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Setter method for {@link #prefix}
+     *
+     * @since 1.1
+     *
+     * @param prefix directory prefix. A slash is appended if missing.
+     */
+    public void setPrefix(String prefix) {
+        if(prefix != null && !prefix.endsWith("/")){
+            prefix += "/";
+        }
+        this.prefix = prefix;
+    }
+
+    /**
+     * Getter method for {@link #hash}
+     *
+     * @since 1.1
+     *
+     * @return {@link #hash}
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Setter method for {@link #hash}
+     *
+     * @since 1.1
+     *
+     * @param hash aggregate hash string
+     */
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    @Override
+    public String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"path\":" + getPath() + ", \"prefix\":" + prefix + ", \"hash\":\"" + hash + "\", \"size\":" + getSize() + " }";
+    }
+}
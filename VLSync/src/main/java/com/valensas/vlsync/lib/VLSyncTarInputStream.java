@@ -0,0 +1,279 @@
+package com.valensas.vlsync.lib;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Minimal reader of tar archives. Regular file entries are returned
+ * one by one and the stream reads body of current entry, like
+ * {@link java.util.zip.ZipInputStream}. Names are taken from ustar
+ * prefix field, GNU long name entries and 'path' records of pax
+ * headers. Other entry types are skipped.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncTarInputStream extends InputStream {
+
+    /**
+     * Size of header and data blocks.
+     */
+    private static final int BLOCK_SIZE = 512;
+
+    /**
+     * Archive stream.
+     */
+    private InputStream mIn;
+
+    /**
+     * Header block buffer.
+     */
+    private byte[] mHeader = new byte[BLOCK_SIZE];
+
+    /**
+     * Unread bytes of current entry.
+     */
+    private long mRemaining = 0;
+
+    /**
+     * Padding bytes after current entry.
+     */
+    private long mPadding = 0;
+
+    /**
+     * Constructor method.
+     *
+     * @since 1.1
+     *
+     * @param in archive stream
+     */
+    protected VLSyncTarInputStream(InputStream in){
+        this.mIn = in;
+    }
+
+    /**
+     * Skips rest of current entry and moves to next regular file.
+     *
+     * @since 1.1
+     *
+     * @return name of next file or null at end of archive
+     * @throws IOException if archive cannot be read or is malformed
+     */
+    protected String getNextEntry() throws IOException{
+        String longName = null;
+        while (true){
+            skipArchive(mRemaining + mPadding);
+            mRemaining = 0;
+            mPadding = 0;
+            if(!readBlock()){
+                return null;
+            }
+            if(isZeroBlock()){
+                return null;
+            }
+            long size = parseOctal(124, 12);
+            char type = (char) mHeader[156];
+            String name = longName != null ? longName : name();
+            longName = null;
+            mRemaining = size;
+            mPadding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+
+            if(type == 'L'){
+                longName = trim(readBody());
+            }else if(type == 'x'){
+                longName = paxPath(readBody());
+            }else if(type == '0' || type == '\0' || type == '7'){
+                return name;
+            }
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(mRemaining <= 0){
+            return -1;
+        }
+        int read = mIn.read(b, off, (int) Math.min(len, mRemaining));
+        if(read == -1){
+            throw new EOFException("Tar entry is truncated.");
+        }
+        mRemaining -= read;
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /**
+     * @return true if a whole header block is read, false at end of
+     * stream
+     * @throws IOException if block is truncated
+     */
+    private boolean readBlock() throws IOException{
+        int filled = 0;
+        while (filled < BLOCK_SIZE){
+            int read = mIn.read(mHeader, filled, BLOCK_SIZE - filled);
+            if(read == -1){
+                if(filled == 0){
+                    return false;
+                }
+                throw new EOFException("Tar header is truncated.");
+            }
+            filled += read;
+        }
+        return true;
+    }
+
+    /**
+     * Reads body of current entry, a long name or pax header.
+     *
+     * @return body as UTF-8 string
+     * @throws IOException if body cannot be read
+     */
+    private String readBody() throws IOException{
+        if(mRemaining > 1024 * 1024){
+            throw new IOException("Tar header entry is too large: " + mRemaining);
+        }
+        byte[] body = new byte[(int) mRemaining];
+        int filled = 0;
+        while (filled < body.length){
+            int read = read(body, filled, body.length - filled);
+            if(read == -1){
+                break;
+            }
+            filled += read;
+        }
+        return new String(body, 0, filled, "UTF-8");
+    }
+
+    /**
+     * Skips bytes of archive stream.
+     *
+     * @param count number of bytes
+     * @throws IOException if archive ends before
+     */
+    private void skipArchive(long count) throws IOException{
+        while (count > 0){
+            long skipped = mIn.skip(count);
+            if(skipped <= 0){
+                if(mIn.read() == -1){
+                    throw new EOFException("Tar entry is truncated.");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * @return true if header block is an end of archive marker
+     */
+    private boolean isZeroBlock(){
+        for (byte b : mHeader){
+            if(b != 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return name of entry, joined with ustar prefix if present
+     * @throws IOException if name cannot be decoded
+     */
+    private String name() throws IOException{
+        String name = field(0, 100);
+        if("ustar".equals(field(257, 6))){
+            String prefix = field(345, 155);
+            if(prefix.length() > 0){
+                name = prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * @param offset offset of field in header
+     * @param length length of field
+     * @return null terminated field value
+     * @throws IOException if field cannot be decoded
+     */
+    private String field(int offset, int length) throws IOException{
+        int end = offset;
+        while (end < offset + length && mHeader[end] != 0){
+            end++;
+        }
+        return new String(mHeader, offset, end - offset, "UTF-8");
+    }
+
+    /**
+     * @param offset offset of field in header
+     * @param length length of field
+     * @return value of octal number field
+     * @throws IOException if field is not a number
+     */
+    private long parseOctal(int offset, int length) throws IOException{
+        long value = 0;
+        for (int i = offset; i < offset + length; i++){
+            byte b = mHeader[i];
+            if(b == 0 || b == ' '){
+                if(value > 0){
+                    break;
+                }
+                continue;
+            }
+            if(b < '0' || b > '7'){
+                throw new IOException("Tar header is malformed.");
+            }
+            value = value * 8 + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * @param value long name entry body
+     * @return value without trailing null characters
+     */
+    private static String trim(String value){
+        int end = value.length();
+        while (end > 0 && value.charAt(end - 1) == '\0'){
+            end--;
+        }
+        return value.substring(0, end);
+    }
+
+    /**
+     * Finds 'path' record of a pax header. Records are formatted as
+     * '&lt;length&gt; &lt;key&gt;=&lt;value&gt;\n'.
+     *
+     * @param records pax header body
+     * @return path or null if it is not overridden
+     */
+    private static String paxPath(String records){
+        for (String record : records.split("\n")){
+            int space = record.indexOf(' ');
+            if(space > 0 && record.startsWith("path=", space + 1)){
+                return record.substring(space + 6);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"remaining\":" + mRemaining + " }";
+    }
+}
@@ -0,0 +1,48 @@
+package com.valensas.vlsync.lib;
+
+import java.io.File;
+
+/**
+ * Transfers files from origin to local storage. A
+ * {@link com.valensas.vlsync.lib.VLSyncDownloadTask} hands its
+ * download to a transport, which notifies the task's listener on
+ * main thread when the file is completely written and its content
+ * matches its eTag.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @see com.valensas.vlsync.lib.VLSyncDownloadManagerTransport
+ * @see com.valensas.vlsync.lib.VLSyncHttpTransport
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+interface VLSyncTransport {
+
+    /**
+     * Starts transfer of a file.
+     *
+     * @since 1.1
+     *
+     * @param url download URL
+     * @param file file to save downloaded content to
+     * @param size size of file in bytes as listed in manifest or -1
+     *             if it is unknown
+     * @param eTag eTag of file listed in manifest to check content
+     *             against or null
+     * @param listener callback object to notify when transfer is
+     *                 completed
+     */
+    public void download(String url, File file, long size, String eTag, VLSyncDownloadTask.OnDownloadFinishedListener listener);
+
+    /**
+     * Releases resources of transport. Called when update task
+     * finishes. Results of transfers in flight may not be delivered
+     * afterwards.
+     *
+     * @since 1.1
+     */
+    public void release();
+}
@@ -0,0 +1,1197 @@
+package com.valensas.vlsync.lib;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Plan of an update on disk. It computes download, delete and move
+ * queues from a delta document or from the requested manifest,
+ * prepares files from packs and patches into temp folder, and commits
+ * the result into project folder. It holds no reference to the
+ * platform, {@link com.valensas.vlsync.lib.VLSyncUpdateTask} runs it
+ * and downloads its queue in between.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @see com.valensas.vlsync.lib.VLSyncUpdateTask
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncUpdatePlan {
+
+    /**
+     * Maximum number of packs or patches transferred at once.
+     */
+    private static final int PREPARE_CONCURRENCY = 4;
+
+    /**
+     * Project folder which committed files are in.
+     */
+    private File mRoot;
+
+    /**
+     * Temp folder which files are downloaded to.
+     */
+    private File mTemp;
+
+    /**
+     * Project URL which manifest documents, packs and patches are
+     * requested from.
+     */
+    private String mProjectURL;
+
+    /**
+     * Files to be deleted on commit.
+     */
+    private VLSyncManifest mDeletedFiles;
+
+    /**
+     * Files to be downloaded.
+     */
+    private VLSyncManifest mDownloads;
+
+    /**
+     * Files to be moved locally instead of downloaded.
+     */
+    private VLSyncManifestDiff.Move[] mMovedFiles;
+
+    /**
+     * Mapped index of committed manifest. It is open only
+     * while the manifest difference is computed.
+     */
+    private VLSyncManifestIndex mOldIndex;
+
+    /**
+     * Index of new manifest. It is committed together with
+     * downloaded files.
+     */
+    private VLSyncManifestIndex.Writer mIndexWriter;
+
+    /**
+     * Flag whether new manifest is sharded. If not, committed
+     * 'shards.json' file is deleted on commit.
+     */
+    private boolean mSharded = false;
+
+    /**
+     * Flag whether manifest is not changed and only missing or
+     * corrupt files are downloaded. Committed manifest files are
+     * kept as is.
+     */
+    private boolean mRepairing = false;
+
+    /**
+     * Flag whether origin answered the last delta lookup that it has
+     * no delta from committed manifest.
+     */
+    private boolean mDeltaMissing = false;
+
+    /**
+     * Extensions of files with pre-compressed '.gz' siblings on
+     * origin. See {@link VLSyncContentFile#getCompressed()}
+     */
+    private String[] mCompressed;
+
+    /**
+     * Packs announced by manifest. See
+     * {@link VLSyncContentFile#getPacks()}
+     */
+    private VLSyncPack[] mPacks;
+
+    /**
+     * Patches announced by manifest. See
+     * {@link VLSyncContentFile#getPatches()}
+     */
+    private VLSyncPatch[] mPatches;
+
+    /**
+     * Entries of {@link #mDownloads} which are extracted from packs or
+     * patched into temp folder, null if there is none.
+     */
+    private BitSet mPrepared;
+
+    /**
+     * Constructor method.
+     *
+     * @since 1.1
+     *
+     * @param root project folder
+     * @param temp temp folder
+     * @param projectURL project URL, ending with a slash
+     */
+    protected VLSyncUpdatePlan(File root, File temp, String projectURL){
+        this.mRoot = root;
+        this.mTemp = temp;
+        this.mProjectURL = projectURL;
+    }
+
+    /**
+     * Pins deltas, shards, packs and patches to the mirror which
+     * answered the manifest, so they belong to the same version of
+     * it. Called before changes are planned.
+     *
+     * @since 1.1
+     *
+     * @param projectURL project URL on the mirror, ending with a slash
+     */
+    protected void setProjectURL(String projectURL){
+        this.mProjectURL = projectURL;
+    }
+
+    /**
+     * Keeps files downloaded by a failed update task, so they are
+     * not downloaded again. Called when manifest is changed.
+     *
+     * @since 1.1
+     */
+    protected void recoverFailedTask(){
+        File failed = new File(mTemp, "content.json");
+        if(failed.exists()){
+            VLSync.log("Previously failed update task found.");
+            failed.renameTo(new File(mTemp, "failed_content.json"));
+        }
+    }
+
+    /**
+     * @return true if temp folder holds files of a failed update task
+     */
+    private boolean isResuming(){
+        return new File(mTemp, "failed_content.json").exists();
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @param oldETag eTag of committed manifest or null
+     * @return true if there is a committed manifest index which a
+     * delta from given eTag can be applied to
+     */
+    protected boolean canApplyDelta(String oldETag){
+        return oldETag != null && new File(mRoot, "content.idx").exists();
+    }
+
+    /**
+     * Tries to build the new manifest from a delta document keyed
+     * by eTag of committed manifest. Resulting manifest is written
+     * to temp folder and its index is prepared for commit. Called
+     * from background thread.
+     *
+     * @since 1.1
+     *
+     * @param oldETag eTag of committed manifest
+     * @param eTag eTag of current manifest on origin
+     * @return true if delta is applied and queues are planned,
+     * false if full manifest must be downloaded
+     */
+    protected boolean planFromDelta(String oldETag, String eTag){
+        mDeltaMissing = false;
+        if(eTag == null || !canApplyDelta(oldETag)){
+            return false;
+        }
+
+        VLSyncManifestDelta delta;
+        try {
+            delta = VLSyncManifestDelta.fetch(mProjectURL, oldETag);
+        } catch (IOException e) {
+            VLSync.log("Delta cannot be downloaded.", e);
+            return false;
+        }
+        if(delta == null){
+            mDeltaMissing = true;
+            return false;
+        }
+        if(!delta.matches(oldETag, eTag)){
+            VLSync.log("Delta does not match eTags. " + delta);
+            return false;
+        }
+
+        final VLSyncManifestDiff diff = indexOldManifest();
+        if(mOldIndex == null){
+            return false;
+        }
+
+        final VLSyncManifestParser.Writer contentWriter;
+        try {
+            VLSync.log("Applying delta " + delta);
+            contentWriter = new VLSyncManifestParser.Writer(new File(mTemp, "content.json"));
+            mIndexWriter = new VLSyncManifestIndex.Writer(new File(mRoot, "content.idx.part"));
+        } catch (IOException e) {
+            VLSync.log("Delta cannot be applied.", e);
+            mOldIndex.close();
+            mOldIndex = null;
+            return false;
+        }
+
+        try {
+            delta.apply(mOldIndex, new VLSyncManifestParser.OnFileParsedListener() {
+                @Override
+                public void onFileParsed(VLSyncFile file) {
+                    diff.offer(file);
+                    mIndexWriter.onFileParsed(file);
+                    contentWriter.onFileParsed(file);
+                }
+            });
+            contentWriter.close(delta.getLastUpdatedDate());
+            mIndexWriter.setLastUpdatedDate(delta.getLastUpdatedDate());
+            diff.finish();
+            VLSyncContentFile header = delta.getHeader();
+            readFeatures(header);
+            if(header.isSharded()){
+                // entries of all shards are already in place, only hashes are kept
+                writeShards(header);
+            }
+        } catch (IOException e) {
+            deltaFailed(contentWriter, e);
+            return false;
+        } catch (VLSyncException e) {
+            deltaFailed(contentWriter, e);
+            return false;
+        } finally {
+            mOldIndex.close();
+            mOldIndex = null;
+        }
+
+        plan(diff);
+        return true;
+    }
+
+    /**
+     * Discards files written while applying a delta.
+     *
+     * @param contentWriter writer of resulting 'content.json'
+     * @param e cause of the failure
+     */
+    private void deltaFailed(VLSyncManifestParser.Writer contentWriter, Exception e){
+        VLSync.log("Delta cannot be applied.", e);
+        contentWriter.abort();
+        abort();
+        new File(mTemp, "shards.json").delete();
+        mSharded = false;
+    }
+
+    /**
+     * Parses requested manifest and computes its difference against
+     * committed manifest. If the manifest lists shards, only shards
+     * whose hash is changed are downloaded and compared. Called from
+     * background thread.
+     *
+     * @since 1.1
+     *
+     * @param fetch requested manifest
+     * @param binary true if manifest is 'content.bin'
+     * @throws IOException if manifest cannot be read
+     */
+    protected void planFromManifest(VLSyncManifestFetch fetch, boolean binary) throws IOException{
+        final VLSyncManifestDiff diff = indexOldManifest();
+
+        try {
+            mIndexWriter = new VLSyncManifestIndex.Writer(new File(mRoot, "content.idx.part"));
+            if(binary){
+                File file = new File(mTemp, "content.bin");
+                VLSync.log("Downloading content.bin.");
+                FileUtils.copyInputStreamToFile(fetch.getInputStream(), file);
+                planFromBinary(file, diff);
+            }else{
+                planFromJson(fetch.getInputStream(), diff);
+            }
+            diff.finish();
+        } finally {
+            if(mOldIndex != null){
+                mOldIndex.close();
+                mOldIndex = null;
+            }
+        }
+
+        plan(diff);
+    }
+
+    /**
+     * Offers entries of 'content.json' stream to manifest difference
+     * while it is downloaded. Only the parsed entries are written to
+     * temp folder as flat 'content.json' file, which is moved in
+     * place when the whole manifest is read.
+     *
+     * @param stream decompressed 'content.json' stream
+     * @param diff manifest difference to offer entries to
+     * @throws IOException if manifest cannot be read
+     */
+    private void planFromJson(InputStream stream, final VLSyncManifestDiff diff) throws IOException{
+        VLSync.log("Parsing content.json.");
+        File part = new File(mTemp, "content.json.part");
+        final VLSyncManifestParser.Writer contentWriter = new VLSyncManifestParser.Writer(part);
+        try {
+            VLSyncContentFile header = VLSyncManifestParser.parse(stream, new VLSyncManifestParser.OnFileParsedListener() {
+                @Override
+                public void onFileParsed(VLSyncFile file) {
+                    diff.offer(file);
+                    mIndexWriter.onFileParsed(file);
+                    contentWriter.onFileParsed(file);
+                }
+            });
+            readFeatures(header);
+            if(header.isSharded()){
+                applyShards(header, diff, contentWriter);
+            }
+            contentWriter.close(header.getLastUpdatedDate());
+            mIndexWriter.setLastUpdatedDate(header.getLastUpdatedDate());
+        } catch (IOException e) {
+            contentWriter.abort();
+            throw e;
+        } catch (VLSyncException e) {
+            contentWriter.abort();
+            throw e;
+        }
+
+        File contentFile = new File(mTemp, "content.json");
+        if((contentFile.exists() && !contentFile.delete()) || !part.renameTo(contentFile)){
+            throw new IOException("Content file cannot be moved to " + mTemp.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Offers entries of downloaded 'content.bin' file to manifest
+     * difference. The response is written to temp folder first, so it
+     * can be mapped, and every entry is handed on as a
+     * {@link VLSyncFile} object. A flat 'content.json' file is written
+     * to temp folder, so committed manifest is always available as
+     * json.
+     *
+     * @param file downloaded 'content.bin' file
+     * @param diff manifest difference to offer entries to
+     * @throws IOException if manifest cannot be read
+     */
+    private void planFromBinary(File file, final VLSyncManifestDiff diff) throws IOException{
+        VLSync.log("Parsing content.bin.");
+        final VLSyncManifestParser.Writer contentWriter = new VLSyncManifestParser.Writer(new File(mTemp, "content.json"));
+        try {
+            VLSyncContentFile header = VLSyncManifestBinary.parse(file, new VLSyncManifestParser.OnFileParsedListener() {
+                @Override
+                public void onFileParsed(VLSyncFile file) {
+                    diff.offer(file);
+                    mIndexWriter.onFileParsed(file);
+                    contentWriter.onFileParsed(file);
+                }
+            });
+            readFeatures(header);
+            if(header.isSharded()){
+                applyShards(header, diff, contentWriter);
+            }
+            contentWriter.close(header.getLastUpdatedDate());
+            mIndexWriter.setLastUpdatedDate(header.getLastUpdatedDate());
+        } catch (IOException e) {
+            contentWriter.abort();
+            throw e;
+        } catch (VLSyncException e) {
+            contentWriter.abort();
+            throw e;
+        }
+        file.delete();
+    }
+
+    /**
+     * Completes manifest difference from shards of root manifest.
+     * Entries of shards whose hash is not changed are taken from
+     * committed manifest index without comparing. Other shards are
+     * downloaded and compared. Entries are written to given content
+     * writer, so it holds the whole manifest when shards are done.
+     * Shards of root manifest are kept as 'shards.json' to compare
+     * hashes in next update.
+     *
+     * @param root parsed root manifest
+     * @param diff manifest difference which root files are offered to
+     * @param contentWriter writer which root files are written to
+     * @throws IOException if a shard cannot be downloaded or parsed
+     */
+    private void applyShards(VLSyncContentFile root, final VLSyncManifestDiff diff, final VLSyncManifestParser.Writer contentWriter) throws IOException{
+        VLSyncManifestParser.OnFileParsedListener listener = new VLSyncManifestParser.OnFileParsedListener() {
+            @Override
+            public void onFileParsed(VLSyncFile file) {
+                diff.offer(file);
+                mIndexWriter.onFileParsed(file);
+                contentWriter.onFileParsed(file);
+            }
+        };
+
+        HashMap<String, String> oldHashes = loadShardHashes();
+        HashMap<String, VLSyncShard> shards = new HashMap<String, VLSyncShard>();
+        HashSet<String> unchanged = new HashSet<String>();
+        for (VLSyncShard shard : root.getShards()){
+            shards.put(shard.getPrefix(), shard);
+            if(mOldIndex != null && shard.getHash() != null && shard.getHash().equals(oldHashes.get(shard.getPrefix()))){
+                VLSync.log("Shard is not changed: " + shard);
+                unchanged.add(shard.getPrefix());
+            }
+        }
+
+        if(!unchanged.isEmpty()){
+            for (int i = 0; i < mOldIndex.size(); i++) {
+                String prefix = deepestPrefix(mOldIndex.getPath(i), shards);
+                if(prefix != null && unchanged.contains(prefix)){
+                    VLSyncFile f = mOldIndex.get(i);
+                    diff.retain(i);
+                    mIndexWriter.add(f);
+                    contentWriter.onFileParsed(f);
+                }
+            }
+        }
+
+        for (VLSyncShard shard : root.getShards()){
+            if(unchanged.contains(shard.getPrefix())){
+                continue;
+            }
+            VLSync.log("Shard is changed. Downloading shard at " + mProjectURL + shard.getPath());
+            VLSyncManifestFetch fetch = VLSyncManifestFetch.open(mProjectURL, shard.getPath());
+            try {
+                VLSyncManifestParser.parse(fetch.getInputStream(), listener);
+            } finally {
+                fetch.close();
+            }
+        }
+
+        writeShards(root);
+    }
+
+    /**
+     * Keeps shards of root manifest as 'shards.json' in temp folder,
+     * so it is committed with the new manifest.
+     *
+     * @param root root manifest
+     * @throws IOException if file cannot be written
+     */
+    private void writeShards(VLSyncContentFile root) throws IOException{
+        File shardsFile = new File(mTemp, "shards.json");
+        VLSync.log("Writing shards to " + shardsFile.getAbsolutePath());
+        VLSyncContentFile shards = new VLSyncContentFile();
+        shards.setShards(root.getShards());
+        FileUtils.writeStringToFile(shardsFile, VLSyncManifestParser.CONTENT_FILE_ADAPTER.toJson(shards), "UTF-8");
+        mSharded = true;
+    }
+
+    /**
+     * Takes compressed extensions, packs and patches announced by
+     * new manifest.
+     *
+     * @param header header of new manifest
+     */
+    private void readFeatures(VLSyncContentFile header){
+        mCompressed = header.getCompressed();
+        mPacks = header.getPacks();
+        mPatches = header.getPatches();
+    }
+
+    /**
+     * Reads shard hashes of committed root manifest.
+     *
+     * @return hashes keyed by shard prefix, empty if there is no
+     * committed sharded manifest
+     */
+    private HashMap<String, String> loadShardHashes(){
+        HashMap<String, String> hashes = new HashMap<String, String>();
+        File file = new File(mRoot, "shards.json");
+        if(!file.exists()){
+            return hashes;
+        }
+        try {
+            VLSyncContentFile root = VLSyncManifestParser.parse(file, new VLSyncManifestParser.OnFileParsedListener() {
+                @Override
+                public void onFileParsed(VLSyncFile file) {
+                }
+            });
+            if(root.isSharded()){
+                for (VLSyncShard shard : root.getShards()){
+                    hashes.put(shard.getPrefix(), shard.getHash());
+                }
+            }
+        } catch (IOException e) {
+            VLSync.log("Committed shards cannot be parsed. All shards will be downloaded.", e);
+            hashes.clear();
+        }
+        return hashes;
+    }
+
+    /**
+     * Finds the deepest shard or pack which given path belongs to.
+     *
+     * @param path path of file
+     * @param prefixes shards or packs keyed by prefix
+     * @return prefix of shard or pack, null if path belongs to root
+     */
+    private static String deepestPrefix(String path, HashMap<String, ?> prefixes){
+        for (int i = path.lastIndexOf('/'); i >= 0; i = path.lastIndexOf('/', i - 1)){
+            String prefix = path.substring(0, i + 1);
+            if(prefixes.containsKey(prefix)){
+                return prefix;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks committed files against committed manifest and plans
+     * downloads of missing or corrupt files. Called from background
+     * thread when manifest is not changed.
+     *
+     * @since 1.1
+     *
+     * @return true if repair downloads are planned, false if all
+     * files are intact
+     */
+    protected boolean reconcile(){
+        VLSyncManifest repairs = null;
+        VLSyncManifestIndex index = openIndex();
+        if(index != null){
+            try {
+                VLSync.log("Reconciling committed files...");
+                repairs = new VLSyncIntegrity(mRoot).reconcile(index);
+            } catch (IOException e) {
+                VLSync.log("Committed files cannot be reconciled.", e);
+            } finally {
+                index.close();
+            }
+        }
+
+        if(repairs == null || repairs.isEmpty()){
+            return false;
+        }
+
+        VLSync.log(repairs.size() + " files are missing or corrupt. Repairing...");
+        mRepairing = true;
+        mDownloads = repairs;
+        return true;
+    }
+
+    /**
+     * Marks files which a failed update task left in temp folder in
+     * {@link #mPrepared}, so they are not downloaded again. A file is
+     * trusted only if the failed task planned it with the same eTag
+     * and its content matches the eTag where the eTag is a digest, so
+     * a file of another version with the same size is never kept.
+     * Other leftovers are deleted. Called from background thread
+     * before {@link #prepareFiles()}.
+     *
+     * @since 1.1
+     */
+    protected void recoverFiles(){
+        if(mDownloads == null || !isResuming()){
+            return;
+        }
+        final HashMap<String, String> recorded = new HashMap<String, String>();
+        try {
+            VLSyncManifestParser.parse(new File(mTemp, "failed_content.json"), new VLSyncManifestParser.OnFileParsedListener() {
+                @Override
+                public void onFileParsed(VLSyncFile file) {
+                    recorded.put(file.getPath(), file.getEtag());
+                }
+            });
+        } catch (IOException e) {
+            VLSync.log("Manifest of failed update task cannot be read completely.", e);
+        }
+
+        for (int i = 0; i < mDownloads.size(); i++){
+            String path = mDownloads.getPath(i);
+            String eTag = mDownloads.getEtag(i);
+            File file = new File(mTemp, path);
+            if(!file.exists()){
+                continue;
+            }
+            boolean intact = false;
+            if(eTag != null && eTag.equals(recorded.get(path)) && file.length() == mDownloads.getSize(i)){
+                try {
+                    intact = VLSyncChecksum.verify(file, eTag, mDownloads.getSize(i));
+                } catch (IOException e) {
+                    VLSync.log("File left by failed update task cannot be read.", e);
+                }
+            }
+            if(intact){
+                if(mPrepared == null){
+                    mPrepared = new BitSet(mDownloads.size());
+                }
+                mPrepared.set(i);
+            }else{
+                VLSync.log("Deleting stale file left by failed update task at " + file.getAbsolutePath());
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Extracts packs and applies patches which are cheaper than
+     * downloading their files one by one. Packs, then patches, are
+     * transferred in parallel, at most {@link #PREPARE_CONCURRENCY}
+     * at once. Called from background thread, only for transports
+     * which download into temp folder in process.
+     *
+     * @since 1.1
+     */
+    protected void prepareFiles(){
+        if(mPacks != null){
+            extractPacks();
+        }
+        if(mPatches != null){
+            applyPatches();
+        }
+    }
+
+    /**
+     * Groups files in download set by pack and downloads packs which
+     * are cheaper than their files one by one, see
+     * {@link VLSyncPack#isWorthFetching(int, long)}. Packs are
+     * extracted into temp folder and extracted entries are marked in
+     * {@link #mPrepared}. Files which are not extracted are left to
+     * the transport.
+     */
+    private void extractPacks(){
+        HashMap<String, VLSyncPack> byPrefix = new HashMap<String, VLSyncPack>();
+        for (VLSyncPack pack : mPacks){
+            byPrefix.put(pack.getPrefix(), pack);
+        }
+
+        HashMap<String, HashMap<String, VLSyncFile>> wanted = new HashMap<String, HashMap<String, VLSyncFile>>();
+        HashMap<String, Integer> entries = new HashMap<String, Integer>();
+        for (int i = 0; mDownloads != null && i < mDownloads.size(); i++){
+            String path = mDownloads.getPath(i);
+            String prefix = deepestPrefix(path, byPrefix);
+            if(prefix == null || (mPrepared != null && mPrepared.get(i))){
+                continue;
+            }
+            HashMap<String, VLSyncFile> files = wanted.get(prefix);
+            if(files == null){
+                files = new HashMap<String, VLSyncFile>();
+                wanted.put(prefix, files);
+            }
+            files.put(path, mDownloads.get(i));
+            entries.put(path, i);
+        }
+
+        List<Callable<Set<String>>> transfers = new ArrayList<Callable<Set<String>>>();
+        for (final VLSyncPack pack : mPacks){
+            HashMap<String, VLSyncFile> files = wanted.get(pack.getPrefix());
+            if(files == null){
+                continue;
+            }
+            long bytes = 0;
+            for (VLSyncFile file : files.values()){
+                bytes += file.getSize();
+            }
+            if(!pack.isWorthFetching(files.size(), bytes)){
+                VLSync.log(files.size() + " files of " + bytes + " bytes will be downloaded one by one instead of " + pack);
+                continue;
+            }
+
+            VLSync.log("Downloading " + files.size() + " files of " + bytes + " bytes with " + pack);
+            final VLSyncPackTransfer transfer = new VLSyncPackTransfer(mProjectURL + pack.getPath(), mTemp, files);
+            transfers.add(new Callable<Set<String>>() {
+                @Override
+                public Set<String> call() {
+                    try {
+                        transfer.run();
+                    } catch (IOException e) {
+                        VLSync.log("Pack cannot be extracted. Remaining files will be downloaded one by one. " + pack, e);
+                    }
+                    return transfer.getExtracted();
+                }
+            });
+        }
+
+        for (Set<String> extracted : runAll(transfers)){
+            if(extracted == null){
+                continue;
+            }
+            if(mPrepared == null){
+                mPrepared = new BitSet(mDownloads.size());
+            }
+            for (String path : extracted){
+                mPrepared.set(entries.get(path));
+            }
+        }
+    }
+
+    /**
+     * Applies patches of changed files whose committed copy is the
+     * base of the patch and whose patch is smaller than the file.
+     * Results are written into temp folder and marked in
+     * {@link #mPrepared}. Files whose patch cannot be applied or does
+     * not give the listed content are left to the transport.
+     */
+    private void applyPatches(){
+        VLSyncManifestIndex index = openIndex();
+        if(index == null){
+            return;
+        }
+        List<Integer> targets = new ArrayList<Integer>();
+        List<Callable<Boolean>> transfers = new ArrayList<Callable<Boolean>>();
+        try {
+            HashMap<String, Integer> entries = new HashMap<String, Integer>();
+            for (int i = 0; mDownloads != null && i < mDownloads.size(); i++){
+                if(mPrepared == null || !mPrepared.get(i)){
+                    entries.put(mDownloads.getPath(i), i);
+                }
+            }
+
+            for (final VLSyncPatch patch : mPatches){
+                Integer entry = entries.get(patch.getTarget());
+                if(entry == null || patch.getSize() >= mDownloads.getSize(entry)){
+                    continue;
+                }
+                int committed = index.find(patch.getTarget());
+                File base = new File(mRoot, patch.getTarget());
+                File file = new File(mTemp, patch.getTarget());
+                if(committed < 0 || !patch.getBase().equals(index.getEtag(committed)) || !base.exists()){
+                    continue;
+                }
+
+                final VLSyncPatchTransfer transfer = new VLSyncPatchTransfer(mProjectURL + patch.getPath(), base, file, mDownloads.getSize(entry), mDownloads.getEtag(entry));
+                targets.add(entry);
+                transfers.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        VLSync.log("Applying " + patch);
+                        try {
+                            if(transfer.run()){
+                                return true;
+                            }
+                        } catch (IOException e) {
+                            VLSync.log("Patch cannot be applied.", e);
+                        }
+                        VLSync.log("File will be downloaded whole: " + patch.getTarget());
+                        return false;
+                    }
+                });
+            }
+        } finally {
+            index.close();
+        }
+
+        List<Boolean> results = runAll(transfers);
+        for (int i = 0; i < results.size(); i++){
+            if(results.get(i) == null || !results.get(i)){
+                continue;
+            }
+            if(mPrepared == null){
+                mPrepared = new BitSet(mDownloads.size());
+            }
+            mPrepared.set(targets.get(i));
+        }
+    }
+
+    /**
+     * Runs pack or patch transfers in parallel, at most
+     * {@link #PREPARE_CONCURRENCY} at once, and waits for all of
+     * them. Files of a transfer which fails or is not run are left to
+     * the transport.
+     *
+     * @param transfers transfers to run
+     * @return results in order of transfers, null for a transfer
+     * which failed; shorter than transfers if waiting is interrupted
+     */
+    private static <T> List<T> runAll(List<Callable<T>> transfers){
+        List<T> results = new ArrayList<T>();
+        if(transfers.isEmpty()){
+            return results;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(PREPARE_CONCURRENCY, transfers.size()));
+        try {
+            for (Future<T> future : executor.invokeAll(transfers)){
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    VLSync.log("Transfer failed.", e.getCause());
+                    results.add(null);
+                }
+            }
+        } catch (InterruptedException e) {
+            VLSync.log("Preparing files is interrupted.", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Creates a manifest difference object against committed
+     * manifest index. If neither the index nor committed
+     * 'content.json' file can be read, all files are downloaded again.
+     *
+     * @return diff object ready to be offered new entries
+     */
+    private VLSyncManifestDiff indexOldManifest(){
+        mOldIndex = openIndex();
+        if(mOldIndex == null){
+            VLSync.log("Downloading files for the first time.");
+            return new VLSyncManifestDiff();
+        }
+        VLSync.log("Updating files...");
+        return new VLSyncManifestDiff(mOldIndex);
+    }
+
+    /**
+     * Opens committed manifest index. If the index is not found but
+     * a committed 'content.json' file exists, the index is built from
+     * it once.
+     *
+     * @since 1.1
+     *
+     * @return opened index or null if there is no committed manifest
+     */
+    protected VLSyncManifestIndex openIndex(){
+        File indexFile = new File(mRoot, "content.idx");
+        File file = new File(mRoot, "content.json");
+
+        if(indexFile.exists()){
+            try {
+                return VLSyncManifestIndex.open(indexFile);
+            } catch (IOException e) {
+                VLSync.log("Manifest index cannot be opened. Deleting...", e);
+                indexFile.delete();
+            }
+        }
+
+        if(!file.exists()){
+            return null;
+        }
+
+        VLSync.log("Old content file found. Indexing...");
+        VLSyncManifestIndex.Writer writer = null;
+        try {
+            writer = new VLSyncManifestIndex.Writer(new File(mRoot, "content.idx.part"));
+            VLSyncContentFile header = VLSyncManifestParser.parse(file, writer);
+            writer.setLastUpdatedDate(header.getLastUpdatedDate());
+            writer.commit(indexFile);
+            return VLSyncManifestIndex.open(indexFile);
+        } catch (IOException e) {
+            VLSync.log("Indexing failure.", e);
+        } catch (VLSyncException e) {
+            VLSync.log("Indexing failure.", e);
+        }
+        if(writer != null){
+            writer.abort();
+        }
+        return null;
+    }
+
+    /**
+     * Fills download, delete and move queues from computed
+     * manifest difference. Moves whose source file is not
+     * found locally are downloaded instead.
+     *
+     * @param diff finished manifest difference
+     */
+    private void plan(VLSyncManifestDiff diff){
+        VLSyncManifest downloadQueue = diff.getDownloads();
+        ArrayList<VLSyncManifestDiff.Move> moveQueue = new ArrayList<VLSyncManifestDiff.Move>();
+
+        for (VLSyncManifestDiff.Move move : diff.getMoved()){
+            File source = new File(mRoot, move.getFrom().getPath());
+            if(source.exists()){
+                VLSync.log("File added to move queue: " + move);
+                moveQueue.add(move);
+            }else{
+                VLSync.log("Moved file is not found locally. File added to download queue: " + move.getTo());
+                downloadQueue.add(move.getTo());
+            }
+        }
+
+        mDownloads = downloadQueue;
+        mDeletedFiles = diff.getDeleted();
+        mMovedFiles = moveQueue.toArray(new VLSyncManifestDiff.Move[moveQueue.size()]);
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @param path path of a file
+     * @return true if manifest announces a pre-compressed '.gz'
+     * sibling for the file
+     */
+    protected boolean hasCompressedSibling(String path){
+        if(mCompressed == null){
+            return false;
+        }
+        for (String extension : mCompressed){
+            if(path.endsWith(extension)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Applies move and delete queues, moves downloaded files from
+     * temp folder to project folder. When repairing, only repaired
+     * files are moved. Index of new manifest is committed last, so a
+     * failure in between leaves the committed index describing the
+     * old manifest and the next update plans the remaining work
+     * again.
+     *
+     * @since 1.1
+     *
+     * @throws Exception if files cannot be moved
+     */
+    protected void commit() throws Exception{
+        File failed = new File(mTemp, "failed_content.json");
+        if(failed.exists()){
+            VLSync.log("Previously failed task found. Deleting...");
+            failed.delete();
+        }
+
+        try {
+            if(mMovedFiles != null && mMovedFiles.length > 0){
+                VLSync.log("Moving files from queue...");
+                for (VLSyncManifestDiff.Move move : mMovedFiles){
+                    File from = new File(mRoot, move.getFrom().getPath());
+                    File to = new File(mRoot, move.getTo().getPath());
+                    VLSync.log("Moving file at " + from.getAbsolutePath() + " to " + to.getAbsolutePath());
+                    // target path is not in committed manifest, whatever is there or
+                    // left in temp folder by a failed update is stale
+                    new File(mTemp, move.getTo().getPath()).delete();
+                    if(to.exists() && !to.delete()){
+                        throw new IOException("File cannot be replaced at " + to.getAbsolutePath());
+                    }
+                    FileUtils.moveFile(from, to);
+                    deleteEmptyParent(from);
+                }
+                VLSync.log("Move queue cleaned.");
+                mMovedFiles = null;
+            }
+
+            if(mDeletedFiles != null && !mDeletedFiles.isEmpty()){
+                VLSync.log("Deleting files from queue...");
+                for (int i = 0; i < mDeletedFiles.size(); i++) {
+                    File temp = new File(mRoot, mDeletedFiles.getPath(i));
+                    if(temp.exists()){
+                        VLSync.log("Deleting file at " + temp.getAbsolutePath());
+                        temp.delete();
+                        deleteEmptyParent(temp);
+                    }
+                }
+                VLSync.log("Delete queue cleaned.");
+                mDeletedFiles = null;
+            }
+
+            if(mTemp.exists()){
+                if(mRepairing){
+                    commitRepairs();
+                }else{
+                    deletePartials();
+                    VLSync.log("Moving files...");
+                    moveDirectory(mTemp, mRoot);
+                }
+                VLSync.log("Deleting temp folder...");
+                FileUtils.deleteDirectory(mTemp);
+            }
+
+            if(!mRepairing){
+                commitIndex();
+                new VLSyncIntegrity(mRoot).reset();
+            }
+
+            if(!mSharded && !mRepairing){
+                File shardsFile = new File(mRoot, "shards.json");
+                if(shardsFile.exists()){
+                    VLSync.log("Deleting committed shards...");
+                    shardsFile.delete();
+                }
+            }
+        } catch (Exception e) {
+            abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Moves repaired files from temp folder to project folder.
+     * Anything else in temp folder, e.g. manifest or files which a
+     * failed update of another manifest left, is not committed.
+     *
+     * @since 1.1
+     *
+     * @throws IOException if a repaired file cannot be moved
+     */
+    private void commitRepairs() throws IOException{
+        VLSync.log("Moving repaired files...");
+        for (int i = 0; i < mDownloads.size(); i++){
+            File from = new File(mTemp, mDownloads.getPath(i));
+            File to = new File(mRoot, mDownloads.getPath(i));
+            if(!from.exists()){
+                throw new IOException("Repaired file is not found at " + from.getAbsolutePath());
+            }
+            if(to.exists() && !to.delete()){
+                throw new IOException("File cannot be replaced at " + to.getAbsolutePath());
+            }
+            FileUtils.moveFile(from, to);
+        }
+    }
+
+    /**
+     * Discards index of new manifest. Called when update fails.
+     *
+     * @since 1.1
+     */
+    protected void abort(){
+        if(mIndexWriter != null){
+            mIndexWriter.abort();
+            mIndexWriter = null;
+        }
+    }
+
+    /**
+     * Writes index of new manifest next to committed 'content.json'
+     * file. If the index cannot be written, it is deleted to be
+     * rebuilt from 'content.json' by next update.
+     */
+    private void commitIndex(){
+        if(mIndexWriter == null){
+            return;
+        }
+        File indexFile = new File(mRoot, "content.idx");
+        try {
+            VLSync.log("Writing manifest index...");
+            mIndexWriter.commit(indexFile);
+        } catch (IOException e) {
+            VLSync.log("Manifest index cannot be written.", e);
+            mIndexWriter.abort();
+            indexFile.delete();
+        }
+        mIndexWriter = null;
+    }
+
+    /**
+     * Deletes interrupted downloads of planned files left in temp
+     * folder, so they are not committed. Only '.part' and resume
+     * record files of planned paths are deleted, so a listed file
+     * whose own name ends with '.part' is kept.
+     */
+    private void deletePartials(){
+        if(mDownloads == null){
+            return;
+        }
+        HashSet<String> planned = new HashSet<String>();
+        for (int i = 0; i < mDownloads.size(); i++){
+            planned.add(mDownloads.getPath(i));
+        }
+        for (String path : planned){
+            for (String suffix : new String[]{VLSyncHttpTransport.PART_SUFFIX, VLSyncHttpTransport.RECORD_SUFFIX}){
+                File f = new File(mTemp, path + suffix);
+                if(!planned.contains(path + suffix) && f.delete()){
+                    VLSync.log("Deleted interrupted download at " + f.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes enclosing folder of given file if it is empty.
+     *
+     * @param file removed file
+     * @throws IOException if folder cannot be deleted
+     */
+    private static void deleteEmptyParent(File file) throws IOException{
+        File enclosing = file.getParentFile();
+        if(enclosing !=null && enclosing.exists() && enclosing.isDirectory()){
+            File[] filesInside = enclosing.listFiles();
+            if(filesInside == null || filesInside.length == 0){
+                VLSync.log("Deleting folder at " + enclosing.getAbsolutePath());
+                FileUtils.deleteDirectory(enclosing);
+            }
+        }
+    }
+
+    /**
+     * Moves all files in source directory to target directory.
+     * Overwrites existing files in target.
+     *
+     * @param source source folder
+     * @param target destination folder
+     * @throws Exception if source or target is null
+     */
+    private static void moveDirectory(File source, File target) throws Exception{
+        if(source == null || !source.exists()){
+            VLSync.log("Source path not found!");
+            throw new Exception("Source path not found!");
+        }
+
+        if(target == null){
+            VLSync.log("Target path not found!");
+            throw new Exception("Target path not found!");
+        }
+        VLSync.log("Copying files from " + source.getAbsolutePath() + " to " + target.getAbsolutePath());
+
+        if(!target.exists()){
+            FileUtils.moveDirectory(source, target);
+        }else{
+            File[] files = source.listFiles();
+            if(files != null){
+                for (File f : files){
+                    if(f.isDirectory()){
+                        File dir = new File(target, f.getName());
+                        moveDirectory(f, dir);
+                    }else{
+                        VLSync.log("Copying file " + f.getAbsolutePath() + " to " + target.getAbsolutePath());
+                        FileUtils.copyFileToDirectory(f, target);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return files to be downloaded, null if nothing is planned
+     */
+    protected VLSyncManifest getDownloads() {
+        return mDownloads;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return entries of {@link #getDownloads()} which are prepared
+     * in temp folder, null if there is none
+     */
+    protected BitSet getPrepared() {
+        return mPrepared;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return true if origin answered the last delta lookup that it
+     * has no delta from committed manifest
+     */
+    protected boolean isDeltaMissing() {
+        return mDeltaMissing;
+    }
+
+    /**
+     * @since 1.1
+     *
+     * @return true if only missing or corrupt files are downloaded
+     */
+    protected boolean isRepairing() {
+        return mRepairing;
+    }
+
+    @Override
+    public String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"projectURL\":\"" + mProjectURL + "\", \"downloads\":" + (mDownloads == null ? 0 : mDownloads.size()) + ", \"repairing\":" + mRepairing + ", \"sharded\":" + mSharded + " }";
+    }
+}
@@ -1,27 +1,14 @@
 package com.valensas.vlsync.lib;
 
-import android.app.DownloadManager;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.AsyncTask;
-import android.os.Build;
-import com.google.gson.Gson;
-import org.apache.commons.io.FileUtils;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URI;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * This class represents an update task. It's an asynchronous task.
@@ -35,7 +22,13 @@ import java.util.Arrays;
  * @version 1.0
  * @since 1.0
  */
-class VLSyncUpdateTask extends AsyncTask<Void, Integer, VLSyncUpdateTask.Result> implements VLSyncDownloadTask.OnDownloadFinishedListener{
+class VLSyncUpdateTask extends AsyncTask<Void, Integer, VLSyncUpdateTask.Result> implements VLSyncDownloadScheduler.OnScheduleListener{
+
+    /**
+     * Time in milliseconds after which an origin which has no delta
+     * is asked for one again.
+     */
+    private static final long DELTA_RECHECK_INTERVAL = 24 * 60 * 60 * 1000L;
 
     /**
      * {@link com.valensas.vlsync.lib.VLSync} instance reference.
@@ -43,35 +36,43 @@ class VLSyncUpdateTask extends AsyncTask<Void, Integer, VLSyncUpdateTask.Result>
     private VLSync sync;
 
     /**
-     * Downloaded 'content.json' file id for
-     * {@link android.app.DownloadManager}
+     * Plan of this update, created by background task.
+     */
+    private VLSyncUpdatePlan plan;
+
+    /**
+     * Flag whether queues are already planned by background
+     * task.
      */
-    private long downloadID;
+    private boolean planned = false;
 
     /**
-     * Files to be deleted after update task.
+     * Flag whether origin offers binary manifest 'content.bin'
+     * and it is requested instead of 'content.json'.
      */
-    private VLSyncFile[] deletedFiles;
+    private boolean binaryManifest = false;
 
     /**
-     * Files to be downloaded by update task.
+     * Project URL on the mirror which answered the manifest, null if
+     * manifest is not requested.
      */
-    private VLSyncFile[] allFiles;
+    private String manifestMirror;
 
     /**
-     * Currently downloaded files index in {@link #allFiles}
+     * Number of attempts started for each file in plan, which picks
+     * the mirror of next attempt.
      */
-    private int currentFile;
+    private AtomicIntegerArray mirrorAttempts;
 
     /**
-     * Total size of all downloadable files
+     * Scheduler of downloads in plan
      */
-    private long totalSize = 0;
+    private VLSyncDownloadScheduler scheduler;
 
     /**
-     * Current total size of downloaded files
+     * Transport of downloads in plan
      */
-    private long currentTotal = 0;
+    private VLSyncTransport transport;
 
     /**
      * If content eTag is changed, its set to this
@@ -81,8 +82,13 @@ class VLSyncUpdateTask extends AsyncTask<Void, Integer, VLSyncUpdateTask.Result>
     private String newContentETag;
 
     /**
-     * Constructor method. Initializes fields and
-     * {@link android.app.DownloadManager}'s receiver.
+     * Time until which new content is fresh, set at the end of
+     * update operation. See {@link VLSync#getContentFreshness()}
+     */
+    private long newContentFreshness = 0;
+
+    /**
+     * Constructor method. Initializes fields.
      *
      * @since 1.0
      */
@@ -93,298 +99,93 @@ class VLSyncUpdateTask extends AsyncTask<Void, Integer, VLSyncUpdateTask.Result>
             VLSync.log("VLSync is not properly initialized.");
             throw new VLSyncException("VLSync is not properly initialized.");
         }
-        initializeBroadcastReceiver();
         VLSync.log("Construction completed.");
     }
 
-    /**
-     * When download completed, this registered broadcast
-     * receiver handles the process.
-     *
-     * @since 1.0
-     */
-    private void initializeBroadcastReceiver(){
-        VLSync.log("Initializing broadcast receiver for download manager...");
-        sync.getContext().registerReceiver(new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                VLSync.log("Data received from download manager.");
-                long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, 0L);
-                if (id != downloadID) {
-                    VLSync.log("Id is not matched with currently downloaded file's id.");
-                    return;
-                }
-                DownloadManager downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
-                DownloadManager.Query query = new DownloadManager.Query();
-                query.setFilterById(id);
-                Cursor cursor = downloadManager.query(query);
-
-                // it shouldn't be empty, but just in case
-                if (!cursor.moveToFirst()) {
-                    return;
-                }
-
-                int statusIndex = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
-                int x = cursor.getInt(statusIndex);
-                if (DownloadManager.STATUS_SUCCESSFUL != x) {
-                    VLSync.log("Download is failed.");
-                    VLSyncError error = new VLSyncError();
-                    error.setCode(4);
-                    error.setMessage("Content file cannot be downloaded.");
-                    sync.onPostExecute(false, error);
-                    return;
-                }
-
-                int uriIndex = cursor.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI);
-                String downloadedPackageUriString = cursor.getString(uriIndex);
-
-                sync.setProgress(1);
-
-                VLSyncContentFile contentFile;
-
-                try {
-                    VLSync.log("Parsing content.json.");
-                    File file = new File(URI.create(downloadedPackageUriString));
-                    Gson gson = new Gson();
-                    BufferedReader br = new BufferedReader(new FileReader(file));
-                    contentFile = gson.fromJson(br, VLSyncContentFile.class);
-                }
-                catch (IOException e) {
-                    VLSync.log("Parsing failure.");
-                    contentFile = null;
-                }
-
-                if(contentFile == null){
-                    VLSync.log("Content file not found.");
-                    VLSyncError error = new VLSyncError();
-                    error.setCode(5);
-                    error.setMessage("Content file not found.");
-                    sync.onPostExecute(false, error);
-                    return;
-                }
-
-                VLSyncContentFile oldContentFile = null;
-
-                try {
-                    File file = new File(sync.getContext().getExternalFilesDir(null), "/"+sync.getId()+"/content.json");
-                    if(file.exists()) {
-                        VLSync.log("Old content file found. Parsing...");
-                        Gson gson = new Gson();
-                        BufferedReader br = new BufferedReader(new FileReader(file));
-                        oldContentFile = gson.fromJson(br, VLSyncContentFile.class);
-                    }
-                }
-                catch (IOException e) {
-                    VLSync.log("Parsing failure.");
-                    oldContentFile = null;
-                }
-
-                File failed = new File(sync.getContext().getExternalFilesDir(null), "/temp/failed_content.json");
-
-                if(oldContentFile == null) {
-                    VLSync.log("Downloading files for the first time.");
-                    totalSize = contentFile.getTotalSize();
-                    allFiles = contentFile.getFiles();
-                    currentFile = 0;
-
-                    if (allFiles != null && allFiles.length > 0) {
-                        if (failed.exists()) {
-                            VLSync.log("Failed update task found. Processing old downloaded files.");
-                            boolean c = true;
-                            for (int i = 0; i < allFiles.length; i++) {
-                                currentFile = i;
-                                File f = new File(sync.getContext().getExternalFilesDir(null), "/temp/" + allFiles[i].getPath());
-                                if (!f.exists()) {
-                                    VLSyncDownloadTask task = new VLSyncDownloadTask(sync.getProjectURL() + allFiles[i].getPath(), "/temp/" + allFiles[i].getPath(), sync.getContext(), VLSyncUpdateTask.this);
-                                    task.download();
-                                    c = false;
-                                    break;
-                                } else {
-                                    currentTotal += allFiles[i].getSize();
-                                }
-                            }
-                            if (c) {
-                                VLSync.log("All files found in content.json are already downloaded. Completing update task.");
-                                success();
-                            }
-                        } else {
-                            VLSync.log("Starting to download files in content.json.");
-                            VLSyncDownloadTask task = new VLSyncDownloadTask(sync.getProjectURL() + allFiles[currentFile].getPath(), "/temp/" + allFiles[currentFile].getPath(), sync.getContext(), VLSyncUpdateTask.this);
-                            task.download();
-                        }
-                    }else{
-                        VLSync.log("No files found in content.json. Completing update task.");
-                        success();
-                    }
-                } else {
-                    VLSync.log("Updating files...");
-
-                    ArrayList<VLSyncFile> newFiles = new ArrayList<VLSyncFile>();
-                    newFiles.addAll(Arrays.asList(contentFile.getFiles()));
-                    ArrayList<VLSyncFile> oldFiles = new ArrayList<VLSyncFile>();
-                    oldFiles.addAll(Arrays.asList(oldContentFile.getFiles()));
-
-                    ArrayList<VLSyncFile> downloadQueue = new ArrayList<VLSyncFile>();
-                    ArrayList<VLSyncFile> deleteQueue = new ArrayList<VLSyncFile>();
-
-                    totalSize = 0;
-
-                    for (int i = 0; i < newFiles.size(); i++) {
-                        VLSyncFile f = newFiles.get(i);
-                        boolean check = true;
-                        for (int j = 0; j < oldFiles.size(); j++) {
-                            VLSyncFile ff = oldFiles.get(j);
-                            if(f.getPath().equals(ff.getPath())){
-                                if(!f.getEtag().equals(ff.getEtag())){
-                                    VLSync.log("File added to download queue: " + f);
-                                    downloadQueue.add(f);
-                                    totalSize += f.getSize();
-                                    check = false;
-                                }
-                                break;
-                            }
-                        }
-                        if(check){
-                            totalSize += f.getSize();
-                            VLSync.log("File added to download queue: " + f);
-                            downloadQueue.add(f);
-                        }
-                    }
-
-                    for (int i = 0; i < oldFiles.size(); i++) {
-                        VLSyncFile f = oldFiles.get(i);
-                        boolean check = true;
-                        for (int j = 0; j < newFiles.size(); j++) {
-                            VLSyncFile ff = newFiles.get(j);
-                            if(f.getPath().equals(ff.getPath())){
-                                check = false;
-                                break;
-                            }
-                        }
-                        if(check){
-                            VLSync.log("File added to delete queue: " + f);
-                            deleteQueue.add(f);
-                        }
-                    }
-
-                    deletedFiles = new VLSyncFile[deleteQueue.size()];
-                    for (int i = 0; i < deleteQueue.size(); i++) {
-                        deletedFiles[i] = deleteQueue.get(i);
-                    }
-                    allFiles = new VLSyncFile[downloadQueue.size()];
-                    for (int i = 0; i < downloadQueue.size(); i++) {
-                        allFiles[i] = downloadQueue.get(i);
-                    }
-                    currentFile = 0;
-
-                    if (allFiles.length > 0) {
-                        if (failed.exists()) {
-                            boolean c = true;
-                            for (int i = 0; i < allFiles.length; i++) {
-                                currentFile = i;
-                                File f = new File(sync.getContext().getExternalFilesDir(null), "/temp/" + allFiles[i].getPath());
-                                if (!f.exists()) {
-                                    VLSync.log("Starting to download file at " + sync.getProjectURL() + allFiles[i].getPath());
-                                    VLSyncDownloadTask task = new VLSyncDownloadTask(sync.getProjectURL() + allFiles[i].getPath(), "/temp/" + allFiles[i].getPath(), sync.getContext(), VLSyncUpdateTask.this);
-                                    task.download();
-                                    c = false;
-                                    break;
-                                } else {
-                                    currentTotal += allFiles[i].getSize();
-                                }
-                            }
-                            if (c) {
-                                VLSync.log("No files found for update in content.json. Completing update task.");
-                                success();
-                            }
-                        } else {
-                            VLSync.log("Starting to download file at " + sync.getProjectURL() + allFiles[currentFile].getPath());
-                            VLSyncDownloadTask task = new VLSyncDownloadTask(sync.getProjectURL() + allFiles[currentFile].getPath(), "/temp/" + allFiles[currentFile].getPath(), sync.getContext(), VLSyncUpdateTask.this);
-                            task.download();
-                        }
-                    }else{
-                        VLSync.log("No files found in content.json. Completing update task.");
-                        success();
-                    }
-                }
-
-            }
-        }, new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE));
-        VLSync.log("Initialization of broadcast receiver for download manager completed.");
-    }
-
     @Override
     protected Result doInBackground(Void... params) {
 
         VLSync.log("Starting background task...");
 
         Result result = new Result();
+        File files = sync.getContext().getExternalFilesDir(null);
+        plan = new VLSyncUpdatePlan(new File(files, "/"+sync.getId()), new File(files, "/temp"), sync.getProjectURL());
+        String oldETag = sync.getContentETag();
+        if(oldETag != null && System.currentTimeMillis() < sync.getContentFreshness()){
+            VLSync.log("Content is fresh until " + sync.getContentFreshness() + ". Revalidation skipped.");
+            newContentETag = oldETag;
+            newContentFreshness = sync.getContentFreshness();
+            return reconcile(result);
+        }
 
-        String urlString = sync.getProjectURL() + "content.json";
-        String etag;
-        try {
-            VLSync.log("URL Connection establishing to " + urlString);
-            URL url = new URL(urlString);
-            HttpURLConnection con = (HttpURLConnection) url.openConnection();
-            con.setRequestMethod("HEAD");
-            con.setInstanceFollowRedirects(false);
-            con.connect();
-
-            VLSync.log("URL Connection established to " + urlString);
-
-            etag = con.getHeaderField("etag");
-
-            VLSync.log("ETag received: " + etag);
+        String manifestName = sync.getManifestName();
+        sync.getMirrors().probeIfStale(manifestName != null ? manifestName : "content.json");
 
+        VLSyncManifestFetch fetch;
+        try {
+            VLSync.log("Revalidating manifest with eTag: " + oldETag);
+            fetch = openManifest(oldETag);
+            VLSync.log("Manifest requested: " + fetch);
         } catch (MalformedURLException e1) {
-            VLSync.log("Exception on establishing URL connection to " + urlString, e1);
+            VLSync.log("Exception on establishing URL connection to " + sync.getProjectURL(), e1);
             result.error = new VLSyncError();
             result.error.setCode(1);
             result.error.setMessage(e1.getMessage());
             return result;
+        } catch (FileNotFoundException e) {
+            VLSync.log("Content file cannot be downloaded.", e);
+            result.error = new VLSyncError();
+            result.error.setCode(4);
+            result.error.setMessage("Content file cannot be downloaded.");
+            return result;
         } catch (IOException e) {
-            VLSync.log("Exception on establishing URL connection to " + urlString, e);
+            VLSync.log("Exception on establishing URL connection to " + sync.getProjectURL(), e);
             result.error = new VLSyncError();
             result.error.setCode(2);
             result.error.setMessage(e.getMessage());
             return result;
         }
 
-        if(etag != null){
-            if(etag.equals(sync.getContentETag())){
-                VLSync.log("ETag is not changed.");
-                publishProgress(99);
-                result.success = true;
-                return result;
-            }else{
-                VLSync.log("ETag is changed. Old eTag: " + sync.getContentETag() + ". New eTag: " + etag + ".");
-                newContentETag = etag;
-            }
+        manifestMirror = fetch.getProjectURL();
+        plan.setProjectURL(manifestMirror);
+        if(!fetch.getName().equals(sync.getManifestName())){
+            sync.updateManifestName(fetch.getName());
         }
-        VLSync.log("Starting to download file at " + urlString + ". File will be saved to /temp/content.json.");
-
-        DownloadManager.Request request = new DownloadManager.Request(Uri.parse(urlString));
-
-        request.setTitle("VLSync");
-        request.setDescription("Downloading content.json");
-
-        request.setVisibleInDownloadsUi(false);
-        if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-            request.setNotificationVisibility(DownloadManager.Request.VISIBILITY_HIDDEN);
+        binaryManifest = fetch.getName().startsWith("content.bin");
+        long maxAge = fetch.getMaxAge();
+        newContentFreshness = maxAge > 0 ? System.currentTimeMillis() + maxAge * 1000 : 0;
+
+        String etag = fetch.getETag();
+        VLSync.log("ETag received: " + etag);
+        if(fetch.isNotModified() || (etag != null && etag.equals(oldETag))){
+            VLSync.log("ETag is not changed.");
+            fetch.close();
+            sync.updateContentFreshness(newContentFreshness);
+            newContentETag = oldETag;
+            return reconcile(result);
         }
+        VLSync.log("ETag is changed. Old eTag: " + oldETag + ". New eTag: " + etag + ".");
+        newContentETag = etag;
 
-        File failed = new File(sync.getContext().getExternalFilesDir(null), "/temp/content.json");
+        plan.recoverFailedTask();
 
-        if(failed.exists()){
-            VLSync.log("Previously failed update task found.");
-            failed.renameTo(new File(sync.getContext().getExternalFilesDir(null), "/temp/failed_content.json"));
+        try {
+            planChanges(fetch, oldETag);
+        } catch (IOException e) {
+            return parsingFailed(e);
+        } catch (VLSyncException e) {
+            return parsingFailed(e);
+        } finally {
+            fetch.close();
         }
 
-        request.setDestinationInExternalFilesDir(sync.getContext(), null, "/temp/content.json");
+        plan.recoverFiles();
+        if(sync.getTransport() == VLSync.Transport.HTTP){
+            plan.prepareFiles();
+        }
 
-        DownloadManager downloadManager = (DownloadManager) sync.getContext().getSystemService(Context.DOWNLOAD_SERVICE);
-        downloadID = downloadManager.enqueue(request);
-        VLSync.log("Download flow initiated.");
+        publishProgress(1);
+        planned = true;
         VLSync.log("Background task finished.");
         return null;
     }
@@ -402,174 +203,292 @@ class VLSyncUpdateTask extends AsyncTask<Void, Integer, VLSyncUpdateTask.Result>
         if(result != null){
             VLSync.log("Update task finished " + result);
             sync.onPostExecute(result.success, result.error);
+        }else if(planned){
+            startDownloads();
         }
     }
 
-    @Override
-    public void success() {
-        if(allFiles == null || allFiles.length == 0){
-            VLSync.log("No files found to download. Finishing update task...");
-
-            File failed = new File(sync.getContext().getExternalFilesDir(null), "/temp/failed_content.json");
-            if(failed.exists()){
-                VLSync.log("Previously failed task found. Deleting...");
-                failed.delete();
+    /**
+     * Requests manifest from mirrors in order of preference until one
+     * answers. Mirrors which cannot be reached are put in backoff, so
+     * the rest of the update goes to the mirror which answered. If the
+     * manifest object which origin serves is not known yet, it is
+     * discovered first.
+     *
+     * @since 1.1
+     *
+     * @param oldETag eTag of committed manifest or null
+     * @return requested manifest
+     * @throws IOException failure of the last mirror if none answers
+     */
+    private VLSyncManifestFetch openManifest(String oldETag) throws IOException{
+        VLSyncMirrors mirrors = sync.getMirrors();
+        IOException failure = null;
+        for (String mirror : mirrors.ordered()){
+            try {
+                String name = sync.getManifestName();
+                if(name == null){
+                    name = VLSyncManifestFetch.discover(mirror);
+                }
+                String[] names = VLSyncManifestFetch.candidates(name);
+                VLSyncManifestFetch fetch = VLSyncManifestFetch.open(mirror, names, oldETag);
+                mirrors.onSuccess(mirror);
+                return fetch;
+            } catch (MalformedURLException e) {
+                throw e;
+            } catch (FileNotFoundException e) {
+                VLSync.log("Manifest is not found on mirror " + mirror, e);
+                failure = e;
+            } catch (IOException e) {
+                VLSync.log("Manifest cannot be requested from mirror " + mirror, e);
+                mirrors.onFailure(mirror);
+                failure = e;
             }
+        }
+        throw failure;
+    }
 
-            File source = new File(sync.getContext().getExternalFilesDir(null), "/temp");
-            if(source.exists()){
-                VLSync.log("Files found in temp folder. Moving files...");
-
-                File target = new File(sync.getContext().getExternalFilesDir(null), "/"+sync.getId());
-
-                try {
-                    moveDirectory(source, target);
-                    VLSync.log("Deleting temp folder...");
-                    FileUtils.deleteDirectory(source);
-
-                    if(deletedFiles != null && deletedFiles.length > 0){
-                        VLSync.log("Deleting files from queue...");
-                        for (VLSyncFile f : deletedFiles){
-                            File temp = new File(sync.getContext().getExternalFilesDir(null), "/"+sync.getId()+"/" + f.getPath());
-                            if(temp.exists()){
-                                VLSync.log("Deleting file at " + temp.getAbsolutePath());
-                                temp.delete();
-                                File enclosing = temp.getParentFile();
-                                if(enclosing !=null && enclosing.exists() && enclosing.isDirectory()){
-                                    File[] filesInside = enclosing.listFiles();
-                                    if(filesInside == null || filesInside.length == 0){
-                                        VLSync.log("Deleting folder at " + enclosing.getAbsolutePath());
-                                        FileUtils.deleteDirectory(enclosing);
-                                    }
-                                }
-                            }
-                        }
-                        VLSync.log("Delete queue cleaned.");
-                        deletedFiles = null;
-                    }
-
-                    VLSync.log("Update task finished successfully.");
-                    sync.onPostExecute(true, null);
-                    sync.updateContentETag(newContentETag);
-                } catch (Exception e) {
-                    VLSync.log("Moving files failed.", e);
-                    VLSyncError error = new VLSyncError();
-                    error.setCode(6);
-                    error.setMessage(e.getMessage());
-                    sync.onPostExecute(false, error);
+    /**
+     * Plans changed manifest from a delta if origin has one from
+     * committed manifest, otherwise from body of the requested
+     * manifest. Delta is looked for before the body is read, and the
+     * body is abandoned if the delta is applied. Origins which have
+     * no delta are remembered, so they are asked again only after
+     * {@link #DELTA_RECHECK_INTERVAL}.
+     *
+     * @since 1.1
+     *
+     * @param fetch requested manifest
+     * @param oldETag eTag of committed manifest or null
+     * @throws IOException if manifest cannot be read
+     */
+    private void planChanges(VLSyncManifestFetch fetch, String oldETag) throws IOException{
+        long missingAt = sync.getDeltaMissingAt();
+        if(plan.canApplyDelta(oldETag) && System.currentTimeMillis() - missingAt >= DELTA_RECHECK_INTERVAL){
+            if(plan.planFromDelta(oldETag, fetch.getETag())){
+                VLSync.log("Delta applied.");
+                fetch.abandon();
+                if(missingAt != 0){
+                    sync.updateDeltaMissingAt(0);
                 }
-            }else{
-                VLSync.log("Update task finished successfully.");
-                sync.onPostExecute(true, null);
-                sync.updateContentETag(newContentETag);
+                return;
             }
+            if(plan.isDeltaMissing()){
+                sync.updateDeltaMissingAt(System.currentTimeMillis());
+            }
+        }
+        plan.planFromManifest(fetch, binaryManifest);
+    }
+
+    /**
+     * Creates result of update task when requested manifest
+     * cannot be parsed.
+     *
+     * @since 1.1
+     *
+     * @param e cause of the failure
+     * @return failed result
+     */
+    private Result parsingFailed(Exception e){
+        VLSync.log("Parsing failure.", e);
+        plan.abort();
+        Result result = new Result();
+        result.error = new VLSyncError();
+        result.error.setCode(5);
+        result.error.setMessage("Content file not found.");
+        return result;
+    }
+
+    /**
+     * Checks committed files against committed manifest and plans
+     * downloads of missing or corrupt files. Called from background
+     * thread when manifest is not changed.
+     *
+     * @since 1.1
+     *
+     * @param result result to return if all files are intact
+     * @return given result or null if repair downloads are planned
+     */
+    private Result reconcile(Result result){
+        if(!plan.reconcile()){
+            publishProgress(99);
+            result.success = true;
+            return result;
+        }
+        planned = true;
+        return null;
+    }
 
+    /**
+     * Starts downloading files in plan. In-process transports keep
+     * {@link VLSync#getConcurrentDownloads()} transfers in flight,
+     * adapted to the link unless a fixed number is set, while the
+     * whole list is enqueued to
+     * {@link android.app.DownloadManager} in one pass. Files
+     * extracted from packs, patched or recovered from a previously
+     * failed update task are skipped. Interrupted files are resumed
+     * by the transport.
+     *
+     * @since 1.1
+     */
+    private void startDownloads(){
+        VLSyncManifest allFiles = plan.getDownloads();
+        if(allFiles == null || allFiles.isEmpty()){
+            VLSync.log("No files found in content.json. Completing update task.");
+            commit();
             return;
         }
-        currentTotal += allFiles[currentFile].getSize();
-        sync.setProgress((int) ((100*currentTotal)/totalSize));
-        if(currentFile == allFiles.length - 1){
-
-            File failed = new File(sync.getContext().getExternalFilesDir(null), "/temp/failed_content.json");
-            if(failed.exists()){
-                VLSync.log("Previously failed task found. Deleting...");
-                failed.delete();
+
+        transport = createTransport();
+        mirrorAttempts = new AtomicIntegerArray(allFiles.size());
+        // download manager parallelizes transfers itself, so whole plan is handed over at once
+        VLSyncConcurrencyLimit limit;
+        if(sync.getTransport() == VLSync.Transport.DOWNLOAD_MANAGER){
+            limit = new VLSyncConcurrencyLimit(allFiles.size());
+        }else if(sync.getConcurrentDownloads().isAdaptive()){
+            limit = VLSyncConcurrencyLimit.adaptive();
+        }else{
+            limit = new VLSyncConcurrencyLimit(sync.getConcurrentDownloads().getCount());
+        }
+        scheduler = new VLSyncDownloadScheduler(allFiles, limit, sync.getRetryPolicy(), new VLSyncDownloadScheduler.Starter() {
+            @Override
+            public void start(int entry, VLSyncDownloadTask.OnDownloadFinishedListener listener) {
+                download(entry, listener);
             }
-            VLSync.log("Moving files...");
+        }, this);
 
-            File source = new File(sync.getContext().getExternalFilesDir(null), "/temp");
-            File target = new File(sync.getContext().getExternalFilesDir(null), "/"+sync.getId());
+        BitSet prepared = plan.getPrepared();
+        for (int i = 0; prepared != null && (i = prepared.nextSetBit(i)) >= 0; i++){
+            scheduler.skip(i);
+        }
 
-            try {
-                moveDirectory(source, target);
-                VLSync.log("Deleting temp folder...");
-                FileUtils.deleteDirectory(source);
-
-                if(deletedFiles != null && deletedFiles.length > 0){
-                    VLSync.log("Deleting files from queue...");
-                    for (VLSyncFile f : deletedFiles){
-                        File temp = new File(sync.getContext().getExternalFilesDir(null), "/"+sync.getId()+"/" + f.getPath());
-                        if(temp.exists()){
-                            VLSync.log("Deleting file at " + temp.getAbsolutePath());
-                            temp.delete();
-                            File enclosing = temp.getParentFile();
-                            if(enclosing !=null && enclosing.exists() && enclosing.isDirectory()){
-                                File[] filesInside = enclosing.listFiles();
-                                if(filesInside == null || filesInside.length == 0){
-                                    VLSync.log("Deleting folder at " + enclosing.getAbsolutePath());
-                                    FileUtils.deleteDirectory(enclosing);
-                                }
-                            }
-                        }
-                    }
-                    VLSync.log("Delete queue cleaned.");
-                    deletedFiles = null;
-                }
+        VLSync.log("Starting to download files in content.json. " + scheduler);
+        scheduler.start();
+    }
 
-                VLSync.log("Update task finished successfully.");
-                sync.onPostExecute(true, null);
-                sync.updateContentETag(newContentETag);
-            } catch (Exception e) {
-                VLSync.log("Moving files failed.", e);
-                VLSyncError error = new VLSyncError();
-                error.setCode(6);
-                error.setMessage(e.getMessage());
-                sync.onPostExecute(false, error);
-            }
-        }else{
-            currentFile++;
-            VLSync.log("Starting to download file at " + sync.getProjectURL() + allFiles[currentFile].getPath());
-            VLSyncDownloadTask task = new VLSyncDownloadTask(sync.getProjectURL() + allFiles[currentFile].getPath(), "/temp/" + allFiles[currentFile].getPath(), sync.getContext(), VLSyncUpdateTask.this);
-            task.download();
+    /**
+     * Starts download task of given file into temp folder. Each
+     * attempt of the scheduler goes to a single mirror, the mirror
+     * which answered the manifest first and the others in order of
+     * preference on retries, so a file is requested at most as many
+     * times as {@link VLSync#getRetryPolicy()} allows.
+     *
+     * @since 1.1
+     *
+     * @param index index of file in plan
+     * @param listener callback object to notify when download is
+     *                 completed
+     */
+    private void download(int index, final VLSyncDownloadTask.OnDownloadFinishedListener listener){
+        List<String> mirrors = sync.getMirrors().ordered();
+        if(manifestMirror != null && mirrors.remove(manifestMirror)){
+            mirrors.add(0, manifestMirror);
         }
+        final String mirror = mirrors.get(mirrorAttempts.getAndIncrement(index) % mirrors.size());
+        VLSyncManifest allFiles = plan.getDownloads();
+        String path = allFiles.getPath(index);
+        String url = mirror + path;
+        if(sync.getTransport() == VLSync.Transport.HTTP && plan.hasCompressedSibling(path)){
+            url += ".gz";
+        }
+        VLSync.log("Starting to download file at " + url);
+        VLSyncDownloadTask task = new VLSyncDownloadTask(url, "/temp/" + path, allFiles.getSize(index), allFiles.getEtag(index), sync.getContext(), transport, new VLSyncDownloadTask.OnDownloadFinishedListener() {
+            @Override
+            public void success() {
+                sync.getMirrors().onSuccess(mirror);
+                listener.success();
+            }
+
+            @Override
+            public void failed(int status) {
+                if(VLSyncMirrors.isMirrorFailure(status)){
+                    sync.getMirrors().onFailure(mirror);
+                }
+                listener.failed(status);
+            }
+        });
+        task.download();
     }
 
     /**
-     * Moves all files in source directory to target directory.
-     * Overwrites existing files in target.
+     * Creates transport selected by {@link VLSync#getTransport()}
      *
-     * @since 1.0
+     * @since 1.1
+     *
+     * @return new transport
+     */
+    private VLSyncTransport createTransport(){
+        VLSync.log("Using transport " + sync.getTransport());
+        switch (sync.getTransport()){
+            case HTTP:
+                VLSyncHttpTransport http = new VLSyncHttpTransport(sync.getSegmentThreshold(), sync.getSegments());
+                if(sync.getHedging() != VLSync.Hedging.NONE){
+                    http.setHedgePolicy(new VLSyncHedgePolicy(sync.getHedging() == VLSync.Hedging.OTHER_MIRROR ? sync.getMirrors() : null));
+                }
+                return http;
+            default:
+                return new VLSyncDownloadManagerTransport(sync.getContext(), sync.getDownloadNetworks());
+        }
+    }
+
+    /**
+     * Releases transport of downloads.
      *
-     * @param source source folder
-     * @param target destination folder
-     * @throws Exception if source or target is null
+     * @since 1.1
      */
-    private void moveDirectory(File source, File target) throws Exception{
-        if(source == null || !source.exists()){
-            VLSync.log("Source path not found!");
-            throw new Exception("Source path not found!");
+    private void releaseTransport(){
+        scheduler = null;
+        if(transport != null){
+            transport.release();
+            transport = null;
         }
+    }
 
-        if(target == null){
-            VLSync.log("Target path not found!");
-            throw new Exception("Target path not found!");
+    @Override
+    public void onProgress(long completedSize, long totalSize) {
+        if(totalSize > 0) {
+            sync.setProgress((int) ((100 * completedSize) / totalSize));
         }
-        VLSync.log("Copying files from " + source.getAbsolutePath() + " to " + target.getAbsolutePath());
+    }
 
-        if(!target.exists()){
-            FileUtils.moveDirectory(source, target);
-        }else{
-            File[] files = source.listFiles();
-            if(files != null){
-                for (File f : files){
-                    if(f.isDirectory()){
-                        File dir = new File(target, f.getName());
-                        moveDirectory(f, dir);
-                    }else{
-                        VLSync.log("Copying file " + f.getAbsolutePath() + " to " + target.getAbsolutePath());
-                        FileUtils.copyFileToDirectory(f, target);
-                    }
-                }
-            }
+    @Override
+    public void onFinished() {
+        VLSync.log("All files are downloaded. Finishing update task...");
+        releaseTransport();
+        commit();
+    }
+
+    /**
+     * Commits plan and finishes update task.
+     *
+     * @since 1.1
+     */
+    private void commit(){
+        try {
+            plan.commit();
+            VLSync.log("Update task finished successfully.");
+            sync.onPostExecute(true, null);
+            sync.updateContentETag(newContentETag);
+            sync.updateContentFreshness(newContentFreshness);
+        } catch (Exception e) {
+            VLSync.log("Moving files failed.", e);
+            VLSyncError error = new VLSyncError();
+            error.setCode(6);
+            error.setMessage(e.getMessage());
+            sync.onPostExecute(false, error);
         }
     }
 
     @Override
-    public void failed() {
+    public void onFailed(List<String> completedPaths, List<String> failedPaths) {
+        releaseTransport();
         VLSyncError error = new VLSyncError();
         error.setCode(3);
-        error.setMessage("Error downloading file: " + allFiles[currentFile].getPath());
+        error.setMessage("Error downloading file: " + failedPaths.get(0) + (failedPaths.size() > 1 ? " and " + (failedPaths.size() - 1) + " more" : ""));
+        error.setCompletedPaths(completedPaths);
+        error.setFailedPaths(failedPaths);
         VLSync.log("Update task failed. " + error);
+        plan.abort();
         sync.onPostExecute(false, error);
     }
 
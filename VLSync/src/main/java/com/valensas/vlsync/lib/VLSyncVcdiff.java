@@ -0,0 +1,616 @@
+package com.valensas.vlsync.lib;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Decoder of VCDIFF (RFC 3284) patches. Windows are decoded as the
+ * patch is read and target bytes are written to the output file in
+ * order, so neither the base file nor the target is held in memory.
+ * Copies from the base file are read from disk, copies from earlier
+ * target bytes are read back from the output. Only the default code
+ * table is supported, without secondary compression. Application
+ * header and window checksums, which are extensions of xdelta3, are
+ * skipped, the result is verified against the manifest instead.
+ * </br></br>
+ * Created on 10/17/26</br>
+ * Created @ Valensas
+ *
+ * @author Furkan Bayraktar
+ * @version 1.1
+ * @since 1.1
+ */
+class VLSyncVcdiff {
+
+    /**
+     * Header indicator bit of secondary compression.
+     */
+    private static final int VCD_DECOMPRESS = 0x01;
+
+    /**
+     * Header indicator bit of a custom code table.
+     */
+    private static final int VCD_CODETABLE = 0x02;
+
+    /**
+     * Header indicator bit of application data.
+     */
+    private static final int VCD_APPHEADER = 0x04;
+
+    /**
+     * Window indicator bit of a source segment from base file.
+     */
+    private static final int VCD_SOURCE = 0x01;
+
+    /**
+     * Window indicator bit of a source segment from earlier target.
+     */
+    private static final int VCD_TARGET = 0x02;
+
+    /**
+     * Window indicator bit of a window checksum, xdelta3 extension.
+     */
+    private static final int VCD_ADLER32 = 0x04;
+
+    /**
+     * Empty instruction.
+     */
+    private static final int NOOP = 0;
+
+    /**
+     * Instruction which adds bytes of data section.
+     */
+    private static final int ADD = 1;
+
+    /**
+     * Instruction which repeats a byte of data section.
+     */
+    private static final int RUN = 2;
+
+    /**
+     * Instruction which copies bytes of source segment or target.
+     */
+    private static final int COPY = 3;
+
+    /**
+     * Size of near address cache of default code table.
+     */
+    private static final int NEAR_SIZE = 4;
+
+    /**
+     * Size of same address cache of default code table, in blocks
+     * of 256 addresses.
+     */
+    private static final int SAME_SIZE = 3;
+
+    /**
+     * Largest section of a window which is read into memory.
+     */
+    private static final int MAX_SECTION = 32 * 1024 * 1024;
+
+    /**
+     * Size of write and copy buffers in bytes.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Default code table, first and second instruction of each code.
+     */
+    private static final byte[] TYPE1 = new byte[256];
+    private static final byte[] SIZE1 = new byte[256];
+    private static final byte[] MODE1 = new byte[256];
+    private static final byte[] TYPE2 = new byte[256];
+    private static final byte[] SIZE2 = new byte[256];
+    private static final byte[] MODE2 = new byte[256];
+
+    static {
+        int code = 0;
+        TYPE1[code++] = RUN;
+        for (int size = 0; size <= 17; size++){
+            TYPE1[code] = ADD;
+            SIZE1[code++] = (byte) size;
+        }
+        for (int mode = 0; mode < 9; mode++){
+            TYPE1[code] = COPY;
+            MODE1[code++] = (byte) mode;
+            for (int size = 4; size <= 18; size++){
+                TYPE1[code] = COPY;
+                SIZE1[code] = (byte) size;
+                MODE1[code++] = (byte) mode;
+            }
+        }
+        for (int mode = 0; mode < 9; mode++){
+            for (int add = 1; add <= 4; add++){
+                for (int copy = 4; copy <= (mode < 6 ? 6 : 4); copy++){
+                    TYPE1[code] = ADD;
+                    SIZE1[code] = (byte) add;
+                    TYPE2[code] = COPY;
+                    SIZE2[code] = (byte) copy;
+                    MODE2[code++] = (byte) mode;
+                }
+            }
+        }
+        for (int mode = 0; mode < 9; mode++){
+            TYPE1[code] = COPY;
+            SIZE1[code] = 4;
+            MODE1[code] = (byte) mode;
+            TYPE2[code] = ADD;
+            SIZE2[code++] = 1;
+        }
+    }
+
+    /**
+     * Patch stream.
+     */
+    private InputStream mDelta;
+
+    /**
+     * Base file or null if patch has no base.
+     */
+    private RandomAccessFile mSource;
+
+    /**
+     * Output file.
+     */
+    private RandomAccessFile mTarget;
+
+    /**
+     * Checksum fed with target bytes or null.
+     */
+    private VLSyncChecksum mChecksum;
+
+    /**
+     * Target bytes which are not written to output file yet.
+     */
+    private byte[] mBuffer = new byte[BUFFER_SIZE];
+
+    /**
+     * Number of bytes in {@link #mBuffer}
+     */
+    private int mBuffered = 0;
+
+    /**
+     * Number of bytes written to output file.
+     */
+    private long mFlushed = 0;
+
+    /**
+     * Buffer of copied bytes.
+     */
+    private byte[] mCopy = new byte[BUFFER_SIZE];
+
+    /**
+     * Near address cache, reset for each window.
+     */
+    private long[] mNear = new long[NEAR_SIZE];
+
+    /**
+     * Same address cache, reset for each window.
+     */
+    private long[] mSame = new long[SAME_SIZE * 256];
+
+    /**
+     * Next slot of {@link #mNear} to write.
+     */
+    private int mNextSlot = 0;
+
+    /**
+     * Private constructor. See {@link #apply(File, InputStream, File, VLSyncChecksum)}
+     *
+     * @param delta patch stream
+     * @param source base file or null
+     * @param target output file
+     * @param checksum checksum fed with target bytes or null
+     */
+    private VLSyncVcdiff(InputStream delta, RandomAccessFile source, RandomAccessFile target, VLSyncChecksum checksum){
+        this.mDelta = delta;
+        this.mSource = source;
+        this.mTarget = target;
+        this.mChecksum = checksum;
+    }
+
+    /**
+     * Decodes a patch into a file.
+     *
+     * @since 1.1
+     *
+     * @param base file which patch is made against or null
+     * @param delta patch stream, read to its end
+     * @param target file to write result to, overwritten
+     * @param checksum checksum to feed with result or null
+     * @return length of result in bytes
+     * @throws IOException if patch is malformed or unsupported, or
+     * files cannot be read or written
+     */
+    protected static long apply(File base, InputStream delta, File target, VLSyncChecksum checksum) throws IOException{
+        RandomAccessFile source = base == null ? null : new RandomAccessFile(base, "r");
+        try {
+            RandomAccessFile out = new RandomAccessFile(target, "rw");
+            try {
+                out.setLength(0);
+                VLSyncVcdiff decoder = new VLSyncVcdiff(delta, source, out, checksum);
+                decoder.decode();
+                return decoder.position();
+            } finally {
+                out.close();
+            }
+        } finally {
+            if(source != null){
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * Decodes header and all windows.
+     *
+     * @throws IOException if patch cannot be decoded
+     */
+    private void decode() throws IOException{
+        if(readByte() != 0xD6 || readByte() != 0xC3 || readByte() != 0xC4 || readByte() != 0){
+            throw new IOException("Patch is not a VCDIFF document.");
+        }
+        int indicator = readByte();
+        if((indicator & (VCD_DECOMPRESS | VCD_CODETABLE)) != 0){
+            throw new IOException("Patch uses secondary compression or a custom code table.");
+        }
+        if((indicator & VCD_APPHEADER) != 0){
+            skip(readInt());
+        }
+
+        int window;
+        while ((window = mDelta.read()) != -1){
+            decodeWindow(window);
+        }
+        flush();
+    }
+
+    /**
+     * Decodes a window and writes its target bytes.
+     *
+     * @param indicator window indicator
+     * @throws IOException if window cannot be decoded
+     */
+    private void decodeWindow(int indicator) throws IOException{
+        if((indicator & ~(VCD_SOURCE | VCD_TARGET | VCD_ADLER32)) != 0 || (indicator & VCD_SOURCE) != 0 && (indicator & VCD_TARGET) != 0){
+            throw new IOException("Window indicator is invalid: " + indicator);
+        }
+        long windowStart = position();
+        RandomAccessFile segment = null;
+        long segmentLength = 0;
+        long segmentPosition = 0;
+        if((indicator & (VCD_SOURCE | VCD_TARGET)) != 0){
+            segmentLength = readInt();
+            segmentPosition = readInt();
+            segment = (indicator & VCD_SOURCE) != 0 ? mSource : mTarget;
+            long available = segment == null ? 0 : segment == mTarget ? windowStart : mSource.length();
+            if(segmentPosition + segmentLength > available){
+                throw new IOException("Source segment of window is out of range.");
+            }
+        }
+
+        readInt();
+        long windowLength = readInt();
+        if(readByte() != 0){
+            throw new IOException("Window uses compressed sections.");
+        }
+        int dataLength = sectionLength(readInt());
+        int instructionsLength = sectionLength(readInt());
+        int addressesLength = sectionLength(readInt());
+        if((indicator & VCD_ADLER32) != 0){
+            skip(4);
+        }
+        Section data = new Section(readFully(dataLength));
+        Section instructions = new Section(readFully(instructionsLength));
+        Section addresses = new Section(readFully(addressesLength));
+
+        mNextSlot = 0;
+        Arrays.fill(mNear, 0);
+        Arrays.fill(mSame, 0);
+        while (instructions.hasRemaining()){
+            int code = instructions.readByte();
+            execute(TYPE1[code], SIZE1[code], MODE1[code], data, instructions, addresses, segment, segmentPosition, segmentLength, windowStart);
+            execute(TYPE2[code], SIZE2[code], MODE2[code], data, instructions, addresses, segment, segmentPosition, segmentLength, windowStart);
+        }
+        if(position() - windowStart != windowLength){
+            throw new IOException("Window decodes to " + (position() - windowStart) + " bytes, expected " + windowLength);
+        }
+    }
+
+    /**
+     * Executes an instruction of a code.
+     *
+     * @param type instruction type
+     * @param size size in code table, 0 if it follows in instructions
+     *             section
+     * @param mode address mode of a copy
+     * @param data data section of window
+     * @param instructions instructions section of window
+     * @param addresses addresses section of window
+     * @param segment file of source segment or null
+     * @param segmentPosition position of source segment in its file
+     * @param segmentLength length of source segment
+     * @param windowStart position of target window in output
+     * @throws IOException if instruction is invalid
+     */
+    private void execute(int type, int size, int mode, Section data, Section instructions, Section addresses, RandomAccessFile segment, long segmentPosition, long segmentLength, long windowStart) throws IOException{
+        if(type == NOOP){
+            return;
+        }
+        long length = size == 0 ? instructions.readInt() : size;
+        if(type == ADD){
+            write(data.bytes, data.take(length), (int) length);
+        }else if(type == RUN){
+            byte value = data.bytes[data.take(1)];
+            Arrays.fill(mCopy, 0, (int) Math.min(length, mCopy.length), value);
+            for (long left = length; left > 0; left -= mCopy.length){
+                write(mCopy, 0, (int) Math.min(left, mCopy.length));
+            }
+        }else{
+            long here = segmentLength + position() - windowStart;
+            long address = address(here, mode, addresses);
+            if(address < 0 || address >= here){
+                throw new IOException("Copy address is out of range: " + address);
+            }
+            while (length > 0){
+                int chunk;
+                if(address < segmentLength){
+                    chunk = (int) Math.min(Math.min(length, segmentLength - address), mCopy.length);
+                    readAt(segment, segmentPosition + address, chunk);
+                }else{
+                    long from = windowStart + address - segmentLength;
+                    // overlapping copies repeat bytes written by themselves
+                    chunk = (int) Math.min(Math.min(length, position() - from), mCopy.length);
+                    readAt(mTarget, from, chunk);
+                }
+                write(mCopy, 0, chunk);
+                address += chunk;
+                length -= chunk;
+            }
+        }
+    }
+
+    /**
+     * Decodes address of a copy and updates address caches.
+     *
+     * @param here current position in source segment and target window
+     * @param mode address mode
+     * @param addresses addresses section of window
+     * @return address of copy
+     * @throws IOException if address cannot be read
+     */
+    private long address(long here, int mode, Section addresses) throws IOException{
+        long address;
+        if(mode == 0){
+            address = addresses.readInt();
+        }else if(mode == 1){
+            address = here - addresses.readInt();
+        }else if(mode - 2 < NEAR_SIZE){
+            address = mNear[mode - 2] + addresses.readInt();
+        }else{
+            address = mSame[(mode - 2 - NEAR_SIZE) * 256 + addresses.readByte()];
+        }
+        mNear[mNextSlot] = address;
+        mNextSlot = (mNextSlot + 1) % NEAR_SIZE;
+        mSame[(int) (address % mSame.length)] = address;
+        return address;
+    }
+
+    /**
+     * Reads bytes of a file into {@link #mCopy}. Bytes of output which
+     * are still buffered are taken from the buffer.
+     *
+     * @param file base or output file
+     * @param position position of first byte
+     * @param length number of bytes
+     * @throws IOException if file cannot be read
+     */
+    private void readAt(RandomAccessFile file, long position, int length) throws IOException{
+        if(file == mTarget && position >= mFlushed){
+            System.arraycopy(mBuffer, (int) (position - mFlushed), mCopy, 0, length);
+            return;
+        }
+        if(file == mTarget){
+            flush();
+        }
+        file.seek(position);
+        file.readFully(mCopy, 0, length);
+    }
+
+    /**
+     * Appends target bytes.
+     *
+     * @param bytes array holding bytes
+     * @param offset position of first byte in array
+     * @param length number of bytes
+     * @throws IOException if output cannot be written
+     */
+    private void write(byte[] bytes, int offset, int length) throws IOException{
+        if(mChecksum != null){
+            mChecksum.update(bytes, offset, length);
+        }
+        if(mBuffered + length > mBuffer.length){
+            flush();
+        }
+        if(length > mBuffer.length){
+            mTarget.seek(mFlushed);
+            mTarget.write(bytes, offset, length);
+            mFlushed += length;
+            return;
+        }
+        System.arraycopy(bytes, offset, mBuffer, mBuffered, length);
+        mBuffered += length;
+    }
+
+    /**
+     * Writes buffered target bytes to output file.
+     *
+     * @throws IOException if output cannot be written
+     */
+    private void flush() throws IOException{
+        if(mBuffered > 0){
+            mTarget.seek(mFlushed);
+            mTarget.write(mBuffer, 0, mBuffered);
+            mFlushed += mBuffered;
+            mBuffered = 0;
+        }
+    }
+
+    /**
+     * @return number of target bytes decoded
+     */
+    private long position(){
+        return mFlushed + mBuffered;
+    }
+
+    /**
+     * @return next byte of patch
+     * @throws IOException if patch ends
+     */
+    private int readByte() throws IOException{
+        int b = mDelta.read();
+        if(b == -1){
+            throw new EOFException("Patch is truncated.");
+        }
+        return b;
+    }
+
+    /**
+     * @return next variable length integer of patch
+     * @throws IOException if patch ends or integer overflows
+     */
+    private long readInt() throws IOException{
+        long value = 0;
+        int b;
+        do {
+            if(value > Long.MAX_VALUE >> 7){
+                throw new IOException("Integer of patch overflows.");
+            }
+            b = readByte();
+            value = (value << 7) | (b & 0x7F);
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * @param length section length read from patch
+     * @return length as int
+     * @throws IOException if section is too large to read
+     */
+    private static int sectionLength(long length) throws IOException{
+        if(length > MAX_SECTION){
+            throw new IOException("Section of patch is too large: " + length);
+        }
+        return (int) length;
+    }
+
+    /**
+     * @param length number of bytes
+     * @return next bytes of patch
+     * @throws IOException if patch ends
+     */
+    private byte[] readFully(int length) throws IOException{
+        byte[] bytes = new byte[length];
+        int filled = 0;
+        while (filled < length){
+            int read = mDelta.read(bytes, filled, length - filled);
+            if(read == -1){
+                throw new EOFException("Patch is truncated.");
+            }
+            filled += read;
+        }
+        return bytes;
+    }
+
+    /**
+     * @param count number of patch bytes to skip
+     * @throws IOException if patch ends
+     */
+    private void skip(long count) throws IOException{
+        while (count > 0){
+            readByte();
+            count--;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "{ \"_class\":\"" + getClass().getName() + "\", \"position\":" + position() + " }";
+    }
+
+    /**
+     * Section of a window read into memory.
+     *
+     * @since 1.1
+     * @version 1.1
+     */
+    private static class Section {
+
+        /**
+         * Bytes of section.
+         */
+        private final byte[] bytes;
+
+        /**
+         * Position of next byte.
+         */
+        private int position = 0;
+
+        /**
+         * @param bytes bytes of section
+         */
+        private Section(byte[] bytes){
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return true if there are unread bytes
+         */
+        private boolean hasRemaining(){
+            return position < bytes.length;
+        }
+
+        /**
+         * @param length number of bytes
+         * @return position of first byte taken
+         * @throws IOException if section ends
+         */
+        private int take(long length) throws IOException{
+            if(length > bytes.length - position){
+                throw new EOFException("Section of patch is truncated.");
+            }
+            int start = position;
+            position += (int) length;
+            return start;
+        }
+
+        /**
+         * @return next byte
+         * @throws IOException if section ends
+         */
+        private int readByte() throws IOException{
+            return bytes[take(1)] & 0xFF;
+        }
+
+        /**
+         * @return next variable length integer
+         * @throws IOException if section ends or integer overflows
+         */
+        private long readInt() throws IOException{
+            long value = 0;
+            int b;
+            do {
+                if(value > Long.MAX_VALUE >> 7){
+                    throw new IOException("Integer of patch overflows.");
+                }
+                b = readByte();
+                value = (value << 7) | (b & 0x7F);
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}